@@ -7,16 +7,16 @@ import net.sourceforge.peers.FileLogger;
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.javaxsound.JavaxSoundManager;
 import net.sourceforge.peers.rtp.RFC4733;
+import net.sourceforge.peers.sip.core.useragent.Call;
 import net.sourceforge.peers.sip.core.useragent.SipListener;
 import net.sourceforge.peers.sip.core.useragent.UserAgent;
-import net.sourceforge.peers.sip.syntaxencoding.SipUriSyntaxException;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
 
 public class EventManager implements SipListener {
 
     private UserAgent userAgent;
-    private SipRequest sipRequest;
+    private Call call;
     private CommandsReader commandsReader;
     
     public EventManager() throws SocketException {
@@ -24,15 +24,7 @@ public class EventManager implements SipListener {
         Logger logger = new FileLogger(null);
         JavaxSoundManager javaxSoundManager = new JavaxSoundManager(false, logger, null);
         userAgent = new UserAgent(this, config, ".", logger);
-        new Thread() {
-            public void run() {
-                try {
-                    userAgent.register();
-                } catch (SipUriSyntaxException e) {
-                    e.printStackTrace();
-                }
-            }
-        }.start();
+        userAgent.registerAsync();
         commandsReader = new CommandsReader(this);
         commandsReader.start();
     }
@@ -40,25 +32,13 @@ public class EventManager implements SipListener {
     
     // commands methods
     public void call(final String callee) {
-        new Thread() {
-            @Override
-            public void run() {
-                try {
-                    sipRequest = userAgent.invite(callee, null);
-                } catch (SipUriSyntaxException e) {
-                    e.printStackTrace();
-                }
-            }
-        }.start();
+        call = userAgent.inviteAsync(callee);
     }
     
     public void hangup() {
-        new Thread() {
-            @Override
-            public void run() {
-                userAgent.terminate(sipRequest);
-            }
-        }.start();
+        if (call != null) {
+            call.hangup();
+        }
     }
     
     
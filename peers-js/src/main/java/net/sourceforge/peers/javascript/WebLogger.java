@@ -83,6 +83,11 @@ public class WebLogger implements Logger {
         out.javaNetworkLog(buf.toString());
     }
 
+    @Override
+    public boolean isNetworkTraceEnabled() {
+        return true;
+    }
+
     private final String genericLog(String message, String level) {
         StringBuffer buf = new StringBuffer();
         buf.append(logFormatter.format(new Date()));
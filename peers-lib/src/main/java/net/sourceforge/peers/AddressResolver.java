@@ -0,0 +1,48 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves host names to addresses. The default implementation is the
+ * system resolver, others can be plugged in
+ * {@link CachingAddressResolver}, for tests or for custom DNS servers.
+ */
+public interface AddressResolver {
+
+    public static final AddressResolver SYSTEM = new AddressResolver() {
+        @Override
+        public InetAddress[] getAllByName(String host)
+                throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * May block during DNS lookups.
+     * 
+     * @return at least one address
+     */
+    public InetAddress[] getAllByName(String host)
+        throws UnknownHostException;
+
+}
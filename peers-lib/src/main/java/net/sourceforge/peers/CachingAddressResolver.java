@@ -0,0 +1,373 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Address resolver for the signalling path. IP literals are parsed without
+ * any lookup, host names are resolved by a delegate {@link AddressResolver}
+ * and cached, failures included, for a limited time. An expired address is
+ * still returned while it is refreshed in the background, so that only the
+ * first lookup of a host name waits for the DNS server.
+ * {@link #getCachedByName(String)} never waits at all.
+ */
+public class CachingAddressResolver implements AddressResolver {
+
+    public static final long DEFAULT_TTL = 60000; // ms
+    public static final long DEFAULT_NEGATIVE_TTL = 10000; // ms
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static final int REFRESH_THREADS = 2;
+
+    private AddressResolver delegate;
+    private ConcurrentHashMap<String, Entry> entries;
+    private ThreadPoolExecutor refreshExecutor;
+    private volatile long ttl;
+    private volatile long negativeTtl;
+    private int maxSize;
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong refreshes;
+    private Logger logger;
+
+    public CachingAddressResolver(Logger logger) {
+        this(SYSTEM, logger);
+    }
+
+    public CachingAddressResolver(AddressResolver delegate, Logger logger) {
+        this(delegate, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_SIZE,
+                logger);
+    }
+
+    /**
+     * @param ttl milliseconds during which a resolved address is used
+     *        without lookup
+     * @param negativeTtl milliseconds during which a failed lookup is not
+     *        retried
+     * @param maxSize maximum number of cached host names
+     */
+    public CachingAddressResolver(AddressResolver delegate, long ttl,
+            long negativeTtl, int maxSize, Logger logger) {
+        this(delegate, ttl, negativeTtl, maxSize, logger, null);
+    }
+
+    /**
+     * @param threadFactory creates refresh threads, platform threads if
+     *        null
+     */
+    public CachingAddressResolver(AddressResolver delegate, long ttl,
+            long negativeTtl, int maxSize, Logger logger,
+            ThreadFactory threadFactory) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("cache size must be positive");
+        }
+        this.delegate = delegate;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.maxSize = maxSize;
+        this.logger = logger;
+        entries = new ConcurrentHashMap<String, Entry>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        refreshes = new AtomicLong();
+        if (threadFactory == null) {
+            threadFactory = PlatformThreadFactory.INSTANCE;
+        }
+        final ThreadFactory refreshThreadFactory = threadFactory;
+        refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS,
+                REFRESH_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = refreshThreadFactory.newThread(
+                                runnable);
+                        thread.setName(
+                                CachingAddressResolver.class.getSimpleName());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        refreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 literal, brackets allowed, without lookup.
+     * 
+     * @return null if host is not an IP literal
+     */
+    public static InetAddress parseLiteral(String host) {
+        if (host == null || host.isEmpty()) {
+            return null;
+        }
+        if (host.charAt(0) == '[') {
+            if (host.charAt(host.length() - 1) != ']') {
+                return null;
+            }
+            host = host.substring(1, host.length() - 1);
+        }
+        if (host.indexOf(':') > -1) {
+            try {
+                // IPv6 literals are never looked up
+                return InetAddress.getByName('[' + host + ']');
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+        byte[] bytes = new byte[4];
+        int part = 0;
+        int value = -1;
+        for (int i = 0; i < host.length(); ++i) {
+            char c = host.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + c - '0';
+                if (value > 255) {
+                    return null;
+                }
+            } else if (c == '.' && value >= 0 && part < 3) {
+                bytes[part++] = (byte)value;
+                value = -1;
+            } else {
+                return null;
+            }
+        }
+        if (part != 3 || value < 0) {
+            return null;
+        }
+        bytes[3] = (byte)value;
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    public InetAddress getByName(String host) throws UnknownHostException {
+        return getAllByName(host)[0];
+    }
+
+    @Override
+    public InetAddress[] getAllByName(String host)
+            throws UnknownHostException {
+        return getAllByName(host, System.currentTimeMillis());
+    }
+
+    InetAddress[] getAllByName(String host, long now)
+            throws UnknownHostException {
+        InetAddress literal = parseLiteral(host);
+        if (literal != null) {
+            return new InetAddress[] { literal };
+        }
+        String key = host.toLowerCase();
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (now < entry.expires) {
+                hits.incrementAndGet();
+                return entry.getAddresses(host);
+            }
+            if (entry.addresses != null) {
+                hits.incrementAndGet();
+                refresh(key, entry);
+                return entry.addresses;
+            }
+        }
+        misses.incrementAndGet();
+        return lookup(key, now).getAddresses(host);
+    }
+
+    /**
+     * Never blocks. When host is not resolved yet, its lookup is started
+     * in the background.
+     * 
+     * @return the address of host, or null if it is not known yet or its
+     *         lookup failed
+     */
+    public InetAddress getCachedByName(String host) {
+        return getCachedByName(host, System.currentTimeMillis());
+    }
+
+    InetAddress getCachedByName(String host, long now) {
+        InetAddress literal = parseLiteral(host);
+        if (literal != null) {
+            return literal;
+        }
+        String key = host.toLowerCase();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            entry = new Entry(null, null, now);
+            Entry previous = entries.putIfAbsent(key, entry);
+            if (previous != null) {
+                entry = previous;
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        if (now >= entry.expires) {
+            refresh(key, entry);
+        }
+        return entry.addresses == null ? null : entry.addresses[0];
+    }
+
+    private void refresh(final String key, Entry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refreshes.incrementAndGet();
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup(key, System.currentTimeMillis());
+                    } catch (UnknownHostException e) {
+                        logger.debug("cannot resolve " + key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("resolver closed, " + key + " not refreshed");
+        }
+    }
+
+    private Entry lookup(String key, long now) throws UnknownHostException {
+        Entry entry;
+        UnknownHostException failure = null;
+        try {
+            entry = new Entry(delegate.getAllByName(key), null, now + ttl);
+        } catch (UnknownHostException e) {
+            failure = e;
+            Entry previous = entries.get(key);
+            if (previous != null && previous.addresses != null
+                    && now < previous.expires + ttl) {
+                // transient DNS failure, keep the last known addresses
+                entry = new Entry(previous.addresses, null,
+                        now + negativeTtl);
+            } else {
+                entry = new Entry(null, e, now + negativeTtl);
+            }
+        }
+        if (entries.size() >= maxSize && !entries.containsKey(key)) {
+            purge(now);
+        }
+        entries.put(key, entry);
+        if (entry.addresses == null) {
+            throw failure;
+        }
+        return entry;
+    }
+
+    private void purge(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (now >= iterator.next().expires) {
+                iterator.remove();
+            }
+        }
+        iterator = entries.values().iterator();
+        while (entries.size() >= maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public long getNegativeTtl() {
+        return negativeTtl;
+    }
+
+    public void setNegativeTtl(long negativeTtl) {
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * Stops background refreshes, cached addresses can still be used.
+     */
+    public void close() {
+        refreshExecutor.shutdownNow();
+    }
+
+    static class Entry {
+
+        // null if the last lookup failed
+        final InetAddress[] addresses;
+        final UnknownHostException failure;
+        final long expires;
+        final AtomicBoolean refreshing;
+
+        Entry(InetAddress[] addresses, UnknownHostException failure,
+                long expires) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expires = expires;
+            refreshing = new AtomicBoolean();
+        }
+
+        InetAddress[] getAddresses(String host)
+                throws UnknownHostException {
+            if (addresses == null) {
+                if (failure != null) {
+                    throw failure;
+                }
+                throw new UnknownHostException(host);
+            }
+            return addresses;
+        }
+    }
+
+}
@@ -42,6 +42,7 @@ public class FileLogger implements Logger {
     private Object networkMutex;
     private SimpleDateFormat logFormatter;
     private SimpleDateFormat networkFormatter;
+    private volatile boolean networkTraceEnabled;
 
     public FileLogger(String peersHome) {
         if (peersHome == null) {
@@ -61,6 +62,7 @@ public class FileLogger implements Logger {
         networkMutex = new Object();
         logFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
         networkFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+        networkTraceEnabled = true;
     }
 
     @Override
@@ -111,6 +113,9 @@ public class FileLogger implements Logger {
 
     @Override
     public final void traceNetwork(String message, String direction) {
+        if (!networkTraceEnabled) {
+            return;
+        }
         synchronized (networkMutex) {
             StringBuffer buf = new StringBuffer();
             buf.append(networkFormatter.format(new Date()));
@@ -126,4 +131,13 @@ public class FileLogger implements Logger {
         }
     }
 
+    @Override
+    public boolean isNetworkTraceEnabled() {
+        return networkTraceEnabled;
+    }
+
+    public void setNetworkTraceEnabled(boolean networkTraceEnabled) {
+        this.networkTraceEnabled = networkTraceEnabled;
+    }
+
 }
@@ -27,4 +27,10 @@ public interface Logger {
     public void error(String message, Exception exception);
     public void traceNetwork(String message, String direction);
 
+    /**
+     * Allows callers to skip building network traces when they would be
+     * discarded.
+     */
+    public boolean isNetworkTraceEnabled();
+
 }
\ No newline at end of file
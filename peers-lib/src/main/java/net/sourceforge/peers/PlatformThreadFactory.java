@@ -0,0 +1,38 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007, 2008, 2009, 2010 Yohann Martineau 
+*/
+
+package net.sourceforge.peers;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Default thread factory: one platform thread per task. Callers name the
+ * thread and set its daemon status.
+ */
+public class PlatformThreadFactory implements ThreadFactory {
+
+    public static final PlatformThreadFactory INSTANCE =
+        new PlatformThreadFactory();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        return new Thread(runnable);
+    }
+
+}
@@ -0,0 +1,349 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel: a single thread serves any number of timeouts,
+ * scheduling and cancelling are O(1). Timeouts expire on tick boundaries,
+ * up to one tick late, using a monotonic clock. Like java.util.Timer, it
+ * silently ignores tasks scheduled after it has been stopped.
+ * 
+ * Tasks run on the wheel thread, they must not block.
+ */
+public class TimingWheel {
+
+    public static final long DEFAULT_TICK_DURATION = 10; // milliseconds
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pendingTimeouts;
+    private final Queue<Timeout> cancelledTimeouts;
+    private final AtomicInteger timeoutCount;
+    private final Thread thread;
+    private final long startTime;
+    private final Logger logger;
+    private volatile boolean running;
+
+    public TimingWheel(Logger logger) {
+        this(logger, null);
+    }
+
+    /**
+     * @param threadFactory creates the wheel thread, platform thread if
+     *        null
+     */
+    public TimingWheel(Logger logger, ThreadFactory threadFactory) {
+        this(TimingWheel.class.getSimpleName(), DEFAULT_TICK_DURATION,
+                DEFAULT_WHEEL_SIZE, logger, threadFactory);
+    }
+
+    /**
+     * @param tickDuration tick duration in milliseconds, timer resolution
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(String name, long tickDuration, int wheelSize,
+            Logger logger) {
+        this(name, tickDuration, wheelSize, logger, null);
+    }
+
+    public TimingWheel(String name, long tickDuration, int wheelSize,
+            Logger logger, ThreadFactory threadFactory) {
+        if (tickDuration < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("tick duration and wheel "
+                    + "size must be positive");
+        }
+        this.logger = logger;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; ++i) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+        cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+        timeoutCount = new AtomicInteger();
+        startTime = System.nanoTime();
+        running = true;
+        if (threadFactory == null) {
+            threadFactory = PlatformThreadFactory.INSTANCE;
+        }
+        thread = threadFactory.newThread(new Worker());
+        thread.setName(name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param delay milliseconds before execution
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        return schedule(task, delay, 0);
+    }
+
+    /**
+     * @param delay milliseconds before first execution
+     * @param period milliseconds between the start of two executions
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long delay,
+            long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return schedule(task, delay, period);
+    }
+
+    private Timeout schedule(Runnable task, long delay, long period) {
+        long deadline = System.nanoTime() - startTime
+            + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(task, deadline,
+                TimeUnit.MILLISECONDS.toNanos(period));
+        if (!running) {
+            timeout.state.set(CANCELLED);
+            return timeout;
+        }
+        timeoutCount.incrementAndGet();
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return number of scheduled timeouts, neither expired nor cancelled
+     */
+    public int getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getTickDuration() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * Stops the wheel thread, pending timeouts never expire.
+     */
+    public void stop() {
+        running = false;
+        if (Thread.currentThread() != thread) {
+            thread.interrupt();
+        }
+    }
+
+    class Worker implements Runnable {
+
+        private long tick;
+
+        @Override
+        public void run() {
+            while (running) {
+                long deadline = waitForNextTick();
+                if (deadline < 0) {
+                    continue;
+                }
+                removeCancelledTimeouts();
+                transferPendingTimeouts();
+                wheel[(int)(tick & mask)].expireTimeouts(deadline);
+                ++tick;
+            }
+        }
+
+        // returns the tick deadline relative to start time, -1 if stopped
+        private long waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+            while (true) {
+                long currentTime = System.nanoTime() - startTime;
+                long sleepMillis = TimeUnit.NANOSECONDS.toMillis(
+                        deadline - currentTime + 999999);
+                if (sleepMillis <= 0) {
+                    return currentTime;
+                }
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        private void transferPendingTimeouts() {
+            Timeout timeout;
+            while ((timeout = pendingTimeouts.poll()) != null) {
+                if (timeout.state.get() == CANCELLED) {
+                    continue;
+                }
+                long calculated = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+                // already late timeouts expire on the current tick
+                long ticks = Math.max(calculated, tick);
+                wheel[(int)(ticks & mask)].add(timeout);
+            }
+        }
+
+        private void removeCancelledTimeouts() {
+            Timeout timeout;
+            while ((timeout = cancelledTimeouts.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+
+    }
+
+    class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expireTimeouts(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    } else {
+                        // should not happen, rounds were computed from it
+                        pendingTimeouts.add(timeout);
+                    }
+                } else {
+                    --timeout.remainingRounds;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+    }
+
+    public class Timeout {
+
+        private final Runnable task;
+        private final long period;
+        private final AtomicInteger state;
+        private long deadline;
+        // wheel thread only
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(Runnable task, long deadline, long period) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+            state = new AtomicInteger(INIT);
+        }
+
+        /**
+         * Prevents any further execution of the task. Its memory is
+         * released on the next tick.
+         * 
+         * @return false if the timeout has already expired or has already
+         * been cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+            timeoutCount.decrementAndGet();
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (period == 0 && !state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            if (period != 0 && state.get() != INIT) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                if (logger != null) {
+                    logger.error("timer task error", e);
+                }
+            }
+            if (period == 0) {
+                timeoutCount.decrementAndGet();
+            } else if (state.get() == INIT) {
+                deadline += period;
+                pendingTimeouts.add(this);
+            }
+        }
+
+    }
+
+}
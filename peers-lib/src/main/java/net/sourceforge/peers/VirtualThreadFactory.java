@@ -0,0 +1,88 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007, 2008, 2009, 2010 Yohann Martineau 
+*/
+
+package net.sourceforge.peers;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads, so that threads blocked on sockets and pipes,
+ * RTP receivers and media pipelines of each call, do not hold a platform
+ * thread. Requires a java 21 runtime, looked up by reflection as the
+ * library is built for older runtimes, see {@link #isAvailable()}.
+ */
+public class VirtualThreadFactory implements ThreadFactory {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method factory = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            factory = Class.forName("java.lang.Thread$Builder")
+                .getMethod("factory");
+        } catch (NoSuchMethodException e) {
+            ofVirtual = null;
+        } catch (ClassNotFoundException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        FACTORY = factory;
+    }
+
+    /**
+     * @return true if the running jvm supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    private final ThreadFactory delegate;
+
+    /**
+     * @throws UnsupportedOperationException if virtual threads are not
+     *         available in this jvm
+     */
+    public VirtualThreadFactory() {
+        if (!isAvailable()) {
+            throw new UnsupportedOperationException(
+                    "virtual threads require java 21");
+        }
+        try {
+            delegate = (ThreadFactory)FACTORY.invoke(OF_VIRTUAL.invoke(null));
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(e);
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException(e.getCause());
+        }
+    }
+
+    /**
+     * Virtual threads are always daemon threads.
+     */
+    @Override
+    public Thread newThread(Runnable runnable) {
+        return delegate.newThread(runnable);
+    }
+
+}
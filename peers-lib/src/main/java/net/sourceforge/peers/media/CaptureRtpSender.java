@@ -23,8 +23,10 @@ import java.io.IOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
 
 import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.PlatformThreadFactory;
 import net.sourceforge.peers.rtp.RFC3551;
 import net.sourceforge.peers.rtp.RtpSession;
 import net.sourceforge.peers.sdp.Codec;
@@ -39,12 +41,28 @@ public class CaptureRtpSender {
     private Capture capture;
     private Encoder encoder;
     private RtpSender rtpSender;
+    private ThreadFactory threadFactory;
 
     public CaptureRtpSender(RtpSession rtpSession, SoundSource soundSource,
             boolean mediaDebug, Codec codec, Logger logger, String peersHome)
             throws IOException {
+        this(rtpSession, soundSource, mediaDebug, codec, logger, peersHome,
+                null);
+    }
+
+    /**
+     * @param threadFactory creates capture, encoder and sender threads,
+     *        platform threads if null
+     */
+    public CaptureRtpSender(RtpSession rtpSession, SoundSource soundSource,
+            boolean mediaDebug, Codec codec, Logger logger, String peersHome,
+            ThreadFactory threadFactory) throws IOException {
         super();
         this.rtpSession = rtpSession;
+        if (threadFactory == null) {
+            threadFactory = PlatformThreadFactory.INSTANCE;
+        }
+        this.threadFactory = threadFactory;
         // the use of PipedInputStream and PipedOutputStream in Capture,
         // Encoder and RtpSender imposes a synchronization point at the
         // end of life of those threads to a void read end dead exceptions
@@ -107,12 +125,12 @@ public class CaptureRtpSender {
         encoder.setStopped(false);
         rtpSender.setStopped(false);
         
-        Thread captureThread = new Thread(capture,
-                Capture.class.getSimpleName());
-        Thread encoderThread = new Thread(encoder,
-                Encoder.class.getSimpleName());
-        Thread rtpSenderThread = new Thread(rtpSender,
-                RtpSender.class.getSimpleName());
+        Thread captureThread = threadFactory.newThread(capture);
+        captureThread.setName(Capture.class.getSimpleName());
+        Thread encoderThread = threadFactory.newThread(encoder);
+        encoderThread.setName(Encoder.class.getSimpleName());
+        Thread rtpSenderThread = threadFactory.newThread(rtpSender);
+        rtpSenderThread.setName(RtpSender.class.getSimpleName());
         
         captureThread.start();
         encoderThread.start();
@@ -35,7 +35,7 @@ public class Echo implements Runnable {
     private DatagramSocket datagramSocket;
     private InetAddress remoteAddress;
     private int remotePort;
-    private boolean isRunning;
+    private volatile boolean isRunning;
     private Logger logger;
 
     public Echo(DatagramSocket datagramSocket,
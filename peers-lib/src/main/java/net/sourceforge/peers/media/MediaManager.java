@@ -19,319 +19,137 @@
 
 package net.sourceforge.peers.media;
 
-import java.io.IOException;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
 import net.sourceforge.peers.Logger;
-import net.sourceforge.peers.rtp.RtpPacket;
-import net.sourceforge.peers.rtp.RtpSession;
 import net.sourceforge.peers.sdp.Codec;
 import net.sourceforge.peers.sip.core.useragent.AbstractUserAgent;
-
+import net.sourceforge.peers.sip.transactionuser.Dialog;
+
+/**
+ * Media sessions of a user agent, one per call. Sessions are keyed by
+ * Call-ID: the RTP socket of an outgoing call is allocated for the SDP
+ * offer, before its dialog exists, and subsequent requests of a dialog
+ * carry its Call-ID.
+ */
 public class MediaManager {
 
     public static final int DEFAULT_CLOCK = 8000; // Hz
 
     private AbstractUserAgent userAgent;
-    private Object connectedSync = new Object();
-    private CaptureRtpSender captureRtpSender;
-    private IncomingRtpReader incomingRtpReader;
-    private RtpSession rtpSession;
-    private DtmfFactory dtmfFactory;
     private Logger logger;
-    private DatagramSocket datagramSocket;
-
-    private AbstractSoundManager soundManager;
     private DtmfEventHandler dtmfEventHandler;
+    private ConcurrentHashMap<String, MediaSession> mediaSessions;
 
     public MediaManager(AbstractUserAgent userAgent, DtmfEventHandler dtmfEventHandler,  Logger logger) {
         this.userAgent = userAgent;
         this.dtmfEventHandler = dtmfEventHandler;
         this.logger = logger;
-        dtmfFactory = new DtmfFactory();
+        mediaSessions = new ConcurrentHashMap<String, MediaSession>();
     }
 
-    private void setCaptureRtpSender(CaptureRtpSender captureRtpSender) {
-        this.captureRtpSender = captureRtpSender;
-        synchronized (connectedSync) {
-            connectedSync.notifyAll();
+    /**
+     * Registers the media session of a call with its RTP socket. If the
+     * call already has a session, the socket is closed and the existing
+     * session returned.
+     */
+    public MediaSession createMediaSession(String callId,
+            DatagramSocket datagramSocket) {
+        MediaSession mediaSession = new MediaSession(callId, datagramSocket,
+                userAgent, dtmfEventHandler, logger);
+        MediaSession previous = mediaSessions.putIfAbsent(callId,
+                mediaSession);
+        if (previous != null) {
+            datagramSocket.close();
+            return previous;
         }
+        logger.debug("media session created for " + callId);
+        return mediaSession;
     }
 
-    public CaptureRtpSender getCaptureRtpSender() {
-        return captureRtpSender;
+    public MediaSession getMediaSession(String callId) {
+        return mediaSessions.get(callId);
     }
 
-    private void startRtpSessionOnSuccessResponse(String localAddress,
-            String remoteAddress, int remotePort, Codec codec,
-            SoundSource soundSource) {
-        InetAddress inetAddress;
-        try {
-            inetAddress = InetAddress.getByName(localAddress);
-        } catch (UnknownHostException e) {
-            logger.error("unknown host: " + localAddress, e);
-            return;
-        }
-        
-        rtpSession = new RtpSession(inetAddress, datagramSocket,
-                userAgent.isMediaDebug(), logger, userAgent.getPeersHome());
-        
-        try {
-            inetAddress = InetAddress.getByName(remoteAddress);
-            rtpSession.setRemoteAddress(inetAddress);
-        } catch (UnknownHostException e) {
-            logger.error("unknown host: " + remoteAddress, e);
-        }
-        rtpSession.setRemotePort(remotePort);
-        
-        
-        try {
-            setCaptureRtpSender(new CaptureRtpSender(rtpSession,
-                    soundSource, userAgent.isMediaDebug(), codec, logger,
-                    userAgent.getPeersHome()));
-        } catch (IOException e) {
-            logger.error("input/output error", e);
-            return;
-        }
-
-        try {
-            captureRtpSender.start();
-        } catch (IOException e) {
-            logger.error("input/output error", e);
-        }
+    public MediaSession getMediaSession(Dialog dialog) {
+        return mediaSessions.get(dialog.getCallId());
     }
 
-    public void successResponseReceived(String localAddress,
-            String remoteAddress, int remotePort, Codec codec) {
-        switch (userAgent.getMediaMode()) {
-        case captureAndPlayback:
-        case file:
-            if (soundManager != null) {
-                soundManager.close();
-            }
-            soundManager = userAgent.getAbstractSoundManagerFactory().getSoundManager();
-            soundManager.init();
-            startRtpSessionOnSuccessResponse(localAddress, remoteAddress,
-                    remotePort, codec, soundManager);
-            
-            try {
-                incomingRtpReader = new IncomingRtpReader(
-                        captureRtpSender.getRtpSession(), soundManager, codec, dtmfEventHandler,
-                        logger);
-            } catch (IOException e) {
-                logger.error("input/output error", e);
-                return;
-            }
-
-            incomingRtpReader.start();
-            break;
+    public Collection<MediaSession> getMediaSessions() {
+        return Collections.unmodifiableCollection(mediaSessions.values());
+    }
 
-        case echo:
-            Echo echo;
-            try {
-                echo = new Echo(datagramSocket, remoteAddress, remotePort,
-                        logger);
-            } catch (UnknownHostException e) {
-                logger.error("unknown host amongst "
-                        + localAddress + " or " + remoteAddress);
-                return;
-            }
-            userAgent.setEcho(echo);
-            Thread echoThread = new Thread(echo, Echo.class.getSimpleName());
-            echoThread.start();
-            break;
-        case none:
-        default:
-            break;
+    public void successResponseReceived(String callId, String remoteAddress,
+            int remotePort, Codec codec) {
+        MediaSession mediaSession = mediaSessions.get(callId);
+        if (mediaSession == null) {
+            logger.error("no media session for " + callId);
+            return;
         }
+        mediaSession.start(userAgent.getConfig().getLocalInetAddress(),
+                remoteAddress, remotePort, codec);
     }
 
-    private void startRtpSession(String destAddress, int destPort,
-        Codec codec, SoundSource soundSource) {
-        rtpSession = new RtpSession(userAgent.getConfig()
-                .getLocalInetAddress(), datagramSocket,
-                userAgent.isMediaDebug(), logger, userAgent.getPeersHome());
-
-        try {
-            InetAddress inetAddress = InetAddress.getByName(destAddress);
-            rtpSession.setRemoteAddress(inetAddress);
-        } catch (UnknownHostException e) {
-            logger.error("unknown host: " + destAddress, e);
-        }
-        rtpSession.setRemotePort(destPort);
-        
-        try {
-            setCaptureRtpSender(new CaptureRtpSender(rtpSession,
-                    soundSource, userAgent.isMediaDebug(), codec, logger,
-                    userAgent.getPeersHome()));
-        } catch (IOException e) {
-            logger.error("input/output error", e);
+    public void handleAck(String callId, String destAddress, int destPort,
+            Codec codec) {
+        MediaSession mediaSession = mediaSessions.get(callId);
+        if (mediaSession == null) {
+            logger.error("no media session for " + callId);
             return;
         }
-        try {
-            captureRtpSender.start();
-        } catch (IOException e) {
-            logger.error("input/output error", e);
-        }
-
+        mediaSession.start(userAgent.getConfig().getLocalInetAddress(),
+                destAddress, destPort, codec);
     }
 
-    public void handleAck(String destAddress, int destPort, Codec codec) {
-        switch (userAgent.getMediaMode()) {
-        case captureAndPlayback:
-        case file:
-            if (soundManager != null) {
-                soundManager.close();
-            }
-            soundManager = userAgent.getAbstractSoundManagerFactory().getSoundManager();
-            soundManager.init();
-
-            startRtpSession(destAddress, destPort, codec, soundManager);
-
-            try {
-                //FIXME RTP sessions can be different !
-                incomingRtpReader = new IncomingRtpReader(rtpSession,
-                        soundManager, codec, dtmfEventHandler, logger);
-            } catch (IOException e) {
-                logger.error("input/output error", e);
-                return;
-            }
-
-            incomingRtpReader.start();
-
-            break;
-        case echo:
-            Echo echo;
-            try {
-                echo = new Echo(datagramSocket, destAddress, destPort, logger);
-            } catch (UnknownHostException e) {
-                logger.error("unknown host amongst "
-                        + userAgent.getConfig().getLocalInetAddress()
-                            .getHostAddress() + " or " + destAddress);
-                return;
-            }
-            userAgent.setEcho(echo);
-            Thread echoThread = new Thread(echo, Echo.class.getSimpleName());
-            echoThread.start();
-            break;
-        case none:
-        default:
-            break;
+    public void updateRemote(String callId, String destAddress, int destPort,
+            Codec codec) {
+        MediaSession mediaSession = mediaSessions.get(callId);
+        if (mediaSession != null) {
+            mediaSession.updateRemote(destAddress, destPort, codec);
         }
     }
 
-    public void updateRemote(String destAddress, int destPort, Codec codec) {
-        switch (userAgent.getMediaMode()) {
-        case captureAndPlayback:
-        case file:
-            try {
-                InetAddress inetAddress = InetAddress.getByName(destAddress);
-                rtpSession.setRemoteAddress(inetAddress);
-            } catch (UnknownHostException e) {
-                logger.error("unknown host: " + destAddress, e);
-            }
-            rtpSession.setRemotePort(destPort);
-            break;
-        case echo:
-            //TODO update echo socket
-            break;
-        default:
-            break;
+    public void sendDtmf(String callId, char digit) {
+        MediaSession mediaSession = mediaSessions.get(callId);
+        if (mediaSession != null) {
+            mediaSession.sendDtmf(digit);
         }
-
     }
-    
+
+    /**
+     * Sends digit in every call, for softphones with a single call.
+     */
     public void sendDtmf(char digit) {
-        if (connected()) {
-            List<RtpPacket> rtpPackets = dtmfFactory.createDtmfPackets(digit);
-            RtpSender rtpSender = captureRtpSender.getRtpSender();
-            rtpSender.pushPackets(rtpPackets);
+        for (MediaSession mediaSession : mediaSessions.values()) {
+            mediaSession.sendDtmf(digit);
         }
     }
 
-    public void stopSession() {
-        if (rtpSession != null) {
-            rtpSession.stop();
-            while (!rtpSession.isSocketClosed()) {
-                try {
-                    Thread.sleep(15);
-                } catch (InterruptedException e) {
-                    logger.debug("sleep interrupted");
-                }
-            }
-            rtpSession = null;
-        }
-        if (incomingRtpReader != null) {
-            incomingRtpReader = null;
-        }
-        if (captureRtpSender != null) {
-            captureRtpSender.stop();
-            setCaptureRtpSender(null);
-        }
-        if (datagramSocket != null) {
-            datagramSocket = null;
-        }
-
-        switch (userAgent.getMediaMode()) {
-        case captureAndPlayback:
-        case file:
-            if (soundManager != null) {
-                soundManager.close();
-            }
-            break;
-        case echo:
-            Echo echo = userAgent.getEcho();
-            if (echo != null) {
-                echo.stop();
-                userAgent.setEcho(null);
-            }
-            break;
-        default:
-            break;
+    /**
+     * Stops the media of one call and releases its RTP socket.
+     */
+    public void stopSession(String callId) {
+        if (callId == null) {
+            return;
         }
-    }
-
-    public void setDatagramSocket(DatagramSocket datagramSocket) {
-        this.datagramSocket = datagramSocket;
-    }
-
-    public DatagramSocket getDatagramSocket() {
-        return datagramSocket;
-    }
-
-    public SoundSource getSoundSource() {
-        switch (userAgent.getMediaMode()) {
-            case captureAndPlayback:
-            case file:
-                return soundManager;
-            case echo:
-            default:
-                return null;
+        MediaSession mediaSession = mediaSessions.remove(callId);
+        if (mediaSession != null) {
+            mediaSession.stop();
+            logger.debug("media session stopped for " + callId);
         }
     }
 
-    public boolean connected() {
-        return captureRtpSender != null;
-    }
-
-    public void waitConnected() throws InterruptedException {
-        if (!connected()) {
-            synchronized (connectedSync) {
-                while (!connected()) {
-                    connectedSync.wait();
-                }
-            }
+    public void stopSessions() {
+        for (String callId : mediaSessions.keySet()) {
+            stopSession(callId);
         }
-        return;
-
     }
 
-    public void waitFinishedSending() throws IOException, InterruptedException {
-        if (connected()) {
-            captureRtpSender.getRtpSender().waitEmpty();
-        }
+    public int size() {
+        return mediaSessions.size();
     }
 
 }
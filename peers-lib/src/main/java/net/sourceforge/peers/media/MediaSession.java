@@ -0,0 +1,275 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.media;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.rtp.RtpPacket;
+import net.sourceforge.peers.rtp.RtpSession;
+import net.sourceforge.peers.sdp.Codec;
+import net.sourceforge.peers.sdp.MediaDestination;
+import net.sourceforge.peers.sip.core.useragent.AbstractUserAgent;
+
+/**
+ * Media of one call: its RTP socket, codec and capture/playback pipeline.
+ * Created by {@link MediaManager} when the call allocates its RTP socket,
+ * stopped when the call ends.
+ */
+public class MediaSession {
+
+    private final String callId;
+    private AbstractUserAgent userAgent;
+    private DtmfEventHandler dtmfEventHandler;
+    private DtmfFactory dtmfFactory;
+    private Logger logger;
+
+    private Object connectedSync = new Object();
+    private DatagramSocket datagramSocket;
+    private MediaDestination mediaDestination;
+    private RtpSession rtpSession;
+    private volatile CaptureRtpSender captureRtpSender;
+    private IncomingRtpReader incomingRtpReader;
+    private volatile AbstractSoundManager soundManager;
+    private Echo echo;
+    private boolean started;
+    private boolean stopped;
+
+    MediaSession(String callId, DatagramSocket datagramSocket,
+            AbstractUserAgent userAgent, DtmfEventHandler dtmfEventHandler,
+            Logger logger) {
+        this.callId = callId;
+        this.datagramSocket = datagramSocket;
+        this.userAgent = userAgent;
+        this.dtmfEventHandler = dtmfEventHandler;
+        this.logger = logger;
+        dtmfFactory = new DtmfFactory();
+    }
+
+    private void setCaptureRtpSender(CaptureRtpSender captureRtpSender) {
+        this.captureRtpSender = captureRtpSender;
+        synchronized (connectedSync) {
+            connectedSync.notifyAll();
+        }
+    }
+
+    /**
+     * Starts media once remote address, port and codec are known: on 2xx
+     * for an outgoing call, on ACK for an incoming call.
+     */
+    synchronized void start(InetAddress localAddress, String remoteAddress,
+            int remotePort, Codec codec) {
+        if (stopped) {
+            logger.debug("media session " + callId + " already stopped");
+            return;
+        }
+        if (started) {
+            updateRemote(remoteAddress, remotePort, codec);
+            return;
+        }
+        started = true;
+        switch (userAgent.getMediaMode()) {
+        case captureAndPlayback:
+        case file:
+            if (soundManager != null) {
+                soundManager.close();
+            }
+            soundManager = userAgent.getAbstractSoundManagerFactory()
+                .getSoundManager();
+            soundManager.init();
+
+            rtpSession = new RtpSession(localAddress, datagramSocket,
+                    userAgent.isMediaDebug(), logger,
+                    userAgent.getPeersHome(), userAgent.getThreadFactory());
+            try {
+                rtpSession.setRemoteAddress(
+                        InetAddress.getByName(remoteAddress));
+            } catch (UnknownHostException e) {
+                logger.error("unknown host: " + remoteAddress, e);
+            }
+            rtpSession.setRemotePort(remotePort);
+
+            try {
+                setCaptureRtpSender(new CaptureRtpSender(rtpSession,
+                        soundManager, userAgent.isMediaDebug(), codec, logger,
+                        userAgent.getPeersHome(),
+                        userAgent.getThreadFactory()));
+            } catch (IOException e) {
+                logger.error("input/output error", e);
+                return;
+            }
+            try {
+                captureRtpSender.start();
+            } catch (IOException e) {
+                logger.error("input/output error", e);
+            }
+
+            try {
+                incomingRtpReader = new IncomingRtpReader(rtpSession,
+                        soundManager, codec, dtmfEventHandler, logger);
+            } catch (IOException e) {
+                logger.error("input/output error", e);
+                return;
+            }
+            incomingRtpReader.start();
+            break;
+
+        case echo:
+            try {
+                echo = new Echo(datagramSocket, remoteAddress, remotePort,
+                        logger);
+            } catch (UnknownHostException e) {
+                logger.error("unknown host amongst "
+                        + localAddress.getHostAddress() + " or "
+                        + remoteAddress);
+                return;
+            }
+            Thread echoThread = userAgent.getThreadFactory().newThread(echo);
+            echoThread.setName(Echo.class.getSimpleName() + " " + callId);
+            echoThread.start();
+            break;
+        case none:
+        default:
+            break;
+        }
+    }
+
+    synchronized void updateRemote(String remoteAddress, int remotePort,
+            Codec codec) {
+        if (rtpSession == null) {
+            //TODO update echo socket
+            return;
+        }
+        try {
+            rtpSession.setRemoteAddress(InetAddress.getByName(remoteAddress));
+        } catch (UnknownHostException e) {
+            logger.error("unknown host: " + remoteAddress, e);
+        }
+        rtpSession.setRemotePort(remotePort);
+    }
+
+    public void sendDtmf(char digit) {
+        CaptureRtpSender captureRtpSender = this.captureRtpSender;
+        if (captureRtpSender != null) {
+            List<RtpPacket> rtpPackets = dtmfFactory.createDtmfPackets(digit);
+            RtpSender rtpSender = captureRtpSender.getRtpSender();
+            rtpSender.pushPackets(rtpPackets);
+        }
+    }
+
+    /**
+     * Stops capture, playback and RTP, and closes the RTP socket.
+     */
+    synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        if (rtpSession != null) {
+            rtpSession.stop();
+            while (!rtpSession.isSocketClosed()) {
+                try {
+                    Thread.sleep(15);
+                } catch (InterruptedException e) {
+                    logger.debug("sleep interrupted");
+                }
+            }
+            rtpSession = null;
+        }
+        incomingRtpReader = null;
+        if (captureRtpSender != null) {
+            captureRtpSender.stop();
+            setCaptureRtpSender(null);
+        }
+        if (soundManager != null) {
+            soundManager.close();
+            soundManager = null;
+        }
+        if (echo != null) {
+            // closes the socket on its next timeout
+            echo.stop();
+            echo = null;
+        } else if (datagramSocket != null && !datagramSocket.isClosed()) {
+            datagramSocket.close();
+        }
+        datagramSocket = null;
+    }
+
+    public String getCallId() {
+        return callId;
+    }
+
+    public synchronized DatagramSocket getDatagramSocket() {
+        return datagramSocket;
+    }
+
+    public MediaDestination getMediaDestination() {
+        return mediaDestination;
+    }
+
+    public void setMediaDestination(MediaDestination mediaDestination) {
+        this.mediaDestination = mediaDestination;
+    }
+
+    /**
+     * @return true once media has been started for this call
+     */
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    public synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    public CaptureRtpSender getCaptureRtpSender() {
+        return captureRtpSender;
+    }
+
+    public SoundSource getSoundSource() {
+        return soundManager;
+    }
+
+    public boolean connected() {
+        return captureRtpSender != null;
+    }
+
+    public void waitConnected() throws InterruptedException {
+        if (!connected()) {
+            synchronized (connectedSync) {
+                while (!connected()) {
+                    connectedSync.wait();
+                }
+            }
+        }
+    }
+
+    public void waitFinishedSending() throws IOException, InterruptedException {
+        CaptureRtpSender captureRtpSender = this.captureRtpSender;
+        if (captureRtpSender != null) {
+            captureRtpSender.getRtpSender().waitEmpty();
+        }
+    }
+
+}
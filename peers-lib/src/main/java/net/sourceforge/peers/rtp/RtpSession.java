@@ -37,8 +37,10 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.PlatformThreadFactory;
 import net.sourceforge.peers.media.AbstractSoundManager;
 
 /**
@@ -61,13 +63,38 @@ public class RtpSession {
 
     public RtpSession(InetAddress localAddress, DatagramSocket datagramSocket,
             boolean mediaDebug, Logger logger, String peersHome) {
+        this(localAddress, datagramSocket, mediaDebug, logger, peersHome,
+                null);
+    }
+
+    /**
+     * @param threadFactory creates the receiver thread, platform thread if
+     *        null
+     */
+    public RtpSession(InetAddress localAddress, DatagramSocket datagramSocket,
+            boolean mediaDebug, Logger logger, String peersHome,
+            ThreadFactory threadFactory) {
         this.mediaDebug = mediaDebug;
         this.logger = logger;
         this.peersHome = peersHome;
         this.datagramSocket = datagramSocket;
         rtpListeners = new ArrayList<RtpListener>();
         rtpParser = new RtpParser(logger);
-        executorService = Executors.newSingleThreadExecutor((runnable) -> new Thread(runnable, RtpSession.class.getSimpleName() + "-" + ++executorServiceThreadNo));
+        if (threadFactory == null) {
+            threadFactory = PlatformThreadFactory.INSTANCE;
+        }
+        final ThreadFactory receiverThreadFactory = threadFactory;
+        executorService = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = receiverThreadFactory.newThread(
+                                runnable);
+                        thread.setName(RtpSession.class.getSimpleName() + "-"
+                                + ++executorServiceThreadNo);
+                        return thread;
+                    }
+                });
     }
 
     public synchronized void start() {
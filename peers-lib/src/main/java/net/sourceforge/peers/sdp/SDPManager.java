@@ -43,7 +43,8 @@ public class SDPManager {
     public SDPManager(AbstractUserAgent userAgent, Logger logger) {
         this.userAgent = userAgent;
         this.logger = logger;
-        sdpParser = new SdpParser();
+        sdpParser = new SdpParser(
+                userAgent.getTransportManager().getAddressResolver());
         supportedCodecs = new ArrayList<Codec>();
         random = new Random();
         //TODO retrieve codecs from configuration file
@@ -28,10 +28,25 @@ import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
 
+import net.sourceforge.peers.AddressResolver;
 import net.sourceforge.peers.rtp.RFC3551;
 
 public class SdpParser {
 
+	private AddressResolver addressResolver;
+
+	public SdpParser() {
+		this(AddressResolver.SYSTEM);
+	}
+
+	/**
+	 * @param addressResolver resolver of origin and connection addresses,
+	 *        which are usually IP literals
+	 */
+	public SdpParser(AddressResolver addressResolver) {
+		this.addressResolver = addressResolver;
+	}
+
 	public SessionDescription parse(byte[] body) throws IOException {
 		if (body == null || body.length == 0) {
 			return null;
@@ -71,7 +86,7 @@ public class SdpParser {
 		sessionDescription.setUsername(originArr[0]);
 		sessionDescription.setId(Long.parseLong(originArr[1]));
 		sessionDescription.setVersion(Long.parseLong(originArr[2]));
-		sessionDescription.setIpAddress(InetAddress.getByName(originArr[5]));
+		sessionDescription.setIpAddress(getByName(originArr[5]));
 
 		//name
 		
@@ -98,7 +113,7 @@ public class SdpParser {
 				if (connection == null) {
 					continue;
 				}
-				sessionDescription.setIpAddress(InetAddress.getByName(connection));
+				sessionDescription.setIpAddress(getByName(connection));
 			} else if (line.length() > 3
                     && line.charAt(0) == RFC4566.TYPE_ATTRIBUTE
                     && line.charAt(1) == RFC4566.SEPARATOR) {
@@ -175,7 +190,7 @@ public class SdpParser {
                 String sdpLineValue = sdpLine.getValue();
                 if (sdpLine.getType() == RFC4566.TYPE_CONNECTION) {
                     String ipAddress = parseConnection(sdpLineValue);
-                    mediaDescription.setIpAddress(InetAddress.getByName(ipAddress));
+                    mediaDescription.setIpAddress(getByName(ipAddress));
                 } else if (sdpLine.getType() == RFC4566.TYPE_ATTRIBUTE) {
                     Hashtable<String, String> attributes = mediaDescription.getAttributes();
                     int pos = sdpLineValue.indexOf(RFC4566.ATTR_SEPARATOR);
@@ -232,5 +247,9 @@ public class SdpParser {
 		}
 		return connectionArr[2];
 	}
-	
+
+	private InetAddress getByName(String host) throws IOException {
+		return addressResolver.getAllByName(host)[0];
+	}
+
 }
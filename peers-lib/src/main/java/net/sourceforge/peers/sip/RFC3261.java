@@ -36,6 +36,7 @@ public final class RFC3261 {
     
         //Classical form
     
+    public static final String HDR_ACCEPT              = "Accept";
     public static final String HDR_ALLOW               = "Allow";
     public static final String HDR_AUTHORIZATION       = "Authorization";
     public static final String HDR_CALLID              = "Call-ID";
@@ -50,6 +51,7 @@ public final class RFC3261 {
     public static final String HDR_RECORD_ROUTE        = "Record-Route";
     public static final String HDR_PROXY_AUTHENTICATE  = "Proxy-Authenticate";
     public static final String HDR_PROXY_AUTHORIZATION = "Proxy-Authorization";
+    public static final String HDR_RETRY_AFTER         = "Retry-After";
     public static final String HDR_ROUTE               = "Route";
     public static final String HDR_SUBJECT             = "Subject";
     public static final String HDR_SUPPORTED           = "Supported";
@@ -107,16 +109,19 @@ public final class RFC3261 {
     public static final int CODE_180_RINGING                         = 180;
     public static final int CODE_200_OK                              = 200;
     public static final int CODE_401_UNAUTHORIZED                    = 401;
+    public static final int CODE_404_NOT_FOUND                       = 404;
     public static final int CODE_405_METHOD_NOT_ALLOWED              = 405;
     public static final int CODE_407_PROXY_AUTHENTICATION_REQUIRED   = 407;
     public static final int CODE_481_CALL_TRANSACTION_DOES_NOT_EXIST = 481;
     public static final int CODE_486_BUSYHERE                        = 486;
     public static final int CODE_487_REQUEST_TERMINATED              = 487;
     public static final int CODE_500_SERVER_INTERNAL_ERROR           = 500;
+    public static final int CODE_503_SERVICE_UNAVAILABLE             = 503;
     
       //REASON PHRASES
     public static final String REASON_180_RINGING  = "Ringing";
     public static final String REASON_200_OK       = "OK";
+    public static final String REASON_404_NOT_FOUND = "Not Found";
     public static final String REASON_405_METHOD_NOT_ALLOWED =
         "Method Not Allowed";
     public static final String REASON_481_CALL_TRANSACTION_DOES_NOT_EXIST =
@@ -126,6 +131,8 @@ public final class RFC3261 {
         "Request Terminated";
     public static final String REASON_500_SERVER_INTERNAL_ERROR =
         "Server Internal Error";
+    public static final String REASON_503_SERVICE_UNAVAILABLE =
+        "Service Unavailable";
     
     //TRANSPORT
     
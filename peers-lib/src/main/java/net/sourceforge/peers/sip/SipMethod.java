@@ -0,0 +1,52 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip;
+
+/**
+ * Methods defined in RFC 3261. Extension methods have no constant, they
+ * are only handled as strings.
+ */
+public enum SipMethod {
+
+    INVITE, ACK, REGISTER, BYE, OPTIONS, CANCEL;
+
+    /**
+     * @return the method matching this exact name, or null for an
+     * extension method
+     */
+    public static SipMethod fromString(String method) {
+        // ordered by expected frequency
+        if (RFC3261.METHOD_INVITE.equals(method)) {
+            return INVITE;
+        } else if (RFC3261.METHOD_ACK.equals(method)) {
+            return ACK;
+        } else if (RFC3261.METHOD_BYE.equals(method)) {
+            return BYE;
+        } else if (RFC3261.METHOD_CANCEL.equals(method)) {
+            return CANCEL;
+        } else if (RFC3261.METHOD_REGISTER.equals(method)) {
+            return REGISTER;
+        } else if (RFC3261.METHOD_OPTIONS.equals(method)) {
+            return OPTIONS;
+        }
+        return null;
+    }
+
+}
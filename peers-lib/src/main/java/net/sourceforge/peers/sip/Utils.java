@@ -25,6 +25,7 @@ import java.net.InetAddress;
 import net.sourceforge.peers.sip.core.useragent.UAS;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldMultiValue;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldName;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldNames;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldValue;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaders;
 import net.sourceforge.peers.sip.transport.SipMessage;
@@ -37,7 +38,7 @@ public class Utils {
 
     public final static SipHeaderFieldValue getTopVia(SipMessage sipMessage) {
         SipHeaders sipHeaders = sipMessage.getSipHeaders();
-        SipHeaderFieldName viaName = new SipHeaderFieldName(RFC3261.HDR_VIA);
+        SipHeaderFieldName viaName = SipHeaderFieldNames.VIA;
         SipHeaderFieldValue via = sipHeaders.get(viaName);
         if (via instanceof SipHeaderFieldMultiValue) {
             via = ((SipHeaderFieldMultiValue)via).getValues().get(0);
@@ -56,7 +57,8 @@ public class Utils {
         buf.append('-');
         buf.append(String.valueOf(System.currentTimeMillis()));
         buf.append('@');
-        buf.append(inetAddress.getHostName());
+        // no reverse lookup, an address is as unique as a host name
+        buf.append(inetAddress.getHostAddress());
         return buf.toString();
     }
     
@@ -71,7 +73,7 @@ public class Utils {
     public final static String getMessageCallId(SipMessage sipMessage) {
         if (sipMessage == null || sipMessage.getSipHeaders() == null) return null;
         SipHeaderFieldValue callId = sipMessage.getSipHeaders().get(
-                new SipHeaderFieldName(RFC3261.HDR_CALLID));
+                SipHeaderFieldNames.CALLID);
         if (callId == null) return null;
         return callId.getValue();
     }
@@ -96,10 +98,21 @@ public class Utils {
         }
     }
     
+    /**
+     * @return user part without password, null if the uri has none
+     */
     public final static String getUserPart(String sipUri) {
         int start = sipUri.indexOf(RFC3261.SCHEME_SEPARATOR);
         int end = sipUri.indexOf(RFC3261.AT);
-        return sipUri.substring(start + 1, end);
+        if (end < 0 || start >= end) {
+            return null;
+        }
+        String userinfo = sipUri.substring(start + 1, end);
+        int colon = userinfo.indexOf(':');
+        if (colon > -1) {
+            userinfo = userinfo.substring(0, colon);
+        }
+        return userinfo;
     }
 
     /**
@@ -109,7 +122,7 @@ public class Utils {
     public final static void addCommonHeaders(SipHeaders headers) {
         //Max-Forwards
         
-        headers.add(new SipHeaderFieldName(RFC3261.HDR_MAX_FORWARDS),
+        headers.add(SipHeaderFieldNames.MAX_FORWARDS,
                 new SipHeaderFieldValue(
                         String.valueOf(RFC3261.DEFAULT_MAXFORWARDS)));
         
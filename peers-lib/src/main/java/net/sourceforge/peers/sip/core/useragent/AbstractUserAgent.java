@@ -4,7 +4,9 @@ import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.PlatformThreadFactory;
 import net.sourceforge.peers.media.MediaManager;
 import net.sourceforge.peers.media.MediaMode;
 import net.sourceforge.peers.sdp.SDPManager;
@@ -44,6 +46,29 @@ public abstract class AbstractUserAgent implements IUserAgent {
 
     protected abstract MidDialogRequestManager getMidDialogRequestManager();
 
+    /**
+     * @return the runtime shared with other user agents, null if this user
+     *         agent owns its transaction and transport layers
+     */
+    public PeersRuntime getPeersRuntime() {
+        return null;
+    }
+
+    /**
+     * @return factory of the threads created by this user agent: transport
+     *         receivers, timer, workers and media threads of each call
+     */
+    public ThreadFactory getThreadFactory() {
+        return PlatformThreadFactory.INSTANCE;
+    }
+
+    /**
+     * @return futures of asynchronous commands, null if not supported
+     */
+    public CallFutures getCallFutures() {
+        return null;
+    }
+
     public final List<String> getPeers() {
         return peers;
     }
@@ -81,11 +106,19 @@ public abstract class AbstractUserAgent implements IUserAgent {
     }
 
     protected TransactionManager createTransactionManager() {
-        return new TransactionManager(getLogger());
+        if (getPeersRuntime() != null) {
+            return getPeersRuntime().getTransactionManager();
+        }
+        return new TransactionManager(getLogger(), getThreadFactory());
     }
 
     protected TransportManager createTransportManager() {
-        final TransportManager result = new TransportManager(getTransactionManager(), getConfig(), getLogger());
+        if (getPeersRuntime() != null) {
+            return getPeersRuntime().getTransportManager();
+        }
+        final TransportManager result = new TransportManager(
+                getTransactionManager(), getConfig(), getLogger(), null, null,
+                getThreadFactory());
         getTransactionManager().setTransportManager(result);
         return result;
     }
@@ -173,10 +206,16 @@ public abstract class AbstractUserAgent implements IUserAgent {
     }
 
     protected RegisterHandler createRegisterHandler() {
-        return new RegisterHandler(this,
+        final RegisterHandler result = new RegisterHandler(this,
                 getTransactionManager(),
                 getTransportManager(),
                 getLogger());
+        if (getPeersRuntime() == null) {
+            // the runtime notifies all its user agents
+            getTransportManager().getKeepAliveManager().setKeepAliveListener(
+                    result);
+        }
+        return result;
     }
 
     protected UAS createUAS() throws SocketException {
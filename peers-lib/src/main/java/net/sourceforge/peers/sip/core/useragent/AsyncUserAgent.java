@@ -0,0 +1,65 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007, 2008, 2009, 2010 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.core.useragent;
+
+import java.util.concurrent.CompletableFuture;
+
+import net.sourceforge.peers.sip.transactionuser.Dialog;
+import net.sourceforge.peers.sip.transport.SipRequest;
+import net.sourceforge.peers.sip.transport.SipResponse;
+
+/**
+ * Non-blocking counterpart of {@link IUserAgent} commands. Commands are
+ * queued on the SIP worker of the call, after or before the messages of
+ * the same call, and return at once. Results are given by futures instead
+ * of {@link SipListener} callbacks, which are still invoked.
+ *
+ * Futures are completed from SIP worker threads: dependent stages which
+ * block should be run on another executor.
+ */
+public interface AsyncUserAgent {
+
+    /**
+     * @return completed with the 2xx response, or exceptionally with a
+     *         {@link RequestFailedException} on final error or timeout
+     */
+    CompletableFuture<SipResponse> registerAsync();
+
+    /**
+     * @param requestUri callee uri
+     * @return call handle, its answer future is completed when the callee
+     *         picks up or when the call fails
+     */
+    Call inviteAsync(String requestUri);
+
+    /**
+     * @return call handle, its answer future is completed once the 200 OK
+     *         has been sent
+     */
+    Call acceptCallAsync(SipRequest sipRequest, Dialog dialog);
+
+    /**
+     * Hangs up or cancels a call started with the blocking API.
+     * 
+     * @return completed once BYE or CANCEL has been sent and media stopped
+     */
+    CompletableFuture<Void> terminateAsync(SipRequest sipRequest);
+
+}
@@ -0,0 +1,110 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007, 2008, 2009, 2010 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.core.useragent;
+
+import java.util.concurrent.CompletableFuture;
+
+import net.sourceforge.peers.sip.transport.SipRequest;
+import net.sourceforge.peers.sip.transport.SipResponse;
+
+/**
+ * Handle of a call placed or accepted with {@link AsyncUserAgent}.
+ */
+public class Call {
+
+    private final UserAgent userAgent;
+    private final String callId;
+    private volatile SipRequest invite;
+    private volatile SipResponse response;
+    private final CompletableFuture<Call> answered;
+    private final CompletableFuture<Call> ended;
+
+    Call(UserAgent userAgent, String callId) {
+        this.userAgent = userAgent;
+        this.callId = callId;
+        answered = new CompletableFuture<Call>();
+        ended = new CompletableFuture<Call>();
+    }
+
+    /**
+     * Hangs up the call, or cancels it if it has not been answered yet.
+     * 
+     * @return completed once BYE or CANCEL has been sent and media stopped
+     */
+    public CompletableFuture<Void> hangup() {
+        return userAgent.terminateAsync(this);
+    }
+
+    void setInvite(SipRequest invite) {
+        this.invite = invite;
+    }
+
+    void answered(SipResponse response) {
+        this.response = response;
+        answered.complete(this);
+    }
+
+    void failed(Throwable cause) {
+        answered.completeExceptionally(cause);
+        ended.complete(this);
+    }
+
+    void ended() {
+        if (!answered.isDone()) {
+            answered.completeExceptionally(new RequestFailedException(
+                    "call ended before answer", null));
+        }
+        ended.complete(this);
+    }
+
+    public String getCallId() {
+        return callId;
+    }
+
+    /**
+     * @return INVITE request, null until it has been sent
+     */
+    public SipRequest getInvite() {
+        return invite;
+    }
+
+    /**
+     * @return 2xx response of an outgoing call, null otherwise
+     */
+    public SipResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @return completed when the call is answered, or exceptionally with a
+     *         {@link RequestFailedException} if it fails before
+     */
+    public CompletableFuture<Call> getAnswered() {
+        return answered;
+    }
+
+    /**
+     * @return completed when the call is over, whatever the reason
+     */
+    public CompletableFuture<Call> getEnded() {
+        return ended;
+    }
+
+}
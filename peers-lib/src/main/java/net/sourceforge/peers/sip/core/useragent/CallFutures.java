@@ -0,0 +1,275 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007, 2008, 2009, 2010 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.core.useragent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sourceforge.peers.rtp.RFC4733;
+import net.sourceforge.peers.sip.Utils;
+import net.sourceforge.peers.sip.transport.SipMessage;
+import net.sourceforge.peers.sip.transport.SipRequest;
+import net.sourceforge.peers.sip.transport.SipResponse;
+
+/**
+ * Completes the futures of {@link AsyncUserAgent} commands from listener
+ * events, correlated by Call-ID, then forwards events to the application
+ * listener, if any. Registrations are also matched by CSeq: a REGISTER
+ * challenged or refreshed keeps its Call-ID with a higher CSeq.
+ */
+public class CallFutures implements SipListener {
+
+    private final SipListener sipListener;
+    // call-id -> pending or established call
+    private final ConcurrentHashMap<String, Call> calls;
+    // call-id -> pending registration
+    private final ConcurrentHashMap<String, Registration> registrations;
+
+    public CallFutures(SipListener sipListener) {
+        this.sipListener = sipListener;
+        calls = new ConcurrentHashMap<String, Call>();
+        registrations = new ConcurrentHashMap<String, Registration>();
+    }
+
+    Call addCall(Call call) {
+        calls.put(call.getCallId(), call);
+        return call;
+    }
+
+    Call getCall(String callId) {
+        return calls.get(callId);
+    }
+
+    public int getCallCount() {
+        return calls.size();
+    }
+
+    void callFailed(String callId, Throwable cause) {
+        Call call = calls.remove(callId);
+        if (call != null) {
+            call.failed(cause);
+        }
+    }
+
+    /**
+     * BYE sent, whatever the command used to hang up. A cancelled call ends
+     * with its final response.
+     */
+    public void callTerminated(String callId) {
+        Call call = calls.remove(callId);
+        if (call != null) {
+            call.ended();
+        }
+    }
+
+    /**
+     * ACK received for an accepted call, the call is established.
+     */
+    public void ackReceived(String callId) {
+        Call call = calls.get(callId);
+        if (call != null && !call.getAnswered().isDone()) {
+            call.answered(null);
+        }
+    }
+
+    /**
+     * INVITE client transaction timed out, no final response received.
+     */
+    public void inviteTimedOut(SipRequest sipRequest) {
+        callFailed(Utils.getMessageCallId(sipRequest),
+                new RequestFailedException((SipResponse)null));
+    }
+
+    /**
+     * @param callId Call-ID of the REGISTER to be sent
+     */
+    CompletableFuture<SipResponse> addRegistration(String callId) {
+        Registration registration = new Registration();
+        registrations.put(callId, registration);
+        return registration.future;
+    }
+
+    /**
+     * REGISTER sent, responses with a lower CSeq are not its responses.
+     * Must be called on the worker of the Call-ID, before any response to
+     * this REGISTER is processed.
+     */
+    void registrationSent(SipRequest sipRequest) {
+        Registration registration =
+            registrations.get(Utils.getMessageCallId(sipRequest));
+        if (registration != null) {
+            registration.cseq = sipRequest.getCSeqNumber();
+        }
+    }
+
+    void registrationFailed(String callId, Throwable cause) {
+        Registration registration = registrations.remove(callId);
+        if (registration != null) {
+            registration.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * REGISTER client transaction timed out, no final response received.
+     */
+    public void registerTimedOut(SipRequest sipRequest) {
+        Registration registration = removeRegistration(sipRequest);
+        if (registration != null) {
+            registration.future.completeExceptionally(
+                    new RequestFailedException((SipResponse)null));
+        }
+    }
+
+    private Registration removeRegistration(SipMessage sipMessage) {
+        String callId = Utils.getMessageCallId(sipMessage);
+        if (callId == null) {
+            return null;
+        }
+        Registration registration = registrations.get(callId);
+        if (registration == null || registration.cseq < 0
+                || sipMessage.getCSeqNumber() < registration.cseq
+                || !registrations.remove(callId, registration)) {
+            return null;
+        }
+        return registration;
+    }
+
+    /**
+     * Fails pending futures, user agent is closing.
+     */
+    void close() {
+        RequestFailedException closed = new RequestFailedException(
+                "user agent closed", null);
+        for (Call call : calls.values()) {
+            call.failed(closed);
+        }
+        calls.clear();
+        for (String callId : registrations.keySet()) {
+            registrationFailed(callId, closed);
+        }
+    }
+
+    //////////////////////////////////////////////////////////
+    // SipListener methods
+    //////////////////////////////////////////////////////////
+
+    @Override
+    public void registering(SipRequest sipRequest) {
+        if (sipListener != null) {
+            sipListener.registering(sipRequest);
+        }
+    }
+
+    @Override
+    public void registerSuccessful(SipResponse sipResponse) {
+        if (sipListener != null) {
+            sipListener.registerSuccessful(sipResponse);
+        }
+        Registration registration = removeRegistration(sipResponse);
+        if (registration != null) {
+            registration.future.complete(sipResponse);
+        }
+    }
+
+    /**
+     * @param sipResponse null if the registrar did not answer, futures are
+     *        then failed by {@link #registerTimedOut(SipRequest)}
+     */
+    @Override
+    public void registerFailed(SipResponse sipResponse) {
+        if (sipListener != null) {
+            sipListener.registerFailed(sipResponse);
+        }
+        if (sipResponse == null) {
+            return;
+        }
+        Registration registration = removeRegistration(sipResponse);
+        if (registration != null) {
+            registration.future.completeExceptionally(
+                    new RequestFailedException(sipResponse));
+        }
+    }
+
+    @Override
+    public void incomingCall(SipRequest sipRequest, SipResponse provResponse) {
+        if (sipListener != null) {
+            sipListener.incomingCall(sipRequest, provResponse);
+        }
+    }
+
+    @Override
+    public void remoteHangup(SipRequest sipRequest) {
+        if (sipListener != null) {
+            sipListener.remoteHangup(sipRequest);
+        }
+        Call call = calls.remove(Utils.getMessageCallId(sipRequest));
+        if (call != null) {
+            call.ended();
+        }
+    }
+
+    @Override
+    public void ringing(SipResponse sipResponse) {
+        if (sipListener != null) {
+            sipListener.ringing(sipResponse);
+        }
+    }
+
+    @Override
+    public void calleePickup(SipResponse sipResponse) {
+        if (sipListener != null) {
+            sipListener.calleePickup(sipResponse);
+        }
+        Call call = calls.get(Utils.getMessageCallId(sipResponse));
+        if (call != null) {
+            call.answered(sipResponse);
+        }
+    }
+
+    @Override
+    public void error(SipResponse sipResponse) {
+        if (sipListener != null) {
+            sipListener.error(sipResponse);
+        }
+        callFailed(Utils.getMessageCallId(sipResponse),
+                new RequestFailedException(sipResponse));
+    }
+
+    @Override
+    public void dtmfEvent(RFC4733.DTMFEvent dtmfEvent, int duration) {
+        if (sipListener != null) {
+            sipListener.dtmfEvent(dtmfEvent, duration);
+        }
+    }
+
+    public SipListener getSipListener() {
+        return sipListener;
+    }
+
+    static class Registration {
+
+        final CompletableFuture<SipResponse> future =
+            new CompletableFuture<SipResponse>();
+        // CSeq of the REGISTER, -1 until it is sent
+        volatile int cseq = -1;
+
+    }
+
+}
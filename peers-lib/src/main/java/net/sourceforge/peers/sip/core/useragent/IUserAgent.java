@@ -5,7 +5,6 @@ import java.util.List;
 import net.sourceforge.peers.Config;
 import net.sourceforge.peers.media.AbstractSoundManagerFactory;
 import net.sourceforge.peers.media.DtmfEventHandler;
-import net.sourceforge.peers.media.Echo;
 import net.sourceforge.peers.media.MediaManager;
 import net.sourceforge.peers.sip.syntaxencoding.SipUriSyntaxException;
 import net.sourceforge.peers.sip.transaction.TransactionManager;
@@ -66,7 +65,4 @@ public interface IUserAgent extends Closeable, DtmfEventHandler {
 
     String generateCSeq(String method);
     SipRequest getSipRequest(SipMessage sipMessage);
-
-    Echo getEcho();
-    void setEcho(Echo echo);
 }
@@ -19,9 +19,8 @@
 
 package net.sourceforge.peers.sip.core.useragent;
 
-import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Hashtable;
+import java.util.List;
 
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.sip.RFC3261;
@@ -44,6 +43,7 @@ import net.sourceforge.peers.sip.transactionuser.Dialog;
 import net.sourceforge.peers.sip.transactionuser.DialogManager;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
+import net.sourceforge.peers.sip.transport.SipTarget;
 import net.sourceforge.peers.sip.transport.TransportManager;
 
 
@@ -113,32 +113,20 @@ public class MidDialogRequestManager extends RequestManager
                 logger);
 
         //TODO if header route is present, addrspec = toproute.nameaddress.addrspec
-        String transport = RFC3261.TRANSPORT_UDP;
-        Hashtable<String, String> params = destinationUri.getUriParameters();
-        if (params != null) {
-            String reqUriTransport = params.get(RFC3261.PARAM_TRANSPORT);
-            if (reqUriTransport != null) {
-                transport = reqUriTransport; 
-            }
-        }
-        int port = destinationUri.getPort();
-        if (port == SipURI.DEFAULT_PORT) {
-            port = RFC3261.TRANSPORT_DEFAULT_PORT;
-        }
         SipURI sipUri = userAgent.getConfig().getOutboundProxy();
         if (sipUri == null) {
             sipUri = destinationUri;
         }
-        InetAddress inetAddress;
+        List<SipTarget> targets;
         try {
-            inetAddress = InetAddress.getByName(sipUri.getHost());
+            targets = transportManager.getSipServerLocator().locate(sipUri);
         } catch (UnknownHostException e) {
             logger.error("unknown host: " + sipUri.getHost(), e);
             return null;
         }
         ClientTransaction clientTransaction = transactionManager
-            .createClientTransaction(sipRequest, inetAddress, port, transport,
-                    branchId, clientTransactionUser);
+            .createClientTransaction(sipRequest, targets, branchId,
+                    clientTransactionUser);
         return clientTransaction;
     }
     
@@ -0,0 +1,265 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.core.useragent;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.PlatformThreadFactory;
+import net.sourceforge.peers.TimingWheel;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.Utils;
+import net.sourceforge.peers.sip.syntaxencoding.NameAddress;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldNames;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldValue;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderParamName;
+import net.sourceforge.peers.sip.transaction.TransactionManager;
+import net.sourceforge.peers.sip.transport.KeepAliveListener;
+import net.sourceforge.peers.sip.transport.SipMessage;
+import net.sourceforge.peers.sip.transport.SipRequest;
+import net.sourceforge.peers.sip.transport.SipResponse;
+import net.sourceforge.peers.sip.transport.SipServerTransportUser;
+import net.sourceforge.peers.sip.transport.SipTransportConnection;
+import net.sourceforge.peers.sip.transport.TransportManager;
+import net.sourceforge.peers.sip.transport.TransportReactor;
+import net.sourceforge.peers.sip.transport.UserPartFilter;
+
+/**
+ * Context shared by user agents hosted in the same process: one timer, one
+ * transaction layer, one transport layer (sockets, parser, worker pool)
+ * bound to one SIP port. Each {@link UserAgent} created with this runtime
+ * keeps its own dialogs, handlers and media, incoming requests are routed
+ * to it using the user part of the request-URI, or of the To header when
+ * the request-URI has none (mid-dialog requests sent to a Contact without
+ * user part).
+ *
+ * Addresses are taken from the runtime {@link Config}: local address and
+ * SIP port. User agents configs give user part, domain, credentials and
+ * media settings.
+ */
+public class PeersRuntime implements SipServerTransportUser,
+        KeepAliveListener, UserPartFilter {
+
+    private final Config config;
+    private final Logger logger;
+    private final TimingWheel timingWheel;
+    private final TransactionManager transactionManager;
+    private final TransportManager transportManager;
+    private final ThreadFactory threadFactory;
+    // user part -> user agent
+    private final ConcurrentHashMap<String, AbstractUserAgent> userAgents;
+
+    public PeersRuntime(Config config, Logger logger) throws SocketException {
+        this(config, logger, null);
+    }
+
+    /**
+     * @param transportReactor optional reactor, if null each transport
+     *        has its own receiver thread
+     */
+    public PeersRuntime(Config config, Logger logger,
+            TransportReactor transportReactor) throws SocketException {
+        this(config, logger, transportReactor, null);
+    }
+
+    /**
+     * @param threadFactory creates shared threads, and media threads of
+     *        user agents created without thread factory. Platform threads
+     *        if null.
+     */
+    public PeersRuntime(Config config, Logger logger,
+            TransportReactor transportReactor, ThreadFactory threadFactory)
+            throws SocketException {
+        this.config = config;
+        this.logger = logger;
+        if (threadFactory == null) {
+            threadFactory = PlatformThreadFactory.INSTANCE;
+        }
+        this.threadFactory = threadFactory;
+        userAgents = new ConcurrentHashMap<String, AbstractUserAgent>();
+        timingWheel = new TimingWheel(logger, threadFactory);
+        transactionManager = new TransactionManager(timingWheel, logger);
+        transportManager = new TransportManager(transactionManager, config,
+                logger, transportReactor, null, threadFactory);
+        transactionManager.setTransportManager(transportManager);
+        transportManager.getKeepAliveManager().setKeepAliveListener(this);
+        transportManager.setSipServerTransportUser(this);
+        transportManager.getOptionsResponder().setUserPartFilter(this);
+        transportManager.createServerTransport(RFC3261.TRANSPORT_UDP,
+                config.getSipPort());
+    }
+
+    /**
+     * Called once the user agent is fully built, requests addressed to its
+     * user part are delivered from now on.
+     *
+     * @throws IllegalArgumentException if the user agent has no user part
+     *         or if another user agent already uses it
+     */
+    void addUserAgent(AbstractUserAgent userAgent) {
+        String userPart = userAgent.getUserpart();
+        if (userPart == null || "".equals(userPart)) {
+            throw new IllegalArgumentException(
+                    "user part required to share a runtime");
+        }
+        if (userAgents.putIfAbsent(userPart, userAgent) != null) {
+            throw new IllegalArgumentException("user part already in use: "
+                    + userPart);
+        }
+    }
+
+    void removeUserAgent(AbstractUserAgent userAgent) {
+        userAgents.remove(userAgent.getUserpart(), userAgent);
+    }
+
+    public AbstractUserAgent getUserAgent(String userPart) {
+        return userAgents.get(userPart);
+    }
+
+    public int getUserAgentCount() {
+        return userAgents.size();
+    }
+
+    /**
+     * Closes sockets and stops the timer. Hosted user agents should have
+     * been closed before.
+     */
+    public void close() {
+        transportManager.closeTransports();
+        transactionManager.closeTimers();
+        timingWheel.stop();
+        userAgents.clear();
+    }
+
+    //////////////////////////////////////////////////////////
+    // SipServerTransportUser methods
+    //////////////////////////////////////////////////////////
+
+    public void messageReceived(SipMessage sipMessage) {
+        if (!(sipMessage instanceof SipRequest)) {
+            // responses matching no client transaction are ignored by
+            // user agents too
+            return;
+        }
+        SipRequest sipRequest = (SipRequest)sipMessage;
+        AbstractUserAgent userAgent = route(sipRequest);
+        if (userAgent == null) {
+            logger.debug("no user agent for " + sipRequest.getRequestUri());
+            if (!RFC3261.METHOD_ACK.equals(sipRequest.getMethod())) {
+                rejectNotFound(sipRequest);
+            }
+            return;
+        }
+        userAgent.getUas().messageReceived(sipRequest);
+    }
+
+    AbstractUserAgent route(SipRequest sipRequest) {
+        String userPart = Utils.getUserPart(
+                sipRequest.getRequestUri().toString());
+        AbstractUserAgent userAgent = null;
+        if (userPart != null) {
+            userAgent = userAgents.get(userPart);
+        }
+        if (userAgent == null) {
+            SipHeaderFieldValue to = sipRequest.getSipHeaders().get(
+                    SipHeaderFieldNames.TO);
+            if (to != null) {
+                userPart = Utils.getUserPart(NameAddress.nameAddressToUri(
+                        to.getValue()));
+                if (userPart != null) {
+                    userAgent = userAgents.get(userPart);
+                }
+            }
+        }
+        return userAgent;
+    }
+
+    private void rejectNotFound(SipRequest sipRequest) {
+        SipResponse sipResponse = RequestManager.generateResponse(sipRequest,
+                null, RFC3261.CODE_404_NOT_FOUND,
+                RFC3261.REASON_404_NOT_FOUND);
+        SipHeaderFieldValue to = sipResponse.getSipHeaders().get(
+                SipHeaderFieldNames.TO);
+        SipHeaderParamName tagName = new SipHeaderParamName(RFC3261.PARAM_TAG);
+        if (to.getParam(tagName) == null) {
+            to.addParam(tagName, Utils.generateTag());
+        }
+        try {
+            transportManager.sendResponse(sipResponse);
+        } catch (IOException e) {
+            logger.error("input/output error", e);
+        }
+    }
+
+    //////////////////////////////////////////////////////////
+    // UserPartFilter methods
+    //////////////////////////////////////////////////////////
+
+    /**
+     * OPTIONS pings to hosted user agents are answered statelessly, the
+     * others get a 404 from the regular processing.
+     */
+    public boolean accept(String userPart) {
+        return userAgents.containsKey(userPart);
+    }
+
+    //////////////////////////////////////////////////////////
+    // KeepAliveListener methods
+    //////////////////////////////////////////////////////////
+
+    /**
+     * Each register handler checks whether the flow is the one towards its
+     * registrar.
+     */
+    public void flowFailed(SipTransportConnection sipTransportConnection) {
+        for (AbstractUserAgent userAgent : userAgents.values()) {
+            userAgent.getRegisterHandler().flowFailed(sipTransportConnection);
+        }
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public Logger getLogger() {
+        return logger;
+    }
+
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    public TransactionManager getTransactionManager() {
+        return transactionManager;
+    }
+
+    public TransportManager getTransportManager() {
+        return transportManager;
+    }
+
+}
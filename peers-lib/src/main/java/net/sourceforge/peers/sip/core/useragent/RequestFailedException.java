@@ -0,0 +1,50 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007, 2008, 2009, 2010 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.core.useragent;
+
+import net.sourceforge.peers.sip.transport.SipResponse;
+
+/**
+ * Failure of a request sent with {@link AsyncUserAgent}, carries the final
+ * error response, or null if no final response has been received.
+ */
+public class RequestFailedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient SipResponse sipResponse;
+
+    public RequestFailedException(SipResponse sipResponse) {
+        super(sipResponse == null ? "no response"
+                : sipResponse.getStatusCode() + " "
+                    + sipResponse.getReasonPhrase());
+        this.sipResponse = sipResponse;
+    }
+
+    public RequestFailedException(String message, Throwable cause) {
+        super(message, cause);
+        sipResponse = null;
+    }
+
+    public SipResponse getSipResponse() {
+        return sipResponse;
+    }
+
+}
@@ -83,14 +83,18 @@ public class UAC {
      * @throws SipUriSyntaxException 
      */
     SipRequest register() throws SipUriSyntaxException {
+        return register(Utils.generateCallID(
+                userAgent.getConfig().getLocalInetAddress()));
+    }
+
+    SipRequest register(String callId) throws SipUriSyntaxException {
         String domain = userAgent.getDomain();
         String requestUri = RFC3261.SIP_SCHEME + RFC3261.SCHEME_SEPARATOR
             + domain;
         SipListener sipListener = userAgent.getSipListener();
         profileUri = RFC3261.SIP_SCHEME + RFC3261.SCHEME_SEPARATOR
         	+ userAgent.getUserpart() + RFC3261.AT + domain;
-        registerCallID = Utils.generateCallID(
-                userAgent.getConfig().getLocalInetAddress());
+        registerCallID = callId;
         SipRequest sipRequest = initialRequestManager.createInitialRequest(
                 requestUri, RFC3261.METHOD_REGISTER, profileUri,
                 registerCallID);
@@ -213,7 +217,7 @@ public class UAC {
                 }
             }
         }
-        userAgent.getMediaManager().stopSession();
+        userAgent.getMediaManager().stopSession(callId);
     }
 
     public InitialRequestManager getInitialRequestManager() {
@@ -23,10 +23,6 @@ import java.net.SocketException;
 import java.util.ArrayList;
 
 import net.sourceforge.peers.sip.RFC3261;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldName;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldValue;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaderParamName;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaders;
 import net.sourceforge.peers.sip.transaction.TransactionManager;
 import net.sourceforge.peers.sip.transactionuser.Dialog;
 import net.sourceforge.peers.sip.transactionuser.DialogManager;
@@ -55,7 +51,9 @@ public class UAS implements SipServerTransportUser {
     private DialogManager dialogManager;
     
     /**
-     * should be instanciated only once, it was a singleton.
+     * should be instanciated only once per user agent, it was a singleton.
+     * With a {@link PeersRuntime}, requests are received from the runtime
+     * which owns the server transport.
      */
     public UAS(AbstractUserAgent userAgent,
             InitialRequestManager initialRequestManager,
@@ -66,9 +64,11 @@ public class UAS implements SipServerTransportUser {
         this.initialRequestManager = initialRequestManager;
         this.midDialogRequestManager = midDialogRequestManager;
         this.dialogManager = dialogManager;
-        transportManager.setSipServerTransportUser(this);
-        transportManager.createServerTransport(
-                RFC3261.TRANSPORT_UDP, userAgent.getConfig().getSipPort());
+        if (userAgent.getPeersRuntime() == null) {
+            transportManager.setSipServerTransportUser(this);
+            transportManager.createServerTransport(
+                    RFC3261.TRANSPORT_UDP, userAgent.getConfig().getSipPort());
+        }
     }
     
     public void messageReceived(SipMessage sipMessage) {
@@ -90,12 +90,8 @@ public class UAS implements SipServerTransportUser {
         
         //TODO JTA to make request processing atomic
         
-        SipHeaders headers = sipRequest.getSipHeaders();
-        
         //TODO find whether the request is within an existing dialog or not
-        SipHeaderFieldValue to =
-            headers.get(new SipHeaderFieldName(RFC3261.HDR_TO));
-        String toTag = to.getParam(new SipHeaderParamName(RFC3261.PARAM_TAG));
+        String toTag = sipRequest.getToTag();
         if (toTag != null) {
             Dialog dialog = dialogManager.getDialog(sipRequest);
             if (dialog != null) {
@@ -21,16 +21,21 @@ package net.sourceforge.peers.sip.core.useragent;
 
 import java.io.File;
 import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+
 import net.sourceforge.peers.Config;
 import net.sourceforge.peers.FileLogger;
 import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.PlatformThreadFactory;
+import net.sourceforge.peers.VirtualThreadFactory;
 import net.sourceforge.peers.XmlConfig;
 import net.sourceforge.peers.media.AbstractSoundManagerFactory;
 import net.sourceforge.peers.media.ConfigAbstractSoundManagerFactory;
-import net.sourceforge.peers.media.Echo;
 import net.sourceforge.peers.media.MediaManager;
 import net.sourceforge.peers.rtp.RFC4733;
 import net.sourceforge.peers.sdp.SDPManager;
+import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.Utils;
 import net.sourceforge.peers.sip.core.useragent.handlers.ByeHandler;
 import net.sourceforge.peers.sip.core.useragent.handlers.CancelHandler;
@@ -42,13 +47,14 @@ import net.sourceforge.peers.sip.transaction.Transaction;
 import net.sourceforge.peers.sip.transaction.TransactionManager;
 import net.sourceforge.peers.sip.transactionuser.Dialog;
 import net.sourceforge.peers.sip.transactionuser.DialogManager;
+import net.sourceforge.peers.sip.transport.RawSipMessage;
 import net.sourceforge.peers.sip.transport.SipMessage;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
 import net.sourceforge.peers.sip.transport.TransportManager;
 
 
-public class UserAgent extends AbstractUserAgent {
+public class UserAgent extends AbstractUserAgent implements AsyncUserAgent {
 
     public final static String CONFIG_FILE = "conf" + File.separator + "peers.xml";
 
@@ -58,9 +64,6 @@ public class UserAgent extends AbstractUserAgent {
 
     //private List<Dialog> dialogs;
     
-    //TODO factorize echo and captureRtpSender
-    private Echo echo;
-    
     private final UAC uac;
     private final UAS uas;
 
@@ -81,10 +84,14 @@ public class UserAgent extends AbstractUserAgent {
     private int cseqCounter;
     private final AbstractSoundManagerFactory abstractSoundManagerFactory;
     private final SipListener sipListener;
+    private final CallFutures callFutures;
     
     private final SDPManager sdpManager;
     private final MediaManager mediaManager;
 
+    private final PeersRuntime peersRuntime;
+    private final ThreadFactory threadFactory;
+
     public UserAgent(SipListener sipListener, String peersHome, Logger logger)
                     throws SocketException {
         this(sipListener, null, peersHome, logger);
@@ -102,11 +109,53 @@ public class UserAgent extends AbstractUserAgent {
 
     public UserAgent(SipListener sipListener, AbstractSoundManagerFactory abstractSoundManagerFactory, Config config, String peersHome, Logger logger)
                     throws SocketException {
+        this(sipListener, abstractSoundManagerFactory, config, peersHome,
+                logger, null);
+    }
+
+    /**
+     * User agent hosted in a runtime shared with other user agents, see
+     * {@link PeersRuntime}. Runtime logger is used if logger is null.
+     */
+    public UserAgent(SipListener sipListener, Config config,
+            PeersRuntime peersRuntime) throws SocketException {
+        this(sipListener, null, config, null, null, peersRuntime);
+    }
+
+    /**
+     * @param peersRuntime shared transaction and transport layers, null to
+     *        create private ones bound to the configured SIP port
+     */
+    public UserAgent(SipListener sipListener, AbstractSoundManagerFactory abstractSoundManagerFactory, Config config, String peersHome, Logger logger, PeersRuntime peersRuntime)
+                    throws SocketException {
+        this(sipListener, abstractSoundManagerFactory, config, peersHome,
+                logger, peersRuntime, null);
+    }
+
+    /**
+     * @param threadFactory creates all threads of this user agent, see
+     *        {@link VirtualThreadFactory}. If null, the runtime factory
+     *        is used, or platform threads without runtime.
+     */
+    public UserAgent(SipListener sipListener, AbstractSoundManagerFactory abstractSoundManagerFactory, Config config, String peersHome, Logger logger, PeersRuntime peersRuntime, ThreadFactory threadFactory)
+                    throws SocketException {
         this.sipListener = sipListener;
+        if (threadFactory == null && peersRuntime != null) {
+            threadFactory = peersRuntime.getThreadFactory();
+        }
+        if (threadFactory == null) {
+            threadFactory = PlatformThreadFactory.INSTANCE;
+        }
+        this.threadFactory = threadFactory;
+        callFutures = new CallFutures(sipListener);
+        this.peersRuntime = peersRuntime;
         if (peersHome == null) {
             peersHome = Utils.DEFAULT_PEERS_HOME;
         }
         this.peersHome = peersHome;
+        if (logger == null && peersRuntime != null) {
+            logger = peersRuntime.getLogger();
+        }
         if (logger == null) {
             logger = new FileLogger(this.peersHome);
         }
@@ -167,16 +216,27 @@ public class UserAgent extends AbstractUserAgent {
 
         uas = createUAS();
         uac = createUAC();
+
+        if (peersRuntime != null) {
+            peersRuntime.addUserAgent(this);
+        }
     }
     
     // client methods
 
     @Override
     public void close() {
-        transportManager.closeTransports();
-        transactionManager.closeTimers();
+        if (peersRuntime == null) {
+            transportManager.closeTransports();
+            transactionManager.closeTimers();
+        } else {
+            // shared layers are closed with the runtime
+            peersRuntime.removeUserAgent(this);
+            registerHandler.closeTimers();
+        }
         inviteHandler.closeTimers();
-        mediaManager.stopSession();
+        mediaManager.stopSessions();
+        callFutures.close();
         config.setPublicInetAddress(null);
     }
 
@@ -212,6 +272,129 @@ public class UserAgent extends AbstractUserAgent {
     }
     
     
+    // asynchronous commands
+
+    /**
+     * Runs the command on the SIP worker of the call, ordered with the
+     * messages received for this call.
+     */
+    private void execute(String callId, Runnable command) {
+        transportManager.getSipWorkerPool().execute(
+                RawSipMessage.getShardKey(callId), command);
+    }
+
+    @Override
+    public CompletableFuture<SipResponse> registerAsync() {
+        final String callId = Utils.generateCallID(
+                config.getLocalInetAddress());
+        CompletableFuture<SipResponse> registration =
+            callFutures.addRegistration(callId);
+        // responses are processed after this command, once the CSeq of the
+        // REGISTER is known
+        execute(callId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callFutures.registrationSent(uac.register(callId));
+                } catch (SipUriSyntaxException e) {
+                    callFutures.registrationFailed(callId,
+                            new RequestFailedException(e.getMessage(), e));
+                }
+            }
+        });
+        return registration;
+    }
+
+    @Override
+    public Call inviteAsync(final String requestUri) {
+        final String callId = Utils.generateCallID(
+                config.getLocalInetAddress());
+        final Call call = callFutures.addCall(new Call(this, callId));
+        execute(callId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    call.setInvite(uac.invite(requestUri, callId));
+                } catch (SipUriSyntaxException e) {
+                    callFutures.callFailed(callId,
+                            new RequestFailedException(e.getMessage(), e));
+                }
+            }
+        });
+        return call;
+    }
+
+    @Override
+    public Call acceptCallAsync(final SipRequest sipRequest,
+            final Dialog dialog) {
+        final String callId = Utils.getMessageCallId(sipRequest);
+        final Call call = callFutures.addCall(new Call(this, callId));
+        call.setInvite(sipRequest);
+        execute(callId, new Runnable() {
+            @Override
+            public void run() {
+                uas.acceptCall(sipRequest, dialog);
+                // answered on ACK, 13.3.1.4: no ACK within 64*T1 ends the call
+                transactionManager.getTimingWheel().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute(callId, new Runnable() {
+                            @Override
+                            public void run() {
+                                ackTimedOut(call, sipRequest);
+                            }
+                        });
+                    }
+                }, 64 * RFC3261.TIMER_T1);
+            }
+        });
+        return call;
+    }
+
+    private void ackTimedOut(Call call, SipRequest sipRequest) {
+        if (call.getAnswered().isDone()
+                || callFutures.getCall(call.getCallId()) != call) {
+            return;
+        }
+        logger.error("no ACK received for " + call.getCallId());
+        callFutures.callFailed(call.getCallId(),
+                new RequestFailedException("no ACK received", null));
+        uac.terminate(sipRequest);
+    }
+
+    @Override
+    public CompletableFuture<Void> terminateAsync(
+            final SipRequest sipRequest) {
+        final CompletableFuture<Void> terminated =
+            new CompletableFuture<Void>();
+        final String callId = Utils.getMessageCallId(sipRequest);
+        execute(callId, new Runnable() {
+            @Override
+            public void run() {
+                uac.terminate(sipRequest);
+                terminated.complete(null);
+            }
+        });
+        return terminated;
+    }
+
+    CompletableFuture<Void> terminateAsync(final Call call) {
+        final CompletableFuture<Void> terminated =
+            new CompletableFuture<Void>();
+        execute(call.getCallId(), new Runnable() {
+            @Override
+            public void run() {
+                // set by the invite command, queued before this one
+                SipRequest invite = call.getInvite();
+                if (invite != null) {
+                    uac.terminate(invite);
+                }
+                terminated.complete(null);
+            }
+        });
+        return terminated;
+    }
+
     /**
      * Gives the sipMessage if sipMessage is a SipRequest or 
      * the SipRequest corresponding to the SipResponse
@@ -244,6 +427,11 @@ public class UserAgent extends AbstractUserAgent {
 //        return dialogs;
 //    }
 
+    @Override
+    public PeersRuntime getPeersRuntime() {
+        return peersRuntime;
+    }
+
     @Override
     protected Logger getLogger() {
         return logger;
@@ -328,23 +516,28 @@ public class UserAgent extends AbstractUserAgent {
     }
 
     @Override
-    public Echo getEcho() {
-        return echo;
+    public AbstractSoundManagerFactory getAbstractSoundManagerFactory() {
+        return abstractSoundManagerFactory;
     }
 
+    /**
+     * @return listener notified by handlers, it completes futures of
+     *         asynchronous commands and forwards events to the listener
+     *         given at construction
+     */
     @Override
-    public void setEcho(Echo echo) {
-        this.echo = echo;
+    public SipListener getSipListener() {
+        return callFutures;
     }
 
     @Override
-    public AbstractSoundManagerFactory getAbstractSoundManagerFactory() {
-        return abstractSoundManagerFactory;
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
     }
 
     @Override
-    public SipListener getSipListener() {
-        return sipListener;
+    public CallFutures getCallFutures() {
+        return callFutures;
     }
 
     @Override
@@ -374,6 +567,6 @@ public class UserAgent extends AbstractUserAgent {
 
     @Override
     public void dtmfDetected(RFC4733.DTMFEvent dtmfEvent, int duration) {
-        sipListener.dtmfEvent(dtmfEvent, duration);
+        callFutures.dtmfEvent(dtmfEvent, duration);
     }
 }
@@ -22,6 +22,7 @@ package net.sourceforge.peers.sip.core.useragent.handlers;
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.core.useragent.AbstractUserAgent;
+import net.sourceforge.peers.sip.core.useragent.CallFutures;
 import net.sourceforge.peers.sip.core.useragent.RequestManager;
 import net.sourceforge.peers.sip.core.useragent.SipListener;
 import net.sourceforge.peers.sip.transaction.ClientTransaction;
@@ -58,6 +59,10 @@ public class ByeHandler extends DialogMethodHandler
         String addrSpec = sipRequest.getRequestUri().toString();
         userAgent.getPeers().remove(addrSpec);
         challengeManager.postProcess(sipRequest);
+        CallFutures callFutures = userAgent.getCallFutures();
+        if (callFutures != null) {
+            callFutures.callTerminated(dialog.getCallId());
+        }
     }
     
     
@@ -75,14 +80,13 @@ public class ByeHandler extends DialogMethodHandler
 
         String addrSpec = sipRequest.getRequestUri().toString();
         userAgent.getPeers().remove(addrSpec);
-        dialogManager.removeDialog(dialog.getId());
-        logger.debug("removed dialog " + dialog.getId());
+        dialogManager.removeDialog(dialog);
 
         SipListener sipListener = userAgent.getSipListener();
         if (sipListener != null) {
             sipListener.remoteHangup(sipRequest);
         }
-        userAgent.getMediaManager().stopSession();
+        userAgent.getMediaManager().stopSession(dialog.getCallId());
         
         SipResponse sipResponse =
             RequestManager.generateResponse(
@@ -108,7 +112,7 @@ public class ByeHandler extends DialogMethodHandler
         
         serverTransaction.sendReponse(sipResponse);
         
-        dialogManager.removeDialog(dialog.getId());
+        dialogManager.removeDialog(dialog);
 
 //        setChanged();
 //        notifyObservers(sipRequest);
@@ -167,8 +171,7 @@ public class ByeHandler extends DialogMethodHandler
 		    return;
 		}
 		dialog.receivedOrSentBye();
-		dialogManager.removeDialog(dialog.getId());
-        logger.debug("removed dialog " + dialog.getId());
+		dialogManager.removeDialog(dialog);
 	}
 
 	@Override
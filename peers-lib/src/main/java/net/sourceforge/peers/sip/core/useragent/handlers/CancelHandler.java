@@ -56,9 +56,8 @@ public class CancelHandler extends DialogMethodHandler
     //////////////////////////////////////////////////////////
 
     public void handleCancel(SipRequest sipRequest) {
-        SipHeaderFieldValue topVia = Utils.getTopVia(sipRequest);
-        String branchId = topVia.getParam(new SipHeaderParamName(
-                RFC3261.PARAM_BRANCH));
+        String branchId =
+            TransactionManager.getServerTransactionKey(sipRequest);
         InviteServerTransaction inviteServerTransaction =
             (InviteServerTransaction)transactionManager
                 .getServerTransaction(branchId,RFC3261.METHOD_INVITE);
@@ -97,6 +96,7 @@ public class CancelHandler extends DialogMethodHandler
         
         Dialog dialog = dialogManager.getDialog(lastResponse);
         dialog.receivedOrSent300To699();
+        userAgent.getMediaManager().stopSession(dialog.getCallId());
 
         SipListener sipListener = userAgent.getSipListener();
         if (sipListener != null) {
@@ -22,7 +22,6 @@ package net.sourceforge.peers.sip.core.useragent.handlers;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.TimerTask;
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.core.useragent.AbstractUserAgent;
@@ -30,7 +29,6 @@ import net.sourceforge.peers.sip.syntaxencoding.NameAddress;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldMultiValue;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldName;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldValue;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaderParamName;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaders;
 import net.sourceforge.peers.sip.transaction.Transaction;
 import net.sourceforge.peers.sip.transaction.TransactionManager;
@@ -74,7 +72,7 @@ public abstract class DialogMethodHandler extends MethodHandler {
 
         SipHeaderFieldName contactName = new SipHeaderFieldName(RFC3261.HDR_CONTACT);
         
-        Dialog dialog = dialogManager.createDialog(sipResponse);
+        Dialog dialog = dialogManager.createDialog(sipResponse, true);
         
         //build dialog state
         
@@ -109,23 +107,11 @@ public abstract class DialogMethodHandler extends MethodHandler {
         String remoteCseq = cseq.getValue().substring(0, cseq.getValue().indexOf(' '));
         dialog.setRemoteCSeq(Integer.parseInt(remoteCseq));
         
-          //callid
-        SipHeaderFieldName callidName = new SipHeaderFieldName(RFC3261.HDR_CALLID);
-        SipHeaderFieldValue callid = reqHeaders.get(callidName);
-        dialog.setCallId(callid.getValue());
-        
-          //local tag
-        SipHeaderFieldName toName = new SipHeaderFieldName(RFC3261.HDR_TO);
-        SipHeaderFieldValue to = respHeaders.get(toName);
-        SipHeaderParamName tagName = new SipHeaderParamName(RFC3261.PARAM_TAG);
-        String toTag = to.getParam(tagName);
-        dialog.setLocalTag(toTag);
-        
-          //remote tag
+          //callid, local tag and remote tag: set in createDialog()
         SipHeaderFieldName fromName = new SipHeaderFieldName(RFC3261.HDR_FROM);
         SipHeaderFieldValue from = reqHeaders.get(fromName);
-        String fromTag = from.getParam(tagName);
-        dialog.setRemoteTag(fromTag);
+        SipHeaderFieldValue to = respHeaders.get(
+                new SipHeaderFieldName(RFC3261.HDR_TO));
         
           //remote uri
         
@@ -249,7 +235,7 @@ public abstract class DialogMethodHandler extends MethodHandler {
     }
     
     //TODO see if AckHandler is usable
-    class AckTimerTask extends TimerTask {
+    class AckTimerTask implements Runnable {
 
         private String toUri;
         
@@ -271,7 +257,7 @@ public abstract class DialogMethodHandler extends MethodHandler {
                 }
             }
             for (Dialog dialog : purgedDialogs) {
-                dialogs.remove(dialog);
+                dialogManager.removeDialog(dialog);
             }
         }
         
@@ -21,17 +21,17 @@ package net.sourceforge.peers.sip.core.useragent.handlers;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import net.sourceforge.peers.Logger;
-import net.sourceforge.peers.Timer;
+import net.sourceforge.peers.TimingWheel;
 import net.sourceforge.peers.media.MediaManager;
+import net.sourceforge.peers.media.MediaSession;
 import net.sourceforge.peers.sdp.Codec;
 import net.sourceforge.peers.sdp.MediaDestination;
 import net.sourceforge.peers.sdp.NoCodecException;
@@ -39,6 +39,7 @@ import net.sourceforge.peers.sdp.SessionDescription;
 import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.Utils;
 import net.sourceforge.peers.sip.core.useragent.AbstractUserAgent;
+import net.sourceforge.peers.sip.core.useragent.CallFutures;
 import net.sourceforge.peers.sip.core.useragent.RequestManager;
 import net.sourceforge.peers.sip.core.useragent.SipListener;
 import net.sourceforge.peers.sip.syntaxencoding.NameAddress;
@@ -61,6 +62,7 @@ import net.sourceforge.peers.sip.transactionuser.DialogManager;
 import net.sourceforge.peers.sip.transport.MessageSender;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
+import net.sourceforge.peers.sip.transport.SipTarget;
 import net.sourceforge.peers.sip.transport.TransportManager;
 
 public class InviteHandler extends DialogMethodHandler
@@ -68,9 +70,8 @@ public class InviteHandler extends DialogMethodHandler
 
     public static final int TIMEOUT = 100;
 
-    private MediaDestination mediaDestination;
-    private Timer ackTimer;
-    private boolean initialIncomingInvite;
+    // pending ack timeouts, cancelled on close
+    private List<TimingWheel.Timeout> ackTimeouts;
     
     public InviteHandler(AbstractUserAgent userAgent,
             DialogManager dialogManager,
@@ -78,8 +79,7 @@ public class InviteHandler extends DialogMethodHandler
             TransportManager transportManager, Logger logger) {
         super(userAgent, dialogManager, transactionManager, transportManager,
                 logger);
-        ackTimer = new Timer(getClass().getSimpleName() + " Ack "
-                + Timer.class.getSimpleName());
+        ackTimeouts = new ArrayList<TimingWheel.Timeout>();
     }
     
     
@@ -88,7 +88,6 @@ public class InviteHandler extends DialogMethodHandler
     //////////////////////////////////////////////////////////
 
     public void handleInitialInvite(SipRequest sipRequest) {
-        initialIncomingInvite = true;
         //generate 180 Ringing
         SipResponse sipResponse = buildGenericResponse(sipRequest,
                 RFC3261.CODE_180_RINGING, RFC3261.REASON_180_RINGING);
@@ -125,7 +124,6 @@ public class InviteHandler extends DialogMethodHandler
     
     public void handleReInvite(SipRequest sipRequest, Dialog dialog) {
         logger.debug("handleReInvite");
-        initialIncomingInvite = false;
         SipHeaders sipHeaders = sipRequest.getSipHeaders();
 
         // 12.2.2 update dialog
@@ -145,48 +143,57 @@ public class InviteHandler extends DialogMethodHandler
         
     }
 
-    private DatagramSocket getDatagramSocket() {
-        DatagramSocket datagramSocket = userAgent.getMediaManager()
-                .getDatagramSocket();
-        if (datagramSocket == null) { // initial invite success response
-            // AccessController.doPrivileged added for plugin compatibility
-            datagramSocket = AccessController.doPrivileged(
-                new PrivilegedAction<DatagramSocket>() {
-
-                    @Override
-                    public DatagramSocket run() {
-                        DatagramSocket datagramSocket = null;
-                        int rtpPort = userAgent.getConfig().getRtpPort();
-                        try {
-                            if (rtpPort == 0) {
-                                int localPort = -1;
-                                while (localPort % 2 != 0) {
-                                    datagramSocket = new DatagramSocket();
-                                    localPort = datagramSocket.getLocalPort();
-                                    if (localPort % 2 != 0) {
-                                        datagramSocket.close();
-                                    }
-                                }
-                            } else {
-                                datagramSocket = new DatagramSocket(rtpPort);
+    /**
+     * @return the media session of the call, created with a new RTP socket
+     *         for the first offer or answer of the call
+     */
+    private MediaSession getMediaSession(String callId) {
+        MediaManager mediaManager = userAgent.getMediaManager();
+        MediaSession mediaSession = mediaManager.getMediaSession(callId);
+        if (mediaSession != null) {
+            return mediaSession;
+        }
+        // AccessController.doPrivileged added for plugin compatibility
+        DatagramSocket datagramSocket = AccessController.doPrivileged(
+            new PrivilegedAction<DatagramSocket>() {
+
+                @Override
+                public DatagramSocket run() {
+                    DatagramSocket datagramSocket = null;
+                    int rtpPort = userAgent.getConfig().getRtpPort();
+                    try {
+                        if (rtpPort != 0) {
+                            try {
+                                return new DatagramSocket(rtpPort);
+                            } catch (SocketException e) {
+                                // in use by another call
+                                logger.debug("rtp port " + rtpPort
+                                        + " unavailable, using any port");
+                            }
+                        }
+                        int localPort = -1;
+                        while (localPort % 2 != 0) {
+                            datagramSocket = new DatagramSocket();
+                            localPort = datagramSocket.getLocalPort();
+                            if (localPort % 2 != 0) {
+                                datagramSocket.close();
                             }
-                        } catch (SocketException e) {
-                            logger.error("cannot create datagram socket ", e);
                         }
- 
-                        return datagramSocket;
+                    } catch (SocketException e) {
+                        logger.error("cannot create datagram socket ", e);
                     }
+
+                    return datagramSocket;
                 }
-            );
-            logger.debug("new rtp DatagramSocket " + datagramSocket.hashCode());
-            try {
-                datagramSocket.setSoTimeout(TIMEOUT);
-            } catch (SocketException e) {
-                logger.error("cannot set timeout on datagram socket ", e);
             }
-            userAgent.getMediaManager().setDatagramSocket(datagramSocket);
+        );
+        logger.debug("new rtp DatagramSocket " + datagramSocket.hashCode());
+        try {
+            datagramSocket.setSoTimeout(TIMEOUT);
+        } catch (SocketException e) {
+            logger.error("cannot set timeout on datagram socket ", e);
         }
-        return datagramSocket;
+        return mediaManager.createMediaSession(callId, datagramSocket);
     }
 
     private synchronized void sendSuccessfulResponse(SipRequest sipRequest, Dialog dialog) {
@@ -228,7 +235,8 @@ public class InviteHandler extends DialogMethodHandler
         byte[] offerBytes = sipRequest.getBody();
         SessionDescription answer;
         try {
-            DatagramSocket datagramSocket = getDatagramSocket();
+            MediaSession mediaSession = getMediaSession(sipRequest.getCallId());
+            DatagramSocket datagramSocket = mediaSession.getDatagramSocket();
 
             if (offerBytes != null && contentType != null &&
                     RFC3261.CONTENT_TYPE_SDP.equals(contentType.getValue())) {
@@ -237,7 +245,8 @@ public class InviteHandler extends DialogMethodHandler
                     SessionDescription offer = sdpManager.parse(offerBytes);
                     answer = sdpManager.createSessionDescription(offer,
                             datagramSocket.getLocalPort());
-                    mediaDestination = sdpManager.getMediaDestination(offer);
+                    mediaSession.setMediaDestination(
+                            sdpManager.getMediaDestination(offer));
                 } catch (NoCodecException e) {
                     answer = sdpManager.createSessionDescription(null,
                             datagramSocket.getLocalPort());
@@ -330,7 +339,7 @@ public class InviteHandler extends DialogMethodHandler
         
         dialog.receivedOrSent300To699();
         
-        userAgent.getMediaManager().setDatagramSocket(null);
+        userAgent.getMediaManager().stopSession(callId.getValue());
 //        setChanged();
 //        notifyObservers(sipRequest);
     }
@@ -340,7 +349,12 @@ public class InviteHandler extends DialogMethodHandler
     //////////////////////////////////////////////////////////
 
     public void closeTimers() {
-        ackTimer.cancel();
+        synchronized (ackTimeouts) {
+            for (TimingWheel.Timeout timeout: ackTimeouts) {
+                timeout.cancel();
+            }
+            ackTimeouts.clear();
+        }
     }
     
     public ClientTransaction preProcessInvite(SipRequest sipRequest)
@@ -353,36 +367,21 @@ public class InviteHandler extends DialogMethodHandler
 
         //TODO if header route is present, addrspec = toproute.nameaddress.addrspec
 
-        String transport = RFC3261.TRANSPORT_UDP;
-        Hashtable<String, String> params = destinationUri.getUriParameters();
-        if (params != null) {
-            String reqUriTransport = params.get(RFC3261.PARAM_TRANSPORT);
-            if (reqUriTransport != null) {
-                transport = reqUriTransport; 
-            }
-        }
-        int port = destinationUri.getPort();
-        if (port == SipURI.DEFAULT_PORT) {
-            port = RFC3261.TRANSPORT_DEFAULT_PORT;
-        }
         SipURI sipUri = userAgent.getConfig().getOutboundProxy();
         if (sipUri == null) {
             sipUri = destinationUri;
         }
-        InetAddress inetAddress;
+        List<SipTarget> targets;
         try {
-            inetAddress = InetAddress.getByName(sipUri.getHost());
+            targets = transportManager.getSipServerLocator().locate(sipUri);
         } catch (UnknownHostException e) {
             throw new SipUriSyntaxException("unknown host: "
                     + sipUri.getHost(), e);
         }
         ClientTransaction clientTransaction = transactionManager
-                .createClientTransaction(sipRequest, inetAddress,
-                    port, transport, null, this);
-        DatagramSocket datagramSocket;
-        synchronized (this) {
-            datagramSocket = getDatagramSocket();
-        }
+                .createClientTransaction(sipRequest, targets, null, this);
+        DatagramSocket datagramSocket =
+            getMediaSession(sipRequest.getCallId()).getDatagramSocket();
         try {
             SessionDescription sessionDescription =
                 sdpManager.createSessionDescription(null,
@@ -408,7 +407,7 @@ public class InviteHandler extends DialogMethodHandler
         Dialog dialog = dialogManager.getDialog(sipResponse);
         if (dialog != null) {
             dialog.receivedOrSent300To699();
-            dialogManager.removeDialog(dialog.getId());
+            dialogManager.removeDialog(dialog);
         }
         int statusCode = sipResponse.getStatusCode();
         if (statusCode == RFC3261.CODE_401_UNAUTHORIZED
@@ -437,7 +436,7 @@ public class InviteHandler extends DialogMethodHandler
         if (guiClosedCallIds.contains(callId)) {
             guiClosedCallIds.remove(callId);
         }
-        userAgent.getMediaManager().setDatagramSocket(null);
+        userAgent.getMediaManager().stopSession(callId);
     }
 
     public void provResponseReceived(SipResponse sipResponse, Transaction transaction) {
@@ -516,8 +515,17 @@ public class InviteHandler extends DialogMethodHandler
             peers.add(responseTo);
             //timer used to purge dialogs which are not confirmed
             //after a given time
-            ackTimer.schedule(new AckTimerTask(responseTo),
-                    64 * RFC3261.TIMER_T1);
+            TimingWheel.Timeout timeout = transactionManager.getTimingWheel()
+                .schedule(new AckTimerTask(responseTo), 64 * RFC3261.TIMER_T1);
+            synchronized (ackTimeouts) {
+                for (Iterator<TimingWheel.Timeout> iterator =
+                        ackTimeouts.iterator(); iterator.hasNext();) {
+                    if (iterator.next().isExpired()) {
+                        iterator.remove();
+                    }
+                }
+                ackTimeouts.add(timeout);
+            }
         }
         
         Dialog dialog = dialogManager.getDialog(sipResponse);
@@ -536,19 +544,21 @@ public class InviteHandler extends DialogMethodHandler
         //added for media
         SessionDescription sessionDescription =
             sdpManager.parse(sipResponse.getBody());
+        MediaDestination mediaDestination = null;
         try {
             mediaDestination = sdpManager.getMediaDestination(sessionDescription);
         } catch (NoCodecException e) {
             logger.error(e.getMessage(), e);
         }
-        String remoteAddress = mediaDestination.getDestination();
-        int remotePort = mediaDestination.getPort();
-        Codec codec = mediaDestination.getCodec();
-        String localAddress = userAgent.getConfig()
-            .getLocalInetAddress().getHostAddress();
-
-        userAgent.getMediaManager().successResponseReceived(localAddress,
-                remoteAddress, remotePort, codec);
+        MediaManager mediaManager = userAgent.getMediaManager();
+        MediaSession mediaSession =
+            mediaManager.getMediaSession(sipResponse.getCallId());
+        if (mediaDestination != null && mediaSession != null) {
+            mediaSession.setMediaDestination(mediaDestination);
+            mediaManager.successResponseReceived(sipResponse.getCallId(),
+                    mediaDestination.getDestination(),
+                    mediaDestination.getPort(), mediaDestination.getCodec());
+        }
         
         //switch to confirmed state
         dialog.receivedOrSent2xx();
@@ -592,33 +602,22 @@ public class InviteHandler extends DialogMethodHandler
 
         //TODO if header route is present, addrspec = toproute.nameaddress.addrspec
         
-        String transport = RFC3261.TRANSPORT_UDP;
-        Hashtable<String, String> params = destinationUri.getUriParameters();
-        if (params != null) {
-            String reqUriTransport = params.get(RFC3261.PARAM_TRANSPORT);
-            if (reqUriTransport != null) {
-                transport = reqUriTransport; 
-            }
-        }
-        int port = destinationUri.getPort();
-        if (port == SipURI.DEFAULT_PORT) {
-            port = RFC3261.TRANSPORT_DEFAULT_PORT;
-        }
 
         SipURI sipUri = userAgent.getConfig().getOutboundProxy();
         if (sipUri == null) {
             sipUri = destinationUri;
         }
-        InetAddress inetAddress;
+        SipTarget target;
         try {
-            inetAddress = InetAddress.getByName(sipUri.getHost());
+            target = transportManager.getSipServerLocator().getTarget(sipUri);
         } catch (UnknownHostException e) {
             logger.error("unknown host: " + sipUri.getHost(), e);
             return;
         }
         try {
             MessageSender sender = transportManager.createClientTransport(
-                    ack, inetAddress, port, transport);
+                    ack, target.getInetAddress(), target.getPort(),
+                    target.getTransport());
             sender.sendMessage(ack);
         } catch (IOException e) {
             logger.error("input/output error", e);
@@ -642,6 +641,18 @@ public class InviteHandler extends DialogMethodHandler
 
         logger.debug("handleAck");
 
+        String callId = ack.getCallId();
+        CallFutures callFutures = userAgent.getCallFutures();
+        if (callFutures != null) {
+            callFutures.ackReceived(callId);
+        }
+        MediaManager mediaManager = userAgent.getMediaManager();
+        MediaSession mediaSession = mediaManager.getMediaSession(callId);
+        if (mediaSession == null) {
+            logger.error("no media session for " + callId);
+            return;
+        }
+        MediaDestination mediaDestination = mediaSession.getMediaDestination();
         if (mediaDestination == null) {
             SipHeaders reqHeaders = ack.getSipHeaders();
             SipHeaderFieldValue contentType =
@@ -658,24 +669,36 @@ public class InviteHandler extends DialogMethodHandler
                     logger.error(e.getMessage(), e);
                     return;
                 }
+                mediaSession.setMediaDestination(mediaDestination);
             }
         }
+        if (mediaDestination == null) {
+            logger.error("no media destination for " + callId);
+            return;
+        }
         String destAddress = mediaDestination.getDestination();
         int destPort = mediaDestination.getPort();
         Codec codec = mediaDestination.getCodec();
         
-        MediaManager mediaManager = userAgent.getMediaManager();
-        if (initialIncomingInvite) {
-            mediaManager.handleAck(destAddress, destPort, codec);
+        if (mediaSession.isStarted()) {
+            // ACK of a re-INVITE
+            mediaManager.updateRemote(callId, destAddress, destPort, codec);
         } else {
-            mediaManager.updateRemote(destAddress, destPort, codec);
+            mediaManager.handleAck(callId, destAddress, destPort, codec);
         }
 
     }
 
     public void transactionTimeout(ClientTransaction clientTransaction) {
-        // TODO Auto-generated method stub
-        
+        // no final response: timer B fired or transport error
+        SipRequest sipRequest =
+            ((InviteClientTransaction)clientTransaction).getRequest();
+        userAgent.getMediaManager().stopSession(
+                Utils.getMessageCallId(sipRequest));
+        CallFutures callFutures = userAgent.getCallFutures();
+        if (callFutures != null) {
+            callFutures.inviteTimedOut(sipRequest);
+        }
     }
 
     public void transactionTransportError() {
@@ -21,13 +21,13 @@ package net.sourceforge.peers.sip.core.useragent.handlers;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Hashtable;
-import java.util.TimerTask;
+import java.util.List;
 import net.sourceforge.peers.Config;
 import net.sourceforge.peers.Logger;
-import net.sourceforge.peers.Timer;
+import net.sourceforge.peers.TimingWheel;
 import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.core.useragent.AbstractUserAgent;
+import net.sourceforge.peers.sip.core.useragent.CallFutures;
 import net.sourceforge.peers.sip.core.useragent.InitialRequestManager;
 import net.sourceforge.peers.sip.core.useragent.RequestManager;
 import net.sourceforge.peers.sip.core.useragent.SipListener;
@@ -43,22 +43,30 @@ import net.sourceforge.peers.sip.transaction.ClientTransactionUser;
 import net.sourceforge.peers.sip.transaction.NonInviteClientTransaction;
 import net.sourceforge.peers.sip.transaction.Transaction;
 import net.sourceforge.peers.sip.transaction.TransactionManager;
+import net.sourceforge.peers.sip.transport.KeepAliveListener;
+import net.sourceforge.peers.sip.transport.RawSipMessage;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
+import net.sourceforge.peers.sip.transport.SipTarget;
+import net.sourceforge.peers.sip.transport.SipTransportConnection;
 import net.sourceforge.peers.sip.transport.TransportManager;
 
 public class RegisterHandler extends MethodHandler
-        implements ClientTransactionUser {
+        implements ClientTransactionUser, KeepAliveListener {
 
     public static final int REFRESH_MARGIN = 10; // seconds
 
     private InitialRequestManager initialRequestManager;
 
-    private Timer timer;
+    private TimingWheel.Timeout refreshTimeout;
 
     private String requestUriStr;
     private String profileUriStr;
     private String callIDStr;
+    // destination of register requests
+    private SipURI registrarUri;
+    private InetAddress registrarInetAddress;
+    private int registrarPort;
     
     //FIXME should be on a profile based context
     private boolean unregisterInvoked;
@@ -78,33 +86,31 @@ public class RegisterHandler extends MethodHandler
         SipHeaders sipHeaders = sipRequest.getSipHeaders();
         SipURI destinationUri = RequestManager.getDestinationUri(sipRequest,
                 logger);
-        int port = destinationUri.getPort();
-        if (port == SipURI.DEFAULT_PORT) {
-            port = RFC3261.TRANSPORT_DEFAULT_PORT;
-        }
         //TODO if header route is present, addrspec = toproute.nameaddress.addrspec
-        String transport = RFC3261.TRANSPORT_UDP;
-        Hashtable<String, String> params = destinationUri.getUriParameters();
-        if (params != null) {
-            String reqUriTransport = params.get(RFC3261.PARAM_TRANSPORT);
-            if (reqUriTransport != null) {
-                transport = reqUriTransport; 
-            }
-        }
         SipURI sipUri = userAgent.getConfig().getOutboundProxy();
         if (sipUri == null) {
             sipUri = destinationUri;
         }
-        InetAddress inetAddress;
+        List<SipTarget> targets;
         try {
-            inetAddress = InetAddress.getByName(sipUri.getHost());
+            targets = transportManager.getSipServerLocator().locate(sipUri);
         } catch (UnknownHostException e) {
             throw new SipUriSyntaxException("unknown host: "
                     + sipUri.getHost(), e);
         }
+        if (userAgent.getConfig().getOutboundProxy() != null) {
+            // all incoming traffic comes from the proxy
+            for (SipTarget target: targets) {
+                transportManager.getSourceRateLimiter().addExemptAddress(
+                        target.getInetAddress());
+            }
+        }
+        registrarUri = sipUri;
+        // updated if the registrar answering is another target
+        registrarInetAddress = targets.get(0).getInetAddress();
+        registrarPort = targets.get(0).getPort();
         ClientTransaction clientTransaction = transactionManager
-            .createClientTransaction(sipRequest, inetAddress, port,
-                    transport, null, this);
+            .createClientTransaction(sipRequest, targets, null, this);
         //TODO 10.2
         SipHeaderFieldValue to = sipHeaders.get(
                 new SipHeaderFieldName(RFC3261.HDR_TO));
@@ -125,11 +131,23 @@ public class RegisterHandler extends MethodHandler
     }
 
     public void unregister() {
-        timer.cancel();
+        if (refreshTimeout != null) {
+            refreshTimeout.cancel();
+        }
         unregisterInvoked = true;
         challenged = false;
     }
 
+    /**
+     * Cancels the refresh, needed when the timer outlives the user agent.
+     */
+    public synchronized void closeTimers() {
+        if (refreshTimeout != null) {
+            refreshTimeout.cancel();
+            refreshTimeout = null;
+        }
+    }
+
     //////////////////////////////////////////////////////////
     // ClientTransactionUser methods
     //////////////////////////////////////////////////////////
@@ -180,10 +198,21 @@ public class RegisterHandler extends MethodHandler
                     } else { // received != via ip address
                         try {
                             InetAddress receivedInetAddress =
-                                InetAddress.getByName(received);
+                                transportManager.getAddressResolver()
+                                .getByName(received);
                             Config config = userAgent.getConfig();
                             config.setPublicInetAddress(receivedInetAddress);
-                            userAgent.register();
+                            if (userAgent.getPeersRuntime() != null) {
+                                // Via and Contact are built by the shared
+                                // transport from the runtime config
+                                userAgent.getPeersRuntime().getConfig()
+                                    .setPublicInetAddress(receivedInetAddress);
+                            }
+                            // same Call-ID, pending registration futures
+                            // match the new REGISTER
+                            initialRequestManager.createInitialRequest(
+                                    requestUriStr, RFC3261.METHOD_REGISTER,
+                                    profileUriStr, callIDStr);
                         } catch (UnknownHostException e) {
                             notifyListener(sipResponse);
                             logger.error(e.getMessage(), e);
@@ -220,6 +249,12 @@ public class RegisterHandler extends MethodHandler
         // 2. if request was not an unregister, extract contact and expires,
         //    and start register refresh timer
         // 3. notify sip listener of register success event.
+        if (transaction instanceof NonInviteClientTransaction) {
+            SipTarget target =
+                ((NonInviteClientTransaction)transaction).getTarget();
+            registrarInetAddress = target.getInetAddress();
+            registrarPort = target.getPort();
+        }
         SipRequest sipRequest = transaction.getRequest();
         SipHeaderFieldName contactName = new SipHeaderFieldName(
                 RFC3261.HDR_CONTACT);
@@ -234,10 +269,9 @@ public class RegisterHandler extends MethodHandler
             // in seconds. Thus the binding must be refreshed before it expires.
             SipHeaders sipHeaders = sipResponse.getSipHeaders();
             SipHeaderFieldValue responseContact = sipHeaders.get(contactName);
-            if (responseContact == null) {
-                return;
-            }
-            expires = responseContact.getParam(expiresParam);
+            // no binding returned, refreshed as without expires
+            expires = responseContact == null ? null
+                    : responseContact.getParam(expiresParam);
         	// patch mobicents simple application
             registered = true;
             int delay = -1;
@@ -248,12 +282,7 @@ public class RegisterHandler extends MethodHandler
             	if (delay == -1) {
             		delay = Integer.parseInt(expires) - REFRESH_MARGIN;
             	}
-                if (timer != null) {
-                    timer.cancel();
-                }
-                timer = new Timer(getClass().getSimpleName()
-                        + " refresh timer");
-                timer.schedule(new RefreshTimerTask(), delay * 1000);
+                scheduleRefresh(delay * 1000);
             }
         }
         SipListener sipListener = userAgent.getSipListener();
@@ -263,10 +292,17 @@ public class RegisterHandler extends MethodHandler
     }
 
     public void transactionTimeout(ClientTransaction clientTransaction) {
+        // the transaction has already tried every registrar target
         SipListener sipListener = userAgent.getSipListener();
         if (sipListener != null) {
             sipListener.registerFailed(null);
         }
+        CallFutures callFutures = userAgent.getCallFutures();
+        if (callFutures != null) {
+            callFutures.registerTimedOut(
+                    ((NonInviteClientTransaction)clientTransaction)
+                    .getRequest());
+        }
     }
 
     public void transactionTransportError() {
@@ -276,12 +312,51 @@ public class RegisterHandler extends MethodHandler
     public boolean isRegistered() {
         return registered;
     }
+
+    //////////////////////////////////////////////////////////
+    // KeepAliveListener methods
+    //////////////////////////////////////////////////////////
+
+    /**
+     * The binding may have been lost with the flow (NAT rebinding, server
+     * restart), register again without waiting for the refresh.
+     */
+    public synchronized void flowFailed(
+            SipTransportConnection sipTransportConnection) {
+        if (!registered || unregisterInvoked
+                || sipTransportConnection.getRemotePort() != registrarPort
+                || !sipTransportConnection.getRemoteInetAddress().equals(
+                        registrarInetAddress)) {
+            return;
+        }
+        logger.info("registrar flow failed, registering again");
+        scheduleRefresh(0);
+    }
+
+    /**
+     * The timing wheel may be shared by many user agents, the refresh is
+     * run on the worker of the registration Call-ID.
+     */
+    private void scheduleRefresh(long delay) {
+        if (refreshTimeout != null) {
+            refreshTimeout.cancel();
+        }
+        refreshTimeout = transactionManager.getTimingWheel().schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        transportManager.getSipWorkerPool().execute(
+                                RawSipMessage.getShardKey(callIDStr),
+                                new RefreshTimerTask());
+                    }
+                }, delay);
+    }
     
     //////////////////////////////////////////////////////////
     // TimerTask
     //////////////////////////////////////////////////////////
 
-    class RefreshTimerTask extends TimerTask {
+    class RefreshTimerTask implements Runnable {
         @Override
         public void run() {
             try {
@@ -19,16 +19,105 @@
 
 package net.sourceforge.peers.sip.syntaxencoding;
 
+import java.nio.ByteBuffer;
+
+import net.sourceforge.peers.sip.RFC3261;
+
 public class SipHeader {
 
     private SipHeaderFieldName name;
     private SipHeaderFieldValue value;
+
+    // lazy header: raw value ranges in source, one range per header line,
+    // source is released once the value has been materialized
+    private byte[] source;
+    private int[] rawRanges;
+    private int rawCount;
+    // headers this header belongs to, told of value changes
+    private SipHeaders owner;
     
     SipHeader(SipHeaderFieldName name, SipHeaderFieldValue value) {
         super();
         this.name = name;
         this.value = value;
     }
+
+    SipHeader(SipHeaderFieldName name, byte[] source, int start, int end) {
+        super();
+        this.name = name;
+        this.source = source;
+        rawRanges = new int[4];
+        addRaw(start, end);
+    }
+
+    synchronized void addRaw(int start, int end) {
+        if (rawCount * 2 == rawRanges.length) {
+            int[] newRanges = new int[rawRanges.length * 2];
+            System.arraycopy(rawRanges, 0, newRanges, 0, rawRanges.length);
+            rawRanges = newRanges;
+        }
+        rawRanges[rawCount * 2] = start;
+        rawRanges[rawCount * 2 + 1] = end;
+        ++rawCount;
+    }
+
+    synchronized boolean isRaw() {
+        return source != null;
+    }
+
+    /**
+     * Writes the value as received if it has never been accessed. Checked
+     * and copied under the same lock, as another thread may parse the value
+     * meanwhile.
+     * 
+     * @return false if the value has been accessed, nothing is written
+     */
+    synchronized boolean putRawValueIfRaw(ByteBuffer buffer) {
+        if (source == null) {
+            return false;
+        }
+        for (int i = 0; i < rawCount; ++i) {
+            if (i > 0) {
+                buffer.put(SipSerializer.VALUE_SEPARATOR);
+            }
+            buffer.put(source, rawRanges[i * 2],
+                    rawRanges[i * 2 + 1] - rawRanges[i * 2]);
+        }
+        return true;
+    }
+
+    synchronized void setOwner(SipHeaders owner) {
+        this.owner = owner;
+        if (value != null) {
+            value.attach(owner);
+        }
+    }
+
+    synchronized void removed() {
+        if (value != null && owner != null) {
+            value.detach(owner);
+        }
+        owner = null;
+    }
+
+    /**
+     * Appends the value as received if it has never been accessed.
+     * 
+     * @return false if the value has been accessed, nothing is appended
+     */
+    synchronized boolean appendRawValueIfRaw(StringBuffer buf) {
+        if (source == null) {
+            return false;
+        }
+        for (int i = 0; i < rawCount; ++i) {
+            if (i > 0) {
+                buf.append(RFC3261.HEADER_SEPARATOR).append(' ');
+            }
+            buf.append(SipParser.string(source, rawRanges[i * 2],
+                    rawRanges[i * 2 + 1]));
+        }
+        return true;
+    }
     
     @Override
     public boolean equals(Object obj) {
@@ -43,12 +132,40 @@ public class SipHeader {
         return name;
     }
 
-    public SipHeaderFieldValue getValue() {
+    public synchronized SipHeaderFieldValue getValue() {
+        if (source != null) {
+            // values are parsed on first access, as an eager parser would
+            // have done, line by line
+            for (int i = 0; i < rawCount; ++i) {
+                SipHeaderFieldValue lineValue = SipParser.headerValue(name,
+                        SipParser.string(source, rawRanges[i * 2],
+                                rawRanges[i * 2 + 1]));
+                value = i == 0 ? lineValue
+                        : SipHeaders.merge(value, lineValue);
+            }
+            source = null;
+            rawRanges = null;
+            // same content as the raw value, only later changes count
+            if (owner != null) {
+                value.attach(owner);
+            }
+        }
         return value;
     }
 
-    public void setValue(SipHeaderFieldValue value) {
+    public synchronized void setValue(SipHeaderFieldValue value) {
+        if (owner != null) {
+            if (this.value != null) {
+                this.value.detach(owner);
+            }
+            value.attach(owner);
+        }
         this.value = value;
+        source = null;
+        rawRanges = null;
+        if (owner != null) {
+            owner.modified();
+        }
     }
     
 }
@@ -41,6 +41,23 @@ public class SipHeaderFieldMultiValue extends SipHeaderFieldValue {
     public List<SipHeaderFieldValue> getValues() {
         return values;
     }
+
+    // a change of any value is a change of the headers holding the list
+    @Override
+    void attach(SipHeaders headers) {
+        super.attach(headers);
+        for (SipHeaderFieldValue value: values) {
+            value.attach(headers);
+        }
+    }
+
+    @Override
+    void detach(SipHeaders headers) {
+        super.detach(headers);
+        for (SipHeaderFieldValue value: values) {
+            value.detach(headers);
+        }
+    }
     
     @Override
     public String toString() {
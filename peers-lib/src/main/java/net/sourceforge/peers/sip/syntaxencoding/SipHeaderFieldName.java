@@ -19,42 +19,81 @@
 
 package net.sourceforge.peers.sip.syntaxencoding;
 
+import java.util.Locale;
+
 public class SipHeaderFieldName {
 
     private final static SipHeadersTable SIP_HEADER_TABLE =
         new SipHeadersTable();
 
-    private String name;
+    private final String name;
+    // index in SipHeaderFieldNames, -1 for unregistered names
+    private final int id;
+    // case insensitive, consistent with equals
+    private final int hash;
+    // "Name: " as written on the wire, computed on first serialization
+    private byte[] encoded;
 
+    /**
+     * Prefer {@link SipHeaderFieldNames} constants for registered names.
+     */
     public SipHeaderFieldName(String name) {
         super();
         if (name.length() == 1) {
-            this.name = SIP_HEADER_TABLE.getLongForm(name.charAt(0));
-        } else {
-            this.name = name;
+            String longForm = SIP_HEADER_TABLE.getLongForm(name.charAt(0));
+            if (longForm != null) {
+                name = longForm;
+            }
         }
+        this.name = name;
+        SipHeaderFieldName registered = SipHeaderFieldNames.lookup(name);
+        id = registered == null ? -1 : registered.id;
+        hash = name.toLowerCase(Locale.ENGLISH).hashCode();
+    }
+
+    SipHeaderFieldName(String name, int id) {
+        super();
+        this.name = name;
+        this.id = id;
+        hash = name.toLowerCase(Locale.ENGLISH).hashCode();
     }
 
     @Override
     public boolean equals(Object obj) {
-        if (obj == null) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SipHeaderFieldName)) {
             return false;
         }
-        String objName = ((SipHeaderFieldName)obj).getName();
-        if (name.equalsIgnoreCase(objName)) {
-            return true;
+        SipHeaderFieldName other = (SipHeaderFieldName)obj;
+        if (id >= 0 || other.id >= 0) {
+            return id == other.id;
         }
-        return false;
+        return hash == other.hash && name.equalsIgnoreCase(other.name);
     }
 
     @Override
     public int hashCode() {
-        return name.hashCode();
+        return hash;
     }
     
     public String getName() {
         return name;
     }
+
+    int getId() {
+        return id;
+    }
+
+    byte[] getEncoded() {
+        byte[] bytes = encoded;
+        if (bytes == null) {
+            bytes = SipSerializer.encode(name + ": ");
+            encoded = bytes;
+        }
+        return bytes;
+    }
     
     @Override
     public String toString() {
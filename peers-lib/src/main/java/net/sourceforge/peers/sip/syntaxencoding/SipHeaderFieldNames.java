@@ -0,0 +1,116 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.syntaxencoding;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+import net.sourceforge.peers.sip.RFC3261;
+
+/**
+ * Registry of canonical header names. Each registered name has a small
+ * integer id used by {@link SipHeaders} to index its table, those
+ * constants should be preferred to new {@link SipHeaderFieldName}
+ * instances in lookups.
+ */
+public final class SipHeaderFieldNames {
+
+    private static final HashMap<String, SipHeaderFieldName> REGISTRY =
+        new HashMap<String, SipHeaderFieldName>();
+
+    public static final SipHeaderFieldName ALLOW =
+        register(RFC3261.HDR_ALLOW);
+    public static final SipHeaderFieldName AUTHORIZATION =
+        register(RFC3261.HDR_AUTHORIZATION);
+    public static final SipHeaderFieldName CALLID =
+        register(RFC3261.HDR_CALLID);
+    public static final SipHeaderFieldName CONTACT =
+        register(RFC3261.HDR_CONTACT);
+    public static final SipHeaderFieldName CONTENT_ENCODING =
+        register(RFC3261.HDR_CONTENT_ENCODING);
+    public static final SipHeaderFieldName CONTENT_LENGTH =
+        register(RFC3261.HDR_CONTENT_LENGTH);
+    public static final SipHeaderFieldName CONTENT_TYPE =
+        register(RFC3261.HDR_CONTENT_TYPE);
+    public static final SipHeaderFieldName CSEQ =
+        register(RFC3261.HDR_CSEQ);
+    public static final SipHeaderFieldName EXPIRES =
+        register(RFC3261.HDR_EXPIRES);
+    public static final SipHeaderFieldName FROM =
+        register(RFC3261.HDR_FROM);
+    public static final SipHeaderFieldName MAX_FORWARDS =
+        register(RFC3261.HDR_MAX_FORWARDS);
+    public static final SipHeaderFieldName RECORD_ROUTE =
+        register(RFC3261.HDR_RECORD_ROUTE);
+    public static final SipHeaderFieldName PROXY_AUTHENTICATE =
+        register(RFC3261.HDR_PROXY_AUTHENTICATE);
+    public static final SipHeaderFieldName PROXY_AUTHORIZATION =
+        register(RFC3261.HDR_PROXY_AUTHORIZATION);
+    public static final SipHeaderFieldName RETRY_AFTER =
+        register(RFC3261.HDR_RETRY_AFTER);
+    public static final SipHeaderFieldName ROUTE =
+        register(RFC3261.HDR_ROUTE);
+    public static final SipHeaderFieldName SUBJECT =
+        register(RFC3261.HDR_SUBJECT);
+    public static final SipHeaderFieldName SUPPORTED =
+        register(RFC3261.HDR_SUPPORTED);
+    public static final SipHeaderFieldName TO =
+        register(RFC3261.HDR_TO);
+    public static final SipHeaderFieldName VIA =
+        register(RFC3261.HDR_VIA);
+    public static final SipHeaderFieldName WWW_AUTHENTICATE =
+        register(RFC3261.HDR_WWW_AUTHENTICATE);
+
+    /**
+     * Number of registered names, ids range from 0 to COUNT - 1.
+     */
+    public static final int COUNT = REGISTRY.size();
+
+    private SipHeaderFieldNames() {
+    }
+
+    private static SipHeaderFieldName register(String name) {
+        SipHeaderFieldName sipHeaderFieldName =
+            new SipHeaderFieldName(name, REGISTRY.size());
+        REGISTRY.put(name.toLowerCase(Locale.ENGLISH), sipHeaderFieldName);
+        return sipHeaderFieldName;
+    }
+
+    /**
+     * @return the canonical instance of a registered name, whatever its
+     * case, or null if the name is not registered
+     */
+    public static SipHeaderFieldName lookup(String name) {
+        return REGISTRY.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return the canonical instance of a registered name, or a new
+     * unregistered name
+     */
+    public static SipHeaderFieldName valueOf(String name) {
+        SipHeaderFieldName sipHeaderFieldName = lookup(name);
+        if (sipHeaderFieldName != null) {
+            return sipHeaderFieldName;
+        }
+        return new SipHeaderFieldName(name);
+    }
+
+}
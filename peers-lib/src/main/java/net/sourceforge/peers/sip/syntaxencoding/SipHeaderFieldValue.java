@@ -26,9 +26,17 @@ import net.sourceforge.peers.sip.RFC3261;
 
 public class SipHeaderFieldValue {
 
+    private static final SipHeaders[] NO_OWNERS = new SipHeaders[0];
+
     private String value;
     
     private HashMap<SipHeaderParamName, String> params;
+
+    // incremented on each change, lets holders of derived data detect it
+    private int modificationCount;
+    // headers holding this value, told of each change, usually only one
+    // but values copied from a message to another are shared
+    private SipHeaders[] owners = NO_OWNERS;
     
     public SipHeaderFieldValue(String value) {
         int startPos = value.indexOf(RFC3261.RIGHT_ANGLE_BRACKET);
@@ -70,10 +78,12 @@ public class SipHeaderFieldValue {
     
     public void addParam(SipHeaderParamName name, String value) {
         params.put(name, value);
+        modified();
     }
     
     public void removeParam(SipHeaderParamName name) {
         params.remove(name);
+        modified();
     }
     
     public String getValue() {
@@ -82,6 +92,43 @@ public class SipHeaderFieldValue {
 
     public void setValue(String value) {
         this.value = value;
+        modified();
+    }
+
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
+    void attach(SipHeaders headers) {
+        for (SipHeaders owner: owners) {
+            if (owner == headers) {
+                return;
+            }
+        }
+        SipHeaders[] newOwners = new SipHeaders[owners.length + 1];
+        System.arraycopy(owners, 0, newOwners, 0, owners.length);
+        newOwners[owners.length] = headers;
+        owners = newOwners;
+    }
+
+    void detach(SipHeaders headers) {
+        for (int i = 0; i < owners.length; ++i) {
+            if (owners[i] == headers) {
+                SipHeaders[] newOwners = new SipHeaders[owners.length - 1];
+                System.arraycopy(owners, 0, newOwners, 0, i);
+                System.arraycopy(owners, i + 1, newOwners, i,
+                        newOwners.length - i);
+                owners = newOwners;
+                return;
+            }
+        }
+    }
+
+    private void modified() {
+        ++modificationCount;
+        for (SipHeaders owner: owners) {
+            owner.modified();
+        }
     }
 
     @Override
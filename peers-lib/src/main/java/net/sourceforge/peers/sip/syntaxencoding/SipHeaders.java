@@ -20,6 +20,7 @@
 package net.sourceforge.peers.sip.syntaxencoding;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import net.sourceforge.peers.sip.RFC3261;
 
@@ -27,10 +28,18 @@ import net.sourceforge.peers.sip.RFC3261;
 
 public class SipHeaders {
     
+    // all headers, in message order
     private ArrayList<SipHeader> headers;
+    // registered names, indexed by id
+    private SipHeader[] indexed;
+    // unregistered names, in message order
+    private ArrayList<SipHeader> overflow;
+    // incremented on each change of a header or of a header value
+    private long modificationCount;
     
     public SipHeaders() {
         headers = new ArrayList<SipHeader>();
+        indexed = new SipHeader[SipHeaderFieldNames.COUNT];
     }
     
     /**
@@ -40,60 +49,155 @@ public class SipHeaders {
      * @param index -1 to add at the end
      */
     public void add(SipHeaderFieldName name, SipHeaderFieldValue value, int index) {
-        SipHeader header = new SipHeader(name, value);
-        if (headers.contains(header)) {
-            header =  headers.get(headers.indexOf(header));
-            SipHeaderFieldValue oldValue = header.getValue();
-            //TODO check is header can be multi valued
-            if (oldValue instanceof SipHeaderFieldMultiValue) {
-                SipHeaderFieldMultiValue oldMultiVal = (SipHeaderFieldMultiValue) oldValue;
-                oldMultiVal.getValues().add(value);
-            } else {
-                ArrayList<SipHeaderFieldValue> arr = new ArrayList<SipHeaderFieldValue>();
-                arr.add(oldValue);
-                arr.add(value);
-                header.setValue(new SipHeaderFieldMultiValue(arr));
-            }
+        SipHeader header = find(name);
+        if (header != null) {
+            header.setValue(merge(header.getValue(), value));
         } else {
-            if (index == -1) {
-                headers.add(header);
-            } else {
-                headers.add(index, header);
-            }
+            insert(new SipHeader(name, value), index);
         }
     }
     
     public void add(SipHeaderFieldName name, SipHeaderFieldValue value) {
         add(name, value, -1);
     }
+
+    /**
+     * Replaces the value of a header, or adds it at the end.
+     */
+    public void set(SipHeaderFieldName name, SipHeaderFieldValue value) {
+        SipHeader header = find(name);
+        if (header != null) {
+            header.setValue(value);
+        } else {
+            insert(new SipHeader(name, value), -1);
+        }
+    }
+
+    /**
+     * Adds a header which value will only be parsed on first access.
+     * 
+     * @param source message bytes, must not be modified afterwards
+     * @param start first byte of the trimmed value
+     * @param end index following the last byte of the value
+     */
+    void addRaw(SipHeaderFieldName name, byte[] source, int start, int end) {
+        SipHeader existing = find(name);
+        if (existing == null) {
+            insert(new SipHeader(name, source, start, end), -1);
+        } else if (existing.isRaw()) {
+            existing.addRaw(start, end);
+        } else {
+            SipHeader header = new SipHeader(name, source, start, end);
+            existing.setValue(merge(existing.getValue(), header.getValue()));
+        }
+    }
+
+    private SipHeader find(SipHeaderFieldName name) {
+        int id = name.getId();
+        if (id >= 0) {
+            return indexed[id];
+        }
+        if (overflow != null) {
+            for (SipHeader header: overflow) {
+                if (name.equals(header.getName())) {
+                    return header;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void insert(SipHeader header, int index) {
+        ++modificationCount;
+        header.setOwner(this);
+        if (index == -1) {
+            headers.add(header);
+        } else {
+            headers.add(index, header);
+        }
+        int id = header.getName().getId();
+        if (id >= 0) {
+            indexed[id] = header;
+        } else {
+            if (overflow == null) {
+                overflow = new ArrayList<SipHeader>();
+            }
+            overflow.add(header);
+        }
+    }
+
+    static SipHeaderFieldValue merge(SipHeaderFieldValue oldValue,
+            SipHeaderFieldValue value) {
+        //TODO check is header can be multi valued
+        if (oldValue instanceof SipHeaderFieldMultiValue) {
+            SipHeaderFieldMultiValue oldMultiVal = (SipHeaderFieldMultiValue) oldValue;
+            oldMultiVal.getValues().add(value);
+            return oldMultiVal;
+        }
+        ArrayList<SipHeaderFieldValue> arr = new ArrayList<SipHeaderFieldValue>();
+        arr.add(oldValue);
+        arr.add(value);
+        return new SipHeaderFieldMultiValue(arr);
+    }
     
     public void remove(SipHeaderFieldName name) {
-        headers.remove(new SipHeader(name, null));
+        SipHeader header = find(name);
+        if (header == null) {
+            return;
+        }
+        headers.remove(header);
+        header.removed();
+        ++modificationCount;
+        int id = name.getId();
+        if (id >= 0) {
+            indexed[id] = null;
+        } else {
+            overflow.remove(header);
+        }
     }
     
     public boolean contains(SipHeaderFieldName name) {
-        return headers.contains(new SipHeader(name, null));
+        return find(name) != null;
     }
     
     public SipHeaderFieldValue get(SipHeaderFieldName name) {
-        int index = headers.indexOf(new SipHeader(name, null));
-        if (index < 0) {
+        SipHeader header = find(name);
+        if (header == null) {
             return null;
         }
-        return headers.get(index).getValue();
+        return header.getValue();
     }
     
     public int getCount() {
         return headers.size();
     }
 
+    /**
+     * @return a number which changes whenever a header is added, removed
+     * or modified, including parameters of header values
+     */
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    void modified() {
+        ++modificationCount;
+    }
+
+    List<SipHeader> getHeaders() {
+        return headers;
+    }
+
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
         for (SipHeader header : headers) {
             buf.append(header.getName().toString());
             buf.append(": ");
-            buf.append(header.getValue());
+            // never accessed values are serialized as received
+            if (!header.appendRawValueIfRaw(buf)) {
+                buf.append(header.getValue());
+            }
             buf.append(RFC3261.CRLF);
         }
         return buf.toString();
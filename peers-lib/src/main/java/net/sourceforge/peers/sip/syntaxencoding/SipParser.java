@@ -19,11 +19,14 @@
 
 package net.sourceforge.peers.sip.syntaxencoding;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import net.sourceforge.peers.sip.RFC3261;
@@ -31,159 +34,357 @@ import net.sourceforge.peers.sip.transport.SipMessage;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
 
-
+/**
+ * SIP message parser working directly on bytes. The parser holds no state
+ * between calls: a single instance can be shared and used concurrently by
+ * any number of threads.
+ */
 public class SipParser {
 
-    private BufferedReader reader;
-    
     private final static int BUFF_SIZE = 1024;
-    
-    private List<SipHeaderFieldName> singleValueHeaders;
+
+    private final static byte CR = '\r';
+    private final static byte LF = '\n';
+    private final static byte SP = ' ';
+    private final static byte HT = '\t';
+    private final static byte COLON = ':';
+    private final static byte COMMA = ',';
+
+    private final static Charset CHARSET = Charset.forName("UTF-8");
+
+    private final static List<SipHeaderFieldName> SINGLE_VALUE_HEADERS =
+        Collections.unmodifiableList(Arrays.asList(
+            SipHeaderFieldNames.WWW_AUTHENTICATE,
+            SipHeaderFieldNames.AUTHORIZATION,
+            SipHeaderFieldNames.PROXY_AUTHENTICATE,
+            SipHeaderFieldNames.PROXY_AUTHORIZATION,
+            SipHeaderFieldNames.SUPPORTED,
+            SipHeaderFieldNames.SUBJECT));
+
+    private final boolean lazyHeaders;
 
     public SipParser() {
-        singleValueHeaders = new ArrayList<SipHeaderFieldName>();
-        singleValueHeaders.add(new SipHeaderFieldName(
-                RFC3261.HDR_WWW_AUTHENTICATE));
-        singleValueHeaders.add(new SipHeaderFieldName(
-                RFC3261.HDR_AUTHORIZATION));
-        singleValueHeaders.add(new SipHeaderFieldName(
-                RFC3261.HDR_PROXY_AUTHENTICATE));
-        singleValueHeaders.add(new SipHeaderFieldName(
-                RFC3261.HDR_PROXY_AUTHORIZATION));
-        singleValueHeaders.add(new SipHeaderFieldName(
-                RFC3261.HDR_SUPPORTED));
-        singleValueHeaders.add(new SipHeaderFieldName(
-                RFC3261.HDR_SUBJECT));
-    }
-
-    public synchronized SipMessage parse(InputStream in)
+        this(false);
+    }
+
+    /**
+     * @param lazyHeaders if true, header values are not parsed with the
+     * message, only their position is recorded. Each value is parsed on
+     * first access, headers never accessed are serialized from the
+     * received bytes.
+     */
+    public SipParser(boolean lazyHeaders) {
+        this.lazyHeaders = lazyHeaders;
+    }
+
+    public SipMessage parse(InputStream in)
             throws IOException, SipParserException {
-        
-        InputStreamReader inputStreamReader = new InputStreamReader(in);
-        reader = new BufferedReader(inputStreamReader);
-        
-        String startLine = reader.readLine();
-        while (startLine == null || startLine.equals("")) {
-            startLine = reader.readLine();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFF_SIZE);
+        byte[] buff = new byte[BUFF_SIZE];
+        int read;
+        while ((read = in.read(buff)) != -1) {
+            out.write(buff, 0, read);
         }
-        SipMessage sipMessage;
-        if (startLine.toUpperCase().startsWith(RFC3261.DEFAULT_SIP_VERSION)) {
-            sipMessage = parseSipResponse(startLine);
+        byte[] bytes = out.toByteArray();
+        return parse(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Parses the remaining bytes of a buffer. The buffer position is not
+     * modified.
+     */
+    public SipMessage parse(ByteBuffer byteBuffer) throws SipParserException {
+        if (byteBuffer.hasArray()) {
+            return parse(byteBuffer.array(),
+                    byteBuffer.arrayOffset() + byteBuffer.position(),
+                    byteBuffer.remaining());
         }
-        else {
-            sipMessage = parseSipRequest(startLine);
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.duplicate().get(bytes);
+        return parse(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Parses a message from a buffer range. The range is only read during
+     * this call, the returned message does not reference the buffer.
+     */
+    public SipMessage parse(byte[] buffer, int offset, int length)
+            throws SipParserException {
+        if (lazyHeaders) {
+            // header values reference the message bytes until accessed,
+            // they must outlive the caller buffer
+            byte[] source = new byte[length];
+            System.arraycopy(buffer, offset, source, 0, length);
+            buffer = source;
+            offset = 0;
         }
-        parseHeaders(sipMessage);
-        parseBody(sipMessage);
+        return parseRange(buffer, offset, length);
+    }
+
+    /**
+     * Parses a whole array handed over by the caller, without copying it:
+     * with lazy headers, the returned message references the array, which
+     * must not be modified afterwards.
+     */
+    public SipMessage parseOwned(byte[] message) throws SipParserException {
+        return parseRange(message, 0, message.length);
+    }
+
+    private SipMessage parseRange(byte[] buffer, int offset, int length)
+            throws SipParserException {
+        int end = offset + length;
+        int pos = offset;
+        while (pos < end && (buffer[pos] == CR || buffer[pos] == LF)) {
+            ++pos;
+        }
+        if (pos == end) {
+            throw new SipParserException("empty message");
+        }
+        int lineEnd = lineEnd(buffer, pos, end);
+        SipMessage sipMessage;
+        if (startsWithSipVersion(buffer, pos, lineEnd)) {
+            sipMessage = parseSipResponse(buffer, pos, lineEnd);
+        } else {
+            sipMessage = parseSipRequest(buffer, pos, lineEnd);
+        }
+        pos = nextLine(buffer, lineEnd, end);
+        pos = parseHeaders(sipMessage, buffer, pos, end);
+        parseBody(sipMessage, buffer, pos, end);
         return sipMessage;
     }
-    
-    private SipRequest parseSipRequest(String startLine) throws SipParserException {
-        String[] params = startLine.split(" ");
-        if (params.length != 3) {
+
+    private SipRequest parseSipRequest(byte[] buffer, int start, int end)
+            throws SipParserException {
+        // request line: method SP request-uri SP sip-version
+        int firstSpace = indexOf(buffer, start, end, SP);
+        int secondSpace = firstSpace < 0 ? -1
+                : indexOf(buffer, firstSpace + 1, end, SP);
+        if (secondSpace < 0) {
+            throw new SipParserException("invalid request line");
+        }
+        int versionEnd = end;
+        while (versionEnd > secondSpace + 1
+                && buffer[versionEnd - 1] == SP) {
+            --versionEnd;
+        }
+        if (firstSpace == start || secondSpace == firstSpace + 1
+                || indexOf(buffer, secondSpace + 1, versionEnd, SP) > -1) {
             throw new SipParserException("invalid request line");
         }
-        if (!RFC3261.DEFAULT_SIP_VERSION.equals(params[2].toUpperCase())) {
+        if (!isSipVersion(buffer, secondSpace + 1, versionEnd)) {
             throw new SipParserException("unsupported SIP version");
         }
         SipURI requestUri;
         try {
-            requestUri = new SipURI(params[1]);
+            requestUri = new SipURI(string(buffer, firstSpace + 1,
+                    secondSpace));
         } catch (SipUriSyntaxException e) {
             throw new SipParserException(e);
         }
-        return new SipRequest(params[0], requestUri);
+        return new SipRequest(string(buffer, start, firstSpace), requestUri);
     }
-    
-    private SipResponse parseSipResponse(String startLine) throws SipParserException {
-        String[] params = startLine.split(" ");
-        if (params.length < 3) {
+
+    private SipResponse parseSipResponse(byte[] buffer, int start, int end)
+            throws SipParserException {
+        // status line: sip-version SP status-code SP reason-phrase
+        int firstSpace = indexOf(buffer, start, end, SP);
+        int secondSpace = firstSpace < 0 ? -1
+                : indexOf(buffer, firstSpace + 1, end, SP);
+        if (secondSpace < 0 || secondSpace + 1 == end) {
             throw new SipParserException("incorrect status line");
         }
-        if (!RFC3261.DEFAULT_SIP_VERSION.equals(params[0].toUpperCase())) {
+        if (!isSipVersion(buffer, start, firstSpace)) {
             throw new SipParserException("unsupported SIP version");
         }
-        StringBuffer buf = new StringBuffer();
-        for (int i = 2; i < params.length; ++i) {
-            buf.append(params[i]).append(" ");
+        int statusCode = 0;
+        for (int i = firstSpace + 1; i < secondSpace; ++i) {
+            byte b = buffer[i];
+            if (b < '0' || b > '9' || statusCode > 999) {
+                throw new SipParserException("invalid status code");
+            }
+            statusCode = statusCode * 10 + (b - '0');
         }
-        buf.deleteCharAt(buf.length() - 1);
-        return new SipResponse(Integer.parseInt(params[1]), buf.toString());
+        if (secondSpace == firstSpace + 1) {
+            throw new SipParserException("invalid status code");
+        }
+        return new SipResponse(statusCode,
+                string(buffer, secondSpace + 1, end));
     }
-    
-    private void parseHeaders(SipMessage sipMessage) throws IOException, SipParserException {
+
+    // returns the index of the first byte of the body
+    private int parseHeaders(SipMessage sipMessage, byte[] buffer, int pos,
+            int end) throws SipParserException {
         SipHeaders sipHeaders = new SipHeaders();
-        String headerLine = reader.readLine();
-        if (headerLine == null) {
-            throw new SipParserException(sipMessage.toString());
-        }
-        while (!"".equals(headerLine)) {
-            String nextLine = reader.readLine();
-            if (nextLine != null &&
-                    (nextLine.startsWith(" ") || nextLine.startsWith("\t"))) {
-                StringBuffer buf = new StringBuffer(headerLine);
-                while (nextLine != null &&
-                        (nextLine.startsWith(" ") || nextLine.startsWith("\t"))) {
-                    buf.append(' ');
-                    buf.append(nextLine.trim());
-                    nextLine = reader.readLine();
-                }
-                headerLine = buf.toString();
+        while (true) {
+            if (pos >= end) {
+                throw new SipParserException("no empty line after headers");
             }
-            if (headerLine == null) {
-                throw new SipParserException(sipMessage.toString());
+            int lineEnd = lineEnd(buffer, pos, end);
+            if (lineEnd == pos) {
+                pos = nextLine(buffer, lineEnd, end);
+                break;
             }
-            int columnPos = headerLine.indexOf(RFC3261.FIELD_NAME_SEPARATOR);
-            if (columnPos < 0) {
+            int colonPos = indexOf(buffer, pos, lineEnd, COLON);
+            if (colonPos < 0) {
                 throw new SipParserException("Invalid header line");
             }
-            SipHeaderFieldName sipHeaderName = new SipHeaderFieldName(
-                    headerLine.substring(0, columnPos).trim());
-            String value = headerLine.substring(columnPos + 1).trim();
-            SipHeaderFieldValue sipHeaderValue;
-            if (!singleValueHeaders.contains(sipHeaderName) &&
-                    value.indexOf(RFC3261.HEADER_SEPARATOR) > -1) {
-                String[] values = value.split(RFC3261.HEADER_SEPARATOR);
-                List<SipHeaderFieldValue> list =
-                    new ArrayList<SipHeaderFieldValue>();
-                for (String s: values) {
-                    list.add(new SipHeaderFieldValue(s));
+            SipHeaderFieldName sipHeaderName = SipHeaderFieldNames.valueOf(
+                    trimmedString(buffer, pos, colonPos));
+            int next = nextLine(buffer, lineEnd, end);
+            String value;
+            if (lazyHeaders && (next >= end
+                    || (buffer[next] != SP && buffer[next] != HT))) {
+                int valueStart = colonPos + 1;
+                int valueEnd = lineEnd;
+                while (valueStart < valueEnd && (buffer[valueStart] == SP
+                        || buffer[valueStart] == HT)) {
+                    ++valueStart;
+                }
+                while (valueEnd > valueStart && (buffer[valueEnd - 1] == SP
+                        || buffer[valueEnd - 1] == HT)) {
+                    --valueEnd;
                 }
-                sipHeaderValue = new SipHeaderFieldMultiValue(list);
+                sipHeaders.addRaw(sipHeaderName, buffer, valueStart,
+                        valueEnd);
+                pos = next;
+                continue;
+            }
+            if (next < end && (buffer[next] == SP || buffer[next] == HT)) {
+                // line folding, continuation lines are joined by a space
+                StringBuffer buf = new StringBuffer(
+                        string(buffer, colonPos + 1, lineEnd));
+                while (next < end
+                        && (buffer[next] == SP || buffer[next] == HT)) {
+                    int continuationEnd = lineEnd(buffer, next, end);
+                    buf.append(' ');
+                    buf.append(trimmedString(buffer, next, continuationEnd));
+                    next = nextLine(buffer, continuationEnd, end);
+                }
+                value = buf.toString().trim();
             } else {
-                sipHeaderValue = new SipHeaderFieldValue(value);
+                value = trimmedString(buffer, colonPos + 1, lineEnd);
             }
-            sipHeaders.add(sipHeaderName, sipHeaderValue);
-            headerLine = nextLine;
+            sipHeaders.add(sipHeaderName, headerValue(sipHeaderName, value));
+            pos = next;
         }
         sipMessage.setSipHeaders(sipHeaders);
+        return pos;
     }
-    
-    public void parseBody(SipMessage sipMessage) throws IOException, SipParserException {
+
+    static SipHeaderFieldValue headerValue(SipHeaderFieldName sipHeaderName,
+            String value) {
+        if (SINGLE_VALUE_HEADERS.contains(sipHeaderName)
+                || value.indexOf(COMMA) < 0) {
+            return new SipHeaderFieldValue(value);
+        }
+        List<SipHeaderFieldValue> list = new ArrayList<SipHeaderFieldValue>();
+        int length = value.length();
+        // trailing empty values are ignored
+        while (length > 0 && value.charAt(length - 1) == COMMA) {
+            --length;
+        }
+        int start = 0;
+        while (start <= length) {
+            int commaPos = value.indexOf(COMMA, start);
+            if (commaPos < 0 || commaPos > length) {
+                commaPos = length;
+            }
+            list.add(new SipHeaderFieldValue(value.substring(start,
+                    commaPos)));
+            start = commaPos + 1;
+        }
+        return new SipHeaderFieldMultiValue(list);
+    }
+
+    private void parseBody(SipMessage sipMessage, byte[] buffer, int pos,
+            int end) throws SipParserException {
         SipHeaderFieldValue contentLengthValue =
-            sipMessage.getSipHeaders().get(new SipHeaderFieldName(
-                    RFC3261.HDR_CONTENT_LENGTH));
+            sipMessage.getSipHeaders().get(SipHeaderFieldNames.CONTENT_LENGTH);
         if (contentLengthValue == null) {
             return;
         }
-        int length = Integer.parseInt(contentLengthValue.toString());
-        byte[] buff = new byte[BUFF_SIZE];
-        int i;
-        int count = 0;
-        while (count < length && (i = reader.read()) != -1) {
-            if (count >= buff.length) {
-                byte[] aux = new byte[buff.length + BUFF_SIZE];
-                System.arraycopy(buff, 0, aux, 0, buff.length);
-                buff = aux;
-                
+        int length;
+        try {
+            length = Integer.parseInt(contentLengthValue.toString());
+        } catch (NumberFormatException e) {
+            throw new SipParserException("invalid Content-Length", e);
+        }
+        if (length < 0) {
+            throw new SipParserException("invalid Content-Length");
+        }
+        // truncated bodies are accepted as received
+        int count = Math.min(length, end - pos);
+        byte[] body = new byte[count];
+        System.arraycopy(buffer, pos, body, 0, count);
+        sipMessage.setBody(body);
+    }
+
+    private static int lineEnd(byte[] buffer, int pos, int end) {
+        while (pos < end && buffer[pos] != CR && buffer[pos] != LF) {
+            ++pos;
+        }
+        return pos;
+    }
+
+    // skips one line terminator: CRLF, CR or LF
+    private static int nextLine(byte[] buffer, int lineEnd, int end) {
+        if (lineEnd < end && buffer[lineEnd] == CR) {
+            ++lineEnd;
+            if (lineEnd < end && buffer[lineEnd] == LF) {
+                ++lineEnd;
             }
-            buff[count++] = (byte)i;
+        } else if (lineEnd < end && buffer[lineEnd] == LF) {
+            ++lineEnd;
         }
-        if (count != buff.length) {
-            byte[] aux = new byte[count];
-            System.arraycopy(buff, 0, aux, 0, count);
-            buff = aux;
+        return lineEnd;
+    }
+
+    private static int indexOf(byte[] buffer, int start, int end, byte b) {
+        for (int i = start; i < end; ++i) {
+            if (buffer[i] == b) {
+                return i;
+            }
         }
-        sipMessage.setBody(buff);
+        return -1;
+    }
+
+    private static boolean startsWithSipVersion(byte[] buffer, int start,
+            int end) {
+        String version = RFC3261.DEFAULT_SIP_VERSION;
+        return end - start >= version.length()
+            && isSipVersion(buffer, start, start + version.length());
     }
+
+    private static boolean isSipVersion(byte[] buffer, int start, int end) {
+        String version = RFC3261.DEFAULT_SIP_VERSION;
+        if (end - start != version.length()) {
+            return false;
+        }
+        for (int i = 0; i < version.length(); ++i) {
+            int b = buffer[start + i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != version.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String string(byte[] buffer, int start, int end) {
+        return new String(buffer, start, end - start, CHARSET);
+    }
+
+    private static String trimmedString(byte[] buffer, int start, int end) {
+        while (start < end && (buffer[start] == SP || buffer[start] == HT)) {
+            ++start;
+        }
+        while (end > start && (buffer[end - 1] == SP
+                || buffer[end - 1] == HT)) {
+            --end;
+        }
+        return string(buffer, start, end);
+    }
+
 }
@@ -0,0 +1,139 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.syntaxencoding;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.transport.SipMessage;
+import net.sourceforge.peers.sip.transport.SipRequest;
+import net.sourceforge.peers.sip.transport.SipResponse;
+
+/**
+ * Writes SIP messages directly as bytes, without intermediate strings for
+ * header names and untouched received header values. Scratch buffers are
+ * pooled, so serializing a message only allocates its resulting array.
+ */
+public class SipSerializer {
+
+    public static final int BUFFER_SIZE = 4096;
+    public static final int MAX_POOLED_BUFFERS = 16;
+
+    static final byte[] VALUE_SEPARATOR = { ',', ' ' };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] SIP_VERSION =
+        encode(RFC3261.DEFAULT_SIP_VERSION);
+
+    private Queue<ByteBuffer> pool;
+
+    public SipSerializer() {
+        pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+
+    /**
+     * @return the message as sent on the wire, in a new array
+     */
+    public byte[] serialize(SipMessage sipMessage) {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        while (true) {
+            try {
+                serialize(sipMessage, buffer);
+                break;
+            } catch (BufferOverflowException e) {
+                // grown buffer is kept in the pool for further large messages
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        buffer.clear();
+        if (pool.size() < MAX_POOLED_BUFFERS) {
+            pool.offer(buffer);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the message at the buffer position. The buffer is cleared
+     * first.
+     * 
+     * @throws BufferOverflowException if the message does not fit
+     */
+    public void serialize(SipMessage sipMessage, ByteBuffer buffer) {
+        buffer.clear();
+        if (sipMessage instanceof SipRequest) {
+            SipRequest sipRequest = (SipRequest)sipMessage;
+            put(buffer, sipRequest.getMethod());
+            buffer.put((byte)' ');
+            put(buffer, sipRequest.getRequestUri().toString());
+            buffer.put((byte)' ');
+            buffer.put(SIP_VERSION);
+        } else {
+            SipResponse sipResponse = (SipResponse)sipMessage;
+            buffer.put(SIP_VERSION);
+            buffer.put((byte)' ');
+            put(buffer, String.valueOf(sipResponse.getStatusCode()));
+            buffer.put((byte)' ');
+            put(buffer, sipResponse.getReasonPhrase());
+        }
+        buffer.put(CRLF);
+        SipHeaders sipHeaders = sipMessage.getSipHeaders();
+        for (SipHeader header: sipHeaders.getHeaders()) {
+            buffer.put(header.getName().getEncoded());
+            if (!header.putRawValueIfRaw(buffer)) {
+                put(buffer, header.getValue().toString());
+            }
+            buffer.put(CRLF);
+        }
+        buffer.put(CRLF);
+        byte[] body = sipMessage.getBody();
+        if (body != null) {
+            buffer.put(body);
+        }
+    }
+
+    static byte[] encode(String string) {
+        return string.getBytes(UTF_8);
+    }
+
+    private static void put(ByteBuffer buffer, String string) {
+        int length = string.length();
+        for (int i = 0; i < length; ++i) {
+            char c = string.charAt(i);
+            if (c >= 0x80) {
+                // rare non ascii value
+                buffer.put(encode(string.substring(i)));
+                return;
+            }
+            buffer.put((byte)c);
+        }
+    }
+
+}
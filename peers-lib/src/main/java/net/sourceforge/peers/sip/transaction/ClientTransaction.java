@@ -24,6 +24,16 @@ import net.sourceforge.peers.sip.transport.SipResponse;
 public interface ClientTransaction {
 
     public void receivedResponse(SipResponse sipResponse);
+
+    /**
+     * A response matching this transaction has been received and not parsed.
+     * Once a final response has been received, a retransmission of this
+     * response can be handled without its content.
+     * 
+     * @return false if the response must be parsed and given to
+     *         {@link #receivedResponse(SipResponse)}
+     */
+    public boolean receivedRetransmission(int statusCode);
     public void start();
     public String getContact();
 }
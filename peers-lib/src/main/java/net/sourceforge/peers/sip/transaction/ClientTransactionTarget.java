@@ -0,0 +1,129 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transaction;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldNames;
+import net.sourceforge.peers.sip.transport.SipRequest;
+import net.sourceforge.peers.sip.transport.SipTarget;
+import net.sourceforge.peers.sip.transport.TransportManager;
+
+/**
+ * Destination of an INVITE or non-INVITE client transaction: the targets
+ * tried if it fails (RFC3263 4.3) and the T1 derived from the round-trip
+ * time measured to it.
+ */
+class ClientTransactionTarget {
+
+    private final SipTarget target;
+    // RFC3263 4.3 targets tried if this one fails
+    private List<SipTarget> nextTargets = Collections.emptyList();
+    // T1 derived from the round-trip time to the destination, in ms
+    private final long t1;
+    private long sentTime; // ns
+    private boolean rttSampled;
+
+    private TransportManager transportManager;
+    private TransactionManager transactionManager;
+    private Logger logger;
+
+    ClientTransactionTarget(SipTarget target,
+            TransportManager transportManager,
+            TransactionManager transactionManager, Logger logger) {
+        this.target = target;
+        this.transportManager = transportManager;
+        this.transactionManager = transactionManager;
+        this.logger = logger;
+        t1 = transactionManager.getRttEstimator().getT1(target);
+    }
+
+    SipTarget getTarget() {
+        return target;
+    }
+
+    long getT1() {
+        return t1;
+    }
+
+    void setNextTargets(List<SipTarget> nextTargets) {
+        this.nextTargets = nextTargets;
+    }
+
+    void requestSent() {
+        sentTime = System.nanoTime();
+    }
+
+    /**
+     * @return time since the request was sent, in milliseconds
+     */
+    long getElapsedTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentTime);
+    }
+
+    /**
+     * Gives the time to the first response to the RTT estimator, unless the
+     * request has been retransmitted.
+     */
+    void responseReceived(int nbRetrans) {
+        if (rttSampled) {
+            return;
+        }
+        rttSampled = true;
+        if (nbRetrans == 0) {
+            transactionManager.getRttEstimator().addSample(target,
+                    getElapsedTime());
+        }
+    }
+
+    /**
+     * The destination did not answer or could not be reached, other
+     * targets of the same server are preferred for a while.
+     */
+    void failed() {
+        transportManager.getSipServerLocator().blacklist(target);
+    }
+
+    /**
+     * Sends the request to the next target in a new client transaction,
+     * with a new branch (RFC3263 4.3).
+     * 
+     * @return false if there is no other target
+     */
+    boolean failOver(SipRequest request,
+            ClientTransactionUser transactionUser) {
+        if (nextTargets.isEmpty()) {
+            return false;
+        }
+        logger.info("no answer from " + target + ", trying "
+                + nextTargets.get(0));
+        // our Via is the only one, replaced by the new transaction
+        request.getSipHeaders().remove(SipHeaderFieldNames.VIA);
+        ClientTransaction clientTransaction =
+            transactionManager.createClientTransaction(request, nextTargets,
+                    null, transactionUser);
+        clientTransaction.start();
+        return true;
+    }
+
+}
@@ -21,9 +21,8 @@ package net.sourceforge.peers.sip.transaction;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.TimerTask;
 
-import net.sourceforge.peers.Timer;
+import net.sourceforge.peers.TimingWheel;
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.Utils;
@@ -35,6 +34,7 @@ import net.sourceforge.peers.sip.transport.MessageSender;
 import net.sourceforge.peers.sip.transport.SipClientTransportUser;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
+import net.sourceforge.peers.sip.transport.SipTarget;
 import net.sourceforge.peers.sip.transport.TransportManager;
 
 
@@ -55,12 +55,11 @@ public class InviteClientTransaction extends InviteTransaction
     private MessageSender messageSender;
     private int nbRetrans;
     private SipRequest ack;
-    private int remotePort;
-    private InetAddress remoteInetAddress;
+    final ClientTransactionTarget destination;
     
     InviteClientTransaction(String branchId, InetAddress inetAddress,
             int port, String transport, SipRequest sipRequest,
-            ClientTransactionUser transactionUser, Timer timer,
+            ClientTransactionUser transactionUser, TimingWheel timer,
             TransportManager transportManager,
             TransactionManager transactionManager, Logger logger) {
         super(branchId, timer, transportManager, transactionManager,
@@ -90,12 +89,13 @@ public class InviteClientTransaction extends InviteTransaction
         request = sipRequest;
         this.transactionUser = transactionUser;
         
-        remotePort = port;
-        remoteInetAddress = inetAddress;
+        destination = new ClientTransactionTarget(
+                new SipTarget(inetAddress, port, transport), transportManager,
+                transactionManager, logger);
         
         try {
             messageSender = transportManager.createClientTransport(
-                    request, remoteInetAddress, remotePort, transport);
+                    request, inetAddress, port, transport);
         } catch (IOException e) {
             logger.error("input/output error", e);
             transportError();
@@ -103,12 +103,15 @@ public class InviteClientTransaction extends InviteTransaction
 
     }
     
+    public SipTarget getTarget() {
+        return destination.getTarget();
+    }
+
     public void setState(InviteClientTransactionState state) {
         this.state.log(state);
         this.state = state;
         if(TERMINATED.equals(state)) {
-            //transactionManager.removeClientTransaction(branchId, method);
-            transactionManager = null;
+            transactionManager.transactionTerminated(this);
         }
     }
     
@@ -125,6 +128,12 @@ public class InviteClientTransaction extends InviteTransaction
 //            transportError();
 //        }
         
+        destination.requestSent();
+        if (messageSender == null) {
+            // transport could not be created
+            transportError();
+            return;
+        }
         try {
             messageSender.sendMessage(request);
         } catch (IOException e) {
@@ -135,14 +144,15 @@ public class InviteClientTransaction extends InviteTransaction
         
         if (RFC3261.TRANSPORT_UDP.equals(transport)) {
             //start timer A with value T1 for retransmission
-            timer.schedule(new TimerA(), RFC3261.TIMER_T1);
+            schedule(new TimerA(), destination.getT1());
         }
         
-        //TODO start timer B with value 64*T1 for transaction timeout
-        timer.schedule(new TimerB(), 64 * RFC3261.TIMER_T1);
+        //start timer B with value 64*T1 for transaction timeout
+        schedule(new TimerB(), getTimeout(destination.getT1()));
     }
     
     public synchronized void receivedResponse(SipResponse sipResponse) {
+        destination.responseReceived(nbRetrans);
         responses.add(sipResponse);
         // 17.1.1
         int statusCode = sipResponse.getStatusCode();
@@ -159,6 +169,16 @@ public class InviteClientTransaction extends InviteTransaction
         }
     }
     
+    public synchronized boolean receivedRetransmission(int statusCode) {
+        // 17.1.1.2 retransmitted final responses only trigger an ACK
+        if (state == COMPLETED && statusCode >= RFC3261.CODE_MIN_REDIR
+                && statusCode <= RFC3261.CODE_MAX) {
+            state.received300To699();
+            return true;
+        }
+        return false;
+    }
+
     public void transportError() {
         state.transportError();
     }
@@ -207,7 +227,8 @@ public class InviteClientTransaction extends InviteTransaction
             logger.error("input/output error", e);
             transportError();
         }
-        timer.schedule(new TimerA(), (long)Math.pow(2, nbRetrans) * RFC3261.TIMER_T1);
+        schedule(new TimerA(),
+                (long)Math.pow(2, nbRetrans) * destination.getT1());
     }
     
     public void requestTransportError(SipRequest sipRequest, Exception e) {
@@ -220,21 +241,21 @@ public class InviteClientTransaction extends InviteTransaction
         
     }
     
-    class TimerA extends TimerTask {
+    class TimerA implements Runnable {
         @Override
         public void run() {
             state.timerAFires();
         }
     }
     
-    class TimerB extends TimerTask {
+    class TimerB implements Runnable {
         @Override
         public void run() {
             state.timerBFires();
         }
     }
     
-    class TimerD extends TimerTask {
+    class TimerD implements Runnable {
         @Override
         public void run() {
             state.timerDFires();
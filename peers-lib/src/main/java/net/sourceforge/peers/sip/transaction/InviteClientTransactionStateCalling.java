@@ -47,10 +47,15 @@ public class InviteClientTransactionStateCalling extends InviteClientTransaction
     }
     
     private void timerBFiresOrTransportError() {
+        inviteClientTransaction.destination.failed();
         InviteClientTransactionState nextState = inviteClientTransaction.TERMINATED;
         inviteClientTransaction.setState(nextState);
-        inviteClientTransaction.transactionUser.transactionTimeout(
-                inviteClientTransaction);
+        if (!inviteClientTransaction.destination.failOver(
+                inviteClientTransaction.request,
+                inviteClientTransaction.transactionUser)) {
+            inviteClientTransaction.transactionUser.transactionTimeout(
+                    inviteClientTransaction);
+        }
     }
     
     @Override
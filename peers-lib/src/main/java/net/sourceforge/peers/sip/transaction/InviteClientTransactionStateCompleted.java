@@ -32,7 +32,7 @@ public class InviteClientTransactionStateCompleted extends
         if (RFC3261.TRANSPORT_UDP.equals(inviteClientTransaction.transport)) {
             delay = RFC3261.TIMER_INVITE_CLIENT_TRANSACTION;
         }
-        inviteClientTransaction.timer.schedule(inviteClientTransaction.new TimerD(), delay);
+        inviteClientTransaction.schedule(inviteClientTransaction.new TimerD(), delay);
     }
 
     @Override
@@ -20,9 +20,8 @@
 package net.sourceforge.peers.sip.transaction;
 
 import java.io.IOException;
-import java.util.TimerTask;
 
-import net.sourceforge.peers.Timer;
+import net.sourceforge.peers.TimingWheel;
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.transport.SipMessage;
@@ -51,7 +50,7 @@ public class InviteServerTransaction extends InviteTransaction
     
     InviteServerTransaction(String branchId, int port, String transport,
             SipResponse sipResponse, ServerTransactionUser serverTransactionUser,
-            SipRequest sipRequest, Timer timer, TransactionManager transactionManager,
+            SipRequest sipRequest, TimingWheel timer, TransactionManager transactionManager,
             TransportManager transportManager, Logger logger) {
         super(branchId, timer, transportManager, transactionManager, logger);
         
@@ -88,7 +87,10 @@ public class InviteServerTransaction extends InviteTransaction
     }
     
     public void receivedRequest(SipRequest sipRequest) {
-        String method = sipRequest.getMethod();
+        receivedRetransmission(sipRequest.getMethod());
+    }
+
+    public void receivedRetransmission(String method) {
         if (RFC3261.METHOD_INVITE.equals(method)) {
             state.receivedInvite();
         } else {
@@ -122,6 +124,9 @@ public class InviteServerTransaction extends InviteTransaction
     public void setState(InviteServerTransactionState state) {
         this.state.log(state);
         this.state = state;
+        if (TERMINATED.equals(state)) {
+            transactionManager.transactionTerminated(this);
+        }
     }
 
     public void messageReceived(SipMessage sipMessage) {
@@ -129,18 +134,6 @@ public class InviteServerTransaction extends InviteTransaction
         
     }
     
-    void sendLastResponse() {
-        //sipServerTransport.sendResponse(responses.get(responses.size() - 1));
-        int nbOfResponses = responses.size();
-        if (nbOfResponses > 0) {
-            try {
-                transportManager.sendResponse(responses.get(nbOfResponses - 1));
-            } catch (IOException e) {
-                logger.error("input/output error", e);
-            }
-        }
-    }
-    
     public SipResponse getLastResponse() {
         int nbOfResponses = responses.size();
         if (nbOfResponses > 0) {
@@ -158,21 +151,21 @@ public class InviteServerTransaction extends InviteTransaction
 //        sipServerTransport.stop();
 //    }
     
-    class TimerG extends TimerTask {
+    class TimerG implements Runnable {
         @Override
         public void run() {
             state.timerGFires();
         }
     }
     
-    class TimerH extends TimerTask {
+    class TimerH implements Runnable {
         @Override
         public void run() {
             state.timerHFiresOrTransportError();
         }
     }
     
-    class TimerI extends TimerTask {
+    class TimerI implements Runnable {
         @Override
         public void run() {
             state.timerIFires();
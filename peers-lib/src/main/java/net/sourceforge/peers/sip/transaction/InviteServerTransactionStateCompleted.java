@@ -37,7 +37,7 @@ public class InviteServerTransactionStateCompleted extends
         inviteServerTransaction.sendLastResponse();
         long delay = (long)Math.pow(2,
                 ++inviteServerTransaction.nbRetrans) * RFC3261.TIMER_T1;
-        inviteServerTransaction.timer.schedule(
+        inviteServerTransaction.schedule(
                 inviteServerTransaction.new TimerG(),
                 Math.min(delay, RFC3261.TIMER_T2));
     }
@@ -59,7 +59,7 @@ public class InviteServerTransactionStateCompleted extends
         } else {
             delay = 0;
         }
-        inviteServerTransaction.timer.schedule(
+        inviteServerTransaction.schedule(
                 inviteServerTransaction.new TimerI(), delay);
     }
     
@@ -34,12 +34,10 @@ public class InviteServerTransactionStateConfirmed extends
         InviteServerTransactionState nextState =
             inviteServerTransaction.TERMINATED;
         inviteServerTransaction.setState(nextState);
-        // TODO destroy invite server transaction immediately
-        // (dereference it in transaction manager serverTransactions hashtable)
-        
+        // ACK retransmissions have been absorbed during timer I, no need
+        // to linger
         inviteServerTransaction.transactionManager.removeServerTransaction(
-                inviteServerTransaction.branchId,
-                inviteServerTransaction.method);
+                inviteServerTransaction);
     }
     
 }
@@ -57,10 +57,10 @@ public class InviteServerTransactionStateProceeding extends
         inviteServerTransaction.setState(nextState);
         inviteServerTransaction.sendLastResponse();
         if (RFC3261.TRANSPORT_UDP.equals(inviteServerTransaction.transport)) {
-            inviteServerTransaction.timer.schedule(
+            inviteServerTransaction.schedule(
                     inviteServerTransaction.new TimerG(), RFC3261.TIMER_T1);
         }
-        inviteServerTransaction.timer.schedule(
+        inviteServerTransaction.schedule(
                 inviteServerTransaction.new TimerH(), 64 * RFC3261.TIMER_T1);
     }
     
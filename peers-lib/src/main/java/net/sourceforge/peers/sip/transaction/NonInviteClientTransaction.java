@@ -21,9 +21,8 @@ package net.sourceforge.peers.sip.transaction;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.TimerTask;
 
-import net.sourceforge.peers.Timer;
+import net.sourceforge.peers.TimingWheel;
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldName;
@@ -33,6 +32,7 @@ import net.sourceforge.peers.sip.transport.MessageSender;
 import net.sourceforge.peers.sip.transport.SipClientTransportUser;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
+import net.sourceforge.peers.sip.transport.SipTarget;
 import net.sourceforge.peers.sip.transport.TransportManager;
 
 
@@ -52,12 +52,12 @@ public class NonInviteClientTransaction extends NonInviteTransaction
     private NonInviteClientTransactionState state;
     //private SipClientTransport sipClientTransport;
     private MessageSender messageSender;
-    private int remotePort;
-    private InetAddress remoteInetAddress;
+    final ClientTransactionTarget destination;
+    private TimingWheel.Timeout timerF;
     
     NonInviteClientTransaction(String branchId, InetAddress inetAddress,
             int port, String transport, SipRequest sipRequest,
-            ClientTransactionUser transactionUser, Timer timer,
+            ClientTransactionUser transactionUser, TimingWheel timer,
             TransportManager transportManager,
             TransactionManager transactionManager, Logger logger) {
         super(branchId, sipRequest.getMethod(), timer, transportManager,
@@ -85,12 +85,13 @@ public class NonInviteClientTransaction extends NonInviteTransaction
         request = sipRequest;
         this.transactionUser = transactionUser;
         
-        remotePort = port;
-        remoteInetAddress = inetAddress;
+        destination = new ClientTransactionTarget(
+                new SipTarget(inetAddress, port, transport), transportManager,
+                transactionManager, logger);
         
         try {
             messageSender = transportManager.createClientTransport(
-                    request, remoteInetAddress, remotePort, transport);
+                    request, inetAddress, port, transport);
         } catch (IOException e) {
             logger.error("input/output error", e);
             transportError();
@@ -98,9 +99,16 @@ public class NonInviteClientTransaction extends NonInviteTransaction
         //TODO send request
     }
     
+    public SipTarget getTarget() {
+        return destination.getTarget();
+    }
+
     public void setState(NonInviteClientTransactionState state) {
         this.state.log(state);
         this.state = state;
+        if (TERMINATED.equals(state)) {
+            transactionManager.transactionTerminated(this);
+        }
     }
 
     public void start() {
@@ -117,6 +125,12 @@ public class NonInviteClientTransaction extends NonInviteTransaction
 //            //e.printStackTrace();
 //            transportError();
 //        }
+        destination.requestSent();
+        if (messageSender == null) {
+            // transport could not be created
+            transportError();
+            return;
+        }
         try {
             messageSender.sendMessage(request);
         } catch (IOException e) {
@@ -126,12 +140,28 @@ public class NonInviteClientTransaction extends NonInviteTransaction
         
         if (RFC3261.TRANSPORT_UDP.equals(transport)) {
             //start timer E with value T1 for retransmission
-            timer.schedule(new TimerE(), RFC3261.TIMER_T1);
+            schedule(new TimerE(), destination.getT1());
         }
     
-        timer.schedule(new TimerF(), 64 * RFC3261.TIMER_T1);
+        timerF = schedule(new TimerF(), getTimeout(destination.getT1()));
     }
     
+    /**
+     * The target answered, it is alive but may be slow: timer F is pushed
+     * back to the standard 64 * T1 after the request. A T1 measured on a
+     * fast path only makes failover faster.
+     */
+    void extendTimeout() {
+        long timeout = 64 * RFC3261.TIMER_T1;
+        if (timerF == null || getTimeout(destination.getT1()) >= timeout) {
+            return;
+        }
+        if (timerF.cancel()) {
+            timerF = schedule(new TimerF(), Math.max(0,
+                    timeout - destination.getElapsedTime()));
+        }
+    }
+
     void sendRetrans(long delay) {
         //sipClientTransport.send(request);
         try {
@@ -140,7 +170,7 @@ public class NonInviteClientTransaction extends NonInviteTransaction
             logger.error("input/output error", e);
             transportError();
         }
-        timer.schedule(new TimerE(), delay);
+        schedule(new TimerE(), delay);
     }
     
     public void transportError() {
@@ -148,6 +178,7 @@ public class NonInviteClientTransaction extends NonInviteTransaction
     }
     
     public synchronized void receivedResponse(SipResponse sipResponse) {
+        destination.responseReceived(nbRetrans);
         responses.add(sipResponse);
         // 17.1.1
         int statusCode = sipResponse.getStatusCode();
@@ -161,6 +192,12 @@ public class NonInviteClientTransaction extends NonInviteTransaction
             logger.error("invalid response code");
         }
     }
+
+    public synchronized boolean receivedRetransmission(int statusCode) {
+        // 17.1.2.2 retransmitted final responses are absorbed
+        return state == COMPLETED && statusCode >= RFC3261.CODE_200_OK
+            && statusCode <= RFC3261.CODE_MAX;
+    }
     
     public void requestTransportError(SipRequest sipRequest, Exception e) {
         // TODO Auto-generated method stub
@@ -172,21 +209,21 @@ public class NonInviteClientTransaction extends NonInviteTransaction
         
     }
     
-    class TimerE extends TimerTask {
+    class TimerE implements Runnable {
         @Override
         public void run() {
             state.timerEFires();
         }
     }
     
-    class TimerF extends TimerTask {
+    class TimerF implements Runnable {
         @Override
         public void run() {
             state.timerFFires();
         }
     }
     
-    class TimerK extends TimerTask {
+    class TimerK implements Runnable {
         @Override
         public void run() {
             state.timerKFires();
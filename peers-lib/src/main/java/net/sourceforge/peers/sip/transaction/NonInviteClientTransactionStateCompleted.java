@@ -34,7 +34,7 @@ public class NonInviteClientTransactionStateCompleted extends
                 nonInviteClientTransaction.transport)) {
             delay = RFC3261.TIMER_T4;
         }
-        nonInviteClientTransaction.timer.schedule(
+        nonInviteClientTransaction.schedule(
                 nonInviteClientTransaction.new TimerK(), delay);
     }
 
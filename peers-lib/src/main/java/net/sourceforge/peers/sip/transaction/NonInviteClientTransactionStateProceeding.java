@@ -51,6 +51,8 @@ public class NonInviteClientTransactionStateProceeding extends
     }
     
     private void timerFFiresOrTransportError() {
+        // the target answered with a provisional response, it is alive:
+        // neither blacklisted nor replaced by the next one
         NonInviteClientTransactionState nextState = nonInviteClientTransaction.TERMINATED;
         nonInviteClientTransaction.setState(nextState);
         nonInviteClientTransaction.transactionUser.transactionTimeout(
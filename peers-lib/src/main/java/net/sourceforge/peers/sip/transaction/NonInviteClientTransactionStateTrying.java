@@ -37,7 +37,8 @@ public class NonInviteClientTransactionStateTrying extends
         NonInviteClientTransactionState nextState = nonInviteClientTransaction.TRYING;
         nonInviteClientTransaction.setState(nextState);
         long delay = (long)Math.pow(2,
-                ++nonInviteClientTransaction.nbRetrans) * RFC3261.TIMER_T1;
+                ++nonInviteClientTransaction.nbRetrans)
+                * nonInviteClientTransaction.destination.getT1();
         nonInviteClientTransaction.sendRetrans(Math.min(delay, RFC3261.TIMER_T2));
     }
 
@@ -52,16 +53,22 @@ public class NonInviteClientTransactionStateTrying extends
     }
     
     private void timerFFiresOrTransportError() {
+        nonInviteClientTransaction.destination.failed();
         NonInviteClientTransactionState nextState = nonInviteClientTransaction.TERMINATED;
         nonInviteClientTransaction.setState(nextState);
-        nonInviteClientTransaction.transactionUser.transactionTimeout(
-                nonInviteClientTransaction);
+        if (!nonInviteClientTransaction.destination.failOver(
+                nonInviteClientTransaction.request,
+                nonInviteClientTransaction.transactionUser)) {
+            nonInviteClientTransaction.transactionUser.transactionTimeout(
+                    nonInviteClientTransaction);
+        }
     }
     
     @Override
     public void received1xx() {
         NonInviteClientTransactionState nextState = nonInviteClientTransaction.PROCEEDING;
         nonInviteClientTransaction.setState(nextState);
+        nonInviteClientTransaction.extendTimeout();
         nonInviteClientTransaction.transactionUser.provResponseReceived(
                 nonInviteClientTransaction.getLastResponse(), nonInviteClientTransaction);
     }
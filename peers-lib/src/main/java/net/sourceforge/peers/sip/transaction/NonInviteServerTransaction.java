@@ -20,9 +20,8 @@
 package net.sourceforge.peers.sip.transaction;
 
 import java.io.IOException;
-import java.util.TimerTask;
 
-import net.sourceforge.peers.Timer;
+import net.sourceforge.peers.TimingWheel;
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.transport.SipRequest;
@@ -39,7 +38,6 @@ public class NonInviteServerTransaction extends NonInviteTransaction
     public final NonInviteServerTransactionState TERMINATED;
     
     protected ServerTransactionUser serverTransactionUser;
-    protected Timer timer;
     protected String transport;
     
     private NonInviteServerTransactionState state;
@@ -47,7 +45,7 @@ public class NonInviteServerTransaction extends NonInviteTransaction
     
     NonInviteServerTransaction(String branchId, int port, String transport,
             String method, ServerTransactionUser serverTransactionUser,
-            SipRequest sipRequest, Timer timer, TransportManager transportManager,
+            SipRequest sipRequest, TimingWheel timer, TransportManager transportManager,
             TransactionManager transactionManager, Logger logger) {
         super(branchId, method, timer, transportManager, transactionManager,
                 logger);
@@ -80,12 +78,19 @@ public class NonInviteServerTransaction extends NonInviteTransaction
     public void setState(NonInviteServerTransactionState state) {
         this.state.log(state);
         this.state = state;
+        if (TERMINATED.equals(state)) {
+            transactionManager.transactionTerminated(this);
+        }
     }
     
     public void receivedRequest(SipRequest sipRequest) {
         state.receivedRequest();
     }
 
+    public void receivedRetransmission(String method) {
+        state.receivedRequest();
+    }
+
     public void sendReponse(SipResponse sipResponse) {
         responses.add(sipResponse);
         int statusCode = sipResponse.getStatusCode();
@@ -96,18 +101,6 @@ public class NonInviteServerTransaction extends NonInviteTransaction
         }
     }
     
-    void sendLastResponse() {
-        //sipServerTransport.sendResponse(responses.get(responses.size() - 1));
-        int nbOfResponses = responses.size();
-        if (nbOfResponses > 0) {
-            try {
-                transportManager.sendResponse(responses.get(nbOfResponses - 1));
-            } catch (IOException e) {
-                logger.error("input/output error", e);
-            }
-        }
-    }
-    
     public void start() {
         // TODO Auto-generated method stub
         
@@ -118,7 +111,7 @@ public class NonInviteServerTransaction extends NonInviteTransaction
 //        
 //    }
 
-    class TimerJ extends TimerTask {
+    class TimerJ implements Runnable {
         @Override
         public void run() {
             state.timerJFires();
@@ -52,7 +52,7 @@ public class NonInviteServerTransactionStateProceeding extends
         } else {
             timeout = 0;
         }
-        nonInviteServerTransaction.timer.schedule(
+        nonInviteServerTransaction.schedule(
                 nonInviteServerTransaction.new TimerJ(), timeout);
     }
     
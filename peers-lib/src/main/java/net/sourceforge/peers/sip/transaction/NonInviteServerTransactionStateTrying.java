@@ -20,6 +20,7 @@
 package net.sourceforge.peers.sip.transaction;
 
 import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
 
 public class NonInviteServerTransactionStateTrying extends
         NonInviteServerTransactionState {
@@ -43,6 +44,16 @@ public class NonInviteServerTransactionStateTrying extends
         NonInviteServerTransactionState nextState =
             nonInviteServerTransaction.COMPLETED;
         nonInviteServerTransaction.setState(nextState);
+        nonInviteServerTransaction.sendLastResponse();
+        int timeout;
+        if (RFC3261.TRANSPORT_UDP.equals(
+                nonInviteServerTransaction.transport)) {
+            timeout = 64 * RFC3261.TIMER_T1;
+        } else {
+            timeout = 0;
+        }
+        nonInviteServerTransaction.schedule(
+                nonInviteServerTransaction.new TimerJ(), timeout);
     }
     
 }
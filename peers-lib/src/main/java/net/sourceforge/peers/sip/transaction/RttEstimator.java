@@ -0,0 +1,170 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transaction;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.transport.SipTarget;
+
+/**
+ * Round-trip time estimation per destination, used to derive T1 instead of
+ * the fixed RFC3261 500 ms. Samples are the time between the first sending
+ * of a request and its first response. Requests retransmitted before this
+ * response give no sample, since the response cannot be matched to one
+ * sending (Karn's algorithm).
+ *
+ * Samples are smoothed as TCP does (RFC6298): T1 is SRTT + 4 * RTTVAR,
+ * within {@link #getMinT1()} and {@link #getMaxT1()}. T1 of destinations
+ * without sample, or without sample for {@link #DEFAULT_ENTRY_LIFETIME}, is
+ * {@link RFC3261#TIMER_T1}.
+ */
+public class RttEstimator {
+
+    public static final long DEFAULT_MIN_T1 = 100; // ms
+    public static final long DEFAULT_MAX_T1 = RFC3261.TIMER_T2; // ms
+    public static final long DEFAULT_ENTRY_LIFETIME = 10 * 60 * 1000; // ms
+    public static final int DEFAULT_MAX_SIZE = 4096;
+
+    private ConcurrentHashMap<SipTarget, Entry> entries;
+    private volatile long minT1;
+    private volatile long maxT1;
+
+    public RttEstimator() {
+        entries = new ConcurrentHashMap<SipTarget, Entry>();
+        minT1 = DEFAULT_MIN_T1;
+        maxT1 = DEFAULT_MAX_T1;
+    }
+
+    /**
+     * @return T1 to use for a new transaction to target, in milliseconds
+     */
+    public long getT1(SipTarget target) {
+        return getT1(target, System.currentTimeMillis());
+    }
+
+    long getT1(SipTarget target, long now) {
+        Entry entry = entries.get(target);
+        if (entry == null) {
+            return RFC3261.TIMER_T1;
+        }
+        return entry.getT1(now, minT1, maxT1);
+    }
+
+    /**
+     * @param rtt time between the request and its first response, in
+     *        milliseconds
+     */
+    public void addSample(SipTarget target, long rtt) {
+        addSample(target, rtt, System.currentTimeMillis());
+    }
+
+    void addSample(SipTarget target, long rtt, long now) {
+        Entry entry = entries.get(target);
+        if (entry == null) {
+            if (entries.size() >= DEFAULT_MAX_SIZE) {
+                removeExpired(now);
+            }
+            entry = new Entry();
+            Entry previous = entries.putIfAbsent(target, entry);
+            if (previous != null) {
+                entry = previous;
+            }
+        }
+        entry.addSample(rtt, now);
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+            }
+        }
+        if (entries.size() >= DEFAULT_MAX_SIZE) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return smoothed round-trip time to target in milliseconds, -1 if
+     *         there is no sample
+     */
+    public long getSrtt(SipTarget target) {
+        Entry entry = entries.get(target);
+        return entry == null ? -1 : entry.getSrtt();
+    }
+
+    public long getMinT1() {
+        return minT1;
+    }
+
+    public void setMinT1(long minT1) {
+        this.minT1 = minT1;
+    }
+
+    public long getMaxT1() {
+        return maxT1;
+    }
+
+    public void setMaxT1(long maxT1) {
+        this.maxT1 = maxT1;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    static class Entry {
+
+        private double srtt;
+        private double rttvar;
+        private long lastSample;
+
+        synchronized void addSample(long rtt, long now) {
+            if (lastSample == 0 || now - lastSample > DEFAULT_ENTRY_LIFETIME) {
+                srtt = rtt;
+                rttvar = rtt / 2.0;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+                srtt = 0.875 * srtt + 0.125 * rtt;
+            }
+            lastSample = now;
+        }
+
+        synchronized long getT1(long now, long minT1, long maxT1) {
+            if (isExpired(now)) {
+                return RFC3261.TIMER_T1;
+            }
+            long t1 = Math.round(srtt + 4 * rttvar);
+            return Math.max(minT1, Math.min(maxT1, t1));
+        }
+
+        synchronized long getSrtt() {
+            return Math.round(srtt);
+        }
+
+        synchronized boolean isExpired(long now) {
+            return now - lastSample > DEFAULT_ENTRY_LIFETIME;
+        }
+    }
+
+}
@@ -27,6 +27,12 @@ public interface ServerTransaction {
     public void start();
     
     public void receivedRequest(SipRequest sipRequest);
+
+    /**
+     * A request matching this transaction has been received and not parsed:
+     * it can only be a retransmission or, for INVITE transactions, an ACK.
+     */
+    public void receivedRetransmission(String method);
     
     public void sendReponse(SipResponse sipResponse);
 }
@@ -19,12 +19,17 @@
 
 package net.sourceforge.peers.sip.transaction;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import net.sourceforge.peers.Timer;
+import net.sourceforge.peers.TimingWheel;
 import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.Utils;
+import net.sourceforge.peers.sip.transport.MessageSender;
+import net.sourceforge.peers.sip.transport.RawSipMessage;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
 import net.sourceforge.peers.sip.transport.TransportManager;
@@ -40,13 +45,21 @@ public abstract class Transaction {
     protected SipRequest request;
     protected List<SipResponse> responses;
     
-    protected Timer timer;
+    protected TimingWheel timer;
     protected TransportManager transportManager;
     protected TransactionManager transactionManager;
 
     protected Logger logger;
 
-    protected Transaction(String branchId, String method, Timer timer,
+    private final long creationTime;
+
+    // wire image of the last response sent and the sender used, replayed
+    // as is when the request is retransmitted
+    private SipResponse sentResponse;
+    private byte[] sentResponseBytes;
+    private MessageSender sentResponseSender;
+
+    protected Transaction(String branchId, String method, TimingWheel timer,
             TransportManager transportManager,
             TransactionManager transactionManager, Logger logger) {
         this.branchId = branchId;
@@ -56,6 +69,46 @@ public abstract class Transaction {
         this.transactionManager = transactionManager;
         this.logger = logger;
         responses = Collections.synchronizedList(new ArrayList<SipResponse>());
+        creationTime = System.nanoTime();
+    }
+
+    /**
+     * Schedules a timer of this transaction. The timer task runs on the
+     * worker of the Call-ID of the request, ordered with the messages of
+     * the same call, rather than on the timing wheel thread which may be
+     * shared by many user agents.
+     */
+    TimingWheel.Timeout schedule(final Runnable task, long delay) {
+        return timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                transportManager.getSipWorkerPool().execute(getShardKey(),
+                        task);
+            }
+        }, delay);
+    }
+
+    private int getShardKey() {
+        String callId = Utils.getMessageCallId(request);
+        if (callId == null) {
+            return branchId.hashCode();
+        }
+        return RawSipMessage.getShardKey(callId);
+    }
+
+    /**
+     * Timer B and timer F: 64 * T1, T1 never above {@link RFC3261#TIMER_T1}.
+     * A target that does not answer on a fast path is given up sooner, a
+     * slow path only spaces retransmissions and never delays failover
+     * beyond the standard 32 s. Once a provisional response has been
+     * received, timer F goes back to the standard value.
+     */
+    static long getTimeout(long t1) {
+        return 64 * Math.min(t1, RFC3261.TIMER_T1);
+    }
+
+    long getCreationTime() {
+        return creationTime;
     }
 
     protected String getId() {
@@ -72,6 +125,32 @@ public abstract class Transaction {
         return responses.get(responses.size() - 1);
     }
 
+    /**
+     * Sends the last response of a server transaction. A response sent
+     * before is replayed from its cached bytes, with the same sender.
+     */
+    synchronized void sendLastResponse() {
+        SipResponse sipResponse = getLastResponse();
+        if (sipResponse == null) {
+            return;
+        }
+        try {
+            if (sipResponse == sentResponse) {
+                sentResponseSender.sendBytes(sentResponseBytes);
+                return;
+            }
+            MessageSender messageSender =
+                transportManager.sendResponse(sipResponse);
+            if (messageSender != null) {
+                sentResponse = sipResponse;
+                sentResponseBytes = sipResponse.getBytes();
+                sentResponseSender = messageSender;
+            }
+        } catch (IOException e) {
+            logger.error("input/output error", e);
+        }
+    }
+
     public SipRequest getRequest() {
         return request;
     }
@@ -21,46 +21,115 @@ package net.sourceforge.peers.sip.transaction;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import net.sourceforge.peers.Timer;
+import net.sourceforge.peers.TimingWheel;
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.SipMethod;
 import net.sourceforge.peers.sip.Utils;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldName;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldValue;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaderParamName;
 import net.sourceforge.peers.sip.transport.SipMessage;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
+import net.sourceforge.peers.sip.transport.SipTarget;
 import net.sourceforge.peers.sip.transport.TransportManager;
 
 
 public class TransactionManager {
 
-    protected Timer timer;
+    /**
+     * Time during which a terminated transaction can still be found, so
+     * that late retransmissions and transaction users still match it.
+     */
+    public static final long DEFAULT_TERMINATED_LINGER = 64 * RFC3261.TIMER_T1;
+    /**
+     * Transactions older than this are considered orphaned and reaped,
+     * whatever their state.
+     */
+    public static final long DEFAULT_MAX_TRANSACTION_LIFETIME = 15 * 60 * 1000;
+    public static final long REAPER_PERIOD = 64 * RFC3261.TIMER_T1;
 
-    // TODO remove client transactions when they reach terminated state
-    // TODO check that server transactions are removed in all transitions to terminated
-    private Hashtable<String, ClientTransaction> clientTransactions;
-    private Hashtable<String, ServerTransaction> serverTransactions;
+    protected TimingWheel timer;
+
+    // removed after linger once terminated, or by the reaper
+    private TransactionTable<ClientTransaction> clientTransactions;
+    private TransactionTable<ServerTransaction> serverTransactions;
 
     private TransportManager transportManager;
     private Logger logger;
     
+    // true if the timing wheel was created by this transaction manager
+    private boolean ownTimer;
+    private TimingWheel.Timeout reaper;
+    private volatile long terminatedLinger;
+    private volatile long maxTransactionLifetime;
+    private RttEstimator rttEstimator;
+    
     public TransactionManager(Logger logger) {
+        this(null, logger, null);
+    }
+
+    /**
+     * @param threadFactory creates the thread of the private timer
+     */
+    public TransactionManager(Logger logger, ThreadFactory threadFactory) {
+        this(null, logger, threadFactory);
+    }
+
+    /**
+     * @param timingWheel timer shared with other components, not stopped
+     *        by {@link #closeTimers()}. If null, a private one is created.
+     */
+    public TransactionManager(TimingWheel timingWheel, Logger logger) {
+        this(timingWheel, logger, null);
+    }
+
+    private TransactionManager(TimingWheel timingWheel, Logger logger,
+            ThreadFactory threadFactory) {
         this.logger = logger;
-        clientTransactions = new Hashtable<String, ClientTransaction>();
-        serverTransactions = new Hashtable<String, ServerTransaction>();
-        timer = new Timer(TransactionManager.class.getSimpleName()
-                + " " + Timer.class.getSimpleName());
+        clientTransactions = new TransactionTable<ClientTransaction>();
+        serverTransactions = new TransactionTable<ServerTransaction>();
+        terminatedLinger = DEFAULT_TERMINATED_LINGER;
+        maxTransactionLifetime = DEFAULT_MAX_TRANSACTION_LIFETIME;
+        rttEstimator = new RttEstimator();
+        if (timingWheel == null) {
+            timingWheel = new TimingWheel(logger, threadFactory);
+            ownTimer = true;
+        }
+        timer = timingWheel;
+        reaper = timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                reapTransactions(System.nanoTime());
+            }
+        }, REAPER_PERIOD, REAPER_PERIOD);
     }
 
     public void closeTimers() {
-        timer.cancel();
+        reaper.cancel();
+        if (ownTimer) {
+            timer.stop();
+        }
+    }
+
+    /**
+     * @return the timer used by transactions, also used by the transport
+     *         and transaction user layers of the same user agent
+     */
+    public TimingWheel getTimingWheel() {
+        return timer;
     }
     
+    /**
+     * @return round-trip times measured by client transactions, from which
+     *         their T1 is derived
+     */
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
     public ClientTransaction createClientTransaction(SipRequest sipRequest,
             InetAddress inetAddress, int port, String transport,
             String pBranchId, ClientTransactionUser clientTransactionUser) {
@@ -82,8 +151,36 @@ public class TransactionManager {
                     inetAddress, port, transport, sipRequest, clientTransactionUser,
                     timer, transportManager, this, logger);
         }
-        clientTransactions.put(getTransactionId(branchId, method),
-                clientTransaction);
+        clientTransactions.put(branchId, method, clientTransaction);
+        return clientTransaction;
+    }
+
+    /**
+     * Creates a client transaction for the first target. If this target
+     * does not answer or cannot be reached, the request is sent to the
+     * next one in a new client transaction (RFC3263 4.3), the transaction
+     * user is told about the failure once all targets have failed.
+     * 
+     * @param targets targets of the request in the order in which they
+     *        should be tried, as given by
+     *        {@link net.sourceforge.peers.sip.transport.SipServerLocator},
+     *        not empty
+     */
+    public ClientTransaction createClientTransaction(SipRequest sipRequest,
+            List<SipTarget> targets, String pBranchId,
+            ClientTransactionUser clientTransactionUser) {
+        SipTarget target = targets.get(0);
+        ClientTransaction clientTransaction = createClientTransaction(
+                sipRequest, target.getInetAddress(), target.getPort(),
+                target.getTransport(), pBranchId, clientTransactionUser);
+        List<SipTarget> nextTargets = targets.subList(1, targets.size());
+        if (clientTransaction instanceof InviteClientTransaction) {
+            ((InviteClientTransaction)clientTransaction).destination
+                .setNextTargets(nextTargets);
+        } else {
+            ((NonInviteClientTransaction)clientTransaction).destination
+                .setNextTargets(nextTargets);
+        }
         return clientTransaction;
     }
 
@@ -91,12 +188,8 @@ public class TransactionManager {
             int port, String transport,
             ServerTransactionUser serverTransactionUser,
             SipRequest sipRequest) {
-        SipHeaderFieldValue via = Utils.getTopVia(sipResponse);
-        String branchId = via.getParam(new SipHeaderParamName(
-                RFC3261.PARAM_BRANCH));
-        String cseq = sipResponse.getSipHeaders().get(
-                new SipHeaderFieldName(RFC3261.HDR_CSEQ)).toString();
-        String method = cseq.substring(cseq.lastIndexOf(' ') + 1);
+        String branchId = getServerTransactionKey(sipResponse);
+        String method = sipResponse.getCSeqMethodName();
         ServerTransaction serverTransaction;
         // TODO create server transport user and pass it to server transaction
         if (RFC3261.METHOD_INVITE.equals(method)) {
@@ -109,31 +202,31 @@ public class TransactionManager {
                     transport, method, serverTransactionUser, sipRequest, timer,
                     transportManager, this, logger);
         }
-        serverTransactions.put(getTransactionId(branchId, method),
-                serverTransaction);
+        serverTransactions.put(branchId, method, serverTransaction);
         return serverTransaction;
     }
 
     public ClientTransaction getClientTransaction(SipMessage sipMessage) {
-        SipHeaderFieldValue via = Utils.getTopVia(sipMessage);
-        String branchId = via.getParam(new SipHeaderParamName(
-                RFC3261.PARAM_BRANCH));
-        String cseq = sipMessage.getSipHeaders().get(
-                new SipHeaderFieldName(RFC3261.HDR_CSEQ)).toString();
-        String method = cseq.substring(cseq.lastIndexOf(' ') + 1);
-        return clientTransactions.get(getTransactionId(branchId, method));
+        return clientTransactions.get(sipMessage.getBranch(),
+                sipMessage.getCSeqMethod(), sipMessage.getCSeqMethodName());
+    }
+
+    public ClientTransaction getClientTransaction(String branchId,
+            String method) {
+        return clientTransactions.get(branchId, method);
     }
 
     public List<ClientTransaction> getClientTransactionsFromCallId(String callId,
             String method) {
         ArrayList<ClientTransaction> clientTransactionsFromCallId =
             new ArrayList<ClientTransaction>();
-        for (ClientTransaction clientTransaction: clientTransactions.values()) {
+        for (ClientTransaction clientTransaction:
+                clientTransactions.values()) {
             Transaction transaction = (Transaction)clientTransaction;
             SipRequest sipRequest = transaction.getRequest();
-            String reqCallId = Utils.getMessageCallId(sipRequest);
+            String reqCallId = sipRequest.getCallId();
             String reqMethod = sipRequest.getMethod();
-            if (reqCallId.equals(callId) && method.equals(reqMethod)) {
+            if (callId.equals(reqCallId) && method.equals(reqMethod)) {
                 clientTransactionsFromCallId.add(clientTransaction);
             }
         }
@@ -141,19 +234,19 @@ public class TransactionManager {
     }
 
     public ServerTransaction getServerTransaction(SipMessage sipMessage) {
-        SipHeaderFieldValue via = Utils.getTopVia(sipMessage);
-        String branchId = via.getParam(new SipHeaderParamName(
-                RFC3261.PARAM_BRANCH));
+        String branchId = getServerTransactionKey(sipMessage);
         String method;
+        SipMethod sipMethod;
         if (sipMessage instanceof SipRequest) {
             method = ((SipRequest)sipMessage).getMethod();
+            sipMethod = SipMethod.fromString(method);
         } else {
-            String cseq = sipMessage.getSipHeaders().get(
-                    new SipHeaderFieldName(RFC3261.HDR_CSEQ)).toString();
-            method = cseq.substring(cseq.lastIndexOf(' ') + 1);
+            method = sipMessage.getCSeqMethodName();
+            sipMethod = sipMessage.getCSeqMethod();
         }
-        if (RFC3261.METHOD_ACK.equals(method)) {
+        if (sipMethod == SipMethod.ACK) {
             method = RFC3261.METHOD_INVITE;
+            sipMethod = SipMethod.INVITE;
 //            InviteServerTransaction inviteServerTransaction =
 //                (InviteServerTransaction)
 //                serverTransactions.get(getTransactionId(branchId, method));
@@ -185,27 +278,126 @@ public class TransactionManager {
             // if it is the case, a new standalone transaction must be created
             // for the ACK
         }
-        return serverTransactions.get(getTransactionId(branchId, method));
+        return serverTransactions.get(branchId, sipMethod, method);
+    }
+
+    /**
+     * Key of the server transaction a message belongs to, the branch of
+     * its top Via. Requests from RFC 2543 peers may have no branch, their
+     * transactions are keyed by Call-ID, From tag and CSeq number instead
+     * (RFC 3261 17.2.3), CSeq method being the second level of the table.
+     * This key cannot match a branch, which never contains the separator.
+     */
+    public static String getServerTransactionKey(SipMessage sipMessage) {
+        String branchId = sipMessage.getBranch();
+        if (branchId != null) {
+            return branchId;
+        }
+        StringBuffer buf = new StringBuffer();
+        buf.append(sipMessage.getCallId()).append(Transaction.ID_SEPARATOR);
+        buf.append(sipMessage.getFromTag()).append(Transaction.ID_SEPARATOR);
+        buf.append(sipMessage.getCSeqNumber());
+        return buf.toString();
     }
 
     public ServerTransaction getServerTransaction(String branchId, String method) {
-        return serverTransactions.get(getTransactionId(branchId, method));
+        return serverTransactions.get(branchId, method);
     }
     
-    void removeServerTransaction(String branchId, String method) {
-        serverTransactions.remove(getTransactionId(branchId, method));
+    void removeServerTransaction(ServerTransaction serverTransaction) {
+        Transaction transaction = (Transaction)serverTransaction;
+        serverTransactions.remove(transaction.branchId, transaction.method,
+                serverTransaction);
     }
     
-    void removeClientTransaction(String branchId, String method) {
-        clientTransactions.remove(getTransactionId(branchId, method));
+    void removeClientTransaction(ClientTransaction clientTransaction) {
+        Transaction transaction = (Transaction)clientTransaction;
+        clientTransactions.remove(transaction.branchId, transaction.method,
+                clientTransaction);
     }
 
-    private String getTransactionId(String branchId, String method) {
-        StringBuffer buf = new StringBuffer();
-        buf.append(branchId);
-        buf.append(Transaction.ID_SEPARATOR);
-        buf.append(method);
-        return buf.toString();
+    /**
+     * Called on each transition to terminated state. The transaction is
+     * removed once the linger delay has elapsed.
+     */
+    void transactionTerminated(final Transaction transaction) {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                remove(transaction);
+            }
+        }, terminatedLinger);
+    }
+
+    private void remove(Transaction transaction) {
+        if (transaction instanceof ClientTransaction) {
+            removeClientTransaction((ClientTransaction)transaction);
+        } else {
+            removeServerTransaction((ServerTransaction)transaction);
+        }
+    }
+
+    /**
+     * Removes transactions older than the maximum lifetime, which never
+     * reached terminated state.
+     * 
+     * @param now current {@link System#nanoTime()}
+     * @return number of reaped transactions
+     */
+    int reapTransactions(long now) {
+        long maxLifetime = TimeUnit.MILLISECONDS.toNanos(
+                maxTransactionLifetime);
+        int reaped = 0;
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (ClientTransaction clientTransaction:
+                clientTransactions.values()) {
+            transactions.add((Transaction)clientTransaction);
+        }
+        for (ServerTransaction serverTransaction:
+                serverTransactions.values()) {
+            transactions.add((Transaction)serverTransaction);
+        }
+        for (Transaction transaction: transactions) {
+            if (now - transaction.getCreationTime() > maxLifetime) {
+                logger.debug("reaping orphaned transaction "
+                        + transaction.getId());
+                remove(transaction);
+                ++reaped;
+            }
+        }
+        return reaped;
+    }
+
+    public int getClientTransactionCount() {
+        return clientTransactions.size();
+    }
+
+    public int getServerTransactionCount() {
+        return serverTransactions.size();
+    }
+
+    public long getTerminatedLinger() {
+        return terminatedLinger;
+    }
+
+    /**
+     * @param terminatedLinger milliseconds during which a terminated
+     *        transaction remains reachable
+     */
+    public void setTerminatedLinger(long terminatedLinger) {
+        this.terminatedLinger = terminatedLinger;
+    }
+
+    public long getMaxTransactionLifetime() {
+        return maxTransactionLifetime;
+    }
+
+    /**
+     * @param maxTransactionLifetime milliseconds after which a transaction
+     *        is reaped, even if it never terminated
+     */
+    public void setMaxTransactionLifetime(long maxTransactionLifetime) {
+        this.maxTransactionLifetime = maxTransactionLifetime;
     }
 
     public void setTransportManager(TransportManager transportManager) {
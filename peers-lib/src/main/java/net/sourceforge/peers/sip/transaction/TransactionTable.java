@@ -0,0 +1,195 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+
+import net.sourceforge.peers.sip.SipMethod;
+
+/**
+ * Transactions indexed by branch id, then by method. Lookups only read a
+ * ConcurrentHashMap and an array slot, no key object is built. Extension
+ * methods are kept in a per branch map.
+ * 
+ * A branch id is required: transactions of requests without branch must
+ * be registered under a key built by the caller, see
+ * {@link TransactionManager#getServerTransactionKey}.
+ */
+class TransactionTable<T> {
+
+    private static final int METHOD_COUNT = SipMethod.values().length;
+
+    private final ConcurrentHashMap<String, Branch<T>> branches;
+    private final AtomicInteger size;
+
+    TransactionTable() {
+        branches = new ConcurrentHashMap<String, Branch<T>>();
+        size = new AtomicInteger();
+    }
+
+    T get(String branchId, String method) {
+        return get(branchId, SipMethod.fromString(method), method);
+    }
+
+    /**
+     * @param sipMethod method constant, null for an extension method
+     * @param method method name, only used for extension methods
+     */
+    T get(String branchId, SipMethod sipMethod, String method) {
+        if (branchId == null) {
+            return null;
+        }
+        Branch<T> branch = branches.get(branchId);
+        if (branch == null) {
+            return null;
+        }
+        return branch.get(sipMethod, method);
+    }
+
+    void put(String branchId, final String method, final T transaction) {
+        if (branchId == null) {
+            throw new IllegalArgumentException("missing branch id");
+        }
+        final SipMethod sipMethod = SipMethod.fromString(method);
+        branches.compute(branchId,
+                new BiFunction<String, Branch<T>, Branch<T>>() {
+                    @Override
+                    public Branch<T> apply(String key, Branch<T> branch) {
+                        if (branch == null) {
+                            branch = new Branch<T>();
+                        }
+                        if (branch.put(sipMethod, method, transaction)
+                                == null) {
+                            size.incrementAndGet();
+                        }
+                        return branch;
+                    }
+                });
+    }
+
+    /**
+     * Removes a transaction only if it is still the one registered for
+     * its branch and method.
+     */
+    void remove(String branchId, final String method, final T transaction) {
+        if (branchId == null) {
+            return;
+        }
+        final SipMethod sipMethod = SipMethod.fromString(method);
+        branches.computeIfPresent(branchId,
+                new BiFunction<String, Branch<T>, Branch<T>>() {
+                    @Override
+                    public Branch<T> apply(String key, Branch<T> branch) {
+                        if (branch.remove(sipMethod, method, transaction)) {
+                            size.decrementAndGet();
+                        }
+                        return branch.isEmpty() ? null : branch;
+                    }
+                });
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return a snapshot of registered transactions
+     */
+    List<T> values() {
+        List<T> values = new ArrayList<T>(size.get());
+        for (Branch<T> branch: branches.values()) {
+            branch.addTo(values);
+        }
+        return values;
+    }
+
+    static class Branch<T> {
+
+        private final AtomicReferenceArray<T> transactions;
+        // created on first extension method, guarded by the table bin lock
+        private volatile ConcurrentHashMap<String, T> extensions;
+
+        Branch() {
+            transactions = new AtomicReferenceArray<T>(METHOD_COUNT);
+        }
+
+        T get(SipMethod sipMethod, String method) {
+            if (sipMethod != null) {
+                return transactions.get(sipMethod.ordinal());
+            }
+            ConcurrentHashMap<String, T> map = extensions;
+            if (map == null || method == null) {
+                return null;
+            }
+            return map.get(method);
+        }
+
+        T put(SipMethod sipMethod, String method, T transaction) {
+            if (sipMethod != null) {
+                return transactions.getAndSet(sipMethod.ordinal(),
+                        transaction);
+            }
+            if (extensions == null) {
+                extensions = new ConcurrentHashMap<String, T>();
+            }
+            return extensions.put(String.valueOf(method), transaction);
+        }
+
+        boolean remove(SipMethod sipMethod, String method, T transaction) {
+            if (sipMethod != null) {
+                return transactions.compareAndSet(sipMethod.ordinal(),
+                        transaction, null);
+            }
+            ConcurrentHashMap<String, T> map = extensions;
+            return map != null && map.remove(String.valueOf(method),
+                    transaction);
+        }
+
+        boolean isEmpty() {
+            for (int i = 0; i < METHOD_COUNT; ++i) {
+                if (transactions.get(i) != null) {
+                    return false;
+                }
+            }
+            ConcurrentHashMap<String, T> map = extensions;
+            return map == null || map.isEmpty();
+        }
+
+        void addTo(List<T> values) {
+            for (int i = 0; i < METHOD_COUNT; ++i) {
+                T transaction = transactions.get(i);
+                if (transaction != null) {
+                    values.add(transaction);
+                }
+            }
+            ConcurrentHashMap<String, T> map = extensions;
+            if (map != null) {
+                values.addAll(map.values());
+            }
+        }
+
+    }
+
+}
@@ -47,9 +47,8 @@ public class Dialog {
 
     private DialogState state;
     
-    private String callId;
-    private String localTag;
-    private String remoteTag;
+    private final DialogId dialogId;
+    private final String id;
     
     private int localCSeq;
     private int remoteCSeq;
@@ -58,13 +57,19 @@ public class Dialog {
     private String remoteTarget;
     private boolean secure;
     private ArrayList<String> routeSet;
+    private DialogManager dialogManager;
     private Logger logger;
     
     Dialog(String callId, String localTag, String remoteTag, Logger logger) {
+        this(callId, localTag, remoteTag, null, logger);
+    }
+
+    Dialog(String callId, String localTag, String remoteTag,
+            DialogManager dialogManager, Logger logger) {
         super();
-        this.callId = callId;
-        this.localTag = localTag;
-        this.remoteTag = remoteTag;
+        dialogId = new DialogId(callId, localTag, remoteTag);
+        id = dialogId.toString();
+        this.dialogManager = dialogManager;
         this.logger = logger;
         
         INIT = new DialogStateInit(getId(), this, logger);
@@ -96,6 +101,9 @@ public class Dialog {
     public void setState(DialogState state) {
         this.state.log(state);
         this.state = state;
+        if (dialogManager != null && TERMINATED.equals(state)) {
+            dialogManager.removeDialog(this);
+        }
     }
     
     public SipRequest buildSubsequentRequest(String method) {
@@ -114,6 +122,7 @@ public class Dialog {
         
         SipHeaderFieldValue to = new SipHeaderFieldValue(
                 new NameAddress(remoteUri).toString());
+        String remoteTag = dialogId.getRemoteTag();
         if (remoteTag != null) {
             to.addParam(new SipHeaderParamName(RFC3261.PARAM_TAG), remoteTag);
         }
@@ -123,6 +132,7 @@ public class Dialog {
         
         SipHeaderFieldValue from = new SipHeaderFieldValue(
                 new NameAddress(localUri).toString());
+        String localTag = dialogId.getLocalTag();
         if (localTag != null) {
             from.addParam(new SipHeaderParamName(RFC3261.PARAM_TAG), localTag);
         }
@@ -130,7 +140,8 @@ public class Dialog {
         
         //Call-ID
         
-        SipHeaderFieldValue callIdValue = new SipHeaderFieldValue(callId);
+        SipHeaderFieldValue callIdValue =
+            new SipHeaderFieldValue(dialogId.getCallId());
         headers.add(new SipHeaderFieldName(RFC3261.HDR_CALLID), callIdValue);
         
         //CSeq
@@ -164,19 +175,15 @@ public class Dialog {
     }
     
     public String getId() {
-        StringBuffer buf = new StringBuffer();
-        buf.append(callId).append(ID_SEPARATOR);
-        buf.append(localTag).append(ID_SEPARATOR);
-        buf.append(remoteTag);
-        return buf.toString();
+        return id;
+    }
+
+    public DialogId getDialogId() {
+        return dialogId;
     }
     
     public String getCallId() {
-        return callId;
-    }
-
-    public void setCallId(String callId) {
-        this.callId = callId;
+        return dialogId.getCallId();
     }
     
     public int getLocalCSeq() {
@@ -236,19 +243,11 @@ public class Dialog {
     }
 
     public String getLocalTag() {
-        return localTag;
-    }
-
-    public void setLocalTag(String localTag) {
-        this.localTag = localTag;
+        return dialogId.getLocalTag();
     }
 
     public String getRemoteTag() {
-        return remoteTag;
-    }
-
-    public void setRemoteTag(String remoteTag) {
-        this.remoteTag = remoteTag;
+        return dialogId.getRemoteTag();
     }
 
     public DialogState getState() {
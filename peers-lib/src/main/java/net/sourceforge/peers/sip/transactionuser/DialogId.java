@@ -0,0 +1,92 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transactionuser;
+
+/**
+ * Immutable dialog identifier (RFC3261 12): Call-ID, local tag and remote
+ * tag. Used as {@link DialogManager} key, hash code is computed once.
+ */
+public final class DialogId {
+
+    private final String callId;
+    private final String localTag;
+    private final String remoteTag;
+    private final int hashCode;
+
+    public DialogId(String callId, String localTag, String remoteTag) {
+        this.callId = callId;
+        this.localTag = localTag;
+        this.remoteTag = remoteTag;
+        int hash = hashCode(callId);
+        hash = 31 * hash + hashCode(localTag);
+        hash = 31 * hash + hashCode(remoteTag);
+        hashCode = hash;
+    }
+
+    private static int hashCode(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    private static boolean equals(String value1, String value2) {
+        return value1 == null ? value2 == null : value1.equals(value2);
+    }
+
+    public String getCallId() {
+        return callId;
+    }
+
+    public String getLocalTag() {
+        return localTag;
+    }
+
+    public String getRemoteTag() {
+        return remoteTag;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DialogId)) {
+            return false;
+        }
+        DialogId other = (DialogId)obj;
+        return hashCode == other.hashCode
+            && equals(callId, other.callId)
+            && equals(localTag, other.localTag)
+            && equals(remoteTag, other.remoteTag);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer buf = new StringBuffer();
+        buf.append(callId).append(Dialog.ID_SEPARATOR);
+        buf.append(localTag).append(Dialog.ID_SEPARATOR);
+        buf.append(remoteTag);
+        return buf.toString();
+    }
+
+}
@@ -19,27 +19,39 @@
 
 package net.sourceforge.peers.sip.transactionuser;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 
 import net.sourceforge.peers.Logger;
-import net.sourceforge.peers.sip.RFC3261;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldName;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldValue;
-import net.sourceforge.peers.sip.syntaxencoding.SipHeaderParamName;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldNames;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaders;
 import net.sourceforge.peers.sip.transport.SipMessage;
 import net.sourceforge.peers.sip.transport.SipResponse;
 
-
+/**
+ * Dialogs of a user agent, indexed by {@link DialogId} and by Call-ID.
+ * Lookups do not lock. The Call-ID index holds immutable arrays, replaced
+ * on each change, as a Call-ID has one dialog except on forking. Both
+ * indexes are updated together while computing the Call-ID entry, so
+ * that a dialog created and removed concurrently leaves no stale entry.
+ * Dialogs are removed when they reach their terminated state.
+ */
 public class DialogManager {
     
-    private Hashtable<String, Dialog> dialogs;
+    private static final Dialog[] NO_DIALOG = new Dialog[0];
+
+    private ConcurrentHashMap<DialogId, Dialog> dialogs;
+    private ConcurrentHashMap<String, Dialog[]> dialogsByCallId;
     private Logger logger;
     
     public DialogManager(Logger logger) {
         this.logger = logger;
-        dialogs = new Hashtable<String, Dialog>();
+        dialogs = new ConcurrentHashMap<DialogId, Dialog>();
+        dialogsByCallId = new ConcurrentHashMap<String, Dialog[]>();
     }
 
     /**
@@ -47,70 +59,132 @@ public class DialogManager {
      *        From tag and a Call-ID
      * @return the new Dialog created
      */
-    public synchronized Dialog createDialog(SipResponse sipResponse) {
+    public Dialog createDialog(SipResponse sipResponse) {
         SipHeaders sipHeaders = sipResponse.getSipHeaders();
-        String callID = sipHeaders.get(
-                new SipHeaderFieldName(RFC3261.HDR_CALLID)).toString();
-        SipHeaderFieldValue from = sipHeaders.get(
-                new SipHeaderFieldName(RFC3261.HDR_FROM));
-        SipHeaderFieldValue to = sipHeaders.get(
-                new SipHeaderFieldName(RFC3261.HDR_TO));
-        String fromTag = from.getParam(new SipHeaderParamName(RFC3261.PARAM_TAG));
-        String toTag = to.getParam(new SipHeaderParamName(RFC3261.PARAM_TAG));
-        Dialog dialog;
-        if (sipHeaders.get(new SipHeaderFieldName(RFC3261.HDR_VIA)) == null) {
-            //createDialog is called from UAS side, in layer Transaction User
-            dialog = new Dialog(callID, toTag, fromTag, logger);
+        //createDialog is called from UAS side, in layer Transaction User,
+        //and from UAC side, in syntax encoding layer
+        return createDialog(sipResponse,
+                sipHeaders.get(SipHeaderFieldNames.VIA) == null);
+    }
+
+    /**
+     * @param uas true if the dialog is created by the response sender, its
+     *        local tag is then the To tag
+     */
+    public Dialog createDialog(SipResponse sipResponse, boolean uas) {
+        String callID = sipResponse.getCallId();
+        String fromTag = sipResponse.getFromTag();
+        String toTag = sipResponse.getToTag();
+        final Dialog dialog;
+        if (uas) {
+            dialog = new Dialog(callID, toTag, fromTag, this, logger);
         } else {
-            //createDialog is called from UAC side, in syntax encoding layer
-            dialog = new Dialog(callID, fromTag, toTag, logger);
+            dialog = new Dialog(callID, fromTag, toTag, this, logger);
         }
-        dialogs.put(dialog.getId(), dialog);
+        dialogsByCallId.compute(callID,
+                new BiFunction<String, Dialog[], Dialog[]>() {
+                    @Override
+                    public Dialog[] apply(String callId, Dialog[] current) {
+                        Dialog previous = dialogs.put(dialog.getDialogId(),
+                                dialog);
+                        if (previous != null) {
+                            current = without(current, previous);
+                        }
+                        return with(current, dialog);
+                    }
+                });
         return dialog;
     }
-    
-    public void removeDialog(String dialogId) {
-        dialogs.remove(dialogId);
+
+    public void removeDialog(final Dialog dialog) {
+        dialogsByCallId.compute(dialog.getCallId(),
+                new BiFunction<String, Dialog[], Dialog[]>() {
+                    @Override
+                    public Dialog[] apply(String callId, Dialog[] current) {
+                        if (!dialogs.remove(dialog.getDialogId(), dialog)) {
+                            return current;
+                        }
+                        logger.debug("removed dialog " + dialog.getId());
+                        return without(current, dialog);
+                    }
+                });
+    }
+
+    private static Dialog[] with(Dialog[] current, Dialog dialog) {
+        if (current == null) {
+            return new Dialog[] { dialog };
+        }
+        Dialog[] updated = new Dialog[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = dialog;
+        return updated;
+    }
+
+    /**
+     * @return null if no dialog is left, the Call-ID entry is then removed
+     */
+    private static Dialog[] without(Dialog[] current, Dialog dialog) {
+        if (current == null) {
+            return null;
+        }
+        int index = -1;
+        for (int i = 0; i < current.length; ++i) {
+            if (current[i] == dialog) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return current;
+        }
+        if (current.length == 1) {
+            return null;
+        }
+        Dialog[] updated = new Dialog[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index,
+                updated.length - index);
+        return updated;
     }
 
-    public synchronized Dialog getDialog(SipMessage sipMessage) {
-        SipHeaders sipHeaders = sipMessage.getSipHeaders();
-        String callID = sipHeaders.get(
-                new SipHeaderFieldName(RFC3261.HDR_CALLID)).toString();
-        SipHeaderFieldValue from = sipHeaders.get(
-                new SipHeaderFieldName(RFC3261.HDR_FROM));
-        SipHeaderFieldValue to = sipHeaders.get(
-                new SipHeaderFieldName(RFC3261.HDR_TO));
-        SipHeaderParamName tagName = new SipHeaderParamName(RFC3261.PARAM_TAG);
-        String fromTag = from.getParam(tagName);
-        String toTag = to.getParam(tagName);
-        Dialog dialog = dialogs.get(getDialogId(callID, fromTag, toTag));
+    public Dialog getDialog(SipMessage sipMessage) {
+        String callID = sipMessage.getCallId();
+        String fromTag = sipMessage.getFromTag();
+        String toTag = sipMessage.getToTag();
+        Dialog dialog = dialogs.get(new DialogId(callID, fromTag, toTag));
         if (dialog != null) {
             return dialog;
         }
-        return dialogs.get(getDialogId(callID, toTag, fromTag));
+        return dialogs.get(new DialogId(callID, toTag, fromTag));
     }
 
-    public synchronized Dialog getDialog(String callId) {
-        for (Dialog dialog : dialogs.values()) {
-            if (dialog.getCallId().equals(callId)) {
-                return dialog;
-            }
+    /**
+     * @return the first dialog created with this Call-ID, null if none
+     */
+    public Dialog getDialog(String callId) {
+        Dialog[] dialogs = dialogsByCallId.get(callId);
+        if (dialogs == null) {
+            return null;
         }
-        return null;
+        return dialogs[0];
     }
-    
-    private String getDialogId(String callID, String localTag, String remoteTag) {
-        StringBuffer buf = new StringBuffer();
-        buf.append(callID);
-        buf.append(Dialog.ID_SEPARATOR);
-        buf.append(localTag);
-        buf.append(Dialog.ID_SEPARATOR);
-        buf.append(remoteTag);
-        return buf.toString();
+
+    /**
+     * @return all dialogs sharing this Call-ID, several after forking
+     */
+    public List<Dialog> getDialogs(String callId) {
+        Dialog[] dialogs = dialogsByCallId.get(callId);
+        if (dialogs == null) {
+            dialogs = NO_DIALOG;
+        }
+        return Collections.unmodifiableList(Arrays.asList(dialogs));
     }
-    
+
+    public int size() {
+        return dialogs.size();
+    }
+
     public Collection<Dialog> getDialogCollection() {
-        return dialogs.values();
+        return Collections.unmodifiableCollection(dialogs.values());
     }
 }
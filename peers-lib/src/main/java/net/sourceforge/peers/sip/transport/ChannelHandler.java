@@ -0,0 +1,44 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Callback invoked by a {@link TransportReactor} event loop for a channel
+ * registered on its selector. Implementations are always called from the
+ * event loop thread which owns the channel and must never block.
+ */
+public interface ChannelHandler {
+
+    /**
+     * Called once, on the event loop thread, when the channel has been
+     * registered on the selector.
+     */
+    public void channelRegistered(SelectionKey selectionKey);
+
+    /**
+     * Called each time the selector reports the channel ready for one of
+     * its interest operations.
+     */
+    public void channelReady(SelectionKey selectionKey) throws IOException;
+
+}
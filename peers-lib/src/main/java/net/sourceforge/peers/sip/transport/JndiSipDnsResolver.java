@@ -0,0 +1,186 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import net.sourceforge.peers.Logger;
+
+/**
+ * NAPTR and SRV lookups through the JNDI DNS provider of the JDK, using the
+ * system DNS servers. This provider does not give the TTL of records: all
+ * records are given the same TTL, {@link #DEFAULT_TTL} unless set with
+ * {@link #setTtl(long)}, which is how long {@link SipServerLocator} caches
+ * them.
+ */
+public class JndiSipDnsResolver implements SipDnsResolver {
+
+    public static final long DEFAULT_TTL = 300; // s
+
+    private static final String NAPTR = "NAPTR";
+    private static final String SRV = "SRV";
+
+    private Hashtable<String, String> environment;
+    private volatile long ttl;
+    private Logger logger;
+
+    public JndiSipDnsResolver(Logger logger) {
+        this.logger = logger;
+        ttl = DEFAULT_TTL;
+        environment = new Hashtable<String, String>();
+        environment.put(Context.INITIAL_CONTEXT_FACTORY,
+                "com.sun.jndi.dns.DnsContextFactory");
+        environment.put("com.sun.jndi.dns.timeout.initial", "1000");
+        environment.put("com.sun.jndi.dns.timeout.retries", "2");
+    }
+
+    @Override
+    public List<NaptrRecord> lookupNaptr(String domain) {
+        List<NaptrRecord> naptrRecords = new ArrayList<NaptrRecord>();
+        for (String value: lookup(domain, NAPTR)) {
+            List<String> fields = split(value);
+            if (fields.size() != 6) {
+                logger.debug("invalid NAPTR record: " + value);
+                continue;
+            }
+            try {
+                naptrRecords.add(new NaptrRecord(
+                        Integer.parseInt(fields.get(0)),
+                        Integer.parseInt(fields.get(1)), fields.get(2),
+                        fields.get(3), removeTrailingDot(fields.get(5)),
+                        ttl));
+            } catch (NumberFormatException e) {
+                logger.debug("invalid NAPTR record: " + value);
+            }
+        }
+        return naptrRecords;
+    }
+
+    @Override
+    public List<SrvRecord> lookupSrv(String name) {
+        List<SrvRecord> srvRecords = new ArrayList<SrvRecord>();
+        for (String value: lookup(name, SRV)) {
+            List<String> fields = split(value);
+            if (fields.size() != 4) {
+                logger.debug("invalid SRV record: " + value);
+                continue;
+            }
+            try {
+                srvRecords.add(new SrvRecord(
+                        Integer.parseInt(fields.get(0)),
+                        Integer.parseInt(fields.get(1)),
+                        Integer.parseInt(fields.get(2)),
+                        removeTrailingDot(fields.get(3)), ttl));
+            } catch (NumberFormatException e) {
+                logger.debug("invalid SRV record: " + value);
+            }
+        }
+        return srvRecords;
+    }
+
+    /**
+     * @return TTL given to all records, in seconds
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    private List<String> lookup(String name, String type) {
+        List<String> values = new ArrayList<String>();
+        DirContext dirContext = null;
+        try {
+            dirContext = new InitialDirContext(environment);
+            Attributes attributes = dirContext.getAttributes(name,
+                    new String[] { type });
+            Attribute attribute = attributes.get(type);
+            if (attribute != null) {
+                NamingEnumeration<?> enumeration = attribute.getAll();
+                while (enumeration.hasMore()) {
+                    values.add(enumeration.next().toString());
+                }
+            }
+        } catch (NamingException e) {
+            logger.debug("no " + type + " record for " + name + ": "
+                    + e.getMessage());
+        } finally {
+            if (dirContext != null) {
+                try {
+                    dirContext.close();
+                } catch (NamingException e) {
+                    logger.error("cannot close DNS context", e);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Splits a record on spaces, quoted strings are one field without
+     * quotes.
+     */
+    static List<String> split(String value) {
+        List<String> fields = new ArrayList<String>();
+        int i = 0;
+        int length = value.length();
+        while (i < length) {
+            char c = value.charAt(i);
+            if (c == ' ') {
+                ++i;
+            } else if (c == '"') {
+                int end = value.indexOf('"', i + 1);
+                if (end < 0) {
+                    end = length;
+                }
+                fields.add(value.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                int end = value.indexOf(' ', i);
+                if (end < 0) {
+                    end = length;
+                }
+                fields.add(value.substring(i, end));
+                i = end;
+            }
+        }
+        return fields;
+    }
+
+    private static String removeTrailingDot(String name) {
+        if (name.length() > 1 && name.endsWith(".")) {
+            return name.substring(0, name.length() - 1);
+        }
+        return name;
+    }
+
+}
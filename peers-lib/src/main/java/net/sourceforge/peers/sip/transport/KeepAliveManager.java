@@ -0,0 +1,246 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.TimingWheel;
+import net.sourceforge.peers.sip.RFC3261;
+
+/**
+ * Sends CRLF keep-alives (RFC5626 4.4.1) from a single timing wheel task,
+ * only on flows which have not sent anything during the keep-alive
+ * interval. When the {@link KeepAlivePolicy} of a destination expects
+ * pongs, a flow without pong within the pong timeout is considered dead:
+ * it stops being pinged and the {@link KeepAliveListener} is told, so that
+ * the user agent can register again.
+ */
+public class KeepAliveManager {
+
+    public static final long CHECK_PERIOD = 1000; // ms
+
+    static final byte[] PING = (RFC3261.CRLF + RFC3261.CRLF).getBytes();
+    static final byte[] PONG = RFC3261.CRLF.getBytes();
+
+    private ConcurrentHashMap<MessageSenderCache.Flow, FlowState> flows;
+    private ConcurrentHashMap<InetSocketAddress, KeepAlivePolicy> policies;
+    private volatile KeepAlivePolicy defaultPolicy;
+    private volatile KeepAliveListener keepAliveListener;
+    private TimingWheel timingWheel;
+    private TimingWheel.Timeout checkTimeout;
+    private AtomicLong pings;
+    private AtomicLong pongs;
+    private AtomicLong failedFlows;
+    private Logger logger;
+
+    public KeepAliveManager(TimingWheel timingWheel, Logger logger) {
+        this.timingWheel = timingWheel;
+        this.logger = logger;
+        flows = new ConcurrentHashMap<MessageSenderCache.Flow, FlowState>();
+        policies = new ConcurrentHashMap<InetSocketAddress, KeepAlivePolicy>();
+        defaultPolicy = KeepAlivePolicy.DEFAULT;
+        pings = new AtomicLong();
+        pongs = new AtomicLong();
+        failedFlows = new AtomicLong();
+    }
+
+    /**
+     * Starts keeping a flow alive, does nothing if it is already.
+     */
+    public void add(SipTransportConnection conn, MessageSender messageSender) {
+        MessageSenderCache.Flow flow = new MessageSenderCache.Flow(conn);
+        if (flows.get(flow) != null) {
+            return;
+        }
+        flows.putIfAbsent(flow, new FlowState(conn, messageSender));
+        synchronized (this) {
+            if (checkTimeout == null) {
+                checkTimeout = timingWheel.scheduleAtFixedRate(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                check(System.currentTimeMillis());
+                            }
+                        }, CHECK_PERIOD, CHECK_PERIOD);
+            }
+        }
+    }
+
+    public void remove(MessageSender messageSender) {
+        for (Map.Entry<MessageSenderCache.Flow, FlowState> entry:
+                flows.entrySet()) {
+            if (entry.getValue().messageSender == messageSender) {
+                flows.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Called when a CRLF keep-alive pong is received on a flow.
+     */
+    public void pongReceived(SipTransportConnection conn) {
+        FlowState flowState = flows.get(new MessageSenderCache.Flow(conn));
+        if (flowState != null) {
+            flowState.pingSent = 0;
+            pongs.incrementAndGet();
+        }
+    }
+
+    /**
+     * Pings idle flows and detects dead flows.
+     * 
+     * @param now current time in milliseconds
+     * @return number of pings sent
+     */
+    int check(long now) {
+        int sent = 0;
+        for (Map.Entry<MessageSenderCache.Flow, FlowState> entry:
+                flows.entrySet()) {
+            FlowState flowState = entry.getValue();
+            KeepAlivePolicy policy = getPolicy(
+                    flowState.conn.getRemoteInetAddress(),
+                    flowState.conn.getRemotePort());
+            if (!policy.isEnabled()) {
+                flowState.pingSent = 0;
+                continue;
+            }
+            if (flowState.pingSent != 0 && policy.isPongExpected()) {
+                if (now - flowState.pingSent > policy.getPongTimeout()
+                        && flows.remove(entry.getKey(), flowState)) {
+                    flowFailed(flowState);
+                }
+                continue;
+            }
+            long lastActivity = Math.max(flowState.lastPing,
+                    flowState.messageSender.getLastSent());
+            if (now - lastActivity < policy.getInterval()) {
+                continue;
+            }
+            try {
+                flowState.messageSender.sendBytes(PING);
+            } catch (IOException e) {
+                logger.error("cannot send keep-alive to " + flowState.conn,
+                        e);
+            }
+            flowState.lastPing = now;
+            if (policy.isPongExpected()) {
+                flowState.pingSent = now;
+            }
+            pings.incrementAndGet();
+            ++sent;
+        }
+        return sent;
+    }
+
+    private void flowFailed(FlowState flowState) {
+        failedFlows.incrementAndGet();
+        logger.info("no keep-alive pong received from " + flowState.conn);
+        KeepAliveListener listener = keepAliveListener;
+        if (listener != null) {
+            listener.flowFailed(flowState.conn);
+        }
+    }
+
+    public KeepAlivePolicy getPolicy(InetAddress inetAddress, int port) {
+        if (inetAddress != null) {
+            KeepAlivePolicy policy = policies.get(
+                    new InetSocketAddress(inetAddress, port));
+            if (policy != null) {
+                return policy;
+            }
+        }
+        return defaultPolicy;
+    }
+
+    /**
+     * Sets the keep-alive policy of a destination, typically the outbound
+     * proxy.
+     */
+    public void setPolicy(InetAddress inetAddress, int port,
+            KeepAlivePolicy policy) {
+        policies.put(new InetSocketAddress(inetAddress, port), policy);
+    }
+
+    public void removePolicy(InetAddress inetAddress, int port) {
+        policies.remove(new InetSocketAddress(inetAddress, port));
+    }
+
+    public KeepAlivePolicy getDefaultPolicy() {
+        return defaultPolicy;
+    }
+
+    /**
+     * @param defaultPolicy policy of destinations without specific policy,
+     *        {@link KeepAlivePolicy#DEFAULT} by default
+     */
+    public void setDefaultPolicy(KeepAlivePolicy defaultPolicy) {
+        this.defaultPolicy = defaultPolicy;
+    }
+
+    public void setKeepAliveListener(KeepAliveListener keepAliveListener) {
+        this.keepAliveListener = keepAliveListener;
+    }
+
+    public int getFlowCount() {
+        return flows.size();
+    }
+
+    public long getPingCount() {
+        return pings.get();
+    }
+
+    public long getPongCount() {
+        return pongs.get();
+    }
+
+    public long getFailedFlowCount() {
+        return failedFlows.get();
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (checkTimeout != null) {
+                checkTimeout.cancel();
+                checkTimeout = null;
+            }
+        }
+        flows.clear();
+    }
+
+    static class FlowState {
+
+        final SipTransportConnection conn;
+        final MessageSender messageSender;
+        volatile long lastPing;
+        // time of the ping waiting for a pong, 0 if none
+        volatile long pingSent;
+
+        FlowState(SipTransportConnection conn, MessageSender messageSender) {
+            this.conn = conn;
+            this.messageSender = messageSender;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+package net.sourceforge.peers.sip.transport;
+
+/**
+ * Keep-alive settings of a destination, usually an outbound proxy or a
+ * registrar.
+ */
+public class KeepAlivePolicy {
+
+    public static final long DEFAULT_INTERVAL = 25000; // ms
+    // RFC5626 4.4.1
+    public static final long DEFAULT_PONG_TIMEOUT = 10000; // ms
+
+    /**
+     * Pings flows idle for 25 seconds, pongs are not required since most
+     * servers do not answer CRLF pings over UDP.
+     */
+    public static final KeepAlivePolicy DEFAULT =
+        new KeepAlivePolicy(DEFAULT_INTERVAL, 0);
+    public static final KeepAlivePolicy DISABLED = new KeepAlivePolicy(0, 0);
+
+    private final long interval;
+    private final long pongTimeout;
+
+    /**
+     * @param interval idle time in milliseconds after which a ping is sent,
+     *        0 disables keep-alives
+     * @param pongTimeout time in milliseconds to wait for a pong before
+     *        considering the flow dead, 0 if pongs are not expected
+     */
+    public KeepAlivePolicy(long interval, long pongTimeout) {
+        if (interval < 0 || pongTimeout < 0) {
+            throw new IllegalArgumentException("negative delay");
+        }
+        this.interval = interval;
+        this.pongTimeout = pongTimeout;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public long getPongTimeout() {
+        return pongTimeout;
+    }
+
+    public boolean isEnabled() {
+        return interval > 0;
+    }
+
+    public boolean isPongExpected() {
+        return pongTimeout > 0;
+    }
+
+}
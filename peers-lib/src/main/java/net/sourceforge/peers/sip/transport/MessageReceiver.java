@@ -19,16 +19,16 @@
 
 package net.sourceforge.peers.sip.transport;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.util.Arrays;
 
+import net.sourceforge.peers.CachingAddressResolver;
 import net.sourceforge.peers.Config;
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.SipMethod;
 import net.sourceforge.peers.sip.Utils;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldValue;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderParamName;
@@ -41,6 +41,21 @@ public abstract class MessageReceiver implements Runnable {
 
     public static final int BUFFER_SIZE = 2048;//FIXME should correspond to MTU 1024;
     public static final String CHARACTER_ENCODING = "US-ASCII";
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte[] SIP_VERSION;
+
+    static {
+        byte[] sipVersion;
+        try {
+            sipVersion = RFC3261.DEFAULT_SIP_VERSION.getBytes(
+                    CHARACTER_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            sipVersion = RFC3261.DEFAULT_SIP_VERSION.getBytes();
+        }
+        SIP_VERSION = sipVersion;
+    }
     
     protected int port;
     private boolean isListening;
@@ -76,56 +91,197 @@ public abstract class MessageReceiver implements Runnable {
     protected abstract void listen() throws IOException;
     
     protected boolean isRequest(byte[] message) {
-        String beginning = null;
-        try {
-            beginning = new String(message, 0,
-                    RFC3261.DEFAULT_SIP_VERSION.length(), CHARACTER_ENCODING);
-        } catch (UnsupportedEncodingException e) {
-            logger.error("unsupported encoding", e);
-        }
-        if (RFC3261.DEFAULT_SIP_VERSION.equals(beginning)) {
-            return false;
-        }
-        return true;
+        return isRequest(message, 0, message.length);
     }
-    
+
+    protected boolean isRequest(byte[] buffer, int offset, int length) {
+        return !startsWith(buffer, offset, offset + length, SIP_VERSION);
+    }
+
     protected void processMessage(byte[] message, InetAddress sourceIp,
             int sourcePort, String transport) throws IOException {
-        ByteArrayInputStream byteArrayInputStream =
-            new ByteArrayInputStream(message);
-        InputStreamReader inputStreamReader = new InputStreamReader(
-                byteArrayInputStream);
-        BufferedReader reader = new BufferedReader(inputStreamReader);
-        String startLine = reader.readLine();
-        while ("".equals(startLine)) {
-            startLine = reader.readLine();
-        }
-        if (startLine == null) {
+        processMessage(message, 0, message.length, sourceIp, sourcePort,
+                transport);
+    }
+
+    /**
+     * Processes a message read in a buffer owned by the caller. The buffer
+     * range is only read during this call, so the caller can reuse the same
+     * buffer for the next message. Keep-alives are handled on the calling
+     * thread, SIP messages are copied and handed to the transport manager
+     * {@link SipWorkerPool}, sharded by Call-ID. Messages from sources
+     * exceeding their rate are dropped before anything else, OPTIONS
+     * outside of a dialog are answered at once by the
+     * {@link OptionsResponder}. Requests refused by the
+     * {@link OverloadController} get a 503 without being queued, messages
+     * finding their worker queue full are dropped.
+     */
+    protected void processMessage(byte[] buffer, int offset, int length,
+            final InetAddress sourceIp, final int sourcePort, String transport)
+            throws IOException {
+        if (!transportManager.getSourceRateLimiter().tryAcquire(sourceIp)) {
+            return;
+        }
+        int end = offset + length;
+        int start = offset;
+        while (start < end && (buffer[start] == CR || buffer[start] == LF)) {
+            ++start;
+        }
+        if (start == end) {
+            // RFC5626 CRLF keep-alive, CRLFCRLF is a ping, CRLF a pong
+            transportManager.keepAliveReceived(new SipTransportConnection(
+                    config.getLocalInetAddress(), port, sourceIp, sourcePort,
+                    transport), length >= 2 * RFC3261.CRLF.length());
+            return;
+        }
+        if (!startLineContainsSipVersion(buffer, start, end)) {
+            // not echoed, this would make us a traffic reflector
+            logger.debug("discarding non SIP datagram from "
+                    + sourceIp.getHostAddress() + "/" + sourcePort);
             return;
         }
-        if (!startLine.contains(RFC3261.DEFAULT_SIP_VERSION)) {
-            // keep-alive, send back to sender
-            SipTransportConnection sipTransportConnection =
-                new SipTransportConnection(config.getLocalInetAddress(),
-                        port, sourceIp, sourcePort, transport);
-            MessageSender messageSender = transportManager.getMessageSender(
-                    sipTransportConnection);
-            if (messageSender != null) {
-                messageSender.sendBytes(message);
+        if (logger.isNetworkTraceEnabled()) {
+            StringBuffer direction = new StringBuffer();
+            direction.append("RECEIVED from ").append(sourceIp.getHostAddress());
+            direction.append("/").append(sourcePort);
+            logger.traceNetwork(new String(buffer, offset, length),
+                    direction.toString());
+        }
+        OptionsResponder optionsResponder =
+            transportManager.getOptionsResponder();
+        if (optionsResponder != null
+                && RFC3261.TRANSPORT_UDP.equals(transport)) {
+            StatelessResponder.Response response = optionsResponder
+                .buildResponse(buffer, start, end, sourceIp, sourcePort);
+            if (response != null && sendStateless(response, sourceIp,
+                    sourcePort, transport)) {
+                return;
+            }
+        }
+        final RawSipMessage rawSipMessage = RawSipMessage.scan(buffer, start,
+                end - start);
+        OverloadController overloadController =
+            transportManager.getOverloadController();
+        if (!overloadController.admit(rawSipMessage)) {
+            StatelessResponder.Response response = overloadController
+                .buildRejection(buffer, start, end, transport, sourceIp,
+                        sourcePort);
+            if (response == null || !sendStateless(response, sourceIp,
+                    sourcePort, transport)) {
+                logger.debug("overload, discarding request from "
+                        + sourceIp.getHostAddress() + "/" + sourcePort);
             }
             return;
         }
-        StringBuffer direction = new StringBuffer();
-        direction.append("RECEIVED from ").append(sourceIp.getHostAddress());
-        direction.append("/").append(sourcePort);
-        logger.traceNetwork(new String(message),
-                direction.toString());
+        final byte[] message = Arrays.copyOfRange(buffer, start, end);
+        boolean queued = transportManager.getSipWorkerPool().offer(
+                rawSipMessage.getShardKey(), new Runnable() {
+                    @Override
+                    public void run() {
+                        if (absorbRetransmission(rawSipMessage)) {
+                            return;
+                        }
+                        try {
+                            processSipMessage(message, sourceIp, sourcePort);
+                        } catch (IOException e) {
+                            logger.error("input/output error", e);
+                        }
+                    }
+                });
+        if (!queued) {
+            logger.debug("worker queue full, discarding message from "
+                    + sourceIp.getHostAddress() + "/" + sourcePort);
+        }
+    }
+
+    /**
+     * Sends a response built without transaction back to the source of the
+     * request: from the receiving socket over UDP, on the connection of the
+     * request over TCP.
+     * 
+     * @return false if the response could not be sent
+     */
+    private boolean sendStateless(StatelessResponder.Response response,
+            InetAddress sourceIp, int sourcePort, String transport)
+            throws IOException {
+        boolean sent;
+        if (RFC3261.TRANSPORT_UDP.equals(transport)) {
+            sent = sendDatagram(response.getData(), sourceIp,
+                    response.getPort());
+        } else {
+            sent = transportManager.sendOnConnection(
+                    new SipTransportConnection(config.getLocalInetAddress(),
+                            port, sourceIp, sourcePort, transport),
+                    response.getData());
+        }
+        if (sent && logger.isNetworkTraceEnabled()) {
+            StringBuffer direction = new StringBuffer();
+            direction.append("SENT to ");
+            direction.append(sourceIp.getHostAddress());
+            direction.append("/").append(response.getPort());
+            logger.traceNetwork(new String(response.getData()),
+                    direction.toString());
+        }
+        return sent;
+    }
+
+    /**
+     * Sends a datagram from the socket on which this receiver listens,
+     * without going through a transaction.
+     * 
+     * @return false if this receiver cannot send datagrams
+     */
+    protected boolean sendDatagram(byte[] data, InetAddress inetAddress,
+            int port) throws IOException {
+        return false;
+    }
+
+    /**
+     * Hands a message matching a known transaction to this transaction
+     * without parsing it, when the transaction only needs to replay its
+     * last response or to absorb the message.
+     * 
+     * @return true if the message has been handled
+     */
+    private boolean absorbRetransmission(RawSipMessage rawSipMessage) {
+        String branchId = rawSipMessage.getBranch();
+        if (branchId == null) {
+            return false;
+        }
+        if (rawSipMessage.isRequest()) {
+            String method = rawSipMessage.getMethod();
+            if (rawSipMessage.getSipMethod() == SipMethod.ACK) {
+                method = RFC3261.METHOD_INVITE;
+            }
+            ServerTransaction serverTransaction =
+                transactionManager.getServerTransaction(branchId, method);
+            if (serverTransaction == null) {
+                return false;
+            }
+            logger.debug("request retransmission absorbed by "
+                    + serverTransaction);
+            serverTransaction.receivedRetransmission(
+                    rawSipMessage.getMethod());
+            return true;
+        }
+        ClientTransaction clientTransaction =
+            transactionManager.getClientTransaction(branchId,
+                    rawSipMessage.getCSeqMethod());
+        return clientTransaction != null
+            && clientTransaction.receivedRetransmission(
+                    rawSipMessage.getStatusCode());
+    }
+
+    /**
+     * Parses and dispatches a SIP message, called on a worker thread.
+     */
+    private void processSipMessage(byte[] message, InetAddress sourceIp,
+            int sourcePort) throws IOException {
         SipMessage sipMessage = null;
         try {
-            sipMessage = transportManager.sipParser.parse(
-                    new ByteArrayInputStream(message));
-        } catch (IOException e) {
-            logger.error("input/output error", e);
+            // message is the copy made by processMessage, owned by this
+            // worker
+            sipMessage = transportManager.sipParser.parseOwned(message);
         } catch (SipParserException e) {
             logger.error("SIP parser error", e);
         }
@@ -143,12 +299,21 @@ public abstract class MessageReceiver implements Runnable {
             String sentBy =
                 topVia.getParam(new SipHeaderParamName(RFC3261.PARAM_SENTBY));
             if (sentBy != null) {
-                int colonPos = sentBy.indexOf(RFC3261.TRANSPORT_PORT_SEP);
-                if (colonPos < 0) {
+                int colonPos;
+                if (sentBy.startsWith("[")) {
+                    colonPos = sentBy.indexOf(']') + 1;
+                } else {
+                    colonPos = sentBy.indexOf(RFC3261.TRANSPORT_PORT_SEP);
+                }
+                if (colonPos <= 0) {
                     colonPos = sentBy.length();
                 }
                 sentBy = sentBy.substring(0, colonPos);
-                if (!InetAddress.getByName(sentBy).equals(sourceIp)) {
+                // RFC3261 18.2.1, received is always added when sent-by is
+                // a domain name, no lookup needed
+                InetAddress sentByAddress =
+                    CachingAddressResolver.parseLiteral(sentBy);
+                if (sentByAddress == null || !sentByAddress.equals(sourceIp)) {
                     topVia.addParam(new SipHeaderParamName(
                             RFC3261.PARAM_RECEIVED),
                             sourceIp.getHostAddress());
@@ -186,6 +351,34 @@ public abstract class MessageReceiver implements Runnable {
         }
     }
     
+    private boolean startLineContainsSipVersion(byte[] buffer, int start,
+            int end) {
+        int lineEnd = start;
+        while (lineEnd < end && buffer[lineEnd] != CR
+                && buffer[lineEnd] != LF) {
+            ++lineEnd;
+        }
+        for (int i = start; i + SIP_VERSION.length <= lineEnd; ++i) {
+            if (startsWith(buffer, i, lineEnd, SIP_VERSION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] buffer, int start, int end,
+            byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (buffer[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public synchronized void setListening(boolean isListening) {
         this.isListening = isListening;
     }
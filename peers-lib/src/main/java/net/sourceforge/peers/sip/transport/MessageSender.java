@@ -21,9 +21,7 @@ package net.sourceforge.peers.sip.transport;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.TimerTask;
 
-import net.sourceforge.peers.Timer;
 import net.sourceforge.peers.Config;
 import net.sourceforge.peers.Logger;
 import net.sourceforge.peers.sip.RFC3261;
@@ -31,31 +29,31 @@ import net.sourceforge.peers.sip.RFC3261;
 
 public abstract class MessageSender {
 
-    public static final int KEEY_ALIVE_INTERVAL = 25; // seconds
-
     protected InetAddress inetAddress;
     protected int port;
     protected int localPort;
     private Config config;
     private String transportName;
-    private Timer timer;
+    private KeepAliveManager keepAliveManager;
+    private volatile long lastSent;
     protected Logger logger;
     
+    /**
+     * @param keepAliveManager manager pinging this sender flow when idle,
+     *        null if keep-alives are never used
+     */
     public MessageSender(int localPort, InetAddress inetAddress,
-            int port, Config config,
-            String transportName, Logger logger) {
+            int port, Config config, String transportName,
+            KeepAliveManager keepAliveManager, Logger logger) {
         super();
         this.localPort = localPort;
         this.inetAddress = inetAddress;
         this.port = port;
         this.config = config;
         this.transportName = transportName;
-        timer = new Timer(getClass().getSimpleName() + " "
-            + Timer.class.getSimpleName());
+        this.keepAliveManager = keepAliveManager;
         this.logger = logger;
-        //TODO check config
-        timer.scheduleAtFixedRate(new KeepAlive(), 0,
-                1000 * KEEY_ALIVE_INTERVAL);
+        lastSent = System.currentTimeMillis();
     }
     
     public abstract void sendMessage(SipMessage sipMessage) throws IOException;
@@ -83,21 +81,24 @@ public abstract class MessageSender {
     }
 
     public void stopKeepAlives() {
-        timer.cancel();
+        if (keepAliveManager != null) {
+            keepAliveManager.remove(this);
+        }
     }
 
-    class KeepAlive extends TimerTask {
-
-        @Override
-        public void run() {
-            byte[] bytes = (RFC3261.CRLF + RFC3261.CRLF).getBytes();
-            try {
-                sendBytes(bytes);
-            } catch (IOException e) {
-                logger.error(e.getMessage(), e);
-            }
-        }
+    /**
+     * To be called by {@link #sendMessage(SipMessage)}, keep-alives are
+     * only sent on idle flows.
+     */
+    protected void messageSent() {
+        lastSent = System.currentTimeMillis();
+    }
 
+    /**
+     * @return time in milliseconds at which the last SIP message was sent
+     */
+    public long getLastSent() {
+        return lastSent;
     }
 
 }
@@ -0,0 +1,307 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+package net.sourceforge.peers.sip.transport;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.peers.Logger;
+
+/**
+ * Bounded cache of message senders, one per flow: local address and port,
+ * remote address and port, and transport. When the cache is full, least
+ * recently used senders are evicted, and {@link #evictIdle(long)} evicts
+ * senders unused for the idle timeout. A sender is used when it is looked
+ * up or when it sends a message, senders are often held by transactions
+ * and dialogs which send without looking them up again. Keep-alives of evicted senders are
+ * stopped, a sender is created again on next use.
+ */
+public class MessageSenderCache {
+
+    public static final int DEFAULT_MAX_SIZE = 1024;
+    // default registration refresh must not evict the registrar flow
+    public static final long DEFAULT_IDLE_TIMEOUT = 3600000; // ms
+
+    private ConcurrentHashMap<Flow, Entry> entries;
+    private volatile int maxSize;
+    private volatile long idleTimeout;
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong evictions;
+    private Logger logger;
+
+    public MessageSenderCache(Logger logger) {
+        this(DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT, logger);
+    }
+
+    /**
+     * @param maxSize maximum number of cached senders
+     * @param idleTimeout milliseconds without use after which a sender is
+     *        evicted by {@link #evictIdle(long)}
+     */
+    public MessageSenderCache(int maxSize, long idleTimeout, Logger logger) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("cache size must be positive");
+        }
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.logger = logger;
+        entries = new ConcurrentHashMap<Flow, Entry>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+    }
+
+    public MessageSender get(SipTransportConnection conn) {
+        Entry entry = entries.get(new Flow(conn));
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.lastUse = System.currentTimeMillis();
+        return entry.messageSender;
+    }
+
+    /**
+     * Adds a sender unless another thread has added a sender for the same
+     * flow meanwhile. In this case, keep-alives of the sender provided are
+     * stopped and the cached sender is returned.
+     * 
+     * @return the sender to use for this flow
+     */
+    public MessageSender putIfAbsent(SipTransportConnection conn,
+            MessageSender messageSender) {
+        Entry entry = new Entry(messageSender);
+        Entry previous = entries.putIfAbsent(new Flow(conn), entry);
+        if (previous != null) {
+            messageSender.stopKeepAlives();
+            previous.lastUse = entry.lastUse;
+            return previous.messageSender;
+        }
+        if (entries.size() > maxSize) {
+            evictLeastRecentlyUsed();
+        }
+        return messageSender;
+    }
+
+    /**
+     * Removes a sender and stops its keep-alives.
+     */
+    public void remove(MessageSender messageSender) {
+        for (Map.Entry<Flow, Entry> mapEntry: entries.entrySet()) {
+            if (mapEntry.getValue().messageSender == messageSender) {
+                evict(mapEntry.getKey(), mapEntry.getValue());
+            }
+        }
+    }
+
+    public List<MessageSender> values() {
+        List<MessageSender> messageSenders = new ArrayList<MessageSender>();
+        for (Entry entry: entries.values()) {
+            messageSenders.add(entry.messageSender);
+        }
+        return messageSenders;
+    }
+
+    /**
+     * Evicts senders unused for more than the idle timeout.
+     * 
+     * @param now current time in milliseconds
+     * @return number of evicted senders
+     */
+    public int evictIdle(long now) {
+        int evicted = 0;
+        for (Map.Entry<Flow, Entry> mapEntry: entries.entrySet()) {
+            if (now - mapEntry.getValue().getLastUse() > idleTimeout
+                    && evict(mapEntry.getKey(), mapEntry.getValue())) {
+                ++evicted;
+            }
+        }
+        if (evicted > 0) {
+            logger.debug("evicted " + evicted + " idle message senders");
+        }
+        return evicted;
+    }
+
+    // evicts one eighth of the cache at once so that a full cache is not
+    // scanned on each new flow
+    private void evictLeastRecentlyUsed() {
+        List<Map.Entry<Flow, Entry>> snapshot =
+            new ArrayList<Map.Entry<Flow, Entry>>(entries.entrySet());
+        int target = maxSize - maxSize / 8;
+        int excess = snapshot.size() - target;
+        if (excess <= 0) {
+            return;
+        }
+        // senders keep sending while sorting, sort on fixed times
+        final Map<Flow, Long> lastUses = new HashMap<Flow, Long>();
+        for (Map.Entry<Flow, Entry> mapEntry: snapshot) {
+            lastUses.put(mapEntry.getKey(), mapEntry.getValue().getLastUse());
+        }
+        Collections.sort(snapshot, new Comparator<Map.Entry<Flow, Entry>>() {
+            @Override
+            public int compare(Map.Entry<Flow, Entry> e1,
+                    Map.Entry<Flow, Entry> e2) {
+                return Long.compare(lastUses.get(e1.getKey()),
+                        lastUses.get(e2.getKey()));
+            }
+        });
+        for (int i = 0; i < excess; ++i) {
+            Map.Entry<Flow, Entry> mapEntry = snapshot.get(i);
+            evict(mapEntry.getKey(), mapEntry.getValue());
+        }
+        logger.debug("message sender cache full, evicted " + excess
+                + " least recently used senders");
+    }
+
+    private boolean evict(Flow flow, Entry entry) {
+        if (!entries.remove(flow, entry)) {
+            return false;
+        }
+        entry.messageSender.stopKeepAlives();
+        evictions.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes all senders and stops their keep-alives, not counted as
+     * evictions.
+     */
+    public void clear() {
+        for (Map.Entry<Flow, Entry> mapEntry: entries.entrySet()) {
+            if (entries.remove(mapEntry.getKey(), mapEntry.getValue())) {
+                mapEntry.getValue().messageSender.stopKeepAlives();
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("cache size must be positive");
+        }
+        this.maxSize = maxSize;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    static class Entry {
+
+        final MessageSender messageSender;
+        volatile long lastUse;
+
+        Entry(MessageSender messageSender) {
+            this.messageSender = messageSender;
+            lastUse = System.currentTimeMillis();
+        }
+
+        long getLastUse() {
+            return Math.max(lastUse, messageSender.getLastSent());
+        }
+    }
+
+    /**
+     * Unlike {@link SipTransportConnection}, which identifies udp sockets
+     * by their local address and port only, a flow always includes the
+     * remote address and port.
+     */
+    static class Flow {
+
+        private final InetAddress localInetAddress;
+        private final int localPort;
+        private final InetAddress remoteInetAddress;
+        private final int remotePort;
+        private final String transport;
+        private final int hash;
+
+        Flow(SipTransportConnection conn) {
+            localInetAddress = conn.getLocalInetAddress();
+            localPort = conn.getLocalPort();
+            remoteInetAddress = conn.getRemoteInetAddress();
+            remotePort = conn.getRemotePort();
+            transport = conn.getTransport().toUpperCase();
+            int h = localPort;
+            h = 31 * h + remotePort;
+            h = 31 * h + (remoteInetAddress == null ? 0
+                    : remoteInetAddress.hashCode());
+            h = 31 * h + transport.hashCode();
+            hash = h;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Flow)) {
+                return false;
+            }
+            Flow other = (Flow)obj;
+            return localPort == other.localPort
+                && remotePort == other.remotePort
+                && transport.equals(other.transport)
+                && equals(localInetAddress, other.localInetAddress)
+                && equals(remoteInetAddress, other.remoteInetAddress);
+        }
+
+        private static boolean equals(InetAddress inetAddress,
+                InetAddress other) {
+            if (inetAddress == null) {
+                return other == null;
+            }
+            return inetAddress.equals(other);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.net.InetAddress;
+
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.Utils;
+
+/**
+ * Stateless answer to OPTIONS requests received outside of a dialog over
+ * UDP, typically keep-alive pings of proxies. The 200 OK trailer holds
+ * Allow, Accept and Supported. A retransmitted OPTIONS is simply answered
+ * again. With a {@link UserPartFilter}, OPTIONS sent to a user part it
+ * does not accept, or to a request-URI without user part, go through the
+ * regular processing.
+ */
+public class OptionsResponder extends StatelessResponder {
+
+    private static final byte[] OPTIONS =
+        RawSipMessage.bytes(RFC3261.METHOD_OPTIONS + " ", false);
+
+    private volatile UserPartFilter userPartFilter;
+
+    /**
+     * @param allow value of the Allow header
+     * @param accept value of the Accept header
+     * @param supported value of the Supported header, no Supported header
+     *        if null
+     */
+    public OptionsResponder(String allow, String accept, String supported) {
+        super(RFC3261.CODE_200_OK, RFC3261.REASON_200_OK,
+                headers(allow, accept, supported));
+    }
+
+    private static String headers(String allow, String accept,
+            String supported) {
+        StringBuffer buf = new StringBuffer();
+        buf.append(RFC3261.HDR_ALLOW).append(": ").append(allow);
+        buf.append(RFC3261.CRLF);
+        buf.append(RFC3261.HDR_ACCEPT).append(": ").append(accept);
+        buf.append(RFC3261.CRLF);
+        if (supported != null) {
+            buf.append(RFC3261.HDR_SUPPORTED).append(": ").append(supported);
+            buf.append(RFC3261.CRLF);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Builds the 200 OK answering the request in buffer.
+     *
+     * @param start first byte of the start line
+     * @param end end of the message
+     * @return null if the message is not an OPTIONS outside of a dialog, or
+     *         if it must go through the regular processing
+     */
+    public Response buildResponse(byte[] buffer, int start, int end,
+            InetAddress sourceIp, int sourcePort) {
+        if (!RawSipMessage.startsWith(buffer, start, end, OPTIONS)) {
+            return null;
+        }
+        UserPartFilter userPartFilter = this.userPartFilter;
+        if (userPartFilter != null) {
+            String userPart = Utils.getUserPart(
+                    getRequestUri(buffer, start, end));
+            if (userPart == null || !userPartFilter.accept(userPart)) {
+                return null;
+            }
+        }
+        return respond(buffer, start, end, RFC3261.TRANSPORT_UDP, sourceIp,
+                sourcePort);
+    }
+
+    private static String getRequestUri(byte[] buffer, int start, int end) {
+        int uriStart = start + OPTIONS.length;
+        int uriEnd = uriStart;
+        while (uriEnd < end && buffer[uriEnd] != ' '
+                && buffer[uriEnd] != '\r') {
+            ++uriEnd;
+        }
+        return new String(buffer, uriStart, uriEnd - uriStart);
+    }
+
+    public UserPartFilter getUserPartFilter() {
+        return userPartFilter;
+    }
+
+    /**
+     * @param userPartFilter null to answer OPTIONS whatever their
+     *        request-URI
+     */
+    public void setUserPartFilter(UserPartFilter userPartFilter) {
+        this.userPartFilter = userPartFilter;
+    }
+
+}
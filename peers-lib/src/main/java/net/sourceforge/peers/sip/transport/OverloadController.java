@@ -0,0 +1,180 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.SipMethod;
+
+/**
+ * Admission control of received requests, applied by
+ * {@link MessageReceiver} before messages are queued. Overload is detected
+ * from the number of messages waiting in the {@link SipWorkerPool}, from
+ * the time they wait before being processed and from the time their
+ * processing takes. A slow task, waiting on a lock or on the network,
+ * delays a whole worker before its queue grows. During overload, new INVITE
+ * and REGISTER requests are refused with a stateless 503 Service
+ * Unavailable, so that the remaining capacity goes to calls already
+ * accepted: requests within a dialog, CANCEL, ACK and responses are always
+ * admitted.
+ *
+ * Overload starts when a threshold is exceeded and ends when all values go
+ * below half of their threshold, so that admission does not flap.
+ */
+public class OverloadController {
+
+    public static final int DEFAULT_MAX_QUEUED_TASKS = 500;
+    public static final long DEFAULT_MAX_QUEUE_DELAY = 200; // ms
+    public static final long DEFAULT_MAX_PROCESSING_TIME = 50; // ms
+    public static final int DEFAULT_RETRY_AFTER = 5; // s
+
+    private SipWorkerPool sipWorkerPool;
+    private volatile int maxQueuedTasks;
+    private volatile long maxQueueDelay;
+    private volatile long maxProcessingTime;
+    private volatile int retryAfter;
+    private volatile boolean overloaded;
+    private volatile StatelessResponder rejectionResponder;
+    private AtomicLong rejectedCount;
+    private Logger logger;
+
+    public OverloadController(SipWorkerPool sipWorkerPool, Logger logger) {
+        this.sipWorkerPool = sipWorkerPool;
+        this.logger = logger;
+        maxQueuedTasks = DEFAULT_MAX_QUEUED_TASKS;
+        maxQueueDelay = DEFAULT_MAX_QUEUE_DELAY;
+        maxProcessingTime = DEFAULT_MAX_PROCESSING_TIME;
+        setRetryAfter(DEFAULT_RETRY_AFTER);
+        rejectedCount = new AtomicLong();
+    }
+
+    /**
+     * @return false if the message should be refused with a 503 Service
+     *         Unavailable
+     */
+    public boolean admit(RawSipMessage rawSipMessage) {
+        if (!rawSipMessage.isRequest() || rawSipMessage.hasToTag()) {
+            return true;
+        }
+        SipMethod sipMethod = rawSipMessage.getSipMethod();
+        if (sipMethod != SipMethod.INVITE
+                && sipMethod != SipMethod.REGISTER) {
+            return true;
+        }
+        if (!isOverloaded()) {
+            return true;
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    public boolean isOverloaded() {
+        int queuedTasks = sipWorkerPool.getQueuedTaskCount();
+        long queueDelay = sipWorkerPool.getQueueDelay();
+        long processingTime = sipWorkerPool.getProcessingTime();
+        if (overloaded) {
+            if (queuedTasks <= maxQueuedTasks / 2
+                    && queueDelay <= maxQueueDelay / 2
+                    && processingTime <= maxProcessingTime / 2) {
+                overloaded = false;
+                logger.debug("end of overload, " + rejectedCount.get()
+                        + " requests rejected so far");
+            }
+        } else if (queuedTasks > maxQueuedTasks
+                || queueDelay > maxQueueDelay
+                || processingTime > maxProcessingTime) {
+            overloaded = true;
+            logger.debug("overload: " + queuedTasks + " queued messages, "
+                    + queueDelay + " ms queue delay, " + processingTime
+                    + " ms processing time");
+        }
+        return overloaded;
+    }
+
+    /**
+     * Builds the 503 refusing the request in buffer, with a Retry-After
+     * header (RFC3261 21.5.4). No transaction is created for it.
+     *
+     * @return null if the request cannot be answered statelessly
+     */
+    public StatelessResponder.Response buildRejection(byte[] buffer,
+            int start, int end, String transport, InetAddress sourceIp,
+            int sourcePort) {
+        return rejectionResponder.respond(buffer, start, end, transport,
+                sourceIp, sourcePort);
+    }
+
+    /**
+     * @return number of requests refused since creation
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getMaxQueuedTasks() {
+        return maxQueuedTasks;
+    }
+
+    public void setMaxQueuedTasks(int maxQueuedTasks) {
+        this.maxQueuedTasks = maxQueuedTasks;
+    }
+
+    /**
+     * @return queue delay above which overload starts, in milliseconds
+     */
+    public long getMaxQueueDelay() {
+        return maxQueueDelay;
+    }
+
+    public void setMaxQueueDelay(long maxQueueDelay) {
+        this.maxQueueDelay = maxQueueDelay;
+    }
+
+    /**
+     * @return message processing time above which overload starts, in
+     *         milliseconds
+     */
+    public long getMaxProcessingTime() {
+        return maxProcessingTime;
+    }
+
+    public void setMaxProcessingTime(long maxProcessingTime) {
+        this.maxProcessingTime = maxProcessingTime;
+    }
+
+    /**
+     * @return value of the Retry-After header of 503 responses, in seconds
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+        rejectionResponder = new StatelessResponder(
+                RFC3261.CODE_503_SERVICE_UNAVAILABLE,
+                RFC3261.REASON_503_SERVICE_UNAVAILABLE,
+                RFC3261.HDR_RETRY_AFTER + ": " + retryAfter + RFC3261.CRLF);
+    }
+
+}
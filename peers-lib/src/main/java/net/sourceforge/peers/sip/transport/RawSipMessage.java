@@ -0,0 +1,392 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+package net.sourceforge.peers.sip.transport;
+
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.SipMethod;
+
+/**
+ * Fields read straight from the bytes of a received message in a single
+ * pass over its start line and headers: method or status code, top Via
+ * branch, CSeq, presence of a To tag and a hash of the Call-ID. This is enough to shard the
+ * message and to recognize retransmissions of known transactions without
+ * building a {@link SipMessage}. Fields which cannot be found are null,
+ * -1 for numbers.
+ */
+public class RawSipMessage {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte SP = ' ';
+    private static final byte HT = '\t';
+    private static final byte COLON = ':';
+    private static final byte COMMA = ',';
+    private static final byte SEMICOLON = ';';
+    private static final byte EQUALS = '=';
+    private static final byte LAQUOT = '<';
+    private static final byte RAQUOT = '>';
+
+    private static final byte[] SIP_VERSION =
+        bytes(RFC3261.DEFAULT_SIP_VERSION, false);
+    private static final byte[] CALL_ID = bytes(RFC3261.HDR_CALLID, true);
+    private static final byte[] CALL_ID_COMPACT =
+        bytes(String.valueOf(RFC3261.COMPACT_HDR_CALLID), true);
+    private static final byte[] VIA = bytes(RFC3261.HDR_VIA, true);
+    private static final byte[] VIA_COMPACT =
+        bytes(String.valueOf(RFC3261.COMPACT_HDR_VIA), true);
+    private static final byte[] CSEQ = bytes(RFC3261.HDR_CSEQ, true);
+    private static final byte[] TO = bytes(RFC3261.HDR_TO, true);
+    private static final byte[] TO_COMPACT =
+        bytes(String.valueOf(RFC3261.COMPACT_HDR_TO), true);
+    private static final byte[] BRANCH = bytes(RFC3261.PARAM_BRANCH, true);
+    private static final byte[] TAG = bytes(RFC3261.PARAM_TAG, true);
+
+    /**
+     * Scans the message range, the buffer is not referenced afterwards.
+     */
+    public static RawSipMessage scan(byte[] buffer, int offset, int length) {
+        RawSipMessage rawSipMessage = new RawSipMessage();
+        rawSipMessage.parse(buffer, offset, offset + length);
+        return rawSipMessage;
+    }
+
+    private boolean request;
+    private String method;
+    private SipMethod sipMethod;
+    private int statusCode;
+    private String branch;
+    private long cseqNumber;
+    private String cseqMethod;
+    private boolean toFound;
+    private boolean toTag;
+    private boolean callIdFound;
+    private int shardKey;
+
+    RawSipMessage() {
+        statusCode = -1;
+        cseqNumber = -1;
+    }
+
+    private void parse(byte[] buffer, int start, int end) {
+        int lineEnd = lineEnd(buffer, start, end);
+        parseStartLine(buffer, start, lineEnd);
+        boolean viaFound = false;
+        int viaHash = 0;
+        int pos = nextLine(buffer, lineEnd, end);
+        while (pos < end) {
+            lineEnd = lineEnd(buffer, pos, end);
+            if (lineEnd == pos) {
+                // end of headers
+                break;
+            }
+            int colon = indexOf(buffer, pos, lineEnd, COLON);
+            if (colon < lineEnd && buffer[pos] != SP && buffer[pos] != HT) {
+                int nameEnd = trimEnd(buffer, pos, colon);
+                int valueStart = trimStart(buffer, colon + 1, lineEnd);
+                int valueEnd = trimEnd(buffer, valueStart, lineEnd);
+                if (!callIdFound
+                        && (nameEquals(buffer, pos, nameEnd, CALL_ID)
+                        || nameEquals(buffer, pos, nameEnd, CALL_ID_COMPACT))) {
+                    callIdFound = true;
+                    shardKey = hash(buffer, valueStart, valueEnd);
+                } else if (!viaFound
+                        && (nameEquals(buffer, pos, nameEnd, VIA)
+                        || nameEquals(buffer, pos, nameEnd, VIA_COMPACT))) {
+                    viaFound = true;
+                    viaHash = hash(buffer, valueStart, valueEnd);
+                    parseTopVia(buffer, valueStart, valueEnd);
+                } else if (cseqNumber < 0
+                        && nameEquals(buffer, pos, nameEnd, CSEQ)) {
+                    parseCSeq(buffer, valueStart, valueEnd);
+                } else if (!toFound
+                        && (nameEquals(buffer, pos, nameEnd, TO)
+                        || nameEquals(buffer, pos, nameEnd, TO_COMPACT))) {
+                    toFound = true;
+                    toTag = hasTag(buffer, valueStart, valueEnd);
+                }
+            }
+            pos = nextLine(buffer, lineEnd, end);
+        }
+        if (!callIdFound) {
+            shardKey = viaHash;
+        }
+    }
+
+    private void parseStartLine(byte[] buffer, int start, int end) {
+        if (startsWith(buffer, start, end, SIP_VERSION)) {
+            int codeStart = trimStart(buffer, start + SIP_VERSION.length, end);
+            int codeEnd = indexOf(buffer, codeStart, end, SP);
+            if (codeEnd - codeStart == 3) {
+                statusCode = (int)parseNumber(buffer, codeStart, codeEnd);
+            }
+            return;
+        }
+        request = true;
+        int methodEnd = indexOf(buffer, start, end, SP);
+        method = methodString(buffer, start, methodEnd);
+        sipMethod = SipMethod.fromString(method);
+    }
+
+    private void parseTopVia(byte[] buffer, int start, int end) {
+        // only the first value of a comma separated list
+        end = indexOf(buffer, start, end, COMMA);
+        int pos = indexOf(buffer, start, end, SEMICOLON);
+        while (pos < end) {
+            int paramStart = trimStart(buffer, pos + 1, end);
+            int paramEnd = indexOf(buffer, paramStart, end, SEMICOLON);
+            int equals = indexOf(buffer, paramStart, paramEnd, EQUALS);
+            if (equals < paramEnd && nameEquals(buffer, paramStart,
+                    trimEnd(buffer, paramStart, equals), BRANCH)) {
+                int valueStart = trimStart(buffer, equals + 1, paramEnd);
+                int valueEnd = trimEnd(buffer, valueStart, paramEnd);
+                branch = new String(buffer, valueStart, valueEnd - valueStart);
+                return;
+            }
+            pos = paramEnd;
+        }
+    }
+
+    private void parseCSeq(byte[] buffer, int start, int end) {
+        int numberEnd = start;
+        while (numberEnd < end && buffer[numberEnd] != SP
+                && buffer[numberEnd] != HT) {
+            ++numberEnd;
+        }
+        long number = parseNumber(buffer, start, numberEnd);
+        if (number < 0) {
+            return;
+        }
+        cseqNumber = number;
+        int methodStart = trimStart(buffer, numberEnd, end);
+        if (methodStart < end) {
+            cseqMethod = methodString(buffer, methodStart, end);
+        }
+    }
+
+    /**
+     * Returns the constant string of standard methods, so that no string is
+     * allocated for them.
+     */
+    private static String methodString(byte[] buffer, int start, int end) {
+        for (SipMethod sipMethod: SipMethod.values()) {
+            String name = sipMethod.name();
+            if (name.length() != end - start) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length() && buffer[start + i] == name.charAt(i)) {
+                ++i;
+            }
+            if (i == name.length()) {
+                return name;
+            }
+        }
+        return new String(buffer, start, end - start);
+    }
+
+    private static long parseNumber(byte[] buffer, int start, int end) {
+        if (start == end || end - start > 10) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = start; i < end; ++i) {
+            byte b = buffer[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            number = number * 10 + b - '0';
+        }
+        return number;
+    }
+
+    /**
+     * @return true if the name-addr or addr-spec in range has a tag
+     *         parameter, parameters of a URI in angle brackets are ignored
+     */
+    static boolean hasTag(byte[] buffer, int start, int end) {
+        int pos = indexOf(buffer, start, end, LAQUOT);
+        if (pos < end) {
+            pos = indexOf(buffer, pos, end, RAQUOT);
+        } else {
+            pos = start;
+        }
+        pos = indexOf(buffer, pos, end, SEMICOLON);
+        while (pos < end) {
+            int paramStart = trimStart(buffer, pos + 1, end);
+            int paramEnd = indexOf(buffer, paramStart, end, SEMICOLON);
+            int equals = indexOf(buffer, paramStart, paramEnd, EQUALS);
+            if (nameEquals(buffer, paramStart,
+                    trimEnd(buffer, paramStart, equals), TAG)) {
+                return true;
+            }
+            pos = paramEnd;
+        }
+        return false;
+    }
+
+    static int lineEnd(byte[] buffer, int pos, int end) {
+        while (pos < end && buffer[pos] != CR && buffer[pos] != LF) {
+            ++pos;
+        }
+        return pos;
+    }
+
+    static int nextLine(byte[] buffer, int lineEnd, int end) {
+        int pos = lineEnd;
+        if (pos < end && buffer[pos] == CR) {
+            ++pos;
+        }
+        if (pos < end && buffer[pos] == LF) {
+            ++pos;
+        }
+        return pos;
+    }
+
+    static int indexOf(byte[] buffer, int start, int end, byte b) {
+        while (start < end && buffer[start] != b) {
+            ++start;
+        }
+        return start;
+    }
+
+    static int trimStart(byte[] buffer, int start, int end) {
+        while (start < end && (buffer[start] == SP || buffer[start] == HT)) {
+            ++start;
+        }
+        return start;
+    }
+
+    static int trimEnd(byte[] buffer, int start, int end) {
+        while (end > start && (buffer[end - 1] == SP
+                || buffer[end - 1] == HT)) {
+            --end;
+        }
+        return end;
+    }
+
+    static boolean startsWith(byte[] buffer, int start, int end,
+            byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (buffer[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean nameEquals(byte[] buffer, int start, int end,
+            byte[] lowerCaseName) {
+        if (end - start != lowerCaseName.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseName.length; ++i) {
+            byte b = buffer[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] buffer, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; ++i) {
+            hash = 31 * hash + buffer[i];
+        }
+        return hash;
+    }
+
+    static byte[] bytes(String s, boolean lowerCase) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; ++i) {
+            char c = s.charAt(i);
+            bytes[i] = (byte)(lowerCase ? Character.toLowerCase(c) : c);
+        }
+        return bytes;
+    }
+
+    public boolean isRequest() {
+        return request;
+    }
+
+    /**
+     * @return request method, null for responses
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return request method, null for responses and extension methods
+     */
+    public SipMethod getSipMethod() {
+        return sipMethod;
+    }
+
+    /**
+     * @return status code of a response, -1 for requests
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public long getCSeqNumber() {
+        return cseqNumber;
+    }
+
+    public String getCSeqMethod() {
+        return cseqMethod;
+    }
+
+    /**
+     * @return true if the To header has a tag, the request is within a
+     *         dialog
+     */
+    public boolean hasToTag() {
+        return toTag;
+    }
+
+    /**
+     * Hash of the Call-ID value, or of the top Via value when the message
+     * has no Call-ID, so that all messages of a dialog get the same key.
+     */
+    public int getShardKey() {
+        return shardKey;
+    }
+
+    /**
+     * Key of the messages received for this Call-ID, tasks submitted with
+     * it run after or before them, never concurrently.
+     */
+    public static int getShardKey(String callId) {
+        // same as hash() for the ascii characters allowed in a Call-ID
+        return callId.hashCode();
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.util.List;
+
+/**
+ * NAPTR and SRV lookups used by {@link SipServerLocator}. The default
+ * implementation is {@link JndiSipDnsResolver}, tests can use an in-process
+ * implementation returning static records.
+ */
+public interface SipDnsResolver {
+
+    /**
+     * May block during DNS lookups.
+     * 
+     * @return NAPTR records of domain, empty if there is none or the lookup
+     *         failed
+     */
+    public List<NaptrRecord> lookupNaptr(String domain);
+
+    /**
+     * May block during DNS lookups.
+     * 
+     * @param name service name such as _sip._udp.example.com
+     * @return SRV records of name, empty if there is none or the lookup
+     *         failed
+     */
+    public List<SrvRecord> lookupSrv(String name);
+
+}
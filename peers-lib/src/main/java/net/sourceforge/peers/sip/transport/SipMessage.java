@@ -20,16 +20,53 @@
 package net.sourceforge.peers.sip.transport;
 
 import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.SipMethod;
+import net.sourceforge.peers.sip.Utils;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldName;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldNames;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldValue;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderParamName;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaders;
+import net.sourceforge.peers.sip.syntaxencoding.SipSerializer;
 
 public abstract class SipMessage {
+
+    private static final SipHeaderParamName BRANCH =
+        new SipHeaderParamName(RFC3261.PARAM_BRANCH);
+    private static final SipHeaderParamName TAG =
+        new SipHeaderParamName(RFC3261.PARAM_TAG);
+
+    private static final SipSerializer SIP_SERIALIZER = new SipSerializer();
+
+    // slots of the derived values cache
+    private static final int CACHE_BRANCH = 0;
+    private static final int CACHE_CSEQ = 1;
+    private static final int CACHE_CALLID = 2;
+    private static final int CACHE_FROM_TAG = 3;
+    private static final int CACHE_TO_TAG = 4;
     
     protected String sipVersion;
     protected SipHeaders sipHeaders;
     protected byte[] body;
 
+    // header values each cached value was derived from, with their
+    // modification count at that time
+    private SipHeaderFieldValue[] cacheSources = new SipHeaderFieldValue[5];
+    private int[] cacheModificationCounts = new int[5];
+    private String branch;
+    private int cseqNumber;
+    private String cseqMethodName;
+    private SipMethod cseqMethod;
+    private String callId;
+    private String fromTag;
+    private String toTag;
+
+    // wire image, valid while headers and body are the same
+    private byte[] bytes;
+    private SipHeaders bytesHeaders;
+    private long bytesModificationCount;
+    private byte[] bytesBody;
+
     public SipMessage() {
         sipVersion = RFC3261.DEFAULT_SIP_VERSION;
         sipHeaders = new SipHeaders();
@@ -53,7 +90,7 @@ public abstract class SipMessage {
 
     public void setBody(byte[] body) {
         SipHeaderFieldName contentLengthName =
-            new SipHeaderFieldName(RFC3261.HDR_CONTENT_LENGTH);
+            SipHeaderFieldNames.CONTENT_LENGTH;
         SipHeaderFieldValue contentLengthValue =
             sipHeaders.get(contentLengthName);
         if (contentLengthValue == null) {
@@ -66,6 +103,125 @@ public abstract class SipMessage {
         this.body = body;
     }
 
+    /**
+     * @return branch parameter of the topmost Via header, or null
+     */
+    public synchronized String getBranch() {
+        SipHeaderFieldValue via = Utils.getTopVia(this);
+        if (!isCached(CACHE_BRANCH, via)) {
+            branch = via == null ? null : via.getParam(BRANCH);
+            cached(CACHE_BRANCH, via);
+        }
+        return branch;
+    }
+
+    /**
+     * @return CSeq sequence number, or -1 if absent or invalid
+     */
+    public synchronized int getCSeqNumber() {
+        parseCSeq();
+        return cseqNumber;
+    }
+
+    /**
+     * @return CSeq method name, extension methods included, or null
+     */
+    public synchronized String getCSeqMethodName() {
+        parseCSeq();
+        return cseqMethodName;
+    }
+
+    /**
+     * @return CSeq method, or null for an extension method
+     */
+    public synchronized SipMethod getCSeqMethod() {
+        parseCSeq();
+        return cseqMethod;
+    }
+
+    public synchronized String getCallId() {
+        SipHeaderFieldValue value = sipHeaders.get(SipHeaderFieldNames.CALLID);
+        if (!isCached(CACHE_CALLID, value)) {
+            callId = value == null ? null : value.getValue();
+            cached(CACHE_CALLID, value);
+        }
+        return callId;
+    }
+
+    public synchronized String getFromTag() {
+        SipHeaderFieldValue from = sipHeaders.get(SipHeaderFieldNames.FROM);
+        if (!isCached(CACHE_FROM_TAG, from)) {
+            fromTag = from == null ? null : from.getParam(TAG);
+            cached(CACHE_FROM_TAG, from);
+        }
+        return fromTag;
+    }
+
+    public synchronized String getToTag() {
+        SipHeaderFieldValue to = sipHeaders.get(SipHeaderFieldNames.TO);
+        if (!isCached(CACHE_TO_TAG, to)) {
+            toTag = to == null ? null : to.getParam(TAG);
+            cached(CACHE_TO_TAG, to);
+        }
+        return toTag;
+    }
+
+    private void parseCSeq() {
+        SipHeaderFieldValue cseq = sipHeaders.get(SipHeaderFieldNames.CSEQ);
+        if (isCached(CACHE_CSEQ, cseq)) {
+            return;
+        }
+        cseqNumber = -1;
+        cseqMethodName = null;
+        cseqMethod = null;
+        if (cseq != null) {
+            String value = cseq.getValue().trim();
+            int spacePos = value.indexOf(' ');
+            if (spacePos > -1) {
+                try {
+                    cseqNumber = Integer.parseInt(value.substring(0,
+                            spacePos));
+                } catch (NumberFormatException e) {
+                    cseqNumber = -1;
+                }
+            }
+            cseqMethodName = value.substring(value.lastIndexOf(' ') + 1);
+            cseqMethod = SipMethod.fromString(cseqMethodName);
+        }
+        cached(CACHE_CSEQ, cseq);
+    }
+
+    // a missing header is never cached, its lookup is cheap
+    private boolean isCached(int slot, SipHeaderFieldValue source) {
+        return source != null && cacheSources[slot] == source
+            && cacheModificationCounts[slot]
+                == source.getModificationCount();
+    }
+
+    private void cached(int slot, SipHeaderFieldValue source) {
+        cacheSources[slot] = source;
+        if (source != null) {
+            cacheModificationCounts[slot] = source.getModificationCount();
+        }
+    }
+
+    /**
+     * @return the message as sent on the wire. The array is cached until a
+     * header or the body changes, it must not be modified.
+     */
+    public synchronized byte[] getBytes() {
+        long modificationCount = sipHeaders.getModificationCount();
+        if (bytes == null || bytesHeaders != sipHeaders
+                || bytesModificationCount != modificationCount
+                || bytesBody != body) {
+            bytes = SIP_SERIALIZER.serialize(this);
+            bytesHeaders = sipHeaders;
+            bytesModificationCount = modificationCount;
+            bytesBody = body;
+        }
+        return bytes;
+    }
+
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
@@ -0,0 +1,378 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sourceforge.peers.CachingAddressResolver;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.syntaxencoding.SipURI;
+
+/**
+ * Locates the servers of a SIP URI (RFC3263 4.1 and 4.2): transport from
+ * NAPTR records, then ports and hosts from SRV records, then addresses.
+ * Only UDP and TCP are supported. NAPTR and SRV records are cached for
+ * the TTL given by the {@link SipDnsResolver}, addresses are cached by the
+ * {@link CachingAddressResolver}.
+ * 
+ * Targets are returned in SRV priority order, targets of the same priority
+ * are shuffled according to their weight, which spreads the load across
+ * servers. Client transactions try the next target of the list when a
+ * target does not answer or cannot be reached (RFC3263 4.3). Such a target
+ * is blacklisted for a while: it is moved to the end of the list, so that
+ * new requests go to the next target instead of waiting for another
+ * timeout.
+ */
+public class SipServerLocator {
+
+    public static final long DEFAULT_BLACKLIST_DURATION = 60000; // ms
+    public static final long DEFAULT_NEGATIVE_TTL = 60; // s
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    private static final String SERVICE_UDP = "SIP+D2U";
+    private static final String SERVICE_TCP = "SIP+D2T";
+
+    private SipDnsResolver sipDnsResolver;
+    private CachingAddressResolver addressResolver;
+    private ConcurrentHashMap<String, CachedRecords<NaptrRecord>> naptrCache;
+    private ConcurrentHashMap<String, CachedRecords<SrvRecord>> srvCache;
+    private ConcurrentHashMap<SipTarget, Long> blacklist;
+    private volatile long blacklistDuration;
+    private Random random;
+    private Logger logger;
+
+    public SipServerLocator(SipDnsResolver sipDnsResolver,
+            CachingAddressResolver addressResolver, Logger logger) {
+        this.sipDnsResolver = sipDnsResolver;
+        this.addressResolver = addressResolver;
+        this.logger = logger;
+        naptrCache = new ConcurrentHashMap<String,
+            CachedRecords<NaptrRecord>>();
+        srvCache = new ConcurrentHashMap<String, CachedRecords<SrvRecord>>();
+        blacklist = new ConcurrentHashMap<SipTarget, Long>();
+        blacklistDuration = DEFAULT_BLACKLIST_DURATION;
+        random = new Random();
+    }
+
+    /**
+     * @return the preferred target of sipUri, for messages sent outside of
+     *         a client transaction such as the ACK of a 2xx
+     */
+    public SipTarget getTarget(SipURI sipUri) throws UnknownHostException {
+        return locate(sipUri).get(0);
+    }
+
+    /**
+     * @return targets of sipUri in the order in which they should be tried,
+     *         never empty
+     * @throws UnknownHostException if no address has been found
+     */
+    public List<SipTarget> locate(SipURI sipUri)
+            throws UnknownHostException {
+        return locate(sipUri, System.currentTimeMillis());
+    }
+
+    List<SipTarget> locate(SipURI sipUri, long now)
+            throws UnknownHostException {
+        String host = sipUri.getHost();
+        int port = sipUri.getPort();
+        String transport = null;
+        Hashtable<String, String> params = sipUri.getUriParameters();
+        if (params != null) {
+            transport = params.get(RFC3261.PARAM_TRANSPORT);
+            if (transport != null) {
+                transport = transport.toUpperCase();
+            }
+        }
+        List<SipTarget> targets = new ArrayList<SipTarget>();
+        if (CachingAddressResolver.parseLiteral(host) != null
+                || port != SipURI.DEFAULT_PORT) {
+            // RFC3263 4.1 and 4.2, no NAPTR nor SRV lookup
+            if (port == SipURI.DEFAULT_PORT) {
+                port = RFC3261.TRANSPORT_DEFAULT_PORT;
+            }
+            addAddressTargets(targets, host, port,
+                    transport == null ? RFC3261.TRANSPORT_UDP : transport);
+        } else if (transport != null) {
+            addSrvTargets(targets, srvName(host, transport), transport, now);
+        } else {
+            for (NaptrRecord naptrRecord: getNaptrRecords(host, now)) {
+                addSrvTargets(targets, naptrRecord.getReplacement(),
+                        getTransport(naptrRecord), now);
+            }
+            if (targets.isEmpty()) {
+                addSrvTargets(targets, srvName(host, RFC3261.TRANSPORT_UDP),
+                        RFC3261.TRANSPORT_UDP, now);
+                addSrvTargets(targets, srvName(host, RFC3261.TRANSPORT_TCP),
+                        RFC3261.TRANSPORT_TCP, now);
+            }
+        }
+        if (targets.isEmpty()) {
+            // RFC3263 4.2, no SRV record, A record on default port
+            addAddressTargets(targets, host, RFC3261.TRANSPORT_DEFAULT_PORT,
+                    transport == null ? RFC3261.TRANSPORT_UDP : transport);
+        }
+        return moveBlacklistedToEnd(targets, now);
+    }
+
+    private static String srvName(String host, String transport) {
+        return "_sip._" + transport.toLowerCase() + "." + host;
+    }
+
+    private static String getTransport(NaptrRecord naptrRecord) {
+        if (SERVICE_TCP.equalsIgnoreCase(naptrRecord.getService())) {
+            return RFC3261.TRANSPORT_TCP;
+        }
+        return RFC3261.TRANSPORT_UDP;
+    }
+
+    private void addAddressTargets(List<SipTarget> targets, String host,
+            int port, String transport) throws UnknownHostException {
+        for (InetAddress inetAddress: addressResolver.getAllByName(host)) {
+            targets.add(new SipTarget(inetAddress, port, transport));
+        }
+    }
+
+    private void addSrvTargets(List<SipTarget> targets, String name,
+            String transport, long now) {
+        for (SrvRecord srvRecord: orderSrvRecords(getSrvRecords(name, now))) {
+            String target = srvRecord.getTarget();
+            if (".".equals(target)) {
+                continue;
+            }
+            try {
+                for (InetAddress inetAddress:
+                        addressResolver.getAllByName(target)) {
+                    targets.add(new SipTarget(inetAddress,
+                            srvRecord.getPort(), transport));
+                }
+            } catch (UnknownHostException e) {
+                logger.debug("cannot resolve SRV target " + target);
+            }
+        }
+    }
+
+    /**
+     * @return supported NAPTR records of domain, ordered by order and
+     *         preference
+     */
+    private List<NaptrRecord> getNaptrRecords(String domain, long now) {
+        String key = domain.toLowerCase();
+        CachedRecords<NaptrRecord> cachedRecords = naptrCache.get(key);
+        if (cachedRecords != null && now < cachedRecords.expires) {
+            return cachedRecords.records;
+        }
+        List<NaptrRecord> naptrRecords = new ArrayList<NaptrRecord>();
+        long ttl = DEFAULT_NEGATIVE_TTL;
+        for (NaptrRecord naptrRecord: sipDnsResolver.lookupNaptr(domain)) {
+            String service = naptrRecord.getService();
+            if ("s".equalsIgnoreCase(naptrRecord.getFlags())
+                    && (SERVICE_UDP.equalsIgnoreCase(service)
+                            || SERVICE_TCP.equalsIgnoreCase(service))) {
+                if (naptrRecords.isEmpty() || naptrRecord.getTtl() < ttl) {
+                    ttl = naptrRecord.getTtl();
+                }
+                naptrRecords.add(naptrRecord);
+            }
+        }
+        Collections.sort(naptrRecords, new Comparator<NaptrRecord>() {
+            @Override
+            public int compare(NaptrRecord record1, NaptrRecord record2) {
+                if (record1.getOrder() != record2.getOrder()) {
+                    return record1.getOrder() < record2.getOrder() ? -1 : 1;
+                }
+                return record1.getPreference() - record2.getPreference();
+            }
+        });
+        put(naptrCache, key, new CachedRecords<NaptrRecord>(naptrRecords,
+                now, now + ttl * 1000), now);
+        return naptrRecords;
+    }
+
+    private List<SrvRecord> getSrvRecords(String name, long now) {
+        String key = name.toLowerCase();
+        CachedRecords<SrvRecord> cachedRecords = srvCache.get(key);
+        if (cachedRecords != null && now < cachedRecords.expires) {
+            return cachedRecords.records;
+        }
+        List<SrvRecord> srvRecords = sipDnsResolver.lookupSrv(name);
+        long ttl = DEFAULT_NEGATIVE_TTL;
+        for (int i = 0; i < srvRecords.size(); ++i) {
+            if (i == 0 || srvRecords.get(i).getTtl() < ttl) {
+                ttl = srvRecords.get(i).getTtl();
+            }
+        }
+        srvRecords = Collections.unmodifiableList(
+                new ArrayList<SrvRecord>(srvRecords));
+        put(srvCache, key, new CachedRecords<SrvRecord>(srvRecords,
+                now, now + ttl * 1000), now);
+        return srvRecords;
+    }
+
+    /**
+     * Expired entries are removed when the cache is full, then the oldest
+     * entry if none has expired.
+     */
+    private <T> void put(ConcurrentHashMap<String, CachedRecords<T>> cache,
+            String key, CachedRecords<T> cachedRecords, long now) {
+        if (cache.size() >= DEFAULT_MAX_SIZE) {
+            Map.Entry<String, CachedRecords<T>> oldest = null;
+            Iterator<Map.Entry<String, CachedRecords<T>>> iterator =
+                cache.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, CachedRecords<T>> entry = iterator.next();
+                if (now >= entry.getValue().expires) {
+                    iterator.remove();
+                } else if (oldest == null || entry.getValue().cached
+                        < oldest.getValue().cached) {
+                    oldest = entry;
+                }
+            }
+            if (cache.size() >= DEFAULT_MAX_SIZE && oldest != null) {
+                cache.remove(oldest.getKey(), oldest.getValue());
+            }
+        }
+        cache.put(key, cachedRecords);
+    }
+
+    /**
+     * RFC2782 selection: priority order, random order weighted by weight
+     * within a priority.
+     */
+    List<SrvRecord> orderSrvRecords(List<SrvRecord> srvRecords) {
+        List<SrvRecord> remaining = new ArrayList<SrvRecord>(srvRecords);
+        Collections.sort(remaining, new Comparator<SrvRecord>() {
+            @Override
+            public int compare(SrvRecord record1, SrvRecord record2) {
+                // zero weights first, as required by RFC2782
+                if (record1.getPriority() != record2.getPriority()) {
+                    return record1.getPriority() - record2.getPriority();
+                }
+                return record1.getWeight() - record2.getWeight();
+            }
+        });
+        List<SrvRecord> ordered = new ArrayList<SrvRecord>(remaining.size());
+        while (!remaining.isEmpty()) {
+            int priority = remaining.get(0).getPriority();
+            int end = 0;
+            int totalWeight = 0;
+            while (end < remaining.size()
+                    && remaining.get(end).getPriority() == priority) {
+                totalWeight += remaining.get(end).getWeight();
+                ++end;
+            }
+            for (; end > 0; --end) {
+                int selected = random.nextInt(totalWeight + 1);
+                int index = 0;
+                int runningSum = remaining.get(0).getWeight();
+                while (runningSum < selected && index < end - 1) {
+                    ++index;
+                    runningSum += remaining.get(index).getWeight();
+                }
+                SrvRecord srvRecord = remaining.remove(index);
+                totalWeight -= srvRecord.getWeight();
+                ordered.add(srvRecord);
+            }
+        }
+        return ordered;
+    }
+
+    private List<SipTarget> moveBlacklistedToEnd(List<SipTarget> targets,
+            long now) {
+        if (blacklist.isEmpty()) {
+            return targets;
+        }
+        List<SipTarget> ordered = new ArrayList<SipTarget>(targets.size());
+        List<SipTarget> blacklisted = new ArrayList<SipTarget>();
+        for (SipTarget target: targets) {
+            if (isBlacklisted(target, now)) {
+                blacklisted.add(target);
+            } else {
+                ordered.add(target);
+            }
+        }
+        ordered.addAll(blacklisted);
+        return ordered;
+    }
+
+    /**
+     * Called when target did not answer a request or could not be reached,
+     * it is tried last during the blacklist duration.
+     */
+    public void blacklist(SipTarget target) {
+        logger.info("blacklisting " + target);
+        blacklist.put(target, System.currentTimeMillis() + blacklistDuration);
+    }
+
+    public boolean isBlacklisted(SipTarget target) {
+        return isBlacklisted(target, System.currentTimeMillis());
+    }
+
+    boolean isBlacklisted(SipTarget target, long now) {
+        Long until = blacklist.get(target);
+        if (until == null) {
+            return false;
+        }
+        if (now < until) {
+            return true;
+        }
+        blacklist.remove(target, until);
+        return false;
+    }
+
+    public long getBlacklistDuration() {
+        return blacklistDuration;
+    }
+
+    public void setBlacklistDuration(long blacklistDuration) {
+        this.blacklistDuration = blacklistDuration;
+    }
+
+    public void clear() {
+        naptrCache.clear();
+        srvCache.clear();
+        blacklist.clear();
+    }
+
+    static class CachedRecords<T> {
+
+        final List<T> records;
+        final long cached;
+        final long expires;
+
+        CachedRecords(List<T> records, long cached, long expires) {
+            this.records = records;
+            this.cached = cached;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.net.InetAddress;
+
+/**
+ * Address, port and transport to which a request is sent, as located by
+ * {@link SipServerLocator}.
+ */
+public class SipTarget {
+
+    private InetAddress inetAddress;
+    private int port;
+    private String transport;
+
+    /**
+     * @param transport UDP or TCP, case insensitive
+     */
+    public SipTarget(InetAddress inetAddress, int port, String transport) {
+        this.inetAddress = inetAddress;
+        this.port = port;
+        this.transport = transport.toUpperCase();
+    }
+
+    public InetAddress getInetAddress() {
+        return inetAddress;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof SipTarget)) {
+            return false;
+        }
+        SipTarget other = (SipTarget)obj;
+        return port == other.port && transport.equals(other.transport)
+            && inetAddress.equals(other.inetAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        return (inetAddress.hashCode() * 31 + port) * 31
+            + transport.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer buf = new StringBuffer();
+        buf.append(inetAddress.getHostAddress());
+        buf.append(':').append(port);
+        buf.append('/').append(transport);
+        return buf.toString();
+    }
+
+}
@@ -58,7 +58,17 @@ public class SipTransportConnection {
             return localInetAddress.equals(other.localInetAddress) &&
                 localPort == other.localPort;
         }
-        return false;
+        return equals(localInetAddress, other.localInetAddress) &&
+            localPort == other.localPort &&
+            equals(remoteInetAddress, other.remoteInetAddress) &&
+            remotePort == other.remotePort;
+    }
+
+    private boolean equals(InetAddress inetAddress, InetAddress other) {
+        if (inetAddress == null) {
+            return other == null;
+        }
+        return inetAddress.equals(other);
     }
     
     @Override
@@ -0,0 +1,251 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+package net.sourceforge.peers.sip.transport;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.PlatformThreadFactory;
+
+/**
+ * Fixed set of worker threads processing received SIP messages. Each task
+ * is submitted with a shard key, usually a hash of the Call-ID, and all
+ * tasks with the same key run on the same worker in submission order.
+ * Messages of one dialog are thus processed sequentially while independent
+ * calls are processed in parallel.
+ * 
+ * Each worker measures how long tasks wait in its queue, the latency added
+ * by the pool, and how long they run. Both are used to detect overload.
+ *
+ * Received messages are queued with {@link #offer(int, Runnable)}, which
+ * refuses them once the worker queue holds {@link #getMaxQueuedTasks()}
+ * tasks. Tasks queued with {@link #execute(int, Runnable)}, commands and
+ * timer callbacks, are always accepted so that they are never lost.
+ */
+public class SipWorkerPool {
+
+    public static final int DEFAULT_WORKERS =
+        Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_MAX_QUEUED_TASKS = 1000; // per worker
+
+    private Worker[] workers;
+    private volatile int maxQueuedTasks;
+    private Logger logger;
+
+    public SipWorkerPool(Logger logger) {
+        this(DEFAULT_WORKERS, logger);
+    }
+
+    public SipWorkerPool(int workerCount, Logger logger) {
+        this(workerCount, logger, null);
+    }
+
+    /**
+     * @param threadFactory creates worker threads, platform threads if null
+     */
+    public SipWorkerPool(int workerCount, Logger logger,
+            ThreadFactory threadFactory) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("at least one worker "
+                    + "required");
+        }
+        this.logger = logger;
+        maxQueuedTasks = DEFAULT_MAX_QUEUED_TASKS;
+        if (threadFactory == null) {
+            threadFactory = PlatformThreadFactory.INSTANCE;
+        }
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; ++i) {
+            workers[i] = new Worker();
+            Thread thread = threadFactory.newThread(workers[i]);
+            thread.setName(getClass().getSimpleName() + " " + i);
+            // an unclosed pool must not prevent the jvm from exiting
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues a task on the worker bound to the shard key. Tasks submitted
+     * after {@link #close()} are ignored.
+     */
+    public void execute(int shardKey, Runnable task) {
+        workers[indexOf(shardKey)].execute(task);
+    }
+
+    /**
+     * Queues a task on the worker bound to the shard key, unless this worker
+     * already holds {@link #getMaxQueuedTasks()} tasks.
+     * 
+     * @return false if the task has not been queued
+     */
+    public boolean offer(int shardKey, Runnable task) {
+        return workers[indexOf(shardKey)].offer(task);
+    }
+
+    int indexOf(int shardKey) {
+        int hash = shardKey ^ (shardKey >>> 16);
+        return (hash & Integer.MAX_VALUE) % workers.length;
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return number of tasks waiting in all worker queues
+     */
+    public int getQueuedTaskCount() {
+        int count = 0;
+        for (Worker worker: workers) {
+            count += worker.tasks.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return smoothed time spent by tasks in the queue of the most delayed
+     *         worker, in milliseconds, 0 if all queues are empty
+     */
+    public long getQueueDelay() {
+        long queueDelay = 0;
+        for (Worker worker: workers) {
+            queueDelay = Math.max(queueDelay, worker.queueDelay);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(queueDelay);
+    }
+
+    /**
+     * @return smoothed run time of tasks on the slowest worker, in
+     *         milliseconds, 0 if all queues are empty
+     */
+    public long getProcessingTime() {
+        long processingTime = 0;
+        for (Worker worker: workers) {
+            processingTime = Math.max(processingTime, worker.processingTime);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(processingTime);
+    }
+
+    /**
+     * @return number of tasks above which a worker refuses offered tasks
+     */
+    public int getMaxQueuedTasks() {
+        return maxQueuedTasks;
+    }
+
+    public void setMaxQueuedTasks(int maxQueuedTasks) {
+        this.maxQueuedTasks = maxQueuedTasks;
+    }
+
+    /**
+     * Stops workers once the tasks already queued have been run.
+     */
+    public void close() {
+        for (Worker worker: workers) {
+            worker.close();
+        }
+    }
+
+    class Worker implements Runnable {
+
+        private BlockingQueue<QueuedTask> tasks;
+        private volatile boolean running;
+        // written by the worker thread only
+        private volatile long queueDelay; // ns
+        private volatile long processingTime; // ns
+
+        Worker() {
+            tasks = new LinkedBlockingQueue<QueuedTask>();
+            running = true;
+        }
+
+        void execute(Runnable task) {
+            if (running) {
+                tasks.add(new QueuedTask(task, System.nanoTime()));
+            }
+        }
+
+        boolean offer(Runnable task) {
+            if (!running || tasks.size() >= maxQueuedTasks) {
+                return false;
+            }
+            tasks.add(new QueuedTask(task, System.nanoTime()));
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (running || !tasks.isEmpty()) {
+                QueuedTask queuedTask;
+                try {
+                    queuedTask = tasks.take();
+                } catch (InterruptedException e) {
+                    logger.error("worker interrupted", e);
+                    return;
+                }
+                if (tasks.isEmpty()) {
+                    // nothing left waiting, no queueing delay anymore
+                    queueDelay = 0;
+                } else {
+                    long delay = System.nanoTime() - queuedTask.queued;
+                    queueDelay += (delay - queueDelay) >> 3;
+                }
+                long start = System.nanoTime();
+                try {
+                    queuedTask.task.run();
+                } catch (RuntimeException e) {
+                    logger.error("unexpected error", e);
+                }
+                if (tasks.isEmpty()) {
+                    // the worker keeps up, slow tasks do not delay others
+                    processingTime = 0;
+                } else {
+                    long runTime = System.nanoTime() - start;
+                    processingTime += (runTime - processingTime) >> 3;
+                }
+            }
+        }
+
+        void close() {
+            running = false;
+            // wakes up the worker if it is waiting
+            tasks.add(new QueuedTask(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, System.nanoTime()));
+        }
+    }
+
+    static class QueuedTask {
+
+        final Runnable task;
+        final long queued;
+
+        QueuedTask(Runnable task, long queued) {
+            this.task = task;
+            this.queued = queued;
+        }
+    }
+
+}
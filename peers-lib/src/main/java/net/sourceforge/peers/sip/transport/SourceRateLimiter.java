@@ -0,0 +1,252 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.peers.Logger;
+
+/**
+ * Limits the number of messages accepted from each source address with a
+ * token bucket per address. Messages are checked before being parsed, so a
+ * flooding source costs a table lookup per message and cannot starve other
+ * sources.
+ *
+ * The table is bounded: when it is full, buckets of sources which have been
+ * quiet long enough to refill are evicted. If no bucket can be evicted,
+ * which happens with spoofed source addresses, untracked sources share a
+ * single bucket.
+ *
+ * All the traffic of an outbound proxy comes from the same address, such
+ * addresses should be exempted with {@link #addExemptAddress(InetAddress)}.
+ */
+public class SourceRateLimiter {
+
+    public static final int DEFAULT_RATE = 200; // messages per second
+    public static final int DEFAULT_BURST = 400; // messages
+    public static final int DEFAULT_MAX_SOURCES = 4096;
+
+    // minimum time between two eviction scans of a full table
+    private static final long EVICTION_INTERVAL =
+        TimeUnit.SECONDS.toNanos(1);
+
+    private ConcurrentHashMap<InetAddress, Bucket> buckets;
+    private Bucket sharedBucket;
+    private Set<InetAddress> exemptAddresses;
+    private volatile int rate;
+    private volatile int burst;
+    private volatile int maxSources;
+    private volatile long lastEviction;
+    private AtomicLong acceptedCount;
+    private AtomicLong droppedCount;
+    private Logger logger;
+
+    public SourceRateLimiter(Logger logger) {
+        this(DEFAULT_RATE, DEFAULT_BURST, DEFAULT_MAX_SOURCES, logger);
+    }
+
+    /**
+     * @param rate messages per second accepted from each source, 0 disables
+     *        rate limiting
+     * @param burst messages accepted at once from a source which was quiet
+     * @param maxSources maximum number of tracked source addresses
+     */
+    public SourceRateLimiter(int rate, int burst, int maxSources,
+            Logger logger) {
+        if (maxSources < 1) {
+            throw new IllegalArgumentException("table size must be positive");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.maxSources = maxSources;
+        this.logger = logger;
+        buckets = new ConcurrentHashMap<InetAddress, Bucket>();
+        sharedBucket = new Bucket(burst, System.nanoTime());
+        exemptAddresses = new CopyOnWriteArraySet<InetAddress>();
+        acceptedCount = new AtomicLong();
+        droppedCount = new AtomicLong();
+        lastEviction = System.nanoTime() - EVICTION_INTERVAL;
+    }
+
+    /**
+     * Takes a token from the bucket of sourceIp.
+     *
+     * @return false if the message should be dropped
+     */
+    public boolean tryAcquire(InetAddress sourceIp) {
+        return tryAcquire(sourceIp, System.nanoTime());
+    }
+
+    boolean tryAcquire(InetAddress sourceIp, long now) {
+        if (rate <= 0 || exemptAddresses.contains(sourceIp)) {
+            acceptedCount.incrementAndGet();
+            return true;
+        }
+        Bucket bucket = getBucket(sourceIp, now);
+        if (bucket.tryAcquire(now, rate, burst)) {
+            acceptedCount.incrementAndGet();
+            return true;
+        }
+        if (droppedCount.incrementAndGet() % 1000 == 1) {
+            logger.info("rate limit exceeded by " + sourceIp.getHostAddress()
+                    + ", " + droppedCount.get() + " messages dropped so far");
+        }
+        return false;
+    }
+
+    private Bucket getBucket(InetAddress sourceIp, long now) {
+        Bucket bucket = buckets.get(sourceIp);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxSources) {
+            evictRefilled(now);
+            if (buckets.size() >= maxSources) {
+                return sharedBucket;
+            }
+        }
+        bucket = new Bucket(burst, now);
+        Bucket previous = buckets.putIfAbsent(sourceIp, bucket);
+        return previous == null ? bucket : previous;
+    }
+
+    /**
+     * Removes buckets which would be full by now, forgetting them does not
+     * change the rate granted to their source.
+     */
+    private void evictRefilled(long now) {
+        if (now - lastEviction < EVICTION_INTERVAL) {
+            return;
+        }
+        lastEviction = now;
+        int rate = this.rate;
+        int burst = this.burst;
+        Iterator<Bucket> iterator = buckets.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isFull(now, rate, burst)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Messages from inetAddress are never dropped.
+     */
+    public void addExemptAddress(InetAddress inetAddress) {
+        exemptAddresses.add(inetAddress);
+        buckets.remove(inetAddress);
+    }
+
+    public void removeExemptAddress(InetAddress inetAddress) {
+        exemptAddresses.remove(inetAddress);
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of messages dropped from sourceIp since its bucket was
+     *         created
+     */
+    public long getDroppedCount(InetAddress sourceIp) {
+        Bucket bucket = buckets.get(sourceIp);
+        return bucket == null ? 0 : bucket.getDropped();
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    public int getMaxSources() {
+        return maxSources;
+    }
+
+    public void setMaxSources(int maxSources) {
+        this.maxSources = maxSources;
+    }
+
+    static class Bucket {
+
+        private double tokens;
+        private long lastRefill;
+        private long dropped;
+
+        Bucket(int burst, long now) {
+            tokens = burst;
+            lastRefill = now;
+        }
+
+        synchronized boolean tryAcquire(long now, int rate, int burst) {
+            refill(now, rate, burst);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            ++dropped;
+            return false;
+        }
+
+        synchronized boolean isFull(long now, int rate, int burst) {
+            refill(now, rate, burst);
+            return tokens >= burst;
+        }
+
+        synchronized long getDropped() {
+            return dropped;
+        }
+
+        private void refill(long now, int rate, int burst) {
+            long elapsed = now - lastRefill;
+            if (elapsed > 0) {
+                tokens = Math.min(burst, tokens + elapsed * (double)rate
+                        / TimeUnit.SECONDS.toNanos(1));
+                lastRefill = now;
+            }
+        }
+    }
+
+}
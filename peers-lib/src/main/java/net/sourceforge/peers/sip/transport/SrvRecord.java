@@ -0,0 +1,71 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+/**
+ * DNS SRV resource record (RFC2782).
+ */
+public class SrvRecord {
+
+    private int priority;
+    private int weight;
+    private int port;
+    private String target;
+    private long ttl;
+
+    /**
+     * @param target host name, "." if the service is not available
+     * @param ttl time to live in seconds
+     */
+    public SrvRecord(int priority, int weight, int port, String target,
+            long ttl) {
+        this.priority = priority;
+        this.weight = weight;
+        this.port = port;
+        this.target = target;
+        this.ttl = ttl;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    @Override
+    public String toString() {
+        return priority + " " + weight + " " + port + " " + target;
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.peers.CachingAddressResolver;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.Utils;
+
+/**
+ * Stateless response to requests received outside of a dialog, assembled
+ * from a template without building a {@link SipMessage} nor creating a
+ * transaction. The Via, From, To, Call-ID and CSeq lines of the request
+ * are copied byte for byte between a pre-serialized status line and a
+ * pre-serialized trailer holding the other headers.
+ *
+ * Requests which are not simple enough, with folded header lines, several
+ * values on the top Via line or a repeated header, are left to the regular
+ * processing.
+ */
+public class StatelessResponder {
+
+    private static final byte SP = ' ';
+    private static final byte HT = '\t';
+    private static final byte COLON = ':';
+
+    private static final int MAX_VIAS = 16;
+
+    private static final byte[] CRLF =
+        RawSipMessage.bytes(RFC3261.CRLF, false);
+    private static final byte[] TAG_PARAM = RawSipMessage.bytes(
+            ";" + RFC3261.PARAM_TAG + "=", false);
+
+    private static final byte[] VIA = RawSipMessage.bytes(RFC3261.HDR_VIA,
+            true);
+    private static final byte[] VIA_COMPACT = RawSipMessage.bytes(
+            String.valueOf(RFC3261.COMPACT_HDR_VIA), true);
+    private static final byte[] FROM = RawSipMessage.bytes(
+            RFC3261.HDR_FROM, true);
+    private static final byte[] FROM_COMPACT = RawSipMessage.bytes(
+            String.valueOf(RFC3261.COMPACT_HDR_FROM), true);
+    private static final byte[] TO = RawSipMessage.bytes(RFC3261.HDR_TO,
+            true);
+    private static final byte[] TO_COMPACT = RawSipMessage.bytes(
+            String.valueOf(RFC3261.COMPACT_HDR_TO), true);
+    private static final byte[] CALL_ID = RawSipMessage.bytes(
+            RFC3261.HDR_CALLID, true);
+    private static final byte[] CALL_ID_COMPACT = RawSipMessage.bytes(
+            String.valueOf(RFC3261.COMPACT_HDR_CALLID), true);
+    private static final byte[] CSEQ = RawSipMessage.bytes(RFC3261.HDR_CSEQ,
+            true);
+
+    private byte[] statusLine;
+    private byte[] trailer;
+    private AtomicLong responseCount;
+
+    /**
+     * @param headers header lines put after CSeq, each ending with CRLF,
+     *        Content-Length is added
+     */
+    public StatelessResponder(int statusCode, String reasonPhrase,
+            String headers) {
+        statusLine = RawSipMessage.bytes(RFC3261.DEFAULT_SIP_VERSION + " "
+                + statusCode + " " + reasonPhrase + RFC3261.CRLF, false);
+        StringBuffer buf = new StringBuffer(headers);
+        buf.append(RFC3261.HDR_CONTENT_LENGTH).append(": 0");
+        buf.append(RFC3261.CRLF).append(RFC3261.CRLF);
+        trailer = RawSipMessage.bytes(buf.toString(), false);
+        responseCount = new AtomicLong();
+    }
+
+    /**
+     * Builds the response to the request in buffer.
+     *
+     * @param start first byte of the start line
+     * @param end end of the message
+     * @param transport transport on which the request was received, it
+     *        must match the top Via
+     * @return null if the request is within a dialog or is not simple
+     *         enough to be answered this way
+     */
+    public Response respond(byte[] buffer, int start, int end,
+            String transport, InetAddress sourceIp, int sourcePort) {
+        // start and end of the lines to copy
+        int[] vias = new int[2 * MAX_VIAS];
+        int viaCount = 0;
+        int topViaValueStart = -1;
+        int topViaValueEnd = -1;
+        int[] from = null;
+        int[] to = null;
+        int toValueEnd = -1;
+        int[] callId = null;
+        int[] cseq = null;
+        int lineEnd = RawSipMessage.lineEnd(buffer, start, end);
+        int pos = RawSipMessage.nextLine(buffer, lineEnd, end);
+        while (pos < end) {
+            lineEnd = RawSipMessage.lineEnd(buffer, pos, end);
+            if (lineEnd == pos) {
+                break;
+            }
+            if (buffer[pos] == SP || buffer[pos] == HT) {
+                // folded line
+                return null;
+            }
+            int colon = RawSipMessage.indexOf(buffer, pos, lineEnd, COLON);
+            if (colon == lineEnd) {
+                return null;
+            }
+            int nameEnd = RawSipMessage.trimEnd(buffer, pos, colon);
+            int valueStart = RawSipMessage.trimStart(buffer, colon + 1,
+                    lineEnd);
+            int valueEnd = RawSipMessage.trimEnd(buffer, valueStart, lineEnd);
+            if (nameIs(buffer, pos, nameEnd, VIA, VIA_COMPACT)) {
+                if (viaCount == MAX_VIAS) {
+                    return null;
+                }
+                if (viaCount == 0) {
+                    topViaValueStart = valueStart;
+                    topViaValueEnd = valueEnd;
+                }
+                vias[2 * viaCount] = pos;
+                vias[2 * viaCount + 1] = lineEnd;
+                ++viaCount;
+            } else if (nameIs(buffer, pos, nameEnd, FROM, FROM_COMPACT)) {
+                if (from != null) {
+                    return null;
+                }
+                from = new int[] { pos, lineEnd };
+            } else if (nameIs(buffer, pos, nameEnd, TO, TO_COMPACT)) {
+                if (to != null || RawSipMessage.hasTag(buffer, valueStart,
+                        valueEnd)) {
+                    return null;
+                }
+                to = new int[] { pos, lineEnd };
+                toValueEnd = valueEnd;
+            } else if (nameIs(buffer, pos, nameEnd, CALL_ID,
+                    CALL_ID_COMPACT)) {
+                if (callId != null) {
+                    return null;
+                }
+                callId = new int[] { pos, lineEnd };
+            } else if (nameIs(buffer, pos, nameEnd, CSEQ, CSEQ)) {
+                if (cseq != null) {
+                    return null;
+                }
+                cseq = new int[] { pos, lineEnd };
+            }
+            pos = RawSipMessage.nextLine(buffer, lineEnd, end);
+        }
+        if (viaCount == 0 || from == null || to == null || callId == null
+                || cseq == null) {
+            return null;
+        }
+        String topVia = new String(buffer, topViaValueStart,
+                topViaValueEnd - topViaValueStart);
+        TopVia responseTopVia = TopVia.parse(topVia, transport,
+                sourceIp, sourcePort);
+        if (responseTopVia == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                end - start + trailer.length);
+        out.write(statusLine, 0, statusLine.length);
+        byte[] topViaLine = RawSipMessage.bytes(RFC3261.HDR_VIA + ": "
+                + responseTopVia.value + RFC3261.CRLF, false);
+        out.write(topViaLine, 0, topViaLine.length);
+        for (int i = 1; i < viaCount; ++i) {
+            writeLine(out, buffer, vias[2 * i], vias[2 * i + 1]);
+        }
+        writeLine(out, buffer, from[0], from[1]);
+        out.write(buffer, to[0], toValueEnd - to[0]);
+        out.write(TAG_PARAM, 0, TAG_PARAM.length);
+        byte[] tag = RawSipMessage.bytes(Utils.generateTag(), false);
+        out.write(tag, 0, tag.length);
+        out.write(CRLF, 0, CRLF.length);
+        writeLine(out, buffer, callId[0], callId[1]);
+        writeLine(out, buffer, cseq[0], cseq[1]);
+        out.write(trailer, 0, trailer.length);
+        responseCount.incrementAndGet();
+        return new Response(out.toByteArray(), responseTopVia.port);
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, byte[] buffer,
+            int start, int end) {
+        out.write(buffer, start, end - start);
+        out.write(CRLF, 0, CRLF.length);
+    }
+
+    private static boolean nameIs(byte[] buffer, int start, int end,
+            byte[] name, byte[] compactName) {
+        return RawSipMessage.nameEquals(buffer, start, end, name)
+            || RawSipMessage.nameEquals(buffer, start, end, compactName);
+    }
+
+    /**
+     * @return number of responses built since creation
+     */
+    public long getResponseCount() {
+        return responseCount.get();
+    }
+
+    /**
+     * Response bytes and the port to which they must be sent, on the source
+     * address of the request (RFC3261 18.2.2 and RFC3581).
+     */
+    public static class Response {
+
+        private byte[] data;
+        private int port;
+
+        Response(byte[] data, int port) {
+            this.data = data;
+            this.port = port;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getPort() {
+            return port;
+        }
+    }
+
+    /**
+     * Top Via of the response, with received and rport set as the regular
+     * processing of {@link MessageReceiver} does.
+     */
+    static class TopVia {
+
+        final String value;
+        final int port;
+
+        private TopVia(String value, int port) {
+            this.value = value;
+            this.port = port;
+        }
+
+        /**
+         * @return null if topVia has several values or is not over
+         *         transport
+         */
+        static TopVia parse(String topVia, String transport,
+                InetAddress sourceIp, int sourcePort) {
+            if (topVia.indexOf(',') > -1) {
+                return null;
+            }
+            int semicolon = topVia.indexOf(';');
+            String sentProtocolAndBy = (semicolon < 0 ? topVia
+                    : topVia.substring(0, semicolon)).trim();
+            int space = sentProtocolAndBy.lastIndexOf(' ');
+            int tab = sentProtocolAndBy.lastIndexOf('\t');
+            space = Math.max(space, tab);
+            if (space < 0) {
+                return null;
+            }
+            String sentProtocol = sentProtocolAndBy.substring(0, space).trim();
+            if (!sentProtocol.toUpperCase().endsWith(
+                    "/" + transport)) {
+                return null;
+            }
+            String sentBy = sentProtocolAndBy.substring(space + 1);
+            String host = sentBy;
+            int port = RFC3261.TRANSPORT_DEFAULT_PORT;
+            int colonPos;
+            if (sentBy.startsWith("[")) {
+                colonPos = sentBy.indexOf("]:");
+                if (colonPos > -1) {
+                    ++colonPos;
+                }
+            } else {
+                colonPos = sentBy.indexOf(RFC3261.TRANSPORT_PORT_SEP);
+            }
+            if (colonPos > -1) {
+                host = sentBy.substring(0, colonPos);
+                try {
+                    port = Integer.parseInt(sentBy.substring(colonPos + 1));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            StringBuffer buf = new StringBuffer(sentProtocolAndBy);
+            boolean received = false;
+            boolean rport = false;
+            if (semicolon > -1) {
+                for (String param: topVia.substring(semicolon + 1)
+                        .split(";")) {
+                    param = param.trim();
+                    String name = param;
+                    int equals = param.indexOf('=');
+                    if (equals > -1) {
+                        name = param.substring(0, equals).trim();
+                    }
+                    buf.append(';');
+                    if (RFC3261.PARAM_RPORT.equalsIgnoreCase(name)) {
+                        rport = true;
+                        if (equals < 0) {
+                            param = RFC3261.PARAM_RPORT + "=" + sourcePort;
+                        }
+                    } else if (RFC3261.PARAM_RECEIVED.equalsIgnoreCase(
+                            name)) {
+                        received = true;
+                    }
+                    buf.append(param);
+                }
+            }
+            InetAddress sentByAddress =
+                CachingAddressResolver.parseLiteral(host);
+            if (!received && (sentByAddress == null
+                    || !sentByAddress.equals(sourceIp))) {
+                buf.append(';').append(RFC3261.PARAM_RECEIVED).append('=');
+                buf.append(sourceIp.getHostAddress());
+            }
+            return new TopVia(buf.toString(), rport ? sourcePort : port);
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.sourceforge.peers.sip.RFC3261;
+
+/**
+ * Splits a SIP byte stream (TCP) into messages using Content-Length, as
+ * described in RFC3261 18.3. CRLF sequences received between messages are
+ * keep-alives (RFC5626 3.5.1) and are not returned as messages. A double
+ * CRLF ping is reported through {@link #pingReceived()} so that a pong can be
+ * sent back, a single CRLF pong through {@link #pongReceived()}.
+ * 
+ * Each run of keep-alive bytes is counted on its own: a ping split across
+ * two reads is seen as two pongs, never two pongs as a ping.
+ */
+public class StreamMessageFramer {
+
+    public static final int MAX_MESSAGE_SIZE = 65536;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private byte[] buffer;
+    private int start;
+    private int end;
+    private int crlfCount;
+    private boolean ping;
+    private boolean pong;
+
+    public StreamMessageFramer() {
+        buffer = new byte[MessageReceiver.BUFFER_SIZE];
+    }
+
+    public void append(ByteBuffer byteBuffer) throws IOException {
+        int length = byteBuffer.remaining();
+        if (end + length > buffer.length) {
+            int pending = end - start;
+            if (pending + length > MAX_MESSAGE_SIZE) {
+                throw new IOException("SIP message too large");
+            }
+            byte[] newBuffer = buffer;
+            if (pending + length > buffer.length) {
+                newBuffer = new byte[Math.max(buffer.length * 2,
+                        pending + length)];
+            }
+            System.arraycopy(buffer, start, newBuffer, 0, pending);
+            buffer = newBuffer;
+            start = 0;
+            end = pending;
+        }
+        byteBuffer.get(buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * @return the next complete message, or null if more bytes are needed
+     * @throws IOException if the stream cannot be framed anymore, the
+     * connection should then be closed
+     */
+    public byte[] nextMessage() throws IOException {
+        crlfCount = 0;
+        while (start < end && (buffer[start] == CR || buffer[start] == LF)) {
+            if (buffer[start] == LF && ++crlfCount == 2) {
+                ping = true;
+                crlfCount = 0;
+            }
+            ++start;
+        }
+        if (crlfCount == 1) {
+            pong = true;
+        }
+        if (start == end) {
+            start = 0;
+            end = 0;
+            return null;
+        }
+        int headersEnd = indexOfEmptyLine();
+        if (headersEnd < 0) {
+            if (end - start > MAX_MESSAGE_SIZE) {
+                throw new IOException("no end of headers found");
+            }
+            return null;
+        }
+        int contentLength = contentLength(start, headersEnd);
+        int messageEnd = headersEnd + contentLength;
+        if (messageEnd > end) {
+            return null;
+        }
+        byte[] message = new byte[messageEnd - start];
+        System.arraycopy(buffer, start, message, 0, message.length);
+        start = messageEnd;
+        return message;
+    }
+
+    /**
+     * @return true once each time a double CRLF keep-alive has been
+     * received
+     */
+    public boolean pingReceived() {
+        boolean result = ping;
+        ping = false;
+        return result;
+    }
+
+    /**
+     * @return true once each time a single CRLF keep-alive has been
+     * received
+     */
+    public boolean pongReceived() {
+        boolean result = pong;
+        pong = false;
+        return result;
+    }
+
+    // returns the index following the CRLFCRLF ending headers
+    private int indexOfEmptyLine() {
+        for (int i = start; i + 3 < end; ++i) {
+            if (buffer[i] == CR && buffer[i + 1] == LF
+                    && buffer[i + 2] == CR && buffer[i + 3] == LF) {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    private int contentLength(int from, int to) throws IOException {
+        int lineStart = from;
+        for (int i = from; i + 1 < to; ++i) {
+            if (buffer[i] == CR && buffer[i + 1] == LF) {
+                int value = headerValue(lineStart, i);
+                if (value > -1) {
+                    return parseLength(value, i);
+                }
+                lineStart = i + 2;
+            }
+        }
+        // Content-Length is mandatory on streams, consider no body
+        return 0;
+    }
+
+    // returns the index of the value if line is a Content-Length header
+    private int headerValue(int lineStart, int lineEnd) {
+        String name = RFC3261.HDR_CONTENT_LENGTH;
+        int i = lineStart;
+        if (matches(name, lineStart, lineEnd)) {
+            i += name.length();
+        } else if (lineStart < lineEnd && Character.toLowerCase(
+                (char)buffer[lineStart]) ==
+                    RFC3261.COMPACT_HDR_CONTENT_LENGTH) {
+            ++i;
+        } else {
+            return -1;
+        }
+        while (i < lineEnd && (buffer[i] == ' ' || buffer[i] == '\t')) {
+            ++i;
+        }
+        if (i < lineEnd && buffer[i] == ':') {
+            return i + 1;
+        }
+        return -1;
+    }
+
+    private boolean matches(String name, int from, int to) {
+        if (to - from < name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); ++i) {
+            if (Character.toLowerCase((char)buffer[from + i])
+                    != Character.toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int parseLength(int from, int to) throws IOException {
+        int length = 0;
+        boolean digits = false;
+        for (int i = from; i < to; ++i) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                length = length * 10 + (b - '0');
+                digits = true;
+                if (length > MAX_MESSAGE_SIZE) {
+                    throw new IOException("invalid Content-Length");
+                }
+            } else if (b != ' ' && b != '\t') {
+                throw new IOException("invalid Content-Length");
+            }
+        }
+        if (!digits) {
+            throw new IOException("invalid Content-Length");
+        }
+        return length;
+    }
+
+}
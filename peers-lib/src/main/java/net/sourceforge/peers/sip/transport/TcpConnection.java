@@ -0,0 +1,237 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
+
+/**
+ * Persistent, non-blocking SIP over TCP connection served by a
+ * {@link TransportReactor}. Connections are pooled by the
+ * {@link TransportManager}: outbound connections are reused for subsequent
+ * requests to the same destination, inbound connections are reused to send
+ * responses (RFC3261 18.2.2).
+ */
+public class TcpConnection implements ChannelHandler {
+
+    private SipTransportConnection sipTransportConnection;
+    private SocketChannel socketChannel;
+    private MessageReceiver messageReceiver;
+    private TransportManager transportManager;
+    private TransportReactor transportReactor;
+    private Logger logger;
+
+    private InetAddress remoteInetAddress;
+    private int remotePort;
+    private StreamMessageFramer framer;
+    private ByteBuffer readBuffer;
+    private LinkedList<ByteBuffer> writeQueue;
+    private SelectionKey selectionKey;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private volatile long lastActivity;
+
+    public TcpConnection(SipTransportConnection sipTransportConnection,
+            SocketChannel socketChannel, MessageReceiver messageReceiver,
+            TransportManager transportManager,
+            TransportReactor transportReactor, Logger logger) {
+        this.sipTransportConnection = sipTransportConnection;
+        this.socketChannel = socketChannel;
+        this.messageReceiver = messageReceiver;
+        this.transportManager = transportManager;
+        this.transportReactor = transportReactor;
+        this.logger = logger;
+        remoteInetAddress = sipTransportConnection.getRemoteInetAddress();
+        remotePort = sipTransportConnection.getRemotePort();
+        framer = new StreamMessageFramer();
+        readBuffer = ByteBuffer.allocate(MessageReceiver.BUFFER_SIZE);
+        writeQueue = new LinkedList<ByteBuffer>();
+        connected = socketChannel.isConnected();
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Registers the connection on the reactor, initiating the connection
+     * to the remote host if it is not connected yet.
+     */
+    public void start() throws IOException {
+        int interestOps = SelectionKey.OP_READ;
+        if (!connected) {
+            socketChannel.configureBlocking(false);
+            if (socketChannel.connect(new InetSocketAddress(
+                    remoteInetAddress, remotePort))) {
+                connected = true;
+            } else {
+                interestOps = SelectionKey.OP_CONNECT;
+            }
+        }
+        transportReactor.register(socketChannel, interestOps, this);
+    }
+
+    /**
+     * Queues bytes to be written on the connection. May be called from any
+     * thread, bytes are actually written by the event loop.
+     */
+    public void send(byte[] bytes) throws IOException {
+        if (closed) {
+            throw new IOException("connection closed " + sipTransportConnection);
+        }
+        synchronized (writeQueue) {
+            writeQueue.add(ByteBuffer.wrap(bytes));
+        }
+        if (connected && selectionKey != null) {
+            transportReactor.setInterestOps(selectionKey,
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    public void channelRegistered(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+        if (closed) {
+            selectionKey.cancel();
+            return;
+        }
+        if (connected && hasPendingWrites()) {
+            selectionKey.interestOps(
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    public void channelReady(SelectionKey selectionKey) throws IOException {
+        try {
+            if (selectionKey.isConnectable()) {
+                socketChannel.finishConnect();
+                connected = true;
+                logger.debug("connected " + sipTransportConnection);
+                selectionKey.interestOps(hasPendingWrites()
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+                return;
+            }
+            if (selectionKey.isReadable()) {
+                read();
+            }
+            if (selectionKey.isValid() && selectionKey.isWritable()) {
+                write(selectionKey);
+            }
+        } catch (IOException e) {
+            logger.error("tcp connection error " + sipTransportConnection, e);
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        readBuffer.clear();
+        int read = socketChannel.read(readBuffer);
+        if (read < 0) {
+            logger.debug("connection closed by peer " + sipTransportConnection);
+            close();
+            return;
+        }
+        readBuffer.flip();
+        framer.append(readBuffer);
+        byte[] message;
+        while ((message = framer.nextMessage()) != null) {
+            markActive();
+            messageReceiver.processMessage(message, remoteInetAddress,
+                    remotePort, RFC3261.TRANSPORT_TCP);
+        }
+        if (framer.pingReceived()) {
+            // RFC5626 3.5.1 pong
+            send(KeepAliveManager.PONG);
+        }
+        if (framer.pongReceived()) {
+            transportManager.getKeepAliveManager().pongReceived(
+                    sipTransportConnection);
+        }
+    }
+
+    private void write(SelectionKey selectionKey) throws IOException {
+        synchronized (writeQueue) {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer byteBuffer = writeQueue.getFirst();
+                socketChannel.write(byteBuffer);
+                if (byteBuffer.hasRemaining()) {
+                    // socket buffer full, wait for next writable event
+                    return;
+                }
+                writeQueue.removeFirst();
+            }
+            selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private boolean hasPendingWrites() {
+        synchronized (writeQueue) {
+            return !writeQueue.isEmpty();
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            logger.error("cannot close connection " + sipTransportConnection,
+                    e);
+        }
+        synchronized (writeQueue) {
+            writeQueue.clear();
+        }
+        transportManager.tcpConnectionClosed(this);
+    }
+
+    /**
+     * Records SIP traffic on this connection. Keep-alives do not count as
+     * activity, so that idle connections can be evicted from the pool.
+     */
+    public void markActive() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public SipTransportConnection getSipTransportConnection() {
+        return sipTransportConnection;
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.transaction.TransactionManager;
+
+/**
+ * Receives SIP messages from TCP connections. When created with a server
+ * socket channel, it accepts inbound connections on the SIP port and hands
+ * them to the {@link TransportManager} connection pool. Messages read from
+ * each {@link TcpConnection} are then processed by this receiver.
+ */
+public class TcpMessageReceiver extends MessageReceiver
+        implements ChannelHandler {
+
+    private ServerSocketChannel serverSocketChannel;
+    private TransportManager transportManager;
+
+    public TcpMessageReceiver(int port,
+            ServerSocketChannel serverSocketChannel,
+            TransactionManager transactionManager,
+            TransportManager transportManager, Config config,
+            Logger logger) {
+        super(port, transactionManager, transportManager, config, logger);
+        this.serverSocketChannel = serverSocketChannel;
+        this.transportManager = transportManager;
+    }
+
+    public ServerSocketChannel getServerSocketChannel() {
+        return serverSocketChannel;
+    }
+
+    @Override
+    public void channelRegistered(SelectionKey selectionKey) {
+        logger.debug("tcp server channel registered on port " + port);
+    }
+
+    @Override
+    public void channelReady(SelectionKey selectionKey) throws IOException {
+        if (!isListening()) {
+            selectionKey.cancel();
+            return;
+        }
+        listen();
+    }
+
+    @Override
+    protected void listen() throws IOException {
+        if (serverSocketChannel == null) {
+            return;
+        }
+        SocketChannel socketChannel;
+        while ((socketChannel = serverSocketChannel.accept()) != null) {
+            InetSocketAddress remote =
+                (InetSocketAddress)socketChannel.getRemoteAddress();
+            logger.debug("accepted tcp connection from " + remote);
+            transportManager.tcpConnectionAccepted(socketChannel, remote,
+                    this);
+        }
+    }
+
+    public void close() {
+        setListening(false);
+        if (serverSocketChannel != null) {
+            try {
+                serverSocketChannel.close();
+            } catch (IOException e) {
+                logger.error("cannot close server channel", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
+
+public class TcpMessageSender extends MessageSender {
+
+    private TcpConnection tcpConnection;
+
+    public TcpMessageSender(int localPort, InetAddress inetAddress, int port,
+            TcpConnection tcpConnection, Config config,
+            KeepAliveManager keepAliveManager, Logger logger) {
+        super(localPort, inetAddress, port, config, RFC3261.TRANSPORT_TCP,
+                keepAliveManager, logger);
+        this.tcpConnection = tcpConnection;
+    }
+
+    @Override
+    public void sendMessage(SipMessage sipMessage) throws IOException {
+        logger.debug("TcpMessageSender.sendMessage");
+        if (sipMessage == null) {
+            return;
+        }
+        byte[] buf = sipMessage.getBytes();
+        tcpConnection.markActive();
+        sendBytes(buf);
+        messageSent();
+        if (logger.isNetworkTraceEnabled()) {
+            StringBuffer direction = new StringBuffer();
+            direction.append("SENT to ").append(inetAddress.getHostAddress());
+            direction.append("/").append(port);
+            logger.traceNetwork(new String(buf), direction.toString());
+        }
+    }
+
+    @Override
+    public void sendBytes(byte[] bytes) throws IOException {
+        tcpConnection.send(bytes);
+    }
+
+    public TcpConnection getTcpConnection() {
+        return tcpConnection;
+    }
+
+}
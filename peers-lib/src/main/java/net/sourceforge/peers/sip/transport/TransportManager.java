@@ -37,14 +37,25 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.concurrent.ThreadFactory;
 
+import net.sourceforge.peers.AddressResolver;
+import net.sourceforge.peers.CachingAddressResolver;
 import net.sourceforge.peers.Config;
 import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.PlatformThreadFactory;
+import net.sourceforge.peers.TimingWheel;
 import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.Utils;
 import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldName;
@@ -58,6 +69,7 @@ import net.sourceforge.peers.sip.transaction.TransactionManager;
 public class TransportManager {
 
     public static final int SOCKET_TIMEOUT = RFC3261.TIMER_T1;
+    public static final long DEFAULT_TCP_IDLE_TIMEOUT = 300000; // ms
 
     private static int NO_TTL = -1;
     
@@ -69,20 +81,93 @@ public class TransportManager {
     protected SipParser sipParser;
     
     private Hashtable<SipTransportConnection, DatagramSocket> datagramSockets;
-    private Hashtable<SipTransportConnection, MessageSender> messageSenders;
+    private MessageSenderCache messageSenders;
     private Hashtable<SipTransportConnection, MessageReceiver> messageReceivers;
+    private Hashtable<SipTransportConnection, TcpConnection> tcpConnections;
 
     private TransactionManager transactionManager;
 
     private Config config;
     private int sipPort;
 
+    // null in threaded mode, one thread per message receiver
+    private TransportReactor transportReactor;
+    // created on first tcp use when no reactor has been provided
+    private TransportReactor tcpTransportReactor;
+    private TimingWheel.Timeout tcpIdleTimer;
+    private TimingWheel.Timeout senderIdleTimer;
+    private KeepAliveManager keepAliveManager;
+    private long tcpIdleTimeout;
+    // processes received messages off the receiving threads
+    private SipWorkerPool sipWorkerPool;
+    // true if the worker pool was created by this transport manager
+    private boolean ownWorkerPool;
+    private CachingAddressResolver addressResolver;
+    private boolean ownAddressResolver;
+    private SipServerLocator sipServerLocator;
+    private SourceRateLimiter sourceRateLimiter;
+    private volatile OptionsResponder optionsResponder;
+    private OverloadController overloadController;
+    private ThreadFactory threadFactory;
+
     public TransportManager(TransactionManager transactionManager,
             Config config, Logger logger) {
-        sipParser = new SipParser();
+        this(transactionManager, config, logger, null);
+    }
+
+    /**
+     * @param transportReactor if not null, all sockets are served by the
+     * reactor event loops instead of one thread per message receiver. The
+     * reactor is not closed by {@link #closeTransports()}, it can be shared
+     * between several transport managers.
+     */
+    public TransportManager(TransactionManager transactionManager,
+            Config config, Logger logger, TransportReactor transportReactor) {
+        this(transactionManager, config, logger, transportReactor, null);
+    }
+
+    /**
+     * @param sipWorkerPool pool on which received messages are parsed and
+     * processed. If null, a pool with {@link SipWorkerPool#DEFAULT_WORKERS}
+     * workers is created and closed by {@link #closeTransports()}, a pool
+     * provided here is not closed and can be shared.
+     */
+    public TransportManager(TransactionManager transactionManager,
+            Config config, Logger logger, TransportReactor transportReactor,
+            SipWorkerPool sipWorkerPool) {
+        this(transactionManager, config, logger, transportReactor,
+                sipWorkerPool, null);
+    }
+
+    /**
+     * @param threadFactory creates message receiver threads, and threads
+     * of the worker pool, tcp reactor and address resolver when they are
+     * created here. Platform threads if null.
+     */
+    public TransportManager(TransactionManager transactionManager,
+            Config config, Logger logger, TransportReactor transportReactor,
+            SipWorkerPool sipWorkerPool, ThreadFactory threadFactory) {
+        this.transportReactor = transportReactor;
+        if (threadFactory == null) {
+            threadFactory = PlatformThreadFactory.INSTANCE;
+        }
+        this.threadFactory = threadFactory;
+        if (sipWorkerPool == null) {
+            sipWorkerPool = new SipWorkerPool(SipWorkerPool.DEFAULT_WORKERS,
+                    logger, threadFactory);
+            ownWorkerPool = true;
+        }
+        this.sipWorkerPool = sipWorkerPool;
+        overloadController = new OverloadController(sipWorkerPool, logger);
+        sipParser = new SipParser(true);
         datagramSockets = new Hashtable<SipTransportConnection, DatagramSocket>();
-        messageSenders = new Hashtable<SipTransportConnection, MessageSender>();
+        messageSenders = new MessageSenderCache(logger);
+        sourceRateLimiter = new SourceRateLimiter(logger);
+        optionsResponder = new OptionsResponder(Utils.generateAllowHeader(),
+                RFC3261.CONTENT_TYPE_SDP, null);
         messageReceivers = new Hashtable<SipTransportConnection, MessageReceiver>();
+        tcpConnections = new Hashtable<SipTransportConnection, TcpConnection>();
+        tcpIdleTimeout = DEFAULT_TCP_IDLE_TIMEOUT;
         this.transactionManager = transactionManager;
         this.config = config;
         this.logger = logger;
@@ -102,12 +187,6 @@ public class TransportManager {
         
         //via created by transaction layer to add branchid
         SipHeaderFieldValue via = Utils.getTopVia(sipRequest);
-        StringBuffer buf = new StringBuffer(DEFAULT_SIP_VERSION);
-        buf.append(TRANSPORT_VIA_SEP);
-        if (sipRequest.toString().getBytes().length > TRANSPORT_UDP_USUAL_MAX_SIZE) {
-            transport = TRANSPORT_TCP;
-        }
-        buf.append(transport);
         if (inetAddress.isMulticastAddress()) {
             SipHeaderParamName maddrName = new SipHeaderParamName(PARAM_MADDR);
             via.addParam(maddrName, inetAddress.getHostAddress());
@@ -120,8 +199,6 @@ public class TransportManager {
         //TODO check config
         via.addParam(new SipHeaderParamName(RFC3261.PARAM_RPORT), "");
 
-        buf.append(TRANSPORT_VIA_SEP2);//space
-        
         //TODO user server connection
         
         InetAddress myAddress = config.getPublicInetAddress();
@@ -129,8 +206,9 @@ public class TransportManager {
             myAddress = config.getLocalInetAddress();
         }
 
-        buf.append(myAddress.getHostAddress()); //TODO use getHostName if real DNS
-        buf.append(TRANSPORT_PORT_SEP);
+        StringBuffer sentBy = new StringBuffer();
+        sentBy.append(myAddress.getHostAddress()); //TODO use getHostName if real DNS
+        sentBy.append(TRANSPORT_PORT_SEP);
         
 
         if (sipPort < 1) {
@@ -144,10 +222,16 @@ public class TransportManager {
                 throw new RuntimeException("unknown transport type");
             }
         }
-        buf.append(sipPort);
+        sentBy.append(sipPort);
         //TODO add sent-by (p. 143) Before...
         
-        via.setValue(buf.toString());
+        via.setValue(viaValue(transport, sentBy));
+        // size of the final wire image, cached for sending
+        if (!TRANSPORT_TCP.equals(transport)
+                && sipRequest.getBytes().length > TRANSPORT_UDP_USUAL_MAX_SIZE) {
+            transport = TRANSPORT_TCP;
+            via.setValue(viaValue(transport, sentBy));
+        }
         
         SipTransportConnection connection = new SipTransportConnection(
                 config.getLocalInetAddress(), sipPort, inetAddress, port,
@@ -157,9 +241,20 @@ public class TransportManager {
         if (messageSender == null) {
             messageSender = createMessageSender(connection);
         }
+        // only flows we initiate are kept alive
+        getKeepAliveManager().add(connection, messageSender);
         return messageSender;
     }
     
+    private static String viaValue(String transport, StringBuffer sentBy) {
+        StringBuffer buf = new StringBuffer(DEFAULT_SIP_VERSION);
+        buf.append(TRANSPORT_VIA_SEP);
+        buf.append(transport);
+        buf.append(TRANSPORT_VIA_SEP2);//space
+        buf.append(sentBy);
+        return buf.toString();
+    }
+
     private String threadName(int port) {
         return getClass().getSimpleName() + " " + port;
     }
@@ -173,14 +268,53 @@ public class TransportManager {
         MessageReceiver messageReceiver = messageReceivers.get(conn);
         if (messageReceiver == null) {
             messageReceiver = createMessageReceiver(conn);
-            new Thread(messageReceiver, threadName(port)).start();
+            startMessageReceiver(messageReceiver);
         }
         if (!messageReceiver.isListening()) {
-            new Thread(messageReceiver, threadName(port)).start();
+            startMessageReceiver(messageReceiver);
+        }
+    }
+
+    private void startMessageReceiver(MessageReceiver messageReceiver)
+            throws SocketException {
+        if (messageReceiver instanceof TcpMessageReceiver) {
+            TcpMessageReceiver tcpMessageReceiver =
+                (TcpMessageReceiver)messageReceiver;
+            try {
+                getTcpTransportReactor().register(
+                        tcpMessageReceiver.getServerSocketChannel(),
+                        SelectionKey.OP_ACCEPT, tcpMessageReceiver);
+            } catch (IOException e) {
+                logger.error("cannot register channel", e);
+                throw new SocketException(e.getMessage());
+            }
+        } else if (messageReceiver instanceof UdpChannelMessageReceiver) {
+            UdpChannelMessageReceiver channelMessageReceiver =
+                (UdpChannelMessageReceiver)messageReceiver;
+            try {
+                transportReactor.register(
+                        channelMessageReceiver.getDatagramChannel(),
+                        SelectionKey.OP_READ, channelMessageReceiver);
+            } catch (IOException e) {
+                logger.error("cannot register channel", e);
+                throw new SocketException(e.getMessage());
+            }
+        } else {
+            Thread thread = threadFactory.newThread(messageReceiver);
+            thread.setName(threadName(messageReceiver.port));
+            thread.start();
         }
     }
     
-    public void sendResponse(SipResponse sipResponse) throws IOException {
+    /**
+     * Sends a response to the address given by its top Via (RFC3261
+     * 18.2.2), with a Contact of the sending transport.
+     * 
+     * @return the sender used, to replay the same bytes on request
+     *         retransmissions, null if the response could not be sent
+     */
+    public MessageSender sendResponse(SipResponse sipResponse)
+            throws IOException {
         //18.2.2
         SipHeaderFieldValue topVia = Utils.getTopVia(sipResponse);
         String topViaValue = topVia.getValue();
@@ -218,7 +352,7 @@ public class TransportManager {
         } else {
             logger.error("no transport found in top via header," +
                     " discarding response");
-            return;
+            return null;
         }
         
         String received =
@@ -236,63 +370,49 @@ public class TransportManager {
         SipTransportConnection connection;
         try {
             connection = new SipTransportConnection(config.getLocalInetAddress(),
-                    sipPort, InetAddress.getByName(host),
+                    sipPort, getAddressResolver().getByName(host),
                     port, transport);
         } catch (UnknownHostException e) {
             logger.error("unknwon host", e);
-            return;
+            return null;
         }
         
         //actual sending
         
         //TODO manage maddr parameter in top via for multicast
-        if (buf.indexOf(RFC3261.TRANSPORT_TCP) > -1) {
-//            Socket socket = (Socket)factory.connections.get(connection);
-//            if (!socket.isClosed()) {
-//                try {
-//                    socket.getOutputStream().write(data);
-//                } catch (IOException e) {
-//                    e.printStackTrace();
-//                    return;
-//                    //TODO
-//                }
-//            } else {
-//                try {
-//                    socket = new Socket(host, port);
-//                    factory.connections.put(connection, socket);
-//                    socket.getOutputStream().write(data);
-//                } catch (IOException e) {
-//                    // TODO Auto-generated catch block
-//                    e.printStackTrace();
-//                    /*
-//                     * TODO
-//                     * If connection attempt fails, use the procedures in RFC3263
-//                     * for servers in order to determine the IP address and
-//                     * port to open the connection and send the response to.
-//                     */
-//                    return;
-//                }
-//            }
-        } else {
-            MessageSender messageSender = messageSenders.get(connection);
-            if (messageSender == null) {
-                messageSender = createMessageSender(connection);
+        MessageSender messageSender = messageSenders.get(connection);
+        if (messageSender == null
+                && RFC3261.TRANSPORT_TCP.equals(transport)) {
+            // RFC3261 18.2.2, send the response over the connection
+            // on which the request was received if still open
+            TcpConnection tcpConnection = findTcpConnection(connection);
+            if (tcpConnection != null) {
+                messageSender = new TcpMessageSender(sipPort,
+                        connection.getRemoteInetAddress(),
+                        connection.getRemotePort(), tcpConnection, config,
+                        getKeepAliveManager(), logger);
+                messageSender = putMessageSender(connection, messageSender);
             }
-            //add contact header
-            SipHeaderFieldName contactName = new SipHeaderFieldName(RFC3261.HDR_CONTACT);
-            SipHeaders respHeaders = sipResponse.getSipHeaders();
-            StringBuffer contactBuf = new StringBuffer();
-            contactBuf.append(RFC3261.LEFT_ANGLE_BRACKET);
-            contactBuf.append(RFC3261.SIP_SCHEME);
-            contactBuf.append(RFC3261.SCHEME_SEPARATOR);
-            contactBuf.append(messageSender.getContact());
-            contactBuf.append(RFC3261.RIGHT_ANGLE_BRACKET);
-            respHeaders.add(contactName, new SipHeaderFieldValue(contactBuf.toString()));
-            messageSender.sendMessage(sipResponse);
-
         }
-        
-        
+        if (messageSender == null) {
+            messageSender = createMessageSender(connection);
+        }
+        //set contact header, unchanged if the response is sent again
+        SipHeaderFieldName contactName = new SipHeaderFieldName(RFC3261.HDR_CONTACT);
+        SipHeaders respHeaders = sipResponse.getSipHeaders();
+        StringBuffer contactBuf = new StringBuffer();
+        contactBuf.append(RFC3261.LEFT_ANGLE_BRACKET);
+        contactBuf.append(RFC3261.SIP_SCHEME);
+        contactBuf.append(RFC3261.SCHEME_SEPARATOR);
+        contactBuf.append(messageSender.getContact());
+        contactBuf.append(RFC3261.RIGHT_ANGLE_BRACKET);
+        String contact = contactBuf.toString();
+        SipHeaderFieldValue contactValue = respHeaders.get(contactName);
+        if (contactValue == null || !contact.equals(contactValue.toString())) {
+            respHeaders.set(contactName, new SipHeaderFieldValue(contact));
+        }
+        messageSender.sendMessage(sipResponse);
+        return messageSender;
     }
     
     private MessageSender createMessageSender(final SipTransportConnection conn)
@@ -303,41 +423,37 @@ public class TransportManager {
             //TODO use Utils.getMyAddress to create socket on appropriate NIC
             DatagramSocket datagramSocket = datagramSockets.get(conn);
             if (datagramSocket == null) {
-                logger.debug("new DatagramSocket(" + conn.getLocalPort()
-                        + ", " + conn.getLocalInetAddress() + ")");
-                // AccessController.doPrivileged added for plugin compatibility
-                datagramSocket = AccessController.doPrivileged(
-                    new PrivilegedAction<DatagramSocket>() {
-
-                        @Override
-                        public DatagramSocket run() {
-                            try {
-                                return new DatagramSocket(conn.getLocalPort(),
-                                        conn.getLocalInetAddress());
-                            } catch (SocketException e) {
-                                logger.error("cannot create socket", e);
-                            } catch (SecurityException e) {
-                                logger.error("security exception", e);
-                            }
-                            return null;
-                        }
-                    }
-                );
-                if (datagramSocket == null) {
-                    throw new SocketException();
-                }
-                datagramSocket.setSoTimeout(SOCKET_TIMEOUT);
+                datagramSocket = newDatagramSocket(conn);
                 datagramSockets.put(conn, datagramSocket);
                 logger.info("added datagram socket " + conn);
             }
             socket = datagramSocket;
-            messageSender = new UdpMessageSender(conn.getRemoteInetAddress(),
-                    conn.getRemotePort(), datagramSocket, config, logger);
-        } else {
-            // TODO
-            // messageReceiver = new TcpMessageReceiver(port);
+            DatagramChannel datagramChannel = datagramSocket.getChannel();
+            if (datagramChannel != null) {
+                messageSender = new UdpChannelMessageSender(
+                        conn.getRemoteInetAddress(), conn.getRemotePort(),
+                        datagramChannel, config,
+                        getKeepAliveManager(), logger);
+            } else {
+                messageSender = new UdpMessageSender(
+                        conn.getRemoteInetAddress(), conn.getRemotePort(),
+                        datagramSocket, config,
+                        getKeepAliveManager(), logger);
+            }
+        } else if (RFC3261.TRANSPORT_TCP.equalsIgnoreCase(
+                conn.getTransport())) {
+            TcpConnection tcpConnection = tcpConnections.get(conn);
+            if (tcpConnection == null || tcpConnection.isClosed()) {
+                tcpConnection = openTcpConnection(conn);
+            }
+            // tcp connections carry their own message receiver
+            messageSender = new TcpMessageSender(conn.getLocalPort(),
+                    conn.getRemoteInetAddress(), conn.getRemotePort(),
+                    tcpConnection, config,
+                    getKeepAliveManager(), logger);
+            return putMessageSender(conn, messageSender);
         }
-        messageSenders.put(conn, messageSender);
+        messageSender = putMessageSender(conn, messageSender);
         //when a mesage is sent over a transport, the transport layer
         //must also be able to receive messages on this transport
         
@@ -346,7 +462,7 @@ public class TransportManager {
         MessageReceiver messageReceiver = messageReceivers.get(conn);
         if (messageReceiver == null) {
         	messageReceiver = createMessageReceiver(conn, socket);
-        	new Thread(messageReceiver, threadName(conn.getLocalPort())).start();
+        	startMessageReceiver(messageReceiver);
         }
 //        if (RFC3261.TRANSPORT_UDP.equalsIgnoreCase(conn.getTransport())) {
 //            messageSender = new UdpMessageSender(conn.getRemoteInetAddress(),
@@ -360,10 +476,7 @@ public class TransportManager {
             Object socket) throws IOException {
         MessageReceiver messageReceiver = null;
         if (RFC3261.TRANSPORT_UDP.equalsIgnoreCase(conn.getTransport())) {
-            DatagramSocket datagramSocket = (DatagramSocket)socket;
-            messageReceiver = new UdpMessageReceiver(datagramSocket,
-                    transactionManager, this, config, logger);
-            messageReceiver.setSipServerTransportUser(sipServerTransportUser);
+            messageReceiver = newUdpMessageReceiver((DatagramSocket)socket);
         }
         messageReceivers.put(conn, messageReceiver);
         return messageReceiver;
@@ -376,27 +489,7 @@ public class TransportManager {
         if (RFC3261.TRANSPORT_UDP.equals(conn.getTransport())) {
             DatagramSocket datagramSocket = datagramSockets.get(conn);
             if (datagramSocket == null) {
-                logger.debug("new DatagramSocket(" + conn.getLocalPort()
-                        + ", " + conn.getLocalInetAddress() + ")");
-                // AccessController.doPrivileged added for plugin compatibility
-                datagramSocket = AccessController.doPrivileged(
-                        new PrivilegedAction<DatagramSocket>() {
-
-                            @Override
-                            public DatagramSocket run() {
-                                try {
-                                    return new DatagramSocket(conn.getLocalPort(),
-                                            conn.getLocalInetAddress());
-                                } catch (SocketException e) {
-                                    logger.error("cannot create socket", e);
-                                } catch (SecurityException e) {
-                                    logger.error("security exception", e);
-                                }
-                                return null;
-                            }
-                        }
-                    );
-                datagramSocket.setSoTimeout(SOCKET_TIMEOUT);
+                datagramSocket = newDatagramSocket(conn);
                 if (conn.getLocalPort() == 0) {
                     sipTransportConnection = new SipTransportConnection(
                             conn.getLocalInetAddress(),
@@ -410,13 +503,22 @@ public class TransportManager {
                 datagramSockets.put(sipTransportConnection, datagramSocket);
                 logger.info("added datagram socket " + sipTransportConnection);
             }
-            messageReceiver = new UdpMessageReceiver(datagramSocket,
-                    transactionManager, this, config, logger);
-            messageReceiver.setSipServerTransportUser(sipServerTransportUser);
+            messageReceiver = newUdpMessageReceiver(datagramSocket);
             //TODO create also tcp receiver using a recursive call
-        } else {
-            //TODO
-            //messageReceiver = new TcpMessageReceiver(port);
+        } else if (RFC3261.TRANSPORT_TCP.equals(conn.getTransport())) {
+            ServerSocketChannel serverSocketChannel =
+                newServerSocketChannel(conn);
+            int localPort = serverSocketChannel.socket().getLocalPort();
+            if (conn.getLocalPort() == 0) {
+                sipTransportConnection = new SipTransportConnection(
+                        conn.getLocalInetAddress(), localPort,
+                        conn.getRemoteInetAddress(), conn.getRemotePort(),
+                        conn.getTransport());
+            }
+            messageReceiver = new TcpMessageReceiver(localPort,
+                    serverSocketChannel, transactionManager, this, config,
+                    logger);
+            messageReceiver.setSipServerTransportUser(sipServerTransportUser);
         }
         messageReceivers.put(sipTransportConnection, messageReceiver);
         logger.info("added " + sipTransportConnection + ": " + messageReceiver
@@ -424,6 +526,250 @@ public class TransportManager {
         return messageReceiver;
     }
 
+    private DatagramSocket newDatagramSocket(
+            final SipTransportConnection conn) throws SocketException {
+        logger.debug("new DatagramSocket(" + conn.getLocalPort()
+                + ", " + conn.getLocalInetAddress() + ")");
+        // AccessController.doPrivileged added for plugin compatibility
+        DatagramSocket datagramSocket = AccessController.doPrivileged(
+            new PrivilegedAction<DatagramSocket>() {
+
+                @Override
+                public DatagramSocket run() {
+                    try {
+                        if (transportReactor != null) {
+                            DatagramChannel datagramChannel =
+                                DatagramChannel.open();
+                            datagramChannel.bind(new InetSocketAddress(
+                                    conn.getLocalInetAddress(),
+                                    conn.getLocalPort()));
+                            return datagramChannel.socket();
+                        }
+                        return new DatagramSocket(conn.getLocalPort(),
+                                conn.getLocalInetAddress());
+                    } catch (IOException e) {
+                        logger.error("cannot create socket", e);
+                    } catch (SecurityException e) {
+                        logger.error("security exception", e);
+                    }
+                    return null;
+                }
+            }
+        );
+        if (datagramSocket == null) {
+            throw new SocketException();
+        }
+        if (transportReactor == null) {
+            datagramSocket.setSoTimeout(SOCKET_TIMEOUT);
+        }
+        return datagramSocket;
+    }
+
+    private MessageReceiver newUdpMessageReceiver(
+            DatagramSocket datagramSocket) throws SocketException {
+        MessageReceiver messageReceiver;
+        if (datagramSocket.getChannel() != null) {
+            messageReceiver = new UdpChannelMessageReceiver(
+                    datagramSocket.getChannel(), transactionManager, this,
+                    config, logger);
+        } else {
+            messageReceiver = new UdpMessageReceiver(datagramSocket,
+                    transactionManager, this, config, logger);
+        }
+        messageReceiver.setSipServerTransportUser(sipServerTransportUser);
+        return messageReceiver;
+    }
+
+    private ServerSocketChannel newServerSocketChannel(
+            final SipTransportConnection conn) throws SocketException {
+        // AccessController.doPrivileged added for plugin compatibility
+        ServerSocketChannel serverSocketChannel = AccessController.doPrivileged(
+            new PrivilegedAction<ServerSocketChannel>() {
+
+                @Override
+                public ServerSocketChannel run() {
+                    try {
+                        ServerSocketChannel serverSocketChannel =
+                            ServerSocketChannel.open();
+                        serverSocketChannel.bind(new InetSocketAddress(
+                                conn.getLocalInetAddress(),
+                                conn.getLocalPort()));
+                        return serverSocketChannel;
+                    } catch (IOException e) {
+                        logger.error("cannot create server socket", e);
+                    } catch (SecurityException e) {
+                        logger.error("security exception", e);
+                    }
+                    return null;
+                }
+            }
+        );
+        if (serverSocketChannel == null) {
+            throw new SocketException();
+        }
+        return serverSocketChannel;
+    }
+
+    private TcpConnection openTcpConnection(SipTransportConnection conn)
+            throws IOException {
+        // AccessController.doPrivileged added for plugin compatibility
+        SocketChannel socketChannel = AccessController.doPrivileged(
+            new PrivilegedAction<SocketChannel>() {
+
+                @Override
+                public SocketChannel run() {
+                    try {
+                        return SocketChannel.open();
+                    } catch (IOException e) {
+                        logger.error("cannot create socket", e);
+                    } catch (SecurityException e) {
+                        logger.error("security exception", e);
+                    }
+                    return null;
+                }
+            }
+        );
+        if (socketChannel == null) {
+            throw new SocketException();
+        }
+        MessageReceiver messageReceiver = new TcpMessageReceiver(
+                conn.getLocalPort(), null, transactionManager, this, config,
+                logger);
+        messageReceiver.setSipServerTransportUser(sipServerTransportUser);
+        return startTcpConnection(conn, socketChannel, messageReceiver);
+    }
+
+    void tcpConnectionAccepted(SocketChannel socketChannel,
+            InetSocketAddress remote, TcpMessageReceiver tcpMessageReceiver)
+            throws IOException {
+        SipTransportConnection conn = new SipTransportConnection(
+                config.getLocalInetAddress(), tcpMessageReceiver.port,
+                remote.getAddress(), remote.getPort(), RFC3261.TRANSPORT_TCP);
+        startTcpConnection(conn, socketChannel, tcpMessageReceiver);
+    }
+
+    private TcpConnection startTcpConnection(SipTransportConnection conn,
+            SocketChannel socketChannel, MessageReceiver messageReceiver)
+            throws IOException {
+        TcpConnection tcpConnection = new TcpConnection(conn, socketChannel,
+                messageReceiver, this, getTcpTransportReactor(), logger);
+        TcpConnection previous = tcpConnections.put(conn, tcpConnection);
+        if (previous != null) {
+            previous.close();
+        }
+        startTcpIdleTimer();
+        try {
+            tcpConnection.start();
+        } catch (IOException e) {
+            tcpConnection.close();
+            throw e;
+        }
+        logger.info("added tcp connection " + conn);
+        return tcpConnection;
+    }
+
+    // looks for the connection on which a request has been received,
+    // the remote port may differ from the port found in top via
+    private TcpConnection findTcpConnection(SipTransportConnection conn) {
+        TcpConnection tcpConnection = tcpConnections.get(conn);
+        if (tcpConnection != null && !tcpConnection.isClosed()) {
+            return tcpConnection;
+        }
+        synchronized (tcpConnections) {
+            for (TcpConnection candidate: tcpConnections.values()) {
+                SipTransportConnection candidateConn =
+                    candidate.getSipTransportConnection();
+                if (!candidate.isClosed() && conn.getRemoteInetAddress()
+                        .equals(candidateConn.getRemoteInetAddress())) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    void tcpConnectionClosed(TcpConnection tcpConnection) {
+        SipTransportConnection conn =
+            tcpConnection.getSipTransportConnection();
+        synchronized (tcpConnections) {
+            if (tcpConnections.get(conn) == tcpConnection) {
+                tcpConnections.remove(conn);
+            }
+        }
+        for (MessageSender messageSender: messageSenders.values()) {
+            if (messageSender instanceof TcpMessageSender &&
+                    ((TcpMessageSender)messageSender).getTcpConnection()
+                        == tcpConnection) {
+                messageSenders.remove(messageSender);
+            }
+        }
+        logger.info("removed tcp connection " + conn);
+    }
+
+    private synchronized TransportReactor getTcpTransportReactor()
+            throws IOException {
+        if (transportReactor != null) {
+            return transportReactor;
+        }
+        if (tcpTransportReactor == null) {
+            tcpTransportReactor = new TransportReactor(1, logger,
+                    threadFactory);
+        }
+        return tcpTransportReactor;
+    }
+
+    private MessageSender putMessageSender(SipTransportConnection conn,
+            MessageSender messageSender) {
+        synchronized (this) {
+            if (senderIdleTimer == null) {
+                long period = Math.max(messageSenders.getIdleTimeout() / 2,
+                        RFC3261.TIMER_T1);
+                senderIdleTimer = transactionManager.getTimingWheel()
+                    .scheduleAtFixedRate(new Runnable() {
+                        @Override
+                        public void run() {
+                            messageSenders.evictIdle(
+                                    System.currentTimeMillis());
+                        }
+                    }, period, period);
+            }
+        }
+        return messageSenders.putIfAbsent(conn, messageSender);
+    }
+
+    private synchronized void startTcpIdleTimer() {
+        if (tcpIdleTimer != null) {
+            return;
+        }
+        long period = Math.max(tcpIdleTimeout / 2, RFC3261.TIMER_T1);
+        tcpIdleTimer = transactionManager.getTimingWheel()
+            .scheduleAtFixedRate(new TcpIdleEviction(), period, period);
+    }
+
+    class TcpIdleEviction implements Runnable {
+
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            ArrayList<TcpConnection> idleConnections =
+                new ArrayList<TcpConnection>();
+            synchronized (tcpConnections) {
+                for (TcpConnection tcpConnection: tcpConnections.values()) {
+                    if (now - tcpConnection.getLastActivity()
+                            > tcpIdleTimeout) {
+                        idleConnections.add(tcpConnection);
+                    }
+                }
+            }
+            for (TcpConnection tcpConnection: idleConnections) {
+                logger.debug("closing idle tcp connection "
+                        + tcpConnection.getSipTransportConnection());
+                tcpConnection.close();
+            }
+        }
+
+    }
+
     public void setSipServerTransportUser(
             SipServerTransportUser sipServerTransportUser) {
         this.sipServerTransportUser = sipServerTransportUser;
@@ -431,19 +777,43 @@ public class TransportManager {
 
     public void closeTransports() {
         for (MessageReceiver messageReceiver: messageReceivers.values()) {
-            messageReceiver.setListening(false);
+            if (messageReceiver instanceof TcpMessageReceiver) {
+                ((TcpMessageReceiver)messageReceiver).close();
+            } else {
+                messageReceiver.setListening(false);
+            }
         }
-        for (MessageSender messageSender: messageSenders.values()) {
-            messageSender.stopKeepAlives();
+        synchronized (this) {
+            if (tcpIdleTimer != null) {
+                tcpIdleTimer.cancel();
+                tcpIdleTimer = null;
+            }
+            if (senderIdleTimer != null) {
+                senderIdleTimer.cancel();
+                senderIdleTimer = null;
+            }
+        }
+        for (TcpConnection tcpConnection: new ArrayList<TcpConnection>(
+                tcpConnections.values())) {
+            tcpConnection.close();
+        }
+        synchronized (this) {
+            if (keepAliveManager != null) {
+                keepAliveManager.close();
+            }
+        }
+        messageSenders.clear();
+        if (transportReactor == null) {
+            // let blocked receive calls time out
+            try
+            {
+                Thread.sleep(SOCKET_TIMEOUT);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
         }
-        try
-		{
-			Thread.sleep(SOCKET_TIMEOUT);
-		}
-		catch (InterruptedException e)
-		{
-			return;
-		}
         // AccessController.doPrivileged added for plugin compatibility
         AccessController.doPrivileged(
             new PrivilegedAction<Void>() {
@@ -459,7 +829,20 @@ public class TransportManager {
 
 		datagramSockets.clear();
 		messageReceivers.clear();
-		messageSenders.clear();
+		synchronized (this) {
+		    if (tcpTransportReactor != null) {
+		        tcpTransportReactor.close();
+		        tcpTransportReactor = null;
+		    }
+		}
+        if (ownWorkerPool) {
+            sipWorkerPool.close();
+        }
+        synchronized (this) {
+            if (ownAddressResolver) {
+                addressResolver.close();
+            }
+        }
     }
 
     public MessageSender getMessageSender(
@@ -467,6 +850,172 @@ public class TransportManager {
         return messageSenders.get(sipTransportConnection);
     }
 
+    /**
+     * Senders are evicted after {@link MessageSenderCache#getIdleTimeout()}
+     * without use, the idle timeout must be set before the first sender is
+     * created.
+     */
+    public MessageSenderCache getMessageSenderCache() {
+        return messageSenders;
+    }
+
+    /**
+     * Per source address limits applied to received messages before they
+     * are parsed.
+     */
+    public SourceRateLimiter getSourceRateLimiter() {
+        return sourceRateLimiter;
+    }
+
+    /**
+     * @return responder answering OPTIONS outside of a dialog without
+     *         transaction, null if they go through the transaction layer
+     */
+    public OptionsResponder getOptionsResponder() {
+        return optionsResponder;
+    }
+
+    /**
+     * @param optionsResponder null to process all OPTIONS requests with
+     *        the OptionsHandler of the user agent
+     */
+    public void setOptionsResponder(OptionsResponder optionsResponder) {
+        this.optionsResponder = optionsResponder;
+    }
+
+    /**
+     * Admission control applied to received requests before they are
+     * queued on the worker pool.
+     */
+    public OverloadController getOverloadController() {
+        return overloadController;
+    }
+
+    /**
+     * Keep-alives are sent on flows opened by
+     * {@link #createClientTransport(SipRequest, InetAddress, int, String)},
+     * keep-alive policies can be set per destination.
+     */
+    public synchronized KeepAliveManager getKeepAliveManager() {
+        if (keepAliveManager == null) {
+            keepAliveManager = new KeepAliveManager(
+                    transactionManager.getTimingWheel(), logger);
+        }
+        return keepAliveManager;
+    }
+
+    /**
+     * Resolver of the hosts of Via headers and request destinations. If
+     * none has been set, a resolver is created on first use and closed by
+     * {@link #closeTransports()}.
+     */
+    public synchronized CachingAddressResolver getAddressResolver() {
+        if (addressResolver == null) {
+            addressResolver = new CachingAddressResolver(
+                    AddressResolver.SYSTEM, CachingAddressResolver.DEFAULT_TTL,
+                    CachingAddressResolver.DEFAULT_NEGATIVE_TTL,
+                    CachingAddressResolver.DEFAULT_MAX_SIZE, logger,
+                    threadFactory);
+            ownAddressResolver = true;
+        }
+        return addressResolver;
+    }
+
+    /**
+     * @param addressResolver resolver shared with other components, it is
+     *        not closed by {@link #closeTransports()}
+     */
+    public synchronized void setAddressResolver(
+            CachingAddressResolver addressResolver) {
+        if (ownAddressResolver) {
+            this.addressResolver.close();
+            ownAddressResolver = false;
+        }
+        this.addressResolver = addressResolver;
+    }
+
+    /**
+     * Locator of request destinations, using the system DNS servers and
+     * the address resolver if none has been set.
+     */
+    public synchronized SipServerLocator getSipServerLocator() {
+        if (sipServerLocator == null) {
+            sipServerLocator = new SipServerLocator(
+                    new JndiSipDnsResolver(logger), getAddressResolver(),
+                    logger);
+        }
+        return sipServerLocator;
+    }
+
+    public synchronized void setSipServerLocator(
+            SipServerLocator sipServerLocator) {
+        this.sipServerLocator = sipServerLocator;
+    }
+
+    /**
+     * Sends bytes over the tcp connection of a flow, if still open.
+     * 
+     * @return false if there is no connection for this flow
+     */
+    boolean sendOnConnection(SipTransportConnection conn, byte[] bytes)
+            throws IOException {
+        TcpConnection tcpConnection = findTcpConnection(conn);
+        if (tcpConnection == null) {
+            return false;
+        }
+        tcpConnection.send(bytes);
+        return true;
+    }
+
+    /**
+     * Called when CRLF keep-alive bytes are received on a flow. A single
+     * CRLF is a pong, a double CRLF is a ping which gets a pong back if
+     * a sender exists for this flow.
+     */
+    void keepAliveReceived(SipTransportConnection conn, boolean ping) {
+        if (!ping) {
+            getKeepAliveManager().pongReceived(conn);
+            return;
+        }
+        MessageSender messageSender = messageSenders.get(conn);
+        if (messageSender != null) {
+            try {
+                messageSender.sendBytes(KeepAliveManager.PONG);
+            } catch (IOException e) {
+                logger.error("cannot send keep-alive pong to " + conn, e);
+            }
+        }
+    }
+
+    public int getTcpConnectionCount() {
+        return tcpConnections.size();
+    }
+
+    public long getTcpIdleTimeout() {
+        return tcpIdleTimeout;
+    }
+
+    /**
+     * @param tcpIdleTimeout delay in milliseconds without SIP traffic after
+     * which a pooled tcp connection is closed. Must be set before the first
+     * tcp connection is opened.
+     */
+    public void setTcpIdleTimeout(long tcpIdleTimeout) {
+        this.tcpIdleTimeout = tcpIdleTimeout;
+    }
+
+    public TransportReactor getTransportReactor() {
+        return transportReactor;
+    }
+
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    public SipWorkerPool getSipWorkerPool() {
+        return sipWorkerPool;
+    }
+
     public int getSipPort() {
         return sipPort;
     }
@@ -0,0 +1,231 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.PlatformThreadFactory;
+
+/**
+ * Selector based reactor serving any number of SIP channels from a small
+ * fixed set of event loop threads. Each registered channel is bound to one
+ * event loop for its whole life, so its {@link ChannelHandler} is never
+ * called concurrently. Event loops block in {@link Selector#select()}, no
+ * timeout polling is involved.
+ */
+public class TransportReactor {
+
+    public static final int DEFAULT_EVENT_LOOPS = 2;
+
+    private EventLoop[] eventLoops;
+    private AtomicInteger nextEventLoop;
+    private Logger logger;
+
+    public TransportReactor(Logger logger) throws IOException {
+        this(DEFAULT_EVENT_LOOPS, logger);
+    }
+
+    public TransportReactor(int eventLoopCount, Logger logger)
+            throws IOException {
+        this(eventLoopCount, logger, null);
+    }
+
+    /**
+     * @param threadFactory creates event loop threads, platform threads if
+     *        null
+     */
+    public TransportReactor(int eventLoopCount, Logger logger,
+            ThreadFactory threadFactory) throws IOException {
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("at least one event loop "
+                    + "required");
+        }
+        this.logger = logger;
+        if (threadFactory == null) {
+            threadFactory = PlatformThreadFactory.INSTANCE;
+        }
+        nextEventLoop = new AtomicInteger();
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; ++i) {
+            eventLoops[i] = new EventLoop(Selector.open());
+        }
+        for (int i = 0; i < eventLoopCount; ++i) {
+            Thread thread = threadFactory.newThread(eventLoops[i]);
+            thread.setName(getClass().getSimpleName() + " " + i);
+            eventLoops[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Registers a channel on one of the event loops, chosen round robin.
+     * The channel is switched to non-blocking mode. Registration is
+     * asynchronous, {@link ChannelHandler#channelRegistered(SelectionKey)}
+     * tells when it is effective.
+     */
+    public void register(SelectableChannel channel, int interestOps,
+            ChannelHandler channelHandler) throws IOException {
+        channel.configureBlocking(false);
+        int index = (nextEventLoop.getAndIncrement() & Integer.MAX_VALUE)
+            % eventLoops.length;
+        eventLoops[index].register(channel, interestOps, channelHandler);
+    }
+
+    /**
+     * Changes the interest operations of a registered channel. May be
+     * called from any thread, the change is applied on the event loop.
+     */
+    public void setInterestOps(final SelectionKey selectionKey,
+            final int interestOps) {
+        EventLoop eventLoop = eventLoopOf(selectionKey);
+        if (eventLoop == null) {
+            return;
+        }
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (selectionKey.isValid()) {
+                    selectionKey.interestOps(interestOps);
+                }
+            }
+        });
+    }
+
+    public int getEventLoopCount() {
+        return eventLoops.length;
+    }
+
+    public void close() {
+        for (EventLoop eventLoop: eventLoops) {
+            eventLoop.close();
+        }
+    }
+
+    private EventLoop eventLoopOf(SelectionKey selectionKey) {
+        for (EventLoop eventLoop: eventLoops) {
+            if (eventLoop.selector == selectionKey.selector()) {
+                return eventLoop;
+            }
+        }
+        return null;
+    }
+
+    class EventLoop implements Runnable {
+
+        private Selector selector;
+        private Queue<Runnable> tasks;
+        private volatile boolean running;
+        private Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+            tasks = new ConcurrentLinkedQueue<Runnable>();
+            running = true;
+        }
+
+        void register(final SelectableChannel channel,
+                final int interestOps, final ChannelHandler channelHandler) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    SelectionKey selectionKey;
+                    try {
+                        selectionKey = channel.register(selector,
+                                interestOps, channelHandler);
+                    } catch (ClosedChannelException e) {
+                        logger.error("cannot register closed channel", e);
+                        return;
+                    }
+                    channelHandler.channelRegistered(selectionKey);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                // tasks queued by handlers of the previous iteration
+                runTasks();
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.error("input/output error", e);
+                    continue;
+                }
+                runTasks();
+                Iterator<SelectionKey> iterator =
+                    selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey selectionKey = iterator.next();
+                    iterator.remove();
+                    ChannelHandler channelHandler =
+                        (ChannelHandler)selectionKey.attachment();
+                    try {
+                        if (selectionKey.isValid()) {
+                            channelHandler.channelReady(selectionKey);
+                        }
+                    } catch (CancelledKeyException e) {
+                        // channel closed by another thread, nothing to do
+                    } catch (IOException e) {
+                        logger.error("input/output error", e);
+                    } catch (RuntimeException e) {
+                        logger.error("unexpected error", e);
+                    }
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("cannot close selector", e);
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+    }
+
+}
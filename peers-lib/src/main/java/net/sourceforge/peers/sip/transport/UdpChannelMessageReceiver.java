@@ -0,0 +1,101 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.transaction.TransactionManager;
+
+/**
+ * UDP message receiver driven by a {@link TransportReactor}. It does not own
+ * a thread: the event loop calls {@link #listen()} when datagrams are
+ * available and all pending datagrams are drained without blocking.
+ */
+public class UdpChannelMessageReceiver extends MessageReceiver
+        implements ChannelHandler {
+
+    private DatagramChannel datagramChannel;
+    private ByteBuffer buffer;
+
+    public UdpChannelMessageReceiver(DatagramChannel datagramChannel,
+            TransactionManager transactionManager,
+            TransportManager transportManager, Config config,
+            Logger logger) {
+        super(datagramChannel.socket().getLocalPort(), transactionManager,
+                transportManager, config, logger);
+        this.datagramChannel = datagramChannel;
+        // only accessed from the event loop owning this channel
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    public DatagramChannel getDatagramChannel() {
+        return datagramChannel;
+    }
+
+    @Override
+    public void channelRegistered(SelectionKey selectionKey) {
+        logger.debug("udp channel registered on port " + port);
+    }
+
+    @Override
+    public void channelReady(SelectionKey selectionKey) throws IOException {
+        if (!isListening()) {
+            selectionKey.cancel();
+            return;
+        }
+        listen();
+    }
+
+    @Override
+    protected void listen() throws IOException {
+        while (isListening()) {
+            buffer.clear();
+            InetSocketAddress sourceAddress =
+                (InetSocketAddress)datagramChannel.receive(buffer);
+            if (sourceAddress == null) {
+                return;
+            }
+            processMessage(buffer.array(), buffer.arrayOffset(),
+                    buffer.position(), sourceAddress.getAddress(),
+                    sourceAddress.getPort(), RFC3261.TRANSPORT_UDP);
+        }
+    }
+
+    /**
+     * The channel is non blocking, a datagram which does not fit in the
+     * socket buffer is dropped as it could be by the network.
+     */
+    @Override
+    protected boolean sendDatagram(byte[] data, InetAddress inetAddress,
+            int port) throws IOException {
+        datagramChannel.send(ByteBuffer.wrap(data),
+                new InetSocketAddress(inetAddress, port));
+        return true;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
+
+/**
+ * UDP message sender writing to a non-blocking {@link DatagramChannel}
+ * shared with a {@link UdpChannelMessageReceiver}.
+ */
+public class UdpChannelMessageSender extends MessageSender {
+
+    private DatagramChannel datagramChannel;
+    private InetSocketAddress destination;
+
+    public UdpChannelMessageSender(InetAddress inetAddress, int port,
+            DatagramChannel datagramChannel, Config config,
+            KeepAliveManager keepAliveManager, Logger logger) {
+        super(datagramChannel.socket().getLocalPort(), inetAddress, port,
+                config, RFC3261.TRANSPORT_UDP, keepAliveManager, logger);
+        this.datagramChannel = datagramChannel;
+        destination = new InetSocketAddress(inetAddress, port);
+    }
+
+    @Override
+    public void sendMessage(SipMessage sipMessage) throws IOException {
+        logger.debug("UdpChannelMessageSender.sendMessage");
+        if (sipMessage == null) {
+            return;
+        }
+        byte[] buf = sipMessage.getBytes();
+        sendBytes(buf);
+        messageSent();
+        if (logger.isNetworkTraceEnabled()) {
+            StringBuffer direction = new StringBuffer();
+            direction.append("SENT to ").append(inetAddress.getHostAddress());
+            direction.append("/").append(port);
+            logger.traceNetwork(new String(buf), direction.toString());
+        }
+    }
+
+    @Override
+    public void sendBytes(byte[] bytes) throws IOException {
+        if (!datagramChannel.isOpen()) {
+            logger.error("Channel closed. Packet of " + bytes.length
+                    + " bytes not sent to " + inetAddress + ":" + port);
+            return;
+        }
+        // DatagramChannel.send is thread-safe, a non-blocking send either
+        // writes the whole datagram or nothing
+        int sent = datagramChannel.send(ByteBuffer.wrap(bytes), destination);
+        if (sent == 0) {
+            logger.error("socket buffer full, packet of " + bytes.length
+                    + " bytes not sent to " + inetAddress + ":" + port);
+        }
+    }
+
+}
@@ -22,6 +22,7 @@ package net.sourceforge.peers.sip.transport;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.security.AccessController;
@@ -36,6 +37,9 @@ import net.sourceforge.peers.sip.transaction.TransactionManager;
 public class UdpMessageReceiver extends MessageReceiver {
 
     private DatagramSocket datagramSocket;
+    // reused for each packet, only accessed by the receiving thread
+    private byte[] buffer;
+    private DatagramPacket packet;
     
     public UdpMessageReceiver(DatagramSocket datagramSocket,
             TransactionManager transactionManager,
@@ -45,12 +49,13 @@ public class UdpMessageReceiver extends MessageReceiver {
         super(datagramSocket.getLocalPort(), transactionManager,
                 transportManager, config, logger);
         this.datagramSocket = datagramSocket;
+        buffer = new byte[BUFFER_SIZE];
+        packet = new DatagramPacket(buffer, buffer.length);
     }
 
     @Override
     protected void listen() throws IOException {
-        byte[] buf = new byte[BUFFER_SIZE];
-        final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        packet.setData(buffer);
         final int noException = 0;
         final int socketTimeoutException = 1;
         final int ioException = 2;
@@ -84,12 +89,17 @@ public class UdpMessageReceiver extends MessageReceiver {
         default:
             break;
         }
-        byte[] trimmedPacket = new byte[packet.getLength()];
-        System.arraycopy(packet.getData(), 0,
-                trimmedPacket, 0, trimmedPacket.length);
-        processMessage(trimmedPacket, packet.getAddress(),
+        processMessage(buffer, 0, packet.getLength(), packet.getAddress(),
                 packet.getPort(), RFC3261.TRANSPORT_UDP);
     }
 
+    @Override
+    protected boolean sendDatagram(byte[] data, InetAddress inetAddress,
+            int port) throws IOException {
+        datagramSocket.send(new DatagramPacket(data, data.length,
+                inetAddress, port));
+        return true;
+    }
+
 
 }
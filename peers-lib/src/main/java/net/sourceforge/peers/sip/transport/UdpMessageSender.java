@@ -38,9 +38,10 @@ public class UdpMessageSender extends MessageSender {
     
     public UdpMessageSender(InetAddress inetAddress, int port,
             DatagramSocket datagramSocket, Config config,
-            Logger logger) throws SocketException {
+            KeepAliveManager keepAliveManager, Logger logger)
+            throws SocketException {
         super(datagramSocket.getLocalPort(), inetAddress, port,
-                config, RFC3261.TRANSPORT_UDP, logger);
+                config, RFC3261.TRANSPORT_UDP, keepAliveManager, logger);
         this.datagramSocket = datagramSocket;
     }
 
@@ -50,12 +51,15 @@ public class UdpMessageSender extends MessageSender {
         if (sipMessage == null) {
             return;
         }
-        byte[] buf = sipMessage.toString().getBytes();
+        byte[] buf = sipMessage.getBytes();
         sendBytes(buf);
-        StringBuffer direction = new StringBuffer();
-        direction.append("SENT to ").append(inetAddress.getHostAddress());
-        direction.append("/").append(port);
-        logger.traceNetwork(new String(buf), direction.toString());
+        messageSent();
+        if (logger.isNetworkTraceEnabled()) {
+            StringBuffer direction = new StringBuffer();
+            direction.append("SENT to ").append(inetAddress.getHostAddress());
+            direction.append("/").append(port);
+            logger.traceNetwork(new String(buf), direction.toString());
+        }
     }
 
     @Override
@@ -0,0 +1,175 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+public class CachingAddressResolverTestNG {
+
+    private static final InetAddress ADDRESS1 =
+        CachingAddressResolver.parseLiteral("192.0.2.1");
+    private static final InetAddress ADDRESS2 =
+        CachingAddressResolver.parseLiteral("192.0.2.2");
+
+    @Test
+    public void testParseLiteral() throws UnknownHostException {
+        assert InetAddress.getByAddress(new byte[] { (byte)192, 0, 2, 1 })
+            .equals(ADDRESS1);
+        assert CachingAddressResolver.parseLiteral("[::1]")
+            .equals(InetAddress.getByName("::1"));
+        assert CachingAddressResolver.parseLiteral("2001:db8::1") != null;
+        assert CachingAddressResolver.parseLiteral("1.2.3") == null;
+        assert CachingAddressResolver.parseLiteral("1.2.3.256") == null;
+        assert CachingAddressResolver.parseLiteral("1..3.4") == null;
+        assert CachingAddressResolver.parseLiteral("1.2.3.4.") == null;
+        assert CachingAddressResolver.parseLiteral("example.com") == null;
+        assert CachingAddressResolver.parseLiteral("") == null;
+    }
+
+    @Test
+    public void testLiteralsAreNeverLookedUp() throws UnknownHostException {
+        CountingResolver delegate = new CountingResolver();
+        CachingAddressResolver resolver = newResolver(delegate);
+        assert resolver.getByName("192.0.2.1").equals(ADDRESS1);
+        assert resolver.getCachedByName("192.0.2.1").equals(ADDRESS1);
+        assert delegate.lookups.get() == 0;
+        assert resolver.size() == 0;
+        resolver.close();
+    }
+
+    @Test
+    public void testPositiveAndNegativeCache() throws UnknownHostException {
+        CountingResolver delegate = new CountingResolver();
+        CachingAddressResolver resolver = newResolver(delegate);
+        long now = System.currentTimeMillis();
+        assert resolver.getAllByName("Proxy.example.com", now)[0]
+            .equals(ADDRESS1);
+        assert resolver.getAllByName("proxy.example.com", now + 100)[0]
+            .equals(ADDRESS1);
+        assert delegate.lookups.get() == 1;
+        assert resolver.getHitCount() == 1;
+        assert resolver.getMissCount() == 1;
+
+        for (int i = 0; i < 2; ++i) {
+            try {
+                resolver.getAllByName("unknown.example.com", now);
+                assert false;
+            } catch (UnknownHostException e) {
+                // expected
+            }
+        }
+        assert delegate.lookups.get() == 2;
+        resolver.close();
+    }
+
+    @Test
+    public void testStaleAddressServedWhileRefreshed() throws Exception {
+        CountingResolver delegate = new CountingResolver();
+        CachingAddressResolver resolver = newResolver(delegate);
+        long now = System.currentTimeMillis();
+        assert resolver.getAllByName("proxy.example.com", now)[0]
+            .equals(ADDRESS1);
+
+        delegate.address = ADDRESS2;
+        delegate.latch = new CountDownLatch(1);
+        long expired = now + 2 * resolver.getTtl();
+        // refresh blocked in the delegate, previous address still returned
+        assert resolver.getAllByName("proxy.example.com", expired)[0]
+            .equals(ADDRESS1);
+        assert resolver.getAllByName("proxy.example.com", expired)[0]
+            .equals(ADDRESS1);
+        assert resolver.getRefreshCount() == 1;
+        delegate.latch.countDown();
+        for (int i = 0; i < 100 && delegate.lookups.get() < 2; ++i) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 100 && !ADDRESS2.equals(
+                resolver.getCachedByName("proxy.example.com")); ++i) {
+            Thread.sleep(10);
+        }
+        assert ADDRESS2.equals(resolver.getCachedByName("proxy.example.com"));
+        resolver.close();
+    }
+
+    @Test
+    public void testCachedLookupNeverBlocks() throws Exception {
+        CountingResolver delegate = new CountingResolver();
+        delegate.latch = new CountDownLatch(1);
+        CachingAddressResolver resolver = newResolver(delegate);
+        assert resolver.getCachedByName("slow.example.com") == null;
+        assert resolver.getCachedByName("slow.example.com") == null;
+        delegate.latch.countDown();
+        InetAddress inetAddress = null;
+        for (int i = 0; i < 100 && inetAddress == null; ++i) {
+            Thread.sleep(10);
+            inetAddress = resolver.getCachedByName("slow.example.com");
+        }
+        assert ADDRESS1.equals(inetAddress);
+        assert delegate.lookups.get() == 1;
+        resolver.close();
+    }
+
+    @Test
+    public void testMaxSize() throws UnknownHostException {
+        CachingAddressResolver resolver = new CachingAddressResolver(
+                new CountingResolver(), 60000, 10000, 4, new FileLogger(null));
+        for (int i = 0; i < 10; ++i) {
+            resolver.getByName("host" + i + ".example.com");
+        }
+        assert resolver.size() <= 4;
+        resolver.close();
+    }
+
+    private CachingAddressResolver newResolver(AddressResolver delegate) {
+        return new CachingAddressResolver(delegate, new FileLogger(null));
+    }
+
+    static class CountingResolver implements AddressResolver {
+
+        final AtomicInteger lookups = new AtomicInteger();
+        volatile InetAddress address = ADDRESS1;
+        volatile CountDownLatch latch;
+
+        @Override
+        public InetAddress[] getAllByName(String host)
+                throws UnknownHostException {
+            CountDownLatch latch = this.latch;
+            if (latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            lookups.incrementAndGet();
+            if (host.startsWith("unknown")) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] { address };
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TimingWheelTestNG {
+
+    private TimingWheel timingWheel;
+
+    @BeforeClass
+    public void init() {
+        // small wheel, so that timeouts wrap around it several times
+        timingWheel = new TimingWheel("TimingWheelTestNG", 5, 8,
+                new FileLogger(null));
+    }
+
+    @AfterClass
+    public void close() {
+        timingWheel.stop();
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        TimingWheel.Timeout timeout = timingWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 200);
+        assert latch.await(2, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - start);
+        assert elapsed >= 200 : elapsed;
+        assert timeout.isExpired();
+        assert !timeout.cancel();
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        int before = timingWheel.getTimeoutCount();
+        TimingWheel.Timeout timeout = timingWheel.schedule(task, 50);
+        assert timeout.cancel();
+        assert timeout.isCancelled();
+        assert before == timingWheel.getTimeoutCount();
+        Thread.sleep(200);
+        assert 0 == runs.get();
+    }
+
+    @Test
+    public void testFixedRate() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(5);
+        TimingWheel.Timeout timeout = timingWheel.scheduleAtFixedRate(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        latch.countDown();
+                    }
+                }, 0, 20);
+        assert latch.await(2, TimeUnit.SECONDS);
+        timeout.cancel();
+    }
+
+    @Test
+    public void testManyTimeouts() throws InterruptedException {
+        int count = 10000;
+        final CountDownLatch latch = new CountDownLatch(count);
+        List<TimingWheel.Timeout> cancelled =
+            new ArrayList<TimingWheel.Timeout>();
+        for (int i = 0; i < count * 2; ++i) {
+            TimingWheel.Timeout timeout = timingWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            }, i % 500);
+            if (i % 2 == 1) {
+                cancelled.add(timeout);
+            }
+        }
+        for (TimingWheel.Timeout timeout: cancelled) {
+            timeout.cancel();
+        }
+        assert latch.await(5, TimeUnit.SECONDS);
+        Thread.sleep(100);
+        assert 0 == latch.getCount();
+    }
+
+    @Test
+    public void testScheduleAfterStop() {
+        TimingWheel stopped = new TimingWheel(new FileLogger(null));
+        stopped.stop();
+        TimingWheel.Timeout timeout = stopped.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 0);
+        assert timeout.isCancelled();
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007, 2008, 2009, 2010 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.core.useragent;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.FileLogger;
+import net.sourceforge.peers.JavaConfig;
+import net.sourceforge.peers.media.MediaMode;
+import net.sourceforge.peers.rtp.RFC4733;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.Utils;
+import net.sourceforge.peers.sip.transactionuser.Dialog;
+import net.sourceforge.peers.sip.transport.SipRequest;
+import net.sourceforge.peers.sip.transport.SipResponse;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class AsyncUserAgentTestNG {
+
+    private static final int CALLS = 20;
+
+    private UserAgent caller;
+    private UserAgent callee;
+    private AnsweringListener calleeListener;
+
+    @BeforeClass
+    public void init() throws SocketException, UnknownHostException {
+        calleeListener = new AnsweringListener();
+        callee = new UserAgent(calleeListener, null, newConfig(), null,
+                new FileLogger(null));
+        calleeListener.userAgent = callee;
+        Config callerConfig = newConfig();
+        callerConfig.setUserPart("alice");
+        // the callee plays the registrar, it does not support REGISTER
+        callerConfig.setDomain(callee.getConfig().getLocalInetAddress()
+                .getHostAddress() + ":" + callee.getSipPort());
+        caller = new UserAgent(null, null, callerConfig, null,
+                new FileLogger(null));
+    }
+
+    private Config newConfig() throws UnknownHostException {
+        Config config = new JavaConfig();
+        config.setLocalInetAddress(InetAddress.getLocalHost());
+        config.setMediaMode(MediaMode.none);
+        return config;
+    }
+
+    @AfterClass
+    public void close() {
+        caller.close();
+        callee.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testCalls() throws InterruptedException, ExecutionException,
+            TimeoutException {
+        Call[] calls = new Call[CALLS];
+        for (int i = 0; i < CALLS; ++i) {
+            calls[i] = caller.inviteAsync(uri("bob"));
+        }
+        CompletableFuture<?>[] answers = new CompletableFuture<?>[CALLS];
+        for (int i = 0; i < CALLS; ++i) {
+            answers[i] = calls[i].getAnswered();
+        }
+        CompletableFuture.allOf(answers).get(5, TimeUnit.SECONDS);
+        for (Call call : calls) {
+            assert call.getInvite() != null;
+            assert call.getResponse().getStatusCode() == RFC3261.CODE_200_OK;
+            assert !call.getEnded().isDone();
+        }
+        assert caller.getCallFutures().getCallCount() == CALLS;
+
+        calls[0].hangup().get(5, TimeUnit.SECONDS);
+        assert calls[0].getEnded().isDone();
+        // callee side handle ends on BYE
+        Call calleeCall = calleeListener.calls.get(calls[0].getCallId());
+        calleeCall.getEnded().get(5, TimeUnit.SECONDS);
+        assert caller.getCallFutures().getCallCount() == CALLS - 1;
+        for (int i = 1; i < CALLS; ++i) {
+            calls[i].hangup();
+        }
+        for (int i = 1; i < CALLS; ++i) {
+            calls[i].getEnded().get(5, TimeUnit.SECONDS);
+        }
+        assert caller.getCallFutures().getCallCount() == 0;
+    }
+
+    @Test(timeOut = 10000)
+    public void testSyncTerminate() throws InterruptedException,
+            ExecutionException, TimeoutException {
+        Call call = caller.inviteAsync(uri("carol"));
+        call.getAnswered().get(5, TimeUnit.SECONDS);
+        // callee side answered once the ACK is received
+        Call calleeCall = calleeListener.calls.get(call.getCallId());
+        calleeCall.getAnswered().get(5, TimeUnit.SECONDS);
+        assert !calleeCall.getEnded().isDone();
+
+        caller.terminate(call.getInvite());
+        call.getEnded().get(5, TimeUnit.SECONDS);
+        calleeCall.getEnded().get(5, TimeUnit.SECONDS);
+        assert caller.getCallFutures().getCall(call.getCallId()) == null;
+        assert callee.getCallFutures().getCall(call.getCallId()) == null;
+    }
+
+    @Test(timeOut = 10000)
+    public void testRejectedCall() throws InterruptedException,
+            ExecutionException, TimeoutException {
+        Call call = caller.inviteAsync(uri("busy"));
+        try {
+            call.getAnswered().get(5, TimeUnit.SECONDS);
+            assert false;
+        } catch (ExecutionException e) {
+            RequestFailedException failure =
+                (RequestFailedException)e.getCause();
+            assert failure.getSipResponse().getStatusCode()
+                == RFC3261.CODE_486_BUSYHERE;
+        }
+        call.getEnded().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test(timeOut = 10000)
+    public void testRegisterFailed() throws InterruptedException,
+            TimeoutException {
+        try {
+            caller.registerAsync().get(5, TimeUnit.SECONDS);
+            assert false;
+        } catch (ExecutionException e) {
+            RequestFailedException failure =
+                (RequestFailedException)e.getCause();
+            assert failure.getSipResponse().getStatusCode()
+                >= RFC3261.CODE_MIN_REDIR;
+        }
+        assert !caller.isRegistered();
+    }
+
+    @Test(timeOut = 10000)
+    public void testRegisterWithoutContact() throws Exception {
+        DatagramSocket registrar = new DatagramSocket(0,
+                InetAddress.getLocalHost());
+        Config config = newConfig();
+        config.setUserPart("dave");
+        config.setDomain(registrar.getLocalAddress().getHostAddress() + ":"
+                + registrar.getLocalPort());
+        UserAgent userAgent = new UserAgent(null, null, config, null,
+                new FileLogger(null));
+        try {
+            CompletableFuture<SipResponse> registration =
+                userAgent.registerAsync();
+            byte[] buf = new byte[4096];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            registrar.receive(packet);
+            // 200 OK without the Contact binding
+            StringBuffer response = new StringBuffer("SIP/2.0 200 OK\r\n");
+            for (String line: new String(buf, 0, packet.getLength())
+                    .split("\r\n")) {
+                if (line.startsWith("Via:") || line.startsWith("From:")
+                        || line.startsWith("To:")
+                        || line.startsWith("Call-ID:")
+                        || line.startsWith("CSeq:")) {
+                    response.append(line).append("\r\n");
+                }
+            }
+            response.append("Content-Length: 0\r\n\r\n");
+            byte[] bytes = response.toString().getBytes();
+            registrar.send(new DatagramPacket(bytes, bytes.length,
+                    packet.getSocketAddress()));
+            SipResponse sipResponse = registration.get(5, TimeUnit.SECONDS);
+            assert sipResponse.getStatusCode() == RFC3261.CODE_200_OK;
+            assert userAgent.isRegistered();
+        } finally {
+            userAgent.close();
+            registrar.close();
+        }
+    }
+
+    private String uri(String userPart) {
+        return "sip:" + userPart + "@" + callee.getConfig()
+            .getLocalInetAddress().getHostAddress() + ":"
+            + callee.getSipPort();
+    }
+
+    static class AnsweringListener implements SipListener {
+
+        private volatile UserAgent userAgent;
+        private ConcurrentHashMap<String, Call> calls =
+            new ConcurrentHashMap<String, Call>();
+
+        @Override
+        public void incomingCall(SipRequest sipRequest,
+                SipResponse provResponse) {
+            String callId = Utils.getMessageCallId(sipRequest);
+            if (sipRequest.getRequestUri().toString().contains("busy")) {
+                userAgent.rejectCall(sipRequest);
+                return;
+            }
+            Dialog dialog = userAgent.getDialogManager().getDialog(callId);
+            calls.put(callId, userAgent.acceptCallAsync(sipRequest, dialog));
+        }
+
+        @Override
+        public void calleePickup(SipResponse sipResponse) { }
+
+        @Override
+        public void error(SipResponse sipResponse) { }
+
+        @Override
+        public void dtmfEvent(RFC4733.DTMFEvent dtmfEvent, int duration) { }
+
+        @Override
+        public void registerFailed(SipResponse sipResponse) { }
+
+        @Override
+        public void registerSuccessful(SipResponse sipResponse) { }
+
+        @Override
+        public void registering(SipRequest sipRequest) { }
+
+        @Override
+        public void remoteHangup(SipRequest sipRequest) { }
+
+        @Override
+        public void ringing(SipResponse sipResponse) { }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.core.useragent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.syntaxencoding.SipParser;
+import net.sourceforge.peers.sip.syntaxencoding.SipParserException;
+import net.sourceforge.peers.sip.transport.SipMessage;
+import net.sourceforge.peers.sip.transport.SipRequest;
+import net.sourceforge.peers.sip.transport.SipResponse;
+
+import org.testng.annotations.Test;
+
+public class CallFuturesTestNG {
+
+    @Test
+    public void testRegistrationsMatchedByCallIdAndCSeq()
+            throws SipParserException, InterruptedException,
+            ExecutionException {
+        CallFutures callFutures = new CallFutures(null);
+        CompletableFuture<SipResponse> first =
+            callFutures.addRegistration("first");
+        CompletableFuture<SipResponse> second =
+            callFutures.addRegistration("second");
+        callFutures.registrationSent(register("first", 3));
+        callFutures.registrationSent(register("second", 4));
+
+        // responses to another REGISTER
+        callFutures.registerSuccessful(response(200, "other", 5));
+        callFutures.registerSuccessful(response(200, "second", 2));
+        assert !first.isDone();
+        assert !second.isDone();
+
+        callFutures.registerSuccessful(response(200, "second", 4));
+        assert second.get().getStatusCode() == RFC3261.CODE_200_OK;
+        assert !first.isDone();
+
+        // challenged REGISTER sent again with a higher CSeq
+        callFutures.registerFailed(null);
+        assert !first.isDone();
+        callFutures.registerFailed(response(403, "first", 5));
+        try {
+            first.get();
+            assert false;
+        } catch (ExecutionException e) {
+            RequestFailedException failure =
+                (RequestFailedException)e.getCause();
+            assert failure.getSipResponse().getStatusCode() == 403;
+        }
+    }
+
+    @Test
+    public void testRegistrationTimeout() throws SipParserException {
+        CallFutures callFutures = new CallFutures(null);
+        CompletableFuture<SipResponse> registration =
+            callFutures.addRegistration("timeout");
+        SipRequest sipRequest = register("timeout", 1);
+        callFutures.registrationSent(sipRequest);
+        callFutures.registerTimedOut(sipRequest);
+        assert registration.isCompletedExceptionally();
+    }
+
+    private SipRequest register(String callId, int cseq)
+            throws SipParserException {
+        return (SipRequest)parse("REGISTER sip:example.com SIP/2.0\r\n"
+                + headers(callId, cseq));
+    }
+
+    private SipResponse response(int statusCode, String callId, int cseq)
+            throws SipParserException {
+        return (SipResponse)parse("SIP/2.0 " + statusCode + " Reason\r\n"
+                + headers(callId, cseq));
+    }
+
+    private String headers(String callId, int cseq) {
+        return "Call-ID: " + callId + "\r\n"
+            + "CSeq: " + cseq + " REGISTER\r\n"
+            + "\r\n";
+    }
+
+    private SipMessage parse(String message) throws SipParserException {
+        byte[] bytes = message.getBytes();
+        return new SipParser(true).parse(bytes, 0, bytes.length);
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.core.useragent;
+
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.JavaConfig;
+import net.sourceforge.peers.media.MediaManager;
+import net.sourceforge.peers.media.MediaMode;
+import net.sourceforge.peers.media.MediaSession;
+import net.sourceforge.peers.rtp.RFC4733;
+import net.sourceforge.peers.sip.Utils;
+import net.sourceforge.peers.sip.syntaxencoding.SipUriSyntaxException;
+import net.sourceforge.peers.sip.transactionuser.Dialog;
+import net.sourceforge.peers.sip.transport.SipRequest;
+import net.sourceforge.peers.sip.transport.SipResponse;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class ConcurrentCallsTestNG {
+
+    private static final int CALLS = 5;
+
+    private UserAgent caller;
+    private UserAgent callee;
+    private CallListener callerListener;
+
+    @BeforeClass
+    public void init() throws SocketException, UnknownHostException {
+        callerListener = new CallListener();
+        caller = new UserAgent(callerListener, new TestSoundManagerFactory(),
+                newConfig(), null, null);
+        CallListener calleeListener = new CallListener();
+        callee = new UserAgent(calleeListener, new TestSoundManagerFactory(),
+                newConfig(), null, null);
+        calleeListener.userAgent = callee;
+    }
+
+    private Config newConfig() throws UnknownHostException {
+        Config config = new JavaConfig();
+        config.setLocalInetAddress(InetAddress.getLocalHost());
+        config.setMediaMode(MediaMode.none);
+        return config;
+    }
+
+    @AfterClass
+    public void close() {
+        caller.close();
+        callee.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testCallsAreIndependent()
+            throws SipUriSyntaxException, InterruptedException {
+        String host = callee.getConfig().getLocalInetAddress()
+            .getHostAddress();
+        int port = callee.getTransportManager().getSipPort();
+        SipRequest[] invites = new SipRequest[CALLS];
+        for (int i = 0; i < CALLS; ++i) {
+            invites[i] = caller.invite("sip:" + host + ":" + port,
+                    Utils.generateCallID(caller.getConfig()
+                            .getLocalInetAddress()));
+        }
+        MediaManager callerMedia = caller.getMediaManager();
+        MediaManager calleeMedia = callee.getMediaManager();
+        while (callerListener.pickups.get() < CALLS
+                || startedSessions(calleeMedia) < CALLS) {
+            Thread.sleep(20);
+        }
+        assert callerMedia.size() == CALLS;
+        assert calleeMedia.size() == CALLS;
+        assert startedSessions(callerMedia) == CALLS;
+        // one rtp socket per call
+        Set<Integer> ports = new HashSet<Integer>();
+        for (MediaSession mediaSession : calleeMedia.getMediaSessions()) {
+            ports.add(mediaSession.getDatagramSocket().getLocalPort());
+        }
+        assert ports.size() == CALLS;
+
+        String callId = Utils.getMessageCallId(invites[0]);
+        MediaSession hungUp = calleeMedia.getMediaSession(callId);
+        caller.terminate(invites[0]);
+        assert callerMedia.getMediaSession(callId) == null;
+        while (calleeMedia.getMediaSession(callId) != null) {
+            Thread.sleep(20);
+        }
+        assert hungUp.isStopped();
+        assert callee.getDialogManager().getDialog(callId) == null;
+        assert calleeMedia.size() == CALLS - 1;
+        for (int i = 1; i < CALLS; ++i) {
+            MediaSession mediaSession = calleeMedia.getMediaSession(
+                    Utils.getMessageCallId(invites[i]));
+            assert mediaSession.isStarted();
+            assert !mediaSession.getDatagramSocket().isClosed();
+        }
+    }
+
+    private int startedSessions(MediaManager mediaManager) {
+        int started = 0;
+        for (MediaSession mediaSession : mediaManager.getMediaSessions()) {
+            if (mediaSession.isStarted()) {
+                ++started;
+            }
+        }
+        return started;
+    }
+
+    static class CallListener implements SipListener {
+
+        private volatile UserAgent userAgent;
+        private AtomicInteger pickups = new AtomicInteger();
+
+        @Override
+        public void incomingCall(SipRequest sipRequest,
+                SipResponse provResponse) {
+            // answer at once, from the transaction thread
+            Dialog dialog = userAgent.getDialogManager().getDialog(
+                    Utils.getMessageCallId(sipRequest));
+            userAgent.acceptCall(sipRequest, dialog);
+        }
+
+        @Override
+        public void calleePickup(SipResponse sipResponse) {
+            pickups.incrementAndGet();
+        }
+
+        @Override
+        public void error(SipResponse sipResponse) { }
+
+        @Override
+        public void dtmfEvent(RFC4733.DTMFEvent dtmfEvent, int duration) { }
+
+        @Override
+        public void registerFailed(SipResponse sipResponse) { }
+
+        @Override
+        public void registerSuccessful(SipResponse sipResponse) { }
+
+        @Override
+        public void registering(SipRequest sipRequest) { }
+
+        @Override
+        public void remoteHangup(SipRequest sipRequest) { }
+
+        @Override
+        public void ringing(SipResponse sipResponse) { }
+
+    }
+
+}
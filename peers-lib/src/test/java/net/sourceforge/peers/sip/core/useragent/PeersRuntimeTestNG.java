@@ -0,0 +1,256 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.core.useragent;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.FileLogger;
+import net.sourceforge.peers.JavaConfig;
+import net.sourceforge.peers.media.MediaMode;
+import net.sourceforge.peers.rtp.RFC4733;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.Utils;
+import net.sourceforge.peers.sip.syntaxencoding.SipUriSyntaxException;
+import net.sourceforge.peers.sip.transactionuser.Dialog;
+import net.sourceforge.peers.sip.transport.SipRequest;
+import net.sourceforge.peers.sip.transport.SipResponse;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class PeersRuntimeTestNG {
+
+    private static final int USER_AGENTS = 200;
+
+    private PeersRuntime peersRuntime;
+    private UserAgent[] hosted;
+    private CallListener[] listeners;
+    private UserAgent caller;
+    private CallListener callerListener;
+    private int threadsBeforeUserAgents;
+    private int threadsAfterUserAgents;
+
+    @BeforeClass
+    public void init() throws SocketException, UnknownHostException {
+        peersRuntime = new PeersRuntime(newConfig(null), new FileLogger(null));
+        threadsBeforeUserAgents = Thread.activeCount();
+        hosted = new UserAgent[USER_AGENTS];
+        listeners = new CallListener[USER_AGENTS];
+        for (int i = 0; i < USER_AGENTS; ++i) {
+            listeners[i] = new CallListener();
+            hosted[i] = new UserAgent(listeners[i], newConfig("user" + i),
+                    peersRuntime);
+            listeners[i].userAgent = hosted[i];
+        }
+        threadsAfterUserAgents = Thread.activeCount();
+        callerListener = new CallListener();
+        caller = new UserAgent(callerListener, null, newConfig(null), null,
+                new FileLogger(null));
+    }
+
+    private Config newConfig(String userPart) throws UnknownHostException {
+        Config config = new JavaConfig();
+        config.setLocalInetAddress(InetAddress.getLocalHost());
+        config.setMediaMode(MediaMode.none);
+        config.setUserPart(userPart);
+        return config;
+    }
+
+    @AfterClass
+    public void close() {
+        caller.close();
+        for (UserAgent userAgent : hosted) {
+            userAgent.close();
+        }
+        assert peersRuntime.getUserAgentCount() == 0;
+        peersRuntime.close();
+    }
+
+    @Test
+    public void testSharedLayers() {
+        // hosted user agents start no thread
+        assert threadsAfterUserAgents - threadsBeforeUserAgents < 4;
+        assert peersRuntime.getUserAgentCount() == USER_AGENTS;
+        for (UserAgent userAgent : hosted) {
+            assert userAgent.getTransportManager()
+                == peersRuntime.getTransportManager();
+            assert userAgent.getTransactionManager()
+                == peersRuntime.getTransactionManager();
+            assert userAgent.getSipPort()
+                == peersRuntime.getTransportManager().getSipPort();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testDuplicateUserPart()
+            throws SocketException, UnknownHostException {
+        new UserAgent(new CallListener(), newConfig("user0"), peersRuntime);
+    }
+
+    @Test
+    public void testUserPart() {
+        assert "alice".equals(Utils.getUserPart(
+                "sip:alice@example.com"));
+        assert "alice".equals(Utils.getUserPart(
+                "sip:alice:secret@example.com;transport=udp"));
+        assert Utils.getUserPart("sip:192.0.2.1:5060") == null;
+    }
+
+    @Test(timeOut = 10000)
+    public void testRouting()
+            throws SipUriSyntaxException, InterruptedException {
+        int callee = USER_AGENTS / 2;
+        SipRequest invite = caller.invite(uri("user" + callee),
+                Utils.generateCallID(caller.getConfig().getLocalInetAddress()));
+        while (callerListener.pickups.get() < 1) {
+            Thread.sleep(20);
+        }
+        for (int i = 0; i < USER_AGENTS; ++i) {
+            assert listeners[i].incomingCalls.get() == (i == callee ? 1 : 0);
+        }
+        String callId = Utils.getMessageCallId(invite);
+        UserAgent calleeUserAgent = hosted[callee];
+        while (calleeUserAgent.getMediaManager().getMediaSession(callId)
+                == null || !calleeUserAgent.getMediaManager()
+                .getMediaSession(callId).isStarted()) {
+            // ACK sent to the contact, routed using the To header
+            Thread.sleep(20);
+        }
+
+        caller.terminate(invite);
+        while (calleeUserAgent.getDialogManager().getDialog(callId) != null) {
+            Thread.sleep(20);
+        }
+        assert listeners[callee].remoteHangups.get() == 1;
+    }
+
+    @Test(timeOut = 10000)
+    public void testUnknownUser()
+            throws SipUriSyntaxException, InterruptedException {
+        caller.invite(uri("nobody"), Utils.generateCallID(
+                caller.getConfig().getLocalInetAddress()));
+        while (callerListener.lastError == null) {
+            Thread.sleep(20);
+        }
+        assert callerListener.lastError.getStatusCode()
+            == RFC3261.CODE_404_NOT_FOUND;
+    }
+
+    @Test(timeOut = 10000)
+    public void testOptions() throws IOException {
+        // stateless 200 only for user parts the runtime hosts
+        assert sendOptions("nobody").startsWith("SIP/2.0 404 ");
+        assert sendOptions("user0").startsWith("SIP/2.0 200 ");
+    }
+
+    private String sendOptions(String userPart) throws IOException {
+        DatagramSocket datagramSocket = new DatagramSocket(0,
+                peersRuntime.getConfig().getLocalInetAddress());
+        try {
+            String host = datagramSocket.getLocalAddress().getHostAddress()
+                + ":" + datagramSocket.getLocalPort();
+            String options = "OPTIONS " + uri(userPart) + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP " + host + ";branch="
+                + RFC3261.BRANCHID_MAGIC_COOKIE + Utils.randomString(8)
+                + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "From: <sip:ping@" + host + ">;tag=a6c85cf\r\n"
+                + "To: <" + uri(userPart) + ">\r\n"
+                + "Call-ID: " + Utils.randomString(16) + "\r\n"
+                + "CSeq: 1 OPTIONS\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n";
+            byte[] data = options.getBytes();
+            datagramSocket.send(new DatagramPacket(data, data.length,
+                    peersRuntime.getConfig().getLocalInetAddress(),
+                    peersRuntime.getTransportManager().getSipPort()));
+            byte[] buf = new byte[4096];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            datagramSocket.receive(packet);
+            return new String(buf, 0, packet.getLength());
+        } finally {
+            datagramSocket.close();
+        }
+    }
+
+    private String uri(String userPart) {
+        return "sip:" + userPart + "@" + peersRuntime.getConfig()
+            .getLocalInetAddress().getHostAddress() + ":"
+            + peersRuntime.getTransportManager().getSipPort();
+    }
+
+    static class CallListener implements SipListener {
+
+        private volatile UserAgent userAgent;
+        private AtomicInteger incomingCalls = new AtomicInteger();
+        private AtomicInteger pickups = new AtomicInteger();
+        private AtomicInteger remoteHangups = new AtomicInteger();
+        private volatile SipResponse lastError;
+
+        @Override
+        public void incomingCall(SipRequest sipRequest,
+                SipResponse provResponse) {
+            incomingCalls.incrementAndGet();
+            Dialog dialog = userAgent.getDialogManager().getDialog(
+                    Utils.getMessageCallId(sipRequest));
+            userAgent.acceptCall(sipRequest, dialog);
+        }
+
+        @Override
+        public void calleePickup(SipResponse sipResponse) {
+            pickups.incrementAndGet();
+        }
+
+        @Override
+        public void error(SipResponse sipResponse) {
+            lastError = sipResponse;
+        }
+
+        @Override
+        public void dtmfEvent(RFC4733.DTMFEvent dtmfEvent, int duration) { }
+
+        @Override
+        public void registerFailed(SipResponse sipResponse) { }
+
+        @Override
+        public void registerSuccessful(SipResponse sipResponse) { }
+
+        @Override
+        public void registering(SipRequest sipRequest) { }
+
+        @Override
+        public void remoteHangup(SipRequest sipRequest) {
+            remoteHangups.incrementAndGet();
+        }
+
+        @Override
+        public void ringing(SipResponse sipResponse) { }
+
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007, 2008, 2009, 2010 Yohann Martineau 
+*/
+
+
+package net.sourceforge.peers.sip.core.useragent;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.FileLogger;
+import net.sourceforge.peers.JavaConfig;
+import net.sourceforge.peers.PlatformThreadFactory;
+import net.sourceforge.peers.VirtualThreadFactory;
+import net.sourceforge.peers.media.Echo;
+import net.sourceforge.peers.media.MediaManager;
+import net.sourceforge.peers.media.MediaMode;
+import net.sourceforge.peers.rtp.RFC3551;
+import net.sourceforge.peers.sdp.Codec;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class ThreadFactoryTestNG {
+
+    private static final int CALLS = 1000;
+
+    private CountingThreadFactory threadFactory;
+    private UserAgent userAgent;
+    private DatagramSocket remoteSocket;
+
+    @BeforeClass
+    public void init() throws SocketException, UnknownHostException {
+        ThreadFactory delegate;
+        if (VirtualThreadFactory.isAvailable()) {
+            delegate = new VirtualThreadFactory();
+        } else {
+            delegate = PlatformThreadFactory.INSTANCE;
+        }
+        threadFactory = new CountingThreadFactory(delegate);
+        Config config = new JavaConfig();
+        config.setLocalInetAddress(InetAddress.getLocalHost());
+        config.setMediaMode(MediaMode.echo);
+        userAgent = new UserAgent(null, new TestSoundManagerFactory(), config,
+                null, new FileLogger(null), null, threadFactory);
+        remoteSocket = new DatagramSocket(0, InetAddress.getLocalHost());
+        remoteSocket.setSoTimeout(10000);
+    }
+
+    @AfterClass
+    public void close() {
+        userAgent.close();
+        remoteSocket.close();
+    }
+
+    @Test(timeOut = 60000)
+    public void testSimulatedCalls() throws IOException, InterruptedException {
+        assert userAgent.getThreadFactory() == threadFactory;
+        // transport receiver, timer and sip workers
+        int userAgentThreads = threadFactory.getThreads().size();
+        assert userAgentThreads > 0;
+        int platformThreadsBefore = Thread.activeCount();
+
+        MediaManager mediaManager = userAgent.getMediaManager();
+        Codec codec = new Codec();
+        codec.setPayloadType(RFC3551.PAYLOAD_TYPE_PCMU);
+        codec.setName(RFC3551.PCMU);
+        InetAddress localAddress = userAgent.getConfig().getLocalInetAddress();
+        String remoteAddress = remoteSocket.getLocalAddress()
+            .getHostAddress();
+        String[] callIds = new String[CALLS];
+        int[] rtpPorts = new int[CALLS];
+        for (int i = 0; i < CALLS; ++i) {
+            callIds[i] = "call" + i;
+            DatagramSocket datagramSocket = new DatagramSocket(0,
+                    localAddress);
+            datagramSocket.setSoTimeout(1000);
+            rtpPorts[i] = datagramSocket.getLocalPort();
+            mediaManager.createMediaSession(callIds[i], datagramSocket);
+            mediaManager.successResponseReceived(callIds[i], remoteAddress,
+                    remoteSocket.getLocalPort(), codec);
+        }
+        // one echo thread per call
+        assert threadFactory.getThreads().size() == userAgentThreads + CALLS;
+        int platformThreadsDuringCalls = Thread.activeCount();
+
+        byte[] buf = new byte[Echo.BUFFER_SIZE];
+        for (int i = 0; i < CALLS; ++i) {
+            byte[] payload = callIds[i].getBytes();
+            remoteSocket.send(new DatagramPacket(payload, payload.length,
+                    localAddress, rtpPorts[i]));
+            DatagramPacket echoed = new DatagramPacket(buf, buf.length);
+            remoteSocket.receive(echoed);
+            assert echoed.getPort() == rtpPorts[i];
+            assert callIds[i].equals(new String(buf, 0, echoed.getLength()));
+        }
+
+        mediaManager.stopSessions();
+        assert mediaManager.size() == 0;
+        List<Thread> threads = threadFactory.getThreads();
+        for (Thread thread : threads.subList(userAgentThreads,
+                threads.size())) {
+            thread.join(5000);
+            assert !thread.isAlive() : thread.getName();
+        }
+
+        if (VirtualThreadFactory.isAvailable()) {
+            // virtual threads are not counted as active platform threads
+            assert platformThreadsDuringCalls - platformThreadsBefore
+                < CALLS / 10;
+        }
+    }
+
+    static class CountingThreadFactory implements ThreadFactory {
+
+        private final ThreadFactory delegate;
+        private final List<Thread> threads;
+
+        CountingThreadFactory(ThreadFactory delegate) {
+            this.delegate = delegate;
+            threads = new ArrayList<Thread>();
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = delegate.newThread(runnable);
+            synchronized (threads) {
+                threads.add(thread);
+            }
+            return thread;
+        }
+
+        List<Thread> getThreads() {
+            synchronized (threads) {
+                return new ArrayList<Thread>(threads);
+            }
+        }
+
+    }
+
+}
@@ -32,4 +32,40 @@ public class SipHeadersTestNG {
         sipHeaders.remove(name);
     }
 
+
+    @Test
+    public void testNameCase() {
+        SipHeaderFieldName lower = new SipHeaderFieldName("via");
+        assert lower.equals(SipHeaderFieldNames.VIA);
+        assert lower.hashCode() == SipHeaderFieldNames.VIA.hashCode();
+        assert new SipHeaderFieldName("v").equals(SipHeaderFieldNames.VIA);
+        SipHeaderFieldName custom = new SipHeaderFieldName("X-Custom");
+        assert custom.equals(new SipHeaderFieldName("x-custom"));
+        assert custom.hashCode() == new SipHeaderFieldName("X-CUSTOM").hashCode();
+        assert !custom.equals(SipHeaderFieldNames.VIA);
+        assert SipHeaderFieldNames.valueOf("call-id") == SipHeaderFieldNames.CALLID;
+    }
+
+    @Test
+    public void testIndexedAndOverflowHeaders() {
+        SipHeaders sipHeaders = new SipHeaders();
+        sipHeaders.add(SipHeaderFieldNames.CALLID, new SipHeaderFieldValue("a"));
+        sipHeaders.add(new SipHeaderFieldName("X-Custom"), new SipHeaderFieldValue("x"));
+        sipHeaders.add(new SipHeaderFieldName("VIA"), new SipHeaderFieldValue("v2"));
+        sipHeaders.add(SipHeaderFieldNames.VIA, new SipHeaderFieldValue("v1"), 0);
+        sipHeaders.add(new SipHeaderFieldName("x-custom"), new SipHeaderFieldValue("y"));
+        assert 3 == sipHeaders.getCount();
+        assert "a".equals(sipHeaders.get(new SipHeaderFieldName("i")).getValue());
+        assert sipHeaders.get(SipHeaderFieldNames.VIA) instanceof SipHeaderFieldMultiValue;
+        assert "x, y".equals(sipHeaders.get(new SipHeaderFieldName("X-CUSTOM")).toString());
+        assert sipHeaders.toString().equals("Call-ID: a\r\n"
+                + "X-Custom: x, y\r\n"
+                + "VIA: v2, v1\r\n");
+        sipHeaders.remove(new SipHeaderFieldName("x-custom"));
+        sipHeaders.remove(SipHeaderFieldNames.VIA);
+        assert !sipHeaders.contains(new SipHeaderFieldName("X-Custom"));
+        assert !sipHeaders.contains(SipHeaderFieldNames.VIA);
+        assert 1 == sipHeaders.getCount();
+    }
+
 }
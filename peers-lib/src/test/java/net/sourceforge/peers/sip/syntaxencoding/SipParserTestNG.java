@@ -21,7 +21,10 @@ package net.sourceforge.peers.sip.syntaxencoding;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.transport.SipMessage;
@@ -280,6 +283,121 @@ public class SipParserTestNG {
                 "12345");
     }
     
+    @Test (expectedExceptions = SipParserException.class)
+    public void shouldThrowIfOnlyEmptyLines() throws SipParserException, IOException {
+        parse("\r\n\r\n");
+    }
+
+    @Test
+    public void testParseBufferRange() throws SipParserException {
+        String message = "SIP/2.0 486 Busy Here\r\n"
+            + "Call-ID: range\r\n"
+            + "Content-Length: 2\r\n"
+            + "\r\n"
+            + "ab";
+        byte[] bytes = ("garbage" + message + "garbage").getBytes();
+        SipMessage sipMessage = new SipParser().parse(ByteBuffer.wrap(bytes,
+                7, message.length()));
+        assert sipMessage instanceof SipResponse;
+        SipResponse sipResponse = (SipResponse)sipMessage;
+        assert 486 == sipResponse.getStatusCode();
+        assert "Busy Here".equals(sipResponse.getReasonPhrase());
+        assert "ab".equals(new String(sipMessage.getBody()));
+    }
+
+    @Test
+    public void testConcurrentParse() throws InterruptedException {
+        final SipParser sipParser = new SipParser();
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            final String callId = "call" + i;
+            final byte[] bytes = ("INVITE sip:UAB@example.com SIP/2.0\r\n"
+                + "Call-ID: " + callId + "\r\n"
+                + "\r\n").getBytes();
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; ++j) {
+                        try {
+                            SipMessage sipMessage = sipParser.parse(bytes, 0,
+                                    bytes.length);
+                            if (!callId.equals(sipMessage.getSipHeaders().get(
+                                    new SipHeaderFieldName(RFC3261.HDR_CALLID))
+                                    .getValue())) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (SipParserException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assert 0 == errors.get();
+    }
+
+    @Test
+    public void testParseOwned() throws SipParserException {
+        byte[] bytes = ("BYE sip:bob@example.com SIP/2.0\r\n"
+            + "Call-ID: owned\r\n"
+            + "\r\n").getBytes();
+        SipMessage sipMessage = new SipParser(true).parseOwned(bytes);
+        // no copy: untouched values are read from the array handed over
+        bytes[bytes.length - 5] = 'D';
+        assert sipMessage.toString().contains("Call-ID: owneD\r\n");
+    }
+
+    @Test
+    public void testLazyHeaders() throws SipParserException, IOException {
+        String message = "INVITE sip:UAB@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.1;rport;branch=z9hG4bK1\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.2;branch=z9hG4bK2\r\n"
+            + "To: <sip:bob@example.com>;tag=b;x=1\r\n"
+            + "Subject: first,\r\n"
+            + " second\r\n"
+            + "Call-ID: lazy\r\n"
+            + "\r\n";
+        byte[] bytes = message.getBytes();
+        SipMessage lazy = new SipParser(true).parse(bytes, 0, bytes.length);
+        // receive buffers are reused, values must not depend on them
+        Arrays.fill(bytes, (byte)0);
+        SipMessage eager = parse(message);
+        SipHeaders lazyHeaders = lazy.getSipHeaders();
+        // untouched headers are serialized as received, parameter order
+        // included
+        assert lazy.toString().startsWith("INVITE sip:UAB@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.1;rport;branch=z9hG4bK1, "
+            + "SIP/2.0/UDP 10.0.0.2;branch=z9hG4bK2\r\n"
+            + "To: <sip:bob@example.com>;tag=b;x=1\r\n"
+            + "Subject: first, second\r\n"
+            + "Call-ID: lazy\r\n");
+        SipHeaderFieldName via = new SipHeaderFieldName(RFC3261.HDR_VIA);
+        SipHeaderFieldValue lazyVia = lazyHeaders.get(via);
+        assert lazyVia instanceof SipHeaderFieldMultiValue;
+        assert lazyVia.toString().equals(
+                eager.getSipHeaders().get(via).toString());
+        List<SipHeaderFieldValue> values =
+            ((SipHeaderFieldMultiValue)lazyVia).getValues();
+        assert "z9hG4bK2".equals(values.get(1).getParam(
+                new SipHeaderParamName(RFC3261.PARAM_BRANCH)));
+        SipHeaderFieldName to = new SipHeaderFieldName(RFC3261.HDR_TO);
+        assert "b".equals(lazyHeaders.get(to).getParam(
+                new SipHeaderParamName(RFC3261.PARAM_TAG)));
+        SipHeaderFieldName subject = new SipHeaderFieldName("Subject");
+        assert "first, second".equals(
+                lazyHeaders.get(subject).getValue());
+        lazyHeaders.add(via, new SipHeaderFieldValue("SIP/2.0/UDP 10.0.0.3"));
+        assert 3 == ((SipHeaderFieldMultiValue)lazyHeaders.get(via))
+            .getValues().size();
+        assert "lazy".equals(lazyHeaders.get(new SipHeaderFieldName(
+                RFC3261.HDR_CALLID)).getValue());
+    }
+
     private SipMessage parse(String message) throws SipParserException, IOException {
         ByteArrayInputStream bais = new ByteArrayInputStream(message.getBytes());
         SipParser sipParser = new SipParser();
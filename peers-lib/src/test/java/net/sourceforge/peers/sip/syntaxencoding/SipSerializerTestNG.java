@@ -0,0 +1,93 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.syntaxencoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.sourceforge.peers.sip.transport.SipMessage;
+
+import org.testng.annotations.Test;
+
+public class SipSerializerTestNG {
+
+    private static final String MESSAGE = "INVITE sip:bob@example.com SIP/2.0\r\n"
+        + "Via: SIP/2.0/UDP 10.0.0.1;branch=z9hG4bK1;rport, SIP/2.0/UDP 10.0.0.2\r\n"
+        + "From: <sip:alice@example.com>;tag=a\r\n"
+        + "To: <sip:bob@example.com>\r\n"
+        + "Call-ID: serializer\r\n"
+        + "CSeq: 1 INVITE\r\n"
+        + "Content-Length: 4\r\n"
+        + "\r\n"
+        + "body";
+
+    @Test
+    public void testSameAsToString() throws SipParserException, IOException {
+        SipMessage sipMessage = new SipParser().parse(
+                new ByteArrayInputStream(MESSAGE.getBytes()));
+        byte[] bytes = new SipSerializer().serialize(sipMessage);
+        assert Arrays.equals(sipMessage.toString().getBytes(), bytes);
+    }
+
+    @Test
+    public void testRawHeaders() throws SipParserException {
+        byte[] message = MESSAGE.getBytes();
+        SipMessage sipMessage = new SipParser(true).parse(message, 0,
+                message.length);
+        assert Arrays.equals(message, new SipSerializer().serialize(sipMessage));
+    }
+
+    @Test
+    public void testRawValueOnceRead() {
+        byte[] source = "Call-ID: raw\r\n".getBytes();
+        SipHeader header = new SipHeader(new SipHeaderFieldName("Call-ID"),
+                source, 9, 12);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        assert header.putRawValueIfRaw(buffer);
+        assert buffer.position() == 3;
+        // read by another thread: raw ranges are released
+        assert "raw".equals(header.getValue().getValue());
+        buffer.clear();
+        assert !header.putRawValueIfRaw(buffer);
+        assert buffer.position() == 0;
+        assert !header.appendRawValueIfRaw(new StringBuffer());
+    }
+
+    @Test
+    public void testLargeMessage() throws SipParserException, IOException {
+        StringBuffer body = new StringBuffer();
+        while (body.length() < SipSerializer.BUFFER_SIZE * 3) {
+            body.append("a=x-padding:0123456789012345678901234567890\r\n");
+        }
+        String message = "MESSAGE sip:bob@example.com SIP/2.0\r\n"
+            + "Content-Length: " + body.length() + "\r\n"
+            + "\r\n" + body;
+        SipMessage sipMessage = new SipParser().parse(
+                new ByteArrayInputStream(message.getBytes()));
+        SipSerializer sipSerializer = new SipSerializer();
+        assert Arrays.equals(message.getBytes(),
+                sipSerializer.serialize(sipMessage));
+        assert Arrays.equals(message.getBytes(),
+                sipSerializer.serialize(sipMessage));
+    }
+
+}
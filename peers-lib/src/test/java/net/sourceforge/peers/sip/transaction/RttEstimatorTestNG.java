@@ -0,0 +1,111 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transaction;
+
+import net.sourceforge.peers.CachingAddressResolver;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.transport.SipTarget;
+
+import org.testng.annotations.Test;
+
+public class RttEstimatorTestNG {
+
+    private static final SipTarget LAN = new SipTarget(
+            CachingAddressResolver.parseLiteral("192.0.2.1"), 5060,
+            RFC3261.TRANSPORT_UDP);
+    private static final SipTarget WAN = new SipTarget(
+            CachingAddressResolver.parseLiteral("198.51.100.1"), 5060,
+            RFC3261.TRANSPORT_UDP);
+
+    @Test
+    public void testUnknownDestination() {
+        RttEstimator rttEstimator = new RttEstimator();
+        assert rttEstimator.getT1(LAN) == RFC3261.TIMER_T1;
+        assert rttEstimator.getSrtt(LAN) == -1;
+    }
+
+    @Test
+    public void testFirstSample() {
+        RttEstimator rttEstimator = new RttEstimator();
+        long now = System.currentTimeMillis();
+        rttEstimator.addSample(WAN, 200, now);
+        // srtt + 4 * rttvar = 200 + 4 * 100
+        assert rttEstimator.getT1(WAN, now) == 600;
+        assert rttEstimator.getSrtt(WAN) == 200;
+        assert rttEstimator.getT1(LAN, now) == RFC3261.TIMER_T1;
+    }
+
+    @Test
+    public void testConvergesWithinBounds() {
+        RttEstimator rttEstimator = new RttEstimator();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 50; ++i) {
+            rttEstimator.addSample(LAN, 2, now);
+            rttEstimator.addSample(WAN, 5000, now);
+        }
+        assert rttEstimator.getSrtt(LAN) == 2;
+        assert rttEstimator.getT1(LAN, now) == RttEstimator.DEFAULT_MIN_T1;
+        assert rttEstimator.getT1(WAN, now) == RttEstimator.DEFAULT_MAX_T1;
+
+        rttEstimator.setMinT1(1);
+        assert rttEstimator.getT1(LAN, now) < 10;
+    }
+
+    @Test
+    public void testSmoothing() {
+        RttEstimator rttEstimator = new RttEstimator();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 50; ++i) {
+            rttEstimator.addSample(WAN, 300, now);
+        }
+        // a single outlier moves srtt by an eighth of the difference
+        rttEstimator.addSample(WAN, 1100, now);
+        assert rttEstimator.getSrtt(WAN) == 400;
+        assert rttEstimator.getT1(WAN, now) == 400 + 4 * 200;
+    }
+
+    @Test
+    public void testExpiredEstimate() {
+        RttEstimator rttEstimator = new RttEstimator();
+        long now = System.currentTimeMillis();
+        rttEstimator.addSample(LAN, 20, now);
+        long later = now + RttEstimator.DEFAULT_ENTRY_LIFETIME + 1;
+        assert rttEstimator.getT1(LAN, later) == RFC3261.TIMER_T1;
+        // a sample after expiration restarts the estimation
+        rttEstimator.addSample(LAN, 1000, later);
+        assert rttEstimator.getSrtt(LAN) == 1000;
+    }
+
+    @Test
+    public void testTransactionTimeout() {
+        RttEstimator rttEstimator = new RttEstimator();
+        rttEstimator.addSample(LAN, 1);
+        long t1 = rttEstimator.getT1(LAN);
+        assert t1 == RttEstimator.DEFAULT_MIN_T1;
+        // fast path: failover sooner
+        assert Transaction.getTimeout(t1) == 64 * RttEstimator.DEFAULT_MIN_T1;
+        rttEstimator.addSample(LAN, 60000);
+        t1 = rttEstimator.getT1(LAN);
+        assert t1 == RttEstimator.DEFAULT_MAX_T1;
+        // slow path: never beyond the standard timeout
+        assert Transaction.getTimeout(t1) == 64 * RFC3261.TIMER_T1;
+    }
+
+}
@@ -21,10 +21,15 @@ package net.sourceforge.peers.sip.transaction;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sourceforge.peers.Config;
 import net.sourceforge.peers.FileLogger;
@@ -36,6 +41,7 @@ import net.sourceforge.peers.sip.syntaxencoding.SipParserException;
 import net.sourceforge.peers.sip.transport.SipMessage;
 import net.sourceforge.peers.sip.transport.SipRequest;
 import net.sourceforge.peers.sip.transport.SipResponse;
+import net.sourceforge.peers.sip.transport.SipTarget;
 import net.sourceforge.peers.sip.transport.TransportManager;
 
 import org.testng.annotations.BeforeClass;
@@ -93,6 +99,11 @@ public class TransactionManagerTestNG {
         assert clientTransaction instanceof NonInviteClientTransaction;
         String contact = clientTransaction.getContact();
         assert contact.indexOf(localHost.getHostAddress()) > -1;
+        assert transactionManager.getClientTransaction(
+                RFC3261.BRANCHID_MAGIC_COOKIE + "dsj2J347hsd23SD", "MESSAGE")
+                == clientTransaction;
+        // no final response received yet, responses must be parsed
+        assert !clientTransaction.receivedRetransmission(RFC3261.CODE_200_OK);
     }
     
     @Test
@@ -188,6 +199,346 @@ public class TransactionManagerTestNG {
         assert serverTransaction instanceof InviteServerTransaction;
     }
     
+    @Test(timeOut = 10000)
+    public void testRetransmissionReplaysBytes() throws Exception {
+        DatagramSocket remote = new DatagramSocket(0,
+                InetAddress.getLocalHost());
+        DatagramSocket datagramSocket = new DatagramSocket();
+        int port = datagramSocket.getLocalPort();
+        datagramSocket.close();
+        transportManager.setSipPort(port);
+        String via = "Via: SIP/2.0/UDP "
+            + remote.getLocalAddress().getHostAddress() + ":"
+            + remote.getLocalPort() + ";branch=z9hG4bKreplay\r\n";
+        SipRequest sipRequest = (SipRequest)parse(
+                "INVITE sip:john@doe.co.uk SIP/2.0\r\n"
+                + via + "CSeq: 1 INVITE\r\n\r\n");
+        SipResponse sipResponse = (SipResponse)parse("SIP/2.0 486 Busy Here\r\n"
+                + via + "CSeq: 1 INVITE\r\n\r\n");
+        ServerTransaction serverTransaction =
+            transactionManager.createServerTransaction(sipResponse, port,
+                    "UDP", null, sipRequest);
+        serverTransaction.start();
+        serverTransaction.sendReponse(sipResponse);
+        serverTransaction.receivedRetransmission(RFC3261.METHOD_INVITE);
+        // the first response, then its replay or timer G retransmissions
+        String first = null;
+        for (int i = 0; i < 2; ++i) {
+            byte[] buf = new byte[2048];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            remote.receive(packet);
+            String received = new String(buf, 0, packet.getLength());
+            if (first == null) {
+                first = received;
+            }
+            assert first.equals(received);
+        }
+        serverTransaction.receivedRetransmission(RFC3261.METHOD_ACK);
+        remote.close();
+        int contact = first.indexOf(RFC3261.HDR_CONTACT);
+        assert contact > -1;
+        assert first.indexOf(RFC3261.HDR_CONTACT, contact + 1) == -1;
+        assert first.indexOf(',', contact) == -1;
+    }
+
+    @Test(timeOut = 10000)
+    public void testTimersRunOnCallWorker() throws Exception {
+        SipRequest sipRequest = (SipRequest)parse(
+                "MESSAGE sip:bob@biloxi.com SIP/2.0\r\n"
+                + "Via: \r\n"
+                + "Call-ID: a84b4c76e66710\r\n"
+                + "\r\n");
+        DatagramSocket datagramSocket = new DatagramSocket();
+        int port = datagramSocket.getLocalPort();
+        datagramSocket.close();
+        transportManager.setSipPort(port);
+        Transaction transaction = (Transaction)
+            transactionManager.createClientTransaction(sipRequest,
+                    InetAddress.getLocalHost(), port, "UDP",
+                    RFC3261.BRANCHID_MAGIC_COOKIE + "timerworker", null);
+        final String[] threadName = new String[1];
+        transaction.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (threadName) {
+                    threadName[0] = Thread.currentThread().getName();
+                    threadName.notify();
+                }
+            }
+        }, 0);
+        synchronized (threadName) {
+            while (threadName[0] == null) {
+                threadName.wait();
+            }
+        }
+        // not on the timing wheel thread, shared by all user agents
+        assert threadName[0].startsWith("SipWorkerPool");
+    }
+
+    @Test(timeOut = 10000)
+    public void testFailOverToNextTarget() throws Exception {
+        InetAddress localHost = InetAddress.getLocalHost();
+        DatagramSocket first = new DatagramSocket(0, localHost);
+        DatagramSocket second = new DatagramSocket(0, localHost);
+        DatagramSocket datagramSocket = new DatagramSocket();
+        int port = datagramSocket.getLocalPort();
+        datagramSocket.close();
+        transportManager.setSipPort(port);
+        List<SipTarget> targets = new ArrayList<SipTarget>();
+        targets.add(new SipTarget(localHost, first.getLocalPort(), "UDP"));
+        targets.add(new SipTarget(localHost, second.getLocalPort(), "UDP"));
+        SipRequest sipRequest = (SipRequest)parse(
+                "OPTIONS sip:bob@biloxi.com SIP/2.0\r\n"
+                + "CSeq: 1 OPTIONS\r\n\r\n");
+        final AtomicInteger timeouts = new AtomicInteger();
+        ClientTransactionUser clientTransactionUser = new ClientTransactionUser() {
+            public void errResponseReceived(SipResponse sipResponse) {
+            }
+            public void provResponseReceived(SipResponse sipResponse, Transaction transaction) {
+            }
+            public void successResponseReceived(SipResponse sipResponse, Transaction transaction) {
+            }
+            public void transactionTimeout(ClientTransaction clientTransaction) {
+                timeouts.incrementAndGet();
+            }
+            public void transactionTransportError() {
+            }
+        };
+        ClientTransaction clientTransaction =
+            transactionManager.createClientTransaction(sipRequest, targets,
+                    null, clientTransactionUser);
+        clientTransaction.start();
+        String firstRequest = receive(first);
+        first.close();
+
+        // no answer from the first target: the request goes to the second
+        // one in a new transaction, the transaction user is not told
+        ((NonInviteClientTransaction)clientTransaction).transportError();
+        String secondRequest = receive(second);
+        second.close();
+        assert timeouts.get() == 0;
+        assert transportManager.getSipServerLocator().isBlacklisted(
+                targets.get(0));
+        String firstBranch = branch(firstRequest);
+        String secondBranch = branch(secondRequest);
+        assert !firstBranch.equals(secondBranch);
+        assert secondRequest.indexOf("Via") == secondRequest.lastIndexOf("Via");
+        assert transactionManager.getClientTransaction(firstBranch,
+                RFC3261.METHOD_OPTIONS) == clientTransaction;
+        NonInviteClientTransaction next = (NonInviteClientTransaction)
+            transactionManager.getClientTransaction(secondBranch,
+                    RFC3261.METHOD_OPTIONS);
+        assert targets.get(1).equals(next.getTarget());
+
+        // no target left
+        next.transportError();
+        assert timeouts.get() == 1;
+    }
+
+    @Test(timeOut = 10000)
+    public void testNoFailOverOnceProceeding() throws Exception {
+        InetAddress localHost = InetAddress.getLocalHost();
+        DatagramSocket first = new DatagramSocket(0, localHost);
+        DatagramSocket second = new DatagramSocket(0, localHost);
+        DatagramSocket datagramSocket = new DatagramSocket();
+        int port = datagramSocket.getLocalPort();
+        datagramSocket.close();
+        transportManager.setSipPort(port);
+        List<SipTarget> targets = new ArrayList<SipTarget>();
+        targets.add(new SipTarget(localHost, first.getLocalPort(), "UDP"));
+        targets.add(new SipTarget(localHost, second.getLocalPort(), "UDP"));
+        SipRequest sipRequest = (SipRequest)parse(
+                "REGISTER sip:biloxi.com SIP/2.0\r\n"
+                + "CSeq: 1 REGISTER\r\n\r\n");
+        final AtomicInteger timeouts = new AtomicInteger();
+        ClientTransactionUser clientTransactionUser = new ClientTransactionUser() {
+            public void errResponseReceived(SipResponse sipResponse) {
+            }
+            public void provResponseReceived(SipResponse sipResponse, Transaction transaction) {
+            }
+            public void successResponseReceived(SipResponse sipResponse, Transaction transaction) {
+            }
+            public void transactionTimeout(ClientTransaction clientTransaction) {
+                timeouts.incrementAndGet();
+            }
+            public void transactionTransportError() {
+            }
+        };
+        NonInviteClientTransaction clientTransaction =
+            (NonInviteClientTransaction)transactionManager
+            .createClientTransaction(sipRequest, targets, null,
+                    clientTransactionUser);
+        clientTransaction.start();
+        String request = receive(first);
+        first.close();
+        clientTransaction.receivedResponse((SipResponse)parse(
+                "SIP/2.0 100 Trying\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1;branch=" + branch(request)
+                + "\r\n"
+                + "CSeq: 1 REGISTER\r\n\r\n"));
+
+        // slow but alive: timeout without trying the next target
+        clientTransaction.new TimerF().run();
+        assert timeouts.get() == 1;
+        assert !transportManager.getSipServerLocator().isBlacklisted(
+                targets.get(0));
+        second.setSoTimeout(200);
+        try {
+            receive(second);
+            assert false;
+        } catch (SocketTimeoutException e) {
+            // nothing sent to the second target
+        } finally {
+            second.close();
+        }
+    }
+
+    private String receive(DatagramSocket datagramSocket) throws IOException {
+        byte[] buf = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        datagramSocket.receive(packet);
+        return new String(buf, 0, packet.getLength());
+    }
+
+    private String branch(String request) {
+        int start = request.indexOf(RFC3261.BRANCHID_MAGIC_COOKIE);
+        int end = start;
+        while (end < request.length() && request.charAt(end) != ';'
+                && request.charAt(end) != '\r') {
+            ++end;
+        }
+        return request.substring(start, end);
+    }
+
+    @Test(timeOut = 10000)
+    public void testFinalResponseSentFromTrying() throws Exception {
+        TransactionManager manager = new TransactionManager(
+                new FileLogger(null));
+        manager.setTransportManager(transportManager);
+        DatagramSocket remote = new DatagramSocket(0,
+                InetAddress.getLocalHost());
+        DatagramSocket datagramSocket = new DatagramSocket();
+        int port = datagramSocket.getLocalPort();
+        datagramSocket.close();
+        transportManager.setSipPort(port);
+        String via = "Via: SIP/2.0/UDP "
+            + remote.getLocalAddress().getHostAddress() + ":"
+            + remote.getLocalPort() + ";branch=z9hG4bKtrying\r\n";
+        SipRequest sipRequest = (SipRequest)parse(
+                "MESSAGE sip:john@doe.co.uk SIP/2.0\r\n"
+                + via + "CSeq: 1 MESSAGE\r\n\r\n");
+        SipResponse sipResponse = (SipResponse)parse("SIP/2.0 200 OK\r\n"
+                + via + "CSeq: 1 MESSAGE\r\n\r\n");
+        int timeouts = manager.getTimingWheel().getTimeoutCount();
+        NonInviteServerTransaction serverTransaction =
+            (NonInviteServerTransaction)manager.createServerTransaction(
+                    sipResponse, port, "UDP", null, sipRequest);
+        serverTransaction.start();
+        serverTransaction.receivedRequest(sipRequest);
+        serverTransaction.sendReponse(sipResponse);
+        // sent without waiting for a request retransmission
+        byte[] buf = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        remote.receive(packet);
+        remote.close();
+        assert new String(buf, 0, packet.getLength()).startsWith(
+                "SIP/2.0 200 OK\r\n");
+        // timer J
+        assert manager.getTimingWheel().getTimeoutCount() == timeouts + 1;
+        manager.closeTimers();
+    }
+
+    @Test
+    public void testLookupAndRemoval() throws Exception {
+        TransactionManager manager = new TransactionManager(
+                new FileLogger(null));
+        manager.setTransportManager(transportManager);
+        manager.setTerminatedLinger(50);
+        String via = "Via: SIP/2.0/UDP 192.168.1.2;branch=z9hG4bKlookup\r\n";
+        SipRequest sipRequest = (SipRequest)parse(
+                "MESSAGE sip:john@doe.co.uk SIP/2.0\r\n"
+                + via + "CSeq: 1 MESSAGE\r\n\r\n");
+        SipResponse sipResponse = (SipResponse)parse("SIP/2.0 200 OK\r\n"
+                + via + "CSeq: 1 MESSAGE\r\n\r\n");
+        ServerTransaction serverTransaction =
+            manager.createServerTransaction(sipResponse, 5060, "UDP",
+                    null, sipRequest);
+        assert manager.getServerTransactionCount() == 1;
+        assert manager.getServerTransaction(sipRequest) == serverTransaction;
+        assert manager.getServerTransaction("z9hG4bKlookup",
+                "MESSAGE") == serverTransaction;
+        assert manager.getServerTransaction("z9hG4bKlookup",
+                RFC3261.METHOD_INVITE) == null;
+
+        manager.transactionTerminated((Transaction)serverTransaction);
+        assert manager.getServerTransaction(sipRequest) == serverTransaction;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (manager.getServerTransactionCount() > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assert manager.getServerTransaction(sipRequest) == null;
+        assert manager.getServerTransactionCount() == 0;
+        manager.closeTimers();
+    }
+
+    @Test
+    public void testReapOrphanedTransactions() throws Exception {
+        TransactionManager manager = new TransactionManager(
+                new FileLogger(null));
+        manager.setTransportManager(transportManager);
+        String via = "Via: SIP/2.0/UDP 192.168.1.2;branch=z9hG4bKorphan\r\n";
+        SipRequest sipRequest = (SipRequest)parse(
+                "INVITE sip:john@doe.co.uk SIP/2.0\r\n"
+                + via + "CSeq: 1 INVITE\r\n\r\n");
+        SipResponse sipResponse = (SipResponse)parse("SIP/2.0 180 Ringing\r\n"
+                + via + "CSeq: 1 INVITE\r\n\r\n");
+        manager.createServerTransaction(sipResponse, 5060, "UDP", null,
+                sipRequest);
+        assert manager.reapTransactions(System.nanoTime()) == 0;
+        manager.setMaxTransactionLifetime(1000);
+        long later = System.nanoTime() + 2000L * 1000 * 1000;
+        assert manager.reapTransactions(later) == 1;
+        assert manager.getServerTransactionCount() == 0;
+        assert manager.getServerTransaction(sipRequest) == null;
+        manager.closeTimers();
+    }
+
+    @Test
+    public void testServerTransactionsWithoutBranch() throws Exception {
+        TransactionManager manager = new TransactionManager(
+                new FileLogger(null));
+        manager.setTransportManager(transportManager);
+        String via = "Via: SIP/2.0/UDP 192.168.1.2\r\n";
+        ServerTransaction[] serverTransactions = new ServerTransaction[2];
+        SipRequest[] sipRequests = new SipRequest[2];
+        for (int i = 0; i < serverTransactions.length; ++i) {
+            String headers = via + "Call-ID: 2543-" + i + "\r\n"
+                + "From: <sip:alice@atlanta.com>;tag=a\r\n"
+                + "CSeq: 1 MESSAGE\r\n\r\n";
+            sipRequests[i] = (SipRequest)parse(
+                    "MESSAGE sip:john@doe.co.uk SIP/2.0\r\n" + headers);
+            SipResponse sipResponse = (SipResponse)parse(
+                    "SIP/2.0 200 OK\r\n" + headers);
+            serverTransactions[i] = manager.createServerTransaction(
+                    sipResponse, 5060, "UDP", null, sipRequests[i]);
+        }
+        // each call keeps its own transaction
+        assert manager.getServerTransactionCount() == 2;
+        assert manager.getServerTransaction(sipRequests[0])
+            == serverTransactions[0];
+        assert manager.getServerTransaction(sipRequests[1])
+            == serverTransactions[1];
+        assert manager.getServerTransaction(null, "MESSAGE") == null;
+        SipRequest nextRequest = (SipRequest)parse(
+                "MESSAGE sip:john@doe.co.uk SIP/2.0\r\n" + via
+                + "Call-ID: 2543-0\r\n"
+                + "From: <sip:alice@atlanta.com>;tag=a\r\n"
+                + "CSeq: 2 MESSAGE\r\n\r\n");
+        assert manager.getServerTransaction(nextRequest) == null;
+        manager.closeTimers();
+    }
+
     private SipMessage parse(String message) throws IOException, SipParserException {
         ByteArrayInputStream bais = new ByteArrayInputStream(message.getBytes());
         SipParser sipParser = new SipParser();
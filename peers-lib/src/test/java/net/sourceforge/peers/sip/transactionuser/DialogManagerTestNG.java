@@ -21,6 +21,7 @@ package net.sourceforge.peers.sip.transactionuser;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.List;
 
 import net.sourceforge.peers.FileLogger;
 import net.sourceforge.peers.sip.syntaxencoding.SipParser;
@@ -71,6 +72,99 @@ public class DialogManagerTestNG {
         assert "abc".equals(dialog.getLocalTag());
     }
     
+    @Test
+    public void testCreateDialogForUASWithVia() throws IOException,
+            SipParserException {
+        SipResponse sipResponse = (SipResponse)parse(response("uas", "345"));
+        Dialog dialog = dialogManager.createDialog(sipResponse, true);
+        assert "abc".equals(dialog.getRemoteTag());
+        assert "345".equals(dialog.getLocalTag());
+    }
+
+    @Test
+    public void testLookupAndRemoval() throws IOException, SipParserException {
+        DialogManager dialogManager = new DialogManager(new FileLogger(null));
+        Dialog dialog1 = dialogManager.createDialog(
+                (SipResponse)parse(response("fork1", "tag1")));
+        Dialog dialog2 = dialogManager.createDialog(
+                (SipResponse)parse(response("fork1", "tag2")));
+        Dialog dialog3 = dialogManager.createDialog(
+                (SipResponse)parse(response("other", "tag1")));
+        assert dialogManager.size() == 3;
+
+        // both tag orders match
+        assert dialog2 == dialogManager.getDialog(
+                parse(response("fork1", "tag2")));
+        assert dialog2 == dialogManager.getDialog(parse(
+                "BYE sip:alice@atlanta.com SIP/2.0\r\n" +
+                "From: Bob <sip:bob@biloxi.com>;tag=tag2\r\n" +
+                "To: sip:alice@atlanta.com;tag=abc\r\n" +
+                "Call-ID: fork1\r\n" +
+                "\r\n"));
+
+        List<Dialog> dialogs = dialogManager.getDialogs("fork1");
+        assert dialogs.size() == 2;
+        assert dialogs.contains(dialog1);
+        assert dialogs.contains(dialog2);
+        assert dialog1 == dialogManager.getDialog("fork1");
+        assert dialog3 == dialogManager.getDialog("other");
+
+        // terminated dialogs are removed from both indexes
+        dialog1.receivedOrSent300To699();
+        assert dialogManager.size() == 2;
+        assert dialogManager.getDialog(
+                parse(response("fork1", "tag1"))) == null;
+        assert dialog2 == dialogManager.getDialog("fork1");
+        dialogManager.removeDialog(dialog2);
+        dialogManager.removeDialog(dialog2);
+        assert dialogManager.getDialog("fork1") == null;
+        assert dialogManager.getDialogs("fork1").isEmpty();
+        assert dialogManager.size() == 1;
+    }
+
+    @Test(timeOut = 30000)
+    public void testConcurrentCreateAndRemove() throws Exception {
+        final DialogManager dialogManager = new DialogManager(
+                new FileLogger(null));
+        final int count = 2000;
+        final SipResponse[] responses = new SipResponse[count];
+        for (int i = 0; i < count; ++i) {
+            responses[i] = (SipResponse)parse(response("race" + i, "tag"));
+        }
+        // removes each dialog as soon as it can be found by id
+        Thread remover = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    Dialog dialog;
+                    while ((dialog = dialogManager.getDialog(responses[i]))
+                            == null) {
+                        Thread.yield();
+                    }
+                    dialogManager.removeDialog(dialog);
+                }
+            }
+        };
+        remover.start();
+        for (int i = 0; i < count; ++i) {
+            dialogManager.createDialog(responses[i]);
+        }
+        remover.join();
+        assert dialogManager.size() == 0;
+        for (int i = 0; i < count; ++i) {
+            assert dialogManager.getDialog("race" + i) == null;
+        }
+    }
+
+    private String response(String callId, String toTag) {
+        return "SIP/2.0 200 OK\r\n" +
+                "From: sip:alice@atlanta.com;tag=abc\r\n" +
+                "To: Bob <sip:bob@biloxi.com>;tag=" + toTag + "\r\n" +
+                "Call-ID: " + callId + "\r\n" +
+                "Via: SIP/2.0/UDP 192.2.4.2;branch=23456SG/\r\n" +
+                "\r\n";
+    }
+
     private SipMessage parse(String message) throws IOException, SipParserException {
         ByteArrayInputStream bais = new ByteArrayInputStream(message.getBytes());
         SipParser sipParser = new SipParser();
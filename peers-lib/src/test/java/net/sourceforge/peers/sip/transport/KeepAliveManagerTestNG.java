@@ -0,0 +1,178 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sourceforge.peers.FileLogger;
+import net.sourceforge.peers.JavaConfig;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.TimingWheel;
+import net.sourceforge.peers.sip.RFC3261;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class KeepAliveManagerTestNG {
+
+    private Logger logger;
+    private TimingWheel timingWheel;
+    private KeepAliveManager keepAliveManager;
+    private InetAddress localHost;
+    private List<SipTransportConnection> failedFlows;
+
+    @BeforeMethod
+    public void init() throws UnknownHostException {
+        logger = new FileLogger(null);
+        timingWheel = new TimingWheel(logger);
+        keepAliveManager = new KeepAliveManager(timingWheel, logger);
+        localHost = InetAddress.getLocalHost();
+        failedFlows = new ArrayList<SipTransportConnection>();
+        keepAliveManager.setKeepAliveListener(new KeepAliveListener() {
+            @Override
+            public void flowFailed(
+                    SipTransportConnection sipTransportConnection) {
+                failedFlows.add(sipTransportConnection);
+            }
+        });
+    }
+
+    @AfterMethod
+    public void close() {
+        keepAliveManager.close();
+        timingWheel.stop();
+    }
+
+    @Test
+    public void testPingOnlyIdleFlows() {
+        RecordingMessageSender idle = new RecordingMessageSender(5061);
+        RecordingMessageSender busy = new RecordingMessageSender(5062);
+        keepAliveManager.add(connection(5061), idle);
+        keepAliveManager.add(connection(5062), busy);
+        keepAliveManager.add(connection(5062), busy);
+        assert keepAliveManager.getFlowCount() == 2;
+
+        long interval = KeepAlivePolicy.DEFAULT_INTERVAL;
+        long now = idle.getLastSent() + interval;
+        busy.lastSent = now - interval / 2;
+        assert keepAliveManager.check(now) == 1;
+        assert idle.pings == 1;
+        assert busy.pings == 0;
+
+        // no second ping before a full interval
+        assert keepAliveManager.check(now + interval / 2) == 1;
+        assert idle.pings == 1;
+        assert busy.pings == 1;
+        assert keepAliveManager.check(now + interval) == 1;
+        assert idle.pings == 2;
+        assert keepAliveManager.getPingCount() == 3;
+
+        keepAliveManager.remove(idle);
+        assert keepAliveManager.getFlowCount() == 1;
+        assert keepAliveManager.check(now + 10 * interval) == 1;
+        assert idle.pings == 2;
+    }
+
+    @Test
+    public void testPongDetection() {
+        keepAliveManager.setDefaultPolicy(new KeepAlivePolicy(1000, 500));
+        RecordingMessageSender alive = new RecordingMessageSender(5061);
+        RecordingMessageSender dead = new RecordingMessageSender(5062);
+        keepAliveManager.add(connection(5061), alive);
+        keepAliveManager.add(connection(5062), dead);
+
+        long now = alive.getLastSent() + 1000;
+        assert keepAliveManager.check(now) == 2;
+        keepAliveManager.pongReceived(connection(5061));
+        assert keepAliveManager.getPongCount() == 1;
+
+        // pong timeout not elapsed yet
+        assert keepAliveManager.check(now + 400) == 0;
+        assert failedFlows.isEmpty();
+
+        assert keepAliveManager.check(now + 1000) == 1;
+        assert alive.pings == 2;
+        assert dead.pings == 1;
+        assert failedFlows.size() == 1;
+        assert failedFlows.get(0).getRemotePort() == 5062;
+        assert keepAliveManager.getFailedFlowCount() == 1;
+        assert keepAliveManager.getFlowCount() == 1;
+    }
+
+    @Test
+    public void testPolicyPerDestination() {
+        keepAliveManager.setDefaultPolicy(KeepAlivePolicy.DISABLED);
+        keepAliveManager.setPolicy(localHost, 5061,
+                new KeepAlivePolicy(1000, 0));
+        RecordingMessageSender proxy = new RecordingMessageSender(5061);
+        RecordingMessageSender other = new RecordingMessageSender(5062);
+        keepAliveManager.add(connection(5061), proxy);
+        keepAliveManager.add(connection(5062), other);
+
+        long now = proxy.getLastSent() + 1000;
+        assert keepAliveManager.check(now) == 1;
+        assert proxy.pings == 1;
+        assert other.pings == 0;
+
+        keepAliveManager.removePolicy(localHost, 5061);
+        assert keepAliveManager.check(now + 1000) == 0;
+        assert failedFlows.isEmpty();
+    }
+
+    private SipTransportConnection connection(int remotePort) {
+        return new SipTransportConnection(localHost, 5060, localHost,
+                remotePort, RFC3261.TRANSPORT_UDP);
+    }
+
+    class RecordingMessageSender extends MessageSender {
+
+        int pings;
+        long lastSent;
+
+        RecordingMessageSender(int remotePort) {
+            super(5060, localHost, remotePort, new JavaConfig(),
+                    RFC3261.TRANSPORT_UDP, keepAliveManager,
+                    KeepAliveManagerTestNG.this.logger);
+            lastSent = super.getLastSent();
+        }
+
+        @Override
+        public void sendMessage(SipMessage sipMessage) throws IOException {
+            messageSent();
+        }
+
+        @Override
+        public void sendBytes(byte[] bytes) throws IOException {
+            assert bytes == KeepAliveManager.PING;
+            ++pings;
+        }
+
+        @Override
+        public long getLastSent() {
+            return lastSent;
+        }
+    }
+
+}
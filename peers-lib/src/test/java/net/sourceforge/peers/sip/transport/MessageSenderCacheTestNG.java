@@ -0,0 +1,143 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import net.sourceforge.peers.FileLogger;
+import net.sourceforge.peers.JavaConfig;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.TimingWheel;
+import net.sourceforge.peers.sip.RFC3261;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class MessageSenderCacheTestNG {
+
+    private Logger logger;
+    private TimingWheel timingWheel;
+    private KeepAliveManager keepAliveManager;
+    private InetAddress localHost;
+
+    @BeforeClass
+    public void init() throws UnknownHostException {
+        logger = new FileLogger(null);
+        timingWheel = new TimingWheel(logger);
+        keepAliveManager = new KeepAliveManager(timingWheel, logger);
+        localHost = InetAddress.getLocalHost();
+    }
+
+    @AfterClass
+    public void close() {
+        keepAliveManager.close();
+        timingWheel.stop();
+    }
+
+    @Test
+    public void testOneSenderPerFlow() {
+        MessageSenderCache cache = new MessageSenderCache(logger);
+        MessageSender sender1 = newMessageSender(5061);
+        MessageSender sender2 = newMessageSender(5062);
+        assert cache.get(connection(5061)) == null;
+        assert cache.putIfAbsent(connection(5061), sender1) == sender1;
+        assert cache.putIfAbsent(connection(5062), sender2) == sender2;
+        assert cache.size() == 2;
+        assert cache.get(connection(5061)) == sender1;
+        assert cache.get(connection(5062)) == sender2;
+        // lost race, the cached sender wins
+        assert cache.putIfAbsent(connection(5061), newMessageSender(5061))
+            == sender1;
+        assert cache.getHitCount() == 2;
+        assert cache.getMissCount() == 1;
+        assert cache.getEvictionCount() == 0;
+        cache.remove(sender1);
+        assert cache.get(connection(5061)) == null;
+        assert cache.size() == 1;
+        cache.clear();
+        assert cache.size() == 0;
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws InterruptedException {
+        MessageSenderCache cache = new MessageSenderCache(8, 60000, logger);
+        for (int i = 0; i < 8; ++i) {
+            cache.putIfAbsent(connection(6000 + i), newMessageSender(6000 + i));
+            Thread.sleep(2);
+        }
+        // 6000 becomes the most recently used
+        assert cache.get(connection(6000)) != null;
+        cache.putIfAbsent(connection(6008), newMessageSender(6008));
+        // evicted down to 7 entries, 6001 and 6002 were the oldest
+        assert cache.size() == 7;
+        assert cache.getEvictionCount() == 2;
+        assert cache.get(connection(6001)) == null;
+        assert cache.get(connection(6002)) == null;
+        assert cache.get(connection(6000)) != null;
+        assert cache.get(connection(6008)) != null;
+    }
+
+    @Test
+    public void testIdleEviction() {
+        MessageSenderCache cache = new MessageSenderCache(8, 1000, logger);
+        cache.putIfAbsent(connection(7000), newMessageSender(7000));
+        long now = System.currentTimeMillis();
+        assert cache.evictIdle(now) == 0;
+        assert cache.evictIdle(now + 2000) == 1;
+        assert cache.size() == 0;
+        assert cache.getEvictionCount() == 1;
+    }
+
+    @Test
+    public void testNoIdleEvictionWhileSending() throws IOException,
+            InterruptedException {
+        MessageSenderCache cache = new MessageSenderCache(8, 100, logger);
+        // held by a transaction, sends without cache lookups
+        MessageSender messageSender = newMessageSender(7001);
+        cache.putIfAbsent(connection(7001), messageSender);
+        Thread.sleep(150);
+        messageSender.sendMessage(null);
+        long now = System.currentTimeMillis();
+        assert cache.evictIdle(now) == 0;
+        assert cache.evictIdle(now + 200) == 1;
+        assert cache.size() == 0;
+    }
+
+    private SipTransportConnection connection(int remotePort) {
+        return new SipTransportConnection(localHost, 5060, localHost,
+                remotePort, RFC3261.TRANSPORT_UDP);
+    }
+
+    private MessageSender newMessageSender(int remotePort) {
+        return new MessageSender(5060, localHost, remotePort, new JavaConfig(),
+                RFC3261.TRANSPORT_UDP, keepAliveManager, logger) {
+            @Override
+            public void sendMessage(SipMessage sipMessage) throws IOException {
+                messageSent();
+            }
+            @Override
+            public void sendBytes(byte[] bytes) throws IOException {
+            }
+        };
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.net.InetAddress;
+
+import net.sourceforge.peers.CachingAddressResolver;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldNames;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldValue;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderParamName;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaders;
+import net.sourceforge.peers.sip.syntaxencoding.SipParser;
+import net.sourceforge.peers.sip.syntaxencoding.SipParserException;
+
+import org.testng.annotations.Test;
+
+public class OptionsResponderTestNG {
+
+    private static final InetAddress PROXY =
+        CachingAddressResolver.parseLiteral("192.0.2.10");
+
+    private static final String OPTIONS =
+        "OPTIONS sip:alice@192.0.2.1 SIP/2.0\r\n"
+        + "Via: SIP/2.0/UDP proxy.example.com:5070;branch=z9hG4bKping;rport\r\n"
+        + "Via: SIP/2.0/UDP 192.0.2.20;branch=z9hG4bKfirst\r\n"
+        + "Max-Forwards: 70\r\n"
+        + "From: <sip:ping@example.com>;tag=a6c85cf\r\n"
+        + "t: <sip:alice@192.0.2.1;transport=udp>\r\n"
+        + "Call-ID: a84b4c76e66710@proxy.example.com\r\n"
+        + "CSeq: 63104 OPTIONS\r\n"
+        + "Content-Length: 0\r\n"
+        + "\r\n";
+
+    @Test
+    public void testResponse() throws SipParserException {
+        OptionsResponder optionsResponder = newOptionsResponder();
+        OptionsResponder.Response response = respond(optionsResponder,
+                OPTIONS);
+        assert response != null;
+        // rport: back to the source port
+        assert response.getPort() == 40000;
+        SipResponse sipResponse = parse(response.getData());
+        assert sipResponse.getStatusCode() == RFC3261.CODE_200_OK;
+        SipHeaders sipHeaders = sipResponse.getSipHeaders();
+        SipHeaderFieldValue via = sipHeaders.get(SipHeaderFieldNames.VIA);
+        assert "z9hG4bKping".equals(sipResponse.getBranch());
+        assert "40000".equals(via.getParam(
+                new SipHeaderParamName(RFC3261.PARAM_RPORT)));
+        assert "192.0.2.10".equals(via.getParam(
+                new SipHeaderParamName(RFC3261.PARAM_RECEIVED)));
+        assert sipResponse.getToTag() != null;
+        assert "a6c85cf".equals(sipResponse.getFromTag());
+        assert "a84b4c76e66710@proxy.example.com".equals(
+                sipResponse.getCallId());
+        assert sipResponse.getCSeqNumber() == 63104;
+        assert RFC3261.METHOD_OPTIONS.equals(sipResponse.getCSeqMethodName());
+        assert "0".equals(sipHeaders.get(
+                SipHeaderFieldNames.CONTENT_LENGTH).getValue());
+        String data = new String(response.getData());
+        assert data.contains("\r\nVia: SIP/2.0/UDP 192.0.2.20;"
+                + "branch=z9hG4bKfirst\r\n");
+        assert data.contains("\r\nAllow: INVITE, ACK\r\n");
+        assert data.contains("\r\nAccept: application/sdp\r\n");
+        assert !data.contains("Max-Forwards");
+        assert optionsResponder.getResponseCount() == 1;
+    }
+
+    @Test
+    public void testSentByPort() {
+        OptionsResponder.Response response = respond(newOptionsResponder(),
+                OPTIONS.replace(";rport", ""));
+        assert response.getPort() == 5070;
+        assert !new String(response.getData()).contains("rport");
+        response = respond(newOptionsResponder(), OPTIONS.replace(
+                "proxy.example.com:5070;branch=z9hG4bKping;rport",
+                "192.0.2.10;branch=z9hG4bKping"));
+        assert response.getPort() == RFC3261.TRANSPORT_DEFAULT_PORT;
+        // sent-by matches the source address
+        assert !new String(response.getData()).contains("received");
+    }
+
+    @Test
+    public void testLeftToRegularProcessing() {
+        OptionsResponder optionsResponder = newOptionsResponder();
+        // within a dialog
+        assert respond(optionsResponder, OPTIONS.replace(
+                "transport=udp>", "transport=udp>;tag=1928301774")) == null;
+        // tag in the uri is not a tag
+        assert respond(optionsResponder, OPTIONS.replace(
+                "transport=udp>", "tag=1>")) != null;
+        assert respond(optionsResponder,
+                OPTIONS.replace("OPTIONS sip", "INVITE sip")) == null;
+        assert respond(optionsResponder,
+                OPTIONS.replace("SIP/2.0/UDP proxy", "SIP/2.0/TCP proxy"))
+                == null;
+        assert respond(optionsResponder,
+                OPTIONS.replace("Max-Forwards: 70\r\n",
+                        "Max-Forwards: 70\r\n   ;folded\r\n")) == null;
+        assert respond(optionsResponder,
+                OPTIONS.replace("Call-ID: a84b4c76e66710@proxy.example.com\r\n",
+                        "")) == null;
+    }
+
+    @Test
+    public void testUserPartFilter() {
+        OptionsResponder optionsResponder = newOptionsResponder();
+        optionsResponder.setUserPartFilter(new UserPartFilter() {
+            @Override
+            public boolean accept(String userPart) {
+                return "alice".equals(userPart);
+            }
+        });
+        assert respond(optionsResponder, OPTIONS) != null;
+        assert respond(optionsResponder, OPTIONS.replace(
+                "OPTIONS sip:alice@", "OPTIONS sip:alice:secret@")) != null;
+        // unknown user: 404 from the regular processing
+        assert respond(optionsResponder, OPTIONS.replace(
+                "OPTIONS sip:alice@", "OPTIONS sip:bob@")) == null;
+        // routed on the To header
+        assert respond(optionsResponder, OPTIONS.replace(
+                "OPTIONS sip:alice@", "OPTIONS sip:")) == null;
+        assert optionsResponder.getResponseCount() == 2;
+    }
+
+    private OptionsResponder newOptionsResponder() {
+        return new OptionsResponder("INVITE, ACK", RFC3261.CONTENT_TYPE_SDP,
+                null);
+    }
+
+    private OptionsResponder.Response respond(
+            OptionsResponder optionsResponder, String request) {
+        byte[] bytes = request.getBytes();
+        return optionsResponder.buildResponse(bytes, 0, bytes.length, PROXY,
+                40000);
+    }
+
+    private SipResponse parse(byte[] data) throws SipParserException {
+        return (SipResponse)new SipParser().parse(data, 0, data.length);
+    }
+
+}
@@ -0,0 +1,344 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.peers.CachingAddressResolver;
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.FileLogger;
+import net.sourceforge.peers.JavaConfig;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.transaction.TransactionManager;
+
+import org.testng.annotations.Test;
+
+public class OverloadControllerTestNG {
+
+    private static final InetAddress PROXY =
+        CachingAddressResolver.parseLiteral("192.0.2.10");
+
+    private static final String INVITE =
+        "INVITE sip:bob@192.0.2.1 SIP/2.0\r\n"
+        + "Via: SIP/2.0/UDP 192.0.2.10:5060;branch=z9hG4bKinvite\r\n"
+        + "Max-Forwards: 70\r\n"
+        + "From: <sip:alice@example.com>;tag=a6c85cf\r\n"
+        + "To: <sip:bob@192.0.2.1>\r\n"
+        + "Call-ID: a84b4c76e66710@example.com\r\n"
+        + "CSeq: 314159 INVITE\r\n"
+        + "Content-Length: 0\r\n"
+        + "\r\n";
+
+    private static final String BYE = INVITE
+        .replace("INVITE sip", "BYE sip")
+        .replace("z9hG4bKinvite", "z9hG4bKbye")
+        .replace("192.0.2.1>", "192.0.2.1>;tag=1928301774")
+        .replace("314159 INVITE", "314160 BYE");
+
+    @Test
+    public void testOnlyInitialInviteAndRegisterRejected()
+            throws InterruptedException {
+        SipWorkerPool sipWorkerPool = new SipWorkerPool(1,
+                new FileLogger(null));
+        OverloadController overloadController = new OverloadController(
+                sipWorkerPool, new FileLogger(null));
+        overloadController.setMaxQueuedTasks(10);
+        CountDownLatch blocked = block(sipWorkerPool);
+        assert !overloadController.isOverloaded();
+        fill(sipWorkerPool, 20);
+        assert !overloadController.admit(scan(INVITE));
+        assert !overloadController.admit(scan(INVITE.replace("INVITE",
+                "REGISTER")));
+        assert overloadController.admit(scan(INVITE.replace(
+                "192.0.2.1>", "192.0.2.1>;tag=1234")));
+        assert overloadController.admit(scan(BYE));
+        assert overloadController.admit(scan(INVITE.replace("INVITE",
+                "CANCEL")));
+        assert overloadController.admit(scan(INVITE.replace("INVITE",
+                "OPTIONS")));
+        // tag in the uri is not a tag
+        assert !overloadController.admit(scan(INVITE.replace(
+                "192.0.2.1>", "192.0.2.1;tag=1>")));
+        assert overloadController.admit(scan(
+                "SIP/2.0 180 Ringing\r\n" + "CSeq: 1 INVITE\r\n\r\n"));
+        assert overloadController.getRejectedCount() == 3;
+
+        blocked.countDown();
+        for (int i = 0; i < 100 && sipWorkerPool.getQueuedTaskCount() > 0;
+                ++i) {
+            Thread.sleep(10);
+        }
+        assert !overloadController.isOverloaded();
+        assert overloadController.admit(scan(INVITE));
+        sipWorkerPool.close();
+    }
+
+    /**
+     * Requests go through the {@link MessageReceiver} of a transport
+     * manager whose only worker is blocked: queue length is exact, nothing
+     * depends on timing.
+     */
+    @Test
+    public void testRejectedBeforeQueueing()
+            throws IOException, InterruptedException {
+        Logger logger = new FileLogger(null);
+        SipWorkerPool sipWorkerPool = new SipWorkerPool(1, logger);
+        TransactionManager transactionManager =
+            new TransactionManager(logger);
+        Config config = new JavaConfig();
+        config.setLocalInetAddress(InetAddress.getLoopbackAddress());
+        TransportManager transportManager = new TransportManager(
+                transactionManager, config, logger, null, sipWorkerPool);
+        OverloadController overloadController =
+            transportManager.getOverloadController();
+        overloadController.setMaxQueuedTasks(10);
+        overloadController.setRetryAfter(7);
+        RecordingMessageReceiver messageReceiver =
+            new RecordingMessageReceiver(transactionManager,
+                    transportManager, config, logger);
+        messageReceiver.setSipServerTransportUser(
+                new SipServerTransportUser() {
+                    @Override
+                    public void messageReceived(SipMessage sipMessage) {
+                    }
+                });
+        CountDownLatch blocked = block(sipWorkerPool);
+        fill(sipWorkerPool, 20);
+        int queued = sipWorkerPool.getQueuedTaskCount();
+
+        // refused with a 503 without being queued
+        messageReceiver.receive(INVITE);
+        assert sipWorkerPool.getQueuedTaskCount() == queued;
+        assert messageReceiver.sent.size() == 1;
+        String response = messageReceiver.sent.get(0);
+        assert response.startsWith("SIP/2.0 503 Service Unavailable\r\n");
+        assert response.contains("branch=z9hG4bKinvite");
+        assert response.contains("\r\nRetry-After: 7\r\n");
+        assert response.contains("\r\nTo: <sip:bob@192.0.2.1>;tag=");
+        assert overloadController.getRejectedCount() == 1;
+
+        // within a dialog: queued
+        messageReceiver.receive(BYE);
+        assert sipWorkerPool.getQueuedTaskCount() == queued + 1;
+        assert messageReceiver.sent.size() == 1;
+
+        // bounded worker queue: admitted messages beyond it are dropped
+        sipWorkerPool.setMaxQueuedTasks(queued + 3);
+        for (int i = 0; i < 5; ++i) {
+            messageReceiver.receive(BYE);
+        }
+        assert sipWorkerPool.getQueuedTaskCount() == queued + 3;
+        assert messageReceiver.sent.size() == 1;
+
+        blocked.countDown();
+        sipWorkerPool.close();
+        transportManager.closeTransports();
+        transactionManager.closeTimers();
+    }
+
+    /**
+     * The worker handles CAPACITY messages per round, released by the test,
+     * while initial INVITEs are offered at up to 6 times this capacity
+     * next to a constant in-dialog load. Past saturation, the worker keeps
+     * completing CAPACITY messages per round: all in-dialog requests and
+     * the same number of new calls at every load, the excess being
+     * rejected. The queue, hence the latency, stays bounded.
+     */
+    @Test(timeOut = 60000)
+    public void testGoodputPastSaturation()
+            throws IOException, InterruptedException {
+        final int capacity = 20;
+        final int inDialog = 5;
+        final int rounds = 25;
+        final int maxQueuedTasks = 20;
+        int[] invites = { 10, 30, 60, 120 };
+
+        Logger logger = new FileLogger(null);
+        SipWorkerPool sipWorkerPool = new SipWorkerPool(1, logger);
+        TransactionManager transactionManager =
+            new TransactionManager(logger);
+        Config config = new JavaConfig();
+        config.setLocalInetAddress(InetAddress.getLoopbackAddress());
+        TransportManager transportManager = new TransportManager(
+                transactionManager, config, logger, null, sipWorkerPool);
+        transportManager.getSourceRateLimiter().addExemptAddress(PROXY);
+        OverloadController overloadController =
+            transportManager.getOverloadController();
+        overloadController.setMaxQueuedTasks(maxQueuedTasks);
+        // the test paces the worker, time based thresholds would only
+        // measure the test itself
+        overloadController.setMaxQueueDelay(Long.MAX_VALUE);
+        overloadController.setMaxProcessingTime(Long.MAX_VALUE);
+        RecordingMessageReceiver messageReceiver =
+            new RecordingMessageReceiver(transactionManager,
+                    transportManager, config, logger);
+        final Semaphore gate = new Semaphore(0);
+        final AtomicInteger completedCalls = new AtomicInteger();
+        final AtomicInteger completedInDialog = new AtomicInteger();
+        messageReceiver.setSipServerTransportUser(
+                new SipServerTransportUser() {
+                    @Override
+                    public void messageReceived(SipMessage sipMessage) {
+                        gate.acquireUninterruptibly();
+                        if (sipMessage.getToTag() != null) {
+                            completedInDialog.incrementAndGet();
+                        } else {
+                            completedCalls.incrementAndGet();
+                        }
+                    }
+                });
+
+        int sequence = 0;
+        int admitted = 0;
+        int processed = 0;
+        int maxBacklog = 0;
+        int[] calls = new int[invites.length];
+        int[] rejected = new int[invites.length];
+        for (int phase = 0; phase < invites.length; ++phase) {
+            int callsBefore = completedCalls.get();
+            int inDialogBefore = completedInDialog.get();
+            int rejectedBefore = messageReceiver.sent.size();
+            for (int round = 0; round < rounds; ++round) {
+                int offered = invites[phase] + inDialog;
+                // in-dialog requests spread among the INVITEs
+                int step = offered / inDialog;
+                int sentBefore = messageReceiver.sent.size();
+                for (int i = 0; i < offered; ++i) {
+                    ++sequence;
+                    String message = i % step == 0 && i / step < inDialog
+                        ? BYE : INVITE;
+                    messageReceiver.receive(message
+                            .replace("z9hG4bK", "z9hG4bK" + sequence)
+                            .replace("a84b4c76e66710", "call" + sequence));
+                }
+                admitted += offered
+                    - (messageReceiver.sent.size() - sentBefore);
+                int backlog = admitted - processed;
+                maxBacklog = Math.max(maxBacklog, backlog);
+                int handled = Math.min(capacity, backlog);
+                gate.release(handled);
+                processed += handled;
+                while (completedCalls.get() + completedInDialog.get()
+                        < processed) {
+                    Thread.sleep(1);
+                }
+            }
+            calls[phase] = completedCalls.get() - callsBefore;
+            rejected[phase] = messageReceiver.sent.size() - rejectedBefore;
+            int inDialogCompleted = completedInDialog.get() - inDialogBefore;
+            // in-dialog requests are never refused, nor left behind
+            assert Math.abs(inDialogCompleted - inDialog * rounds)
+                <= maxQueuedTasks;
+            if (phase > 0) {
+                // saturated: the worker never idles
+                assert calls[phase] + inDialogCompleted
+                    >= capacity * rounds - maxQueuedTasks;
+            }
+        }
+        assert rejected[0] == 0;
+        assert calls[0] == invites[0] * rounds;
+        for (int phase = 2; phase < invites.length; ++phase) {
+            assert Math.abs(calls[phase] - calls[1]) <= maxQueuedTasks;
+            assert rejected[phase] > rejected[phase - 1];
+        }
+        assert maxBacklog <= maxQueuedTasks + inDialog + 1;
+        assert overloadController.getRejectedCount()
+            == messageReceiver.sent.size();
+
+        gate.release(Integer.MAX_VALUE / 2);
+        sipWorkerPool.close();
+        transportManager.closeTransports();
+        transactionManager.closeTimers();
+    }
+
+    private RawSipMessage scan(String message) {
+        byte[] bytes = message.getBytes();
+        return RawSipMessage.scan(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return once the worker runs the blocking task, it is not counted
+     *         in the queue anymore
+     */
+    private CountDownLatch block(SipWorkerPool sipWorkerPool)
+            throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        sipWorkerPool.execute(0, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    blocked.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        assert started.await(5, TimeUnit.SECONDS);
+        return blocked;
+    }
+
+    private void fill(SipWorkerPool sipWorkerPool, int tasks) {
+        for (int i = 0; i < tasks; ++i) {
+            sipWorkerPool.execute(0, new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+    }
+
+    static class RecordingMessageReceiver extends MessageReceiver {
+
+        private List<String> sent = new ArrayList<String>();
+
+        RecordingMessageReceiver(TransactionManager transactionManager,
+                TransportManager transportManager, Config config,
+                Logger logger) {
+            super(0, transactionManager, transportManager, config, logger);
+        }
+
+        void receive(String message) throws IOException {
+            processMessage(message.getBytes(), PROXY, 5060,
+                    RFC3261.TRANSPORT_UDP);
+        }
+
+        @Override
+        protected void listen() throws IOException {
+        }
+
+        @Override
+        protected boolean sendDatagram(byte[] data, InetAddress inetAddress,
+                int port) {
+            sent.add(new String(data));
+            return true;
+        }
+    }
+
+}
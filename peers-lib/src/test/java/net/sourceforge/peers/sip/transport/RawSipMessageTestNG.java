@@ -0,0 +1,86 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+package net.sourceforge.peers.sip.transport;
+
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.SipMethod;
+
+import org.testng.annotations.Test;
+
+public class RawSipMessageTestNG {
+
+    @Test
+    public void testRequest() {
+        RawSipMessage rawSipMessage = scan(
+                "INVITE sip:bob@biloxi.com SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bK776asdhds"
+                + " ;rport, SIP/2.0/UDP 10.0.0.1;branch=z9hG4bKother\r\n"
+                + "Via: SIP/2.0/UDP 10.0.0.2;branch=z9hG4bKlast\r\n"
+                + "Call-ID: a84b4c76e66710@pc33.atlanta.com\r\n"
+                + "CSeq: 314159 INVITE\r\n"
+                + "Content-Length: 9\r\n"
+                + "\r\n"
+                + "CSeq: 1 X");
+        assert rawSipMessage.isRequest();
+        assert RFC3261.METHOD_INVITE == rawSipMessage.getMethod();
+        assert rawSipMessage.getSipMethod() == SipMethod.INVITE;
+        assert rawSipMessage.getStatusCode() == -1;
+        assert "z9hG4bK776asdhds".equals(rawSipMessage.getBranch());
+        assert rawSipMessage.getCSeqNumber() == 314159;
+        assert RFC3261.METHOD_INVITE == rawSipMessage.getCSeqMethod();
+    }
+
+    @Test
+    public void testResponse() {
+        RawSipMessage rawSipMessage = scan("SIP/2.0 486 Busy Here\r\n"
+                + "v: SIP/2.0/UDP pc33.atlanta.com ; BRANCH = z9hG4bK1\r\n"
+                + "i: a84b4c76e66710@pc33.atlanta.com\r\n"
+                + "cseq:2147483647   BYE\r\n"
+                + "\r\n");
+        assert !rawSipMessage.isRequest();
+        assert rawSipMessage.getMethod() == null;
+        assert rawSipMessage.getStatusCode() == 486;
+        assert "z9hG4bK1".equals(rawSipMessage.getBranch());
+        assert rawSipMessage.getCSeqNumber() == 2147483647L;
+        assert RFC3261.METHOD_BYE == rawSipMessage.getCSeqMethod();
+    }
+
+    @Test
+    public void testExtensionMethodAndMissingFields() {
+        RawSipMessage rawSipMessage = scan(
+                "MESSAGE sip:bob@biloxi.com SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP pc33.atlanta.com;received=10.0.0.1\r\n"
+                + "CSeq: abc MESSAGE\r\n"
+                + "\r\n");
+        assert "MESSAGE".equals(rawSipMessage.getMethod());
+        assert rawSipMessage.getSipMethod() == null;
+        assert rawSipMessage.getBranch() == null;
+        assert rawSipMessage.getCSeqNumber() == -1;
+        assert rawSipMessage.getCSeqMethod() == null;
+
+        rawSipMessage = scan("SIP/2.0 2000 OK\r\n\r\n");
+        assert rawSipMessage.getStatusCode() == -1;
+    }
+
+    private RawSipMessage scan(String message) {
+        byte[] bytes = ("xx" + message + "yy").getBytes();
+        return RawSipMessage.scan(bytes, 2, bytes.length - 4);
+    }
+
+}
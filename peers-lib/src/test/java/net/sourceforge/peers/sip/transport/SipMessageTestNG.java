@@ -0,0 +1,159 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.util.Arrays;
+
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.SipMethod;
+import net.sourceforge.peers.sip.Utils;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldMultiValue;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldNames;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldValue;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderParamName;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaders;
+import net.sourceforge.peers.sip.syntaxencoding.SipParser;
+import net.sourceforge.peers.sip.syntaxencoding.SipParserException;
+
+import org.testng.annotations.Test;
+
+public class SipMessageTestNG {
+
+    @Test
+    public void testCachedAccessors() throws SipParserException {
+        byte[] bytes = ("SIP/2.0 200 OK\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.1;branch=z9hG4bK1, SIP/2.0/UDP 10.0.0.2;branch=z9hG4bK2\r\n"
+            + "From: <sip:alice@example.com>;tag=a\r\n"
+            + "To: <sip:bob@example.com>\r\n"
+            + "Call-ID: cached\r\n"
+            + "CSeq: 42 INVITE\r\n"
+            + "\r\n").getBytes();
+        SipMessage sipMessage = new SipParser(true).parse(bytes, 0,
+                bytes.length);
+        assert "z9hG4bK1".equals(sipMessage.getBranch());
+        assert 42 == sipMessage.getCSeqNumber();
+        assert SipMethod.INVITE == sipMessage.getCSeqMethod();
+        assert RFC3261.METHOD_INVITE.equals(sipMessage.getCSeqMethodName());
+        assert "cached".equals(sipMessage.getCallId());
+        assert "a".equals(sipMessage.getFromTag());
+        assert sipMessage.getToTag() == null;
+
+        // parameter changes are seen
+        SipHeaderParamName branch = new SipHeaderParamName(
+                RFC3261.PARAM_BRANCH);
+        Utils.getTopVia(sipMessage).addParam(branch, "z9hG4bK3");
+        assert "z9hG4bK3".equals(sipMessage.getBranch());
+        SipHeaders sipHeaders = sipMessage.getSipHeaders();
+        sipHeaders.get(SipHeaderFieldNames.TO).addParam(
+                new SipHeaderParamName(RFC3261.PARAM_TAG), "b");
+        assert "b".equals(sipMessage.getToTag());
+
+        // header replacement and removal are seen
+        sipHeaders.remove(SipHeaderFieldNames.CSEQ);
+        assert -1 == sipMessage.getCSeqNumber();
+        assert sipMessage.getCSeqMethod() == null;
+        sipHeaders.add(SipHeaderFieldNames.CSEQ,
+                new SipHeaderFieldValue("43 MESSAGE"));
+        assert 43 == sipMessage.getCSeqNumber();
+        assert sipMessage.getCSeqMethod() == null;
+        assert "MESSAGE".equals(sipMessage.getCSeqMethodName());
+        sipHeaders.get(SipHeaderFieldNames.CALLID).setValue("changed");
+        assert "changed".equals(sipMessage.getCallId());
+        sipMessage.setSipHeaders(new SipHeaders());
+        assert sipMessage.getBranch() == null;
+        assert sipMessage.getCallId() == null;
+    }
+
+    @Test
+    public void testCachedBytes() throws SipParserException {
+        byte[] message = ("BYE sip:bob@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.1;branch=z9hG4bK1\r\n"
+            + "Call-ID: bytes\r\n"
+            + "\r\n").getBytes();
+        SipMessage sipMessage = new SipParser(true).parse(message, 0,
+                message.length);
+        byte[] bytes = sipMessage.getBytes();
+        assert Arrays.equals(message, bytes);
+        assert bytes == sipMessage.getBytes();
+
+        Utils.getTopVia(sipMessage).addParam(
+                new SipHeaderParamName(RFC3261.PARAM_RECEIVED), "10.0.0.9");
+        bytes = sipMessage.getBytes();
+        assert new String(bytes).contains(";received=10.0.0.9");
+        assert bytes == sipMessage.getBytes();
+
+        sipMessage.getSipHeaders().get(SipHeaderFieldNames.CALLID)
+            .setValue("changed");
+        assert new String(sipMessage.getBytes()).contains("Call-ID: changed");
+        bytes = sipMessage.getBytes();
+
+        sipMessage.setBody("body".getBytes());
+        assert bytes != sipMessage.getBytes();
+        assert new String(sipMessage.getBytes()).endsWith(
+                "Content-Length: 4\r\n\r\nbody");
+        assert sipMessage.toString().equals(
+                new String(sipMessage.getBytes()));
+    }
+
+    @Test
+    public void testModificationCount() throws SipParserException {
+        byte[] message = ("BYE sip:bob@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.1;branch=z9hG4bK1\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.2;branch=z9hG4bK2\r\n"
+            + "Call-ID: count\r\n"
+            + "\r\n").getBytes();
+        SipMessage sipMessage = new SipParser(true).parse(message, 0,
+                message.length);
+        SipHeaders sipHeaders = sipMessage.getSipHeaders();
+        long count = sipHeaders.getModificationCount();
+        byte[] bytes = sipMessage.getBytes();
+        // parsing a value on first access is not a change
+        SipHeaderFieldMultiValue via = (SipHeaderFieldMultiValue)
+            sipHeaders.get(SipHeaderFieldNames.VIA);
+        assert count == sipHeaders.getModificationCount();
+        assert bytes == sipMessage.getBytes();
+
+        // a value of a multi-valued header
+        via.getValues().get(1).addParam(
+                new SipHeaderParamName(RFC3261.PARAM_RECEIVED), "10.0.0.9");
+        assert count < sipHeaders.getModificationCount();
+        assert new String(sipMessage.getBytes()).contains(
+                ";received=10.0.0.9");
+
+        // a value shared by two messages changes both
+        byte[] empty = "BYE sip:bob@example.com SIP/2.0\r\n\r\n".getBytes();
+        SipMessage copy = new SipParser(true).parse(empty, 0, empty.length);
+        Utils.copyHeader(sipMessage, copy, RFC3261.HDR_CALLID);
+        byte[] copyBytes = copy.getBytes();
+        sipHeaders.get(SipHeaderFieldNames.CALLID).setValue("shared");
+        assert new String(sipMessage.getBytes()).contains("Call-ID: shared");
+        assert copyBytes != copy.getBytes();
+        assert new String(copy.getBytes()).contains("Call-ID: shared");
+
+        // a removed value does not belong to the headers anymore
+        SipHeaderFieldValue callId =
+            sipHeaders.get(SipHeaderFieldNames.CALLID);
+        sipHeaders.remove(SipHeaderFieldNames.CALLID);
+        count = sipHeaders.getModificationCount();
+        callId.setValue("removed");
+        assert count == sipHeaders.getModificationCount();
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.peers.AddressResolver;
+import net.sourceforge.peers.CachingAddressResolver;
+import net.sourceforge.peers.FileLogger;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.syntaxencoding.SipURI;
+import net.sourceforge.peers.sip.syntaxencoding.SipUriSyntaxException;
+
+import org.testng.annotations.Test;
+
+public class SipServerLocatorTestNG {
+
+    @Test
+    public void testLiteralAndExplicitPort()
+            throws SipUriSyntaxException, UnknownHostException {
+        StaticDnsResolver dnsResolver = new StaticDnsResolver();
+        SipServerLocator locator = newLocator(dnsResolver);
+        SipTarget target = locator.getTarget(new SipURI("sip:192.0.2.1"));
+        assert "192.0.2.1".equals(target.getInetAddress().getHostAddress());
+        assert target.getPort() == RFC3261.TRANSPORT_DEFAULT_PORT;
+        assert RFC3261.TRANSPORT_UDP.equals(target.getTransport());
+
+        target = locator.getTarget(new SipURI(
+                "sip:proxy1.example.com:5070;transport=tcp"));
+        assert "192.0.2.1".equals(target.getInetAddress().getHostAddress());
+        assert target.getPort() == 5070;
+        assert RFC3261.TRANSPORT_TCP.equals(target.getTransport());
+        assert dnsResolver.lookups.get() == 0;
+    }
+
+    @Test
+    public void testNaptrThenSrv()
+            throws SipUriSyntaxException, UnknownHostException {
+        StaticDnsResolver dnsResolver = new StaticDnsResolver();
+        dnsResolver.addNaptr("example.com", new NaptrRecord(10, 10, "s",
+                "SIP+D2T", "_sip._tcp.example.com", 300));
+        dnsResolver.addNaptr("example.com", new NaptrRecord(20, 10, "s",
+                "SIP+D2U", "_sip._udp.example.com", 300));
+        dnsResolver.addSrv("_sip._tcp.example.com", new SrvRecord(10, 0,
+                5080, "proxy2.example.com", 300));
+        dnsResolver.addSrv("_sip._udp.example.com", new SrvRecord(10, 0,
+                5060, "proxy1.example.com", 300));
+        SipServerLocator locator = newLocator(dnsResolver);
+        List<SipTarget> targets = locator.locate(
+                new SipURI("sip:alice@example.com"));
+        assert targets.size() == 2;
+        assert targets.get(0).getPort() == 5080;
+        assert RFC3261.TRANSPORT_TCP.equals(targets.get(0).getTransport());
+        assert "192.0.2.2".equals(
+                targets.get(0).getInetAddress().getHostAddress());
+        assert RFC3261.TRANSPORT_UDP.equals(targets.get(1).getTransport());
+
+        // NAPTR and SRV records are cached
+        int lookups = dnsResolver.lookups.get();
+        locator.locate(new SipURI("sip:bob@example.com"));
+        assert dnsResolver.lookups.get() == lookups;
+    }
+
+    @Test
+    public void testCacheHonoursTtl()
+            throws SipUriSyntaxException, UnknownHostException {
+        StaticDnsResolver dnsResolver = new StaticDnsResolver();
+        dnsResolver.addSrv("_sip._udp.example.com", new SrvRecord(10, 0,
+                5060, "proxy1.example.com", 30));
+        SipServerLocator locator = newLocator(dnsResolver);
+        SipURI sipUri = new SipURI("sip:example.com;transport=udp");
+        long now = System.currentTimeMillis();
+        locator.locate(sipUri, now);
+        locator.locate(sipUri, now + 29000);
+        assert dnsResolver.lookups.get() == 1;
+        locator.locate(sipUri, now + 31000);
+        assert dnsResolver.lookups.get() == 2;
+    }
+
+    @Test
+    public void testNoSrvFallsBackToAddress()
+            throws SipUriSyntaxException, UnknownHostException {
+        SipServerLocator locator = newLocator(new StaticDnsResolver());
+        SipTarget target = locator.getTarget(
+                new SipURI("sip:proxy1.example.com"));
+        assert "192.0.2.1".equals(target.getInetAddress().getHostAddress());
+        assert target.getPort() == RFC3261.TRANSPORT_DEFAULT_PORT;
+        assert RFC3261.TRANSPORT_UDP.equals(target.getTransport());
+    }
+
+    @Test
+    public void testPriorityAndWeight() {
+        SipServerLocator locator = newLocator(new StaticDnsResolver());
+        List<SrvRecord> srvRecords = new ArrayList<SrvRecord>();
+        srvRecords.add(new SrvRecord(20, 100, 5060, "backup", 300));
+        srvRecords.add(new SrvRecord(10, 75, 5060, "heavy", 300));
+        srvRecords.add(new SrvRecord(10, 25, 5060, "light", 300));
+        int heavyFirst = 0;
+        for (int i = 0; i < 2000; ++i) {
+            List<SrvRecord> ordered = locator.orderSrvRecords(srvRecords);
+            assert ordered.size() == 3;
+            assert "backup".equals(ordered.get(2).getTarget());
+            if ("heavy".equals(ordered.get(0).getTarget())) {
+                ++heavyFirst;
+            }
+        }
+        // about 75% expected
+        assert heavyFirst > 1300 && heavyFirst < 1700 : heavyFirst;
+    }
+
+    @Test
+    public void testBlacklistedTargetTriedLast()
+            throws SipUriSyntaxException, UnknownHostException {
+        StaticDnsResolver dnsResolver = new StaticDnsResolver();
+        dnsResolver.addSrv("_sip._udp.example.com", new SrvRecord(10, 0,
+                5060, "proxy1.example.com", 300));
+        dnsResolver.addSrv("_sip._udp.example.com", new SrvRecord(20, 0,
+                5060, "proxy2.example.com", 300));
+        SipServerLocator locator = newLocator(dnsResolver);
+        SipURI sipUri = new SipURI("sip:example.com;transport=udp");
+        SipTarget first = locator.getTarget(sipUri);
+        assert "192.0.2.1".equals(first.getInetAddress().getHostAddress());
+
+        locator.blacklist(first);
+        assert locator.isBlacklisted(first);
+        SipTarget second = locator.getTarget(sipUri);
+        assert "192.0.2.2".equals(second.getInetAddress().getHostAddress());
+        List<SipTarget> targets = locator.locate(sipUri);
+        assert targets.get(1).equals(first);
+
+        // blacklist expired
+        long later = System.currentTimeMillis()
+            + locator.getBlacklistDuration() + 1;
+        assert !locator.isBlacklisted(first, later);
+        assert locator.locate(sipUri, later).get(0).equals(first);
+    }
+
+    @Test
+    public void testFullCacheEvictsOldest() throws SipUriSyntaxException {
+        StaticDnsResolver dnsResolver = new StaticDnsResolver();
+        SipServerLocator locator = newLocator(dnsResolver);
+        for (int i = 0; i <= SipServerLocator.DEFAULT_MAX_SIZE; ++i) {
+            locate(locator, i, i);
+        }
+        int lookups = dnsResolver.lookups.get();
+        assert lookups == SipServerLocator.DEFAULT_MAX_SIZE + 1;
+        // still cached
+        locate(locator, 1, 1000);
+        assert dnsResolver.lookups.get() == lookups;
+        // evicted when the last one has been added
+        locate(locator, 0, 1000);
+        assert dnsResolver.lookups.get() == lookups + 1;
+    }
+
+    /**
+     * Only the SRV lookup of the host, whose records are cached, it has no
+     * address.
+     */
+    private void locate(SipServerLocator locator, int host, long now)
+            throws SipUriSyntaxException {
+        try {
+            locator.locate(new SipURI("sip:host" + host
+                    + ".example.com;transport=udp"), now);
+            assert false;
+        } catch (UnknownHostException e) {
+        }
+    }
+
+    private SipServerLocator newLocator(SipDnsResolver dnsResolver) {
+        FileLogger logger = new FileLogger(null);
+        return new SipServerLocator(dnsResolver,
+                new CachingAddressResolver(new StaticAddressResolver(),
+                        logger), logger);
+    }
+
+    static class StaticAddressResolver implements AddressResolver {
+
+        @Override
+        public InetAddress[] getAllByName(String host)
+                throws UnknownHostException {
+            InetAddress inetAddress = null;
+            if ("proxy1.example.com".equals(host)) {
+                inetAddress = CachingAddressResolver.parseLiteral("192.0.2.1");
+            } else if ("proxy2.example.com".equals(host)) {
+                inetAddress = CachingAddressResolver.parseLiteral("192.0.2.2");
+            }
+            if (inetAddress == null) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] { inetAddress };
+        }
+    }
+
+    static class StaticDnsResolver implements SipDnsResolver {
+
+        final AtomicInteger lookups = new AtomicInteger();
+        private Map<String, List<NaptrRecord>> naptrRecords =
+            new HashMap<String, List<NaptrRecord>>();
+        private Map<String, List<SrvRecord>> srvRecords =
+            new HashMap<String, List<SrvRecord>>();
+
+        void addNaptr(String domain, NaptrRecord naptrRecord) {
+            List<NaptrRecord> records = naptrRecords.get(domain);
+            if (records == null) {
+                records = new ArrayList<NaptrRecord>();
+                naptrRecords.put(domain, records);
+            }
+            records.add(naptrRecord);
+        }
+
+        void addSrv(String name, SrvRecord srvRecord) {
+            List<SrvRecord> records = srvRecords.get(name);
+            if (records == null) {
+                records = new ArrayList<SrvRecord>();
+                srvRecords.put(name, records);
+            }
+            records.add(srvRecord);
+        }
+
+        @Override
+        public List<NaptrRecord> lookupNaptr(String domain) {
+            lookups.incrementAndGet();
+            List<NaptrRecord> records = naptrRecords.get(domain);
+            return records == null ? new ArrayList<NaptrRecord>() : records;
+        }
+
+        @Override
+        public List<SrvRecord> lookupSrv(String name) {
+            lookups.incrementAndGet();
+            List<SrvRecord> records = srvRecords.get(name);
+            return records == null ? new ArrayList<SrvRecord>() : records;
+        }
+    }
+
+}
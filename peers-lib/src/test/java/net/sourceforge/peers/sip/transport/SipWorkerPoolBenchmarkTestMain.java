@@ -0,0 +1,107 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+package net.sourceforge.peers.sip.transport;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.peers.FileLogger;
+import net.sourceforge.peers.sip.syntaxencoding.SipParser;
+import net.sourceforge.peers.sip.syntaxencoding.SipParserException;
+
+/**
+ * Measures received message throughput for an increasing number of
+ * workers. Each message is sharded and parsed like in
+ * {@link MessageReceiver}, then a fixed amount of cpu is spent to stand
+ * for transaction, dialog and listener processing.
+ * 
+ * Usage: SipWorkerPoolBenchmarkTestMain [messages] [calls] [work]
+ */
+public class SipWorkerPoolBenchmarkTestMain {
+
+    private static final SipParser SIP_PARSER = new SipParser(true);
+
+    public static void main(String[] args) throws InterruptedException {
+        int messageCount = args.length > 0 ? Integer.parseInt(args[0])
+                : 200000;
+        int callCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int work = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        byte[][] messages = new byte[callCount][];
+        for (int i = 0; i < callCount; ++i) {
+            messages[i] = ("INVITE sip:bob@biloxi.com SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bK" + i + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: Bob <sip:bob@biloxi.com>\r\n"
+                + "From: Alice <sip:alice@atlanta.com>;tag=1928301774\r\n"
+                + "Call-ID: " + i + "a84b4c76e66710@pc33.atlanta.com\r\n"
+                + "CSeq: 314159 INVITE\r\n"
+                + "Contact: <sip:alice@pc33.atlanta.com>\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n").getBytes();
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        // warm up
+        run(1, messages, messageCount / 4, work);
+        double reference = 0;
+        for (int workers = 1; workers <= processors; workers *= 2) {
+            double throughput = run(workers, messages, messageCount, work);
+            if (workers == 1) {
+                reference = throughput;
+            }
+            System.out.printf("%2d workers: %9.0f msg/s, speedup %.2f%n",
+                    workers, throughput, throughput / reference);
+        }
+    }
+
+    private static double run(int workers, byte[][] messages,
+            int messageCount, final int work) throws InterruptedException {
+        SipWorkerPool sipWorkerPool = new SipWorkerPool(workers,
+                new FileLogger(null));
+        final CountDownLatch done = new CountDownLatch(messageCount);
+        final AtomicLong sink = new AtomicLong();
+        long start = System.nanoTime();
+        for (int i = 0; i < messageCount; ++i) {
+            final byte[] message = messages[i % messages.length];
+            int shardKey = RawSipMessage.scan(message, 0, message.length)
+                .getShardKey();
+            sipWorkerPool.execute(shardKey, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SipMessage sipMessage = SIP_PARSER.parse(
+                                message, 0, message.length);
+                        long value = sipMessage.getCSeqNumber();
+                        for (int j = 0; j < work; ++j) {
+                            value = value * 31 + j;
+                        }
+                        sink.addAndGet(value);
+                    } catch (SipParserException e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        sipWorkerPool.close();
+        return messageCount * 1e9 / elapsed;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+package net.sourceforge.peers.sip.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.peers.FileLogger;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class SipWorkerPoolTestNG {
+
+    private SipWorkerPool sipWorkerPool;
+
+    @BeforeClass
+    public void init() {
+        sipWorkerPool = new SipWorkerPool(4, new FileLogger(null));
+    }
+
+    @AfterClass
+    public void close() {
+        sipWorkerPool.close();
+    }
+
+    @Test
+    public void testOrderWithinShard() throws InterruptedException {
+        final List<Integer> executed =
+            Collections.synchronizedList(new ArrayList<Integer>());
+        final int count = 1000;
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; ++i) {
+            final int index = i;
+            sipWorkerPool.execute(42, new Runnable() {
+                @Override
+                public void run() {
+                    executed.add(index);
+                    done.countDown();
+                }
+            });
+        }
+        assert done.await(5, TimeUnit.SECONDS);
+        for (int i = 0; i < count; ++i) {
+            assert executed.get(i) == i;
+        }
+    }
+
+    @Test
+    public void testShardsRunInParallel() throws InterruptedException {
+        int otherKey = 1;
+        while (sipWorkerPool.indexOf(otherKey) == sipWorkerPool.indexOf(0)) {
+            ++otherKey;
+        }
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        // blocks its worker until a task on another worker has run
+        sipWorkerPool.execute(0, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (released.await(5, TimeUnit.SECONDS)) {
+                        done.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sipWorkerPool.execute(otherKey, new Runnable() {
+            @Override
+            public void run() {
+                released.countDown();
+            }
+        });
+        assert done.await(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testTasksIgnoredAfterClose() throws InterruptedException {
+        SipWorkerPool pool = new SipWorkerPool(1, new FileLogger(null));
+        final CountDownLatch done = new CountDownLatch(1);
+        pool.close();
+        pool.execute(0, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assert !done.await(200, TimeUnit.MILLISECONDS);
+        assert pool.getQueuedTaskCount() == 0;
+    }
+
+    @Test
+    public void testShardKey() {
+        int key = shardKey(("INVITE sip:bob@biloxi.com SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 192.168.1.2;branch=z9hG4bK1\r\n"
+                + "Call-ID: a84b4c76e66710@pc33.atlanta.com\r\n"
+                + "\r\n").getBytes());
+        assert key == shardKey(("SIP/2.0 200 OK\r\n"
+                + "v: SIP/2.0/UDP 192.168.1.2;branch=z9hG4bK2\r\n"
+                + "i :  a84b4c76e66710@pc33.atlanta.com \r\n"
+                + "\r\n").getBytes());
+        assert key == shardKey(("BYE sip:bob@biloxi.com SIP/2.0\r\n"
+                + "call-id:a84b4c76e66710@pc33.atlanta.com\r\n"
+                + "\r\n").getBytes());
+        assert key != shardKey(("BYE sip:bob@biloxi.com SIP/2.0\r\n"
+                + "Call-ID: 1234@pc33.atlanta.com\r\n"
+                + "\r\n").getBytes());
+        // without Call-ID, the top Via is used
+        int viaKey = shardKey(("ACK sip:bob@biloxi.com SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 192.168.1.2;branch=z9hG4bK1\r\n"
+                + "\r\n").getBytes());
+        assert viaKey == shardKey(("ACK sip:bob@biloxi.com SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 192.168.1.2;branch=z9hG4bK1\r\n"
+                + "Via: SIP/2.0/UDP 192.168.1.3;branch=z9hG4bK3\r\n"
+                + "\r\n").getBytes());
+        // body lines are not headers
+        assert shardKey(("MESSAGE sip:bob@biloxi.com SIP/2.0\r\n"
+                + "\r\n"
+                + "Call-ID: 1234@pc33.atlanta.com\r\n").getBytes()) == 0;
+    }
+
+    private int shardKey(byte[] message) {
+        return RawSipMessage.scan(message, 0, message.length).getShardKey();
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2007-2013 Yohann Martineau
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.peers.CachingAddressResolver;
+import net.sourceforge.peers.FileLogger;
+
+import org.testng.annotations.Test;
+
+public class SourceRateLimiterTestNG {
+
+    private static final InetAddress FLOODER =
+        CachingAddressResolver.parseLiteral("192.0.2.1");
+    private static final InetAddress PHONE =
+        CachingAddressResolver.parseLiteral("192.0.2.2");
+
+    @Test
+    public void testBurstThenRate() {
+        SourceRateLimiter limiter = new SourceRateLimiter(10, 20, 16,
+                new FileLogger(null));
+        long now = System.nanoTime();
+        for (int i = 0; i < 20; ++i) {
+            assert limiter.tryAcquire(FLOODER, now);
+        }
+        assert !limiter.tryAcquire(FLOODER, now);
+        assert limiter.getDroppedCount() == 1;
+        assert limiter.getDroppedCount(FLOODER) == 1;
+
+        // 10 messages per second, one token every 100 ms
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assert limiter.tryAcquire(FLOODER, now);
+        assert !limiter.tryAcquire(FLOODER, now);
+        now += TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < 20; ++i) {
+            assert limiter.tryAcquire(FLOODER, now);
+        }
+        assert !limiter.tryAcquire(FLOODER, now);
+        assert limiter.getAcceptedCount() == 41;
+    }
+
+    @Test
+    public void testSourcesAreIndependent() {
+        SourceRateLimiter limiter = new SourceRateLimiter(10, 20, 16,
+                new FileLogger(null));
+        long now = System.nanoTime();
+        for (int i = 0; i < 1000; ++i) {
+            limiter.tryAcquire(FLOODER, now);
+        }
+        assert limiter.getDroppedCount(FLOODER) == 980;
+        assert limiter.tryAcquire(PHONE, now);
+        assert limiter.getDroppedCount(PHONE) == 0;
+    }
+
+    @Test
+    public void testExemptAddress() {
+        SourceRateLimiter limiter = new SourceRateLimiter(10, 20, 16,
+                new FileLogger(null));
+        limiter.addExemptAddress(FLOODER);
+        long now = System.nanoTime();
+        for (int i = 0; i < 1000; ++i) {
+            assert limiter.tryAcquire(FLOODER, now);
+        }
+        assert limiter.size() == 0;
+    }
+
+    @Test
+    public void testDisabled() {
+        SourceRateLimiter limiter = new SourceRateLimiter(0, 0, 16,
+                new FileLogger(null));
+        for (int i = 0; i < 1000; ++i) {
+            assert limiter.tryAcquire(FLOODER);
+        }
+    }
+
+    @Test
+    public void testBoundedTable() throws Exception {
+        SourceRateLimiter limiter = new SourceRateLimiter(10, 2, 4,
+                new FileLogger(null));
+        long now = System.nanoTime();
+        byte[] address = new byte[] { (byte)198, 51, 100, 0 };
+        for (int i = 0; i < 100; ++i) {
+            address[3] = (byte)i;
+            limiter.tryAcquire(InetAddress.getByAddress(address), now);
+        }
+        assert limiter.size() == 4;
+        // spoofed sources beyond the table size share one bucket
+        assert limiter.getDroppedCount() == 100 - 4 - 2;
+
+        // refilled buckets are evicted, new sources tracked again
+        now += TimeUnit.SECONDS.toNanos(2);
+        assert limiter.tryAcquire(PHONE, now);
+        assert limiter.size() == 1;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+public class StreamMessageFramerTestNG {
+
+    private static final String MESSAGE1 =
+        "MESSAGE sip:bob@biloxi.com SIP/2.0\r\n"
+        + "Call-ID: a84b4c76e66710\r\n"
+        + "Content-Length: 5\r\n"
+        + "\r\n"
+        + "hello";
+    private static final String MESSAGE2 =
+        "SIP/2.0 200 OK\r\n"
+        + "l: 0\r\n"
+        + "\r\n";
+
+    @Test
+    public void testSplitMessage() throws IOException {
+        StreamMessageFramer framer = new StreamMessageFramer();
+        byte[] bytes = MESSAGE1.getBytes();
+        for (int i = 0; i < bytes.length - 1; ++i) {
+            framer.append(ByteBuffer.wrap(bytes, i, 1));
+            assert framer.nextMessage() == null;
+        }
+        framer.append(ByteBuffer.wrap(bytes, bytes.length - 1, 1));
+        assert MESSAGE1.equals(new String(framer.nextMessage()));
+        assert framer.nextMessage() == null;
+    }
+
+    @Test
+    public void testSeveralMessages() throws IOException {
+        StreamMessageFramer framer = new StreamMessageFramer();
+        framer.append(ByteBuffer.wrap((MESSAGE1 + MESSAGE2 + MESSAGE1)
+                .getBytes()));
+        assert MESSAGE1.equals(new String(framer.nextMessage()));
+        assert MESSAGE2.equals(new String(framer.nextMessage()));
+        assert MESSAGE1.equals(new String(framer.nextMessage()));
+        assert framer.nextMessage() == null;
+        assert !framer.pingReceived();
+    }
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        StreamMessageFramer framer = new StreamMessageFramer();
+        framer.append(ByteBuffer.wrap(("\r\n\r\n" + MESSAGE2).getBytes()));
+        assert MESSAGE2.equals(new String(framer.nextMessage()));
+        assert framer.pingReceived();
+        assert !framer.pingReceived();
+        framer.append(ByteBuffer.wrap("\r\n".getBytes()));
+        assert framer.nextMessage() == null;
+        assert !framer.pingReceived();
+    }
+
+    @Test
+    public void testPong() throws IOException {
+        StreamMessageFramer framer = new StreamMessageFramer();
+        framer.append(ByteBuffer.wrap("\r\n\r\n".getBytes()));
+        assert framer.nextMessage() == null;
+        assert framer.pingReceived();
+        assert !framer.pongReceived();
+        // two pongs in separate reads are not a ping
+        for (int i = 0; i < 2; ++i) {
+            framer.append(ByteBuffer.wrap("\r\n".getBytes()));
+            assert framer.nextMessage() == null;
+            assert framer.pongReceived();
+            assert !framer.pingReceived();
+        }
+        assert !framer.pongReceived();
+        framer.append(ByteBuffer.wrap(("\r\n" + MESSAGE2).getBytes()));
+        assert MESSAGE2.equals(new String(framer.nextMessage()));
+        assert framer.pongReceived();
+        assert !framer.pingReceived();
+    }
+
+    @Test (expectedExceptions = IOException.class)
+    public void testInvalidContentLength() throws IOException {
+        StreamMessageFramer framer = new StreamMessageFramer();
+        framer.append(ByteBuffer.wrap(("SIP/2.0 200 OK\r\n"
+                + "Content-Length: abc\r\n\r\n").getBytes()));
+        framer.nextMessage();
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.FileLogger;
+import net.sourceforge.peers.JavaConfig;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
+import net.sourceforge.peers.sip.Utils;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderFieldName;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaderParamName;
+import net.sourceforge.peers.sip.syntaxencoding.SipHeaders;
+import net.sourceforge.peers.sip.syntaxencoding.SipParser;
+import net.sourceforge.peers.sip.syntaxencoding.SipParserException;
+import net.sourceforge.peers.sip.transaction.TransactionManager;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TcpTransportTestNG {
+
+    private InetAddress localHost;
+    private TransportManager server;
+    private TransportManager client;
+    private BlockingQueue<SipMessage> serverMessages;
+    private BlockingQueue<SipMessage> clientMessages;
+    private int serverPort;
+
+    @BeforeClass
+    public void init() throws IOException {
+        localHost = InetAddress.getLocalHost();
+        serverMessages = new LinkedBlockingQueue<SipMessage>();
+        clientMessages = new LinkedBlockingQueue<SipMessage>();
+        ServerSocket serverSocket = new ServerSocket(0, 1, localHost);
+        serverPort = serverSocket.getLocalPort();
+        serverSocket.close();
+        server = createTransportManager(serverMessages);
+        server.setSipPort(serverPort);
+        server.createServerTransport(RFC3261.TRANSPORT_TCP, serverPort);
+        client = createTransportManager(clientMessages);
+        ServerSocket clientSocket = new ServerSocket(0, 1, localHost);
+        client.setSipPort(clientSocket.getLocalPort());
+        clientSocket.close();
+    }
+
+    private TransportManager createTransportManager(
+            final BlockingQueue<SipMessage> messages) {
+        Logger logger = new FileLogger(null);
+        Config config = new JavaConfig();
+        config.setLocalInetAddress(localHost);
+        TransactionManager transactionManager = new TransactionManager(logger);
+        TransportManager transportManager = new TransportManager(
+                transactionManager, config, logger);
+        transactionManager.setTransportManager(transportManager);
+        transportManager.setSipServerTransportUser(
+                new SipServerTransportUser() {
+                    @Override
+                    public void messageReceived(SipMessage sipMessage) {
+                        messages.add(sipMessage);
+                    }
+                });
+        return transportManager;
+    }
+
+    @AfterClass
+    public void close() {
+        client.closeTransports();
+        server.closeTransports();
+    }
+
+    @Test
+    public void testLargeRequestAndResponseOverOneConnection()
+            throws Exception {
+        StringBuffer body = new StringBuffer();
+        while (body.length() <= RFC3261.TRANSPORT_UDP_USUAL_MAX_SIZE) {
+            body.append("a=x-padding:0123456789012345678901234567890\r\n");
+        }
+        SipRequest sipRequest = (SipRequest)parse(
+                "MESSAGE sip:bob@" + localHost.getHostAddress() + " SIP/2.0\r\n"
+                + "Via: \r\n"
+                + "From: <sip:alice@example.com>;tag=1\r\n"
+                + "To: <sip:bob@example.com>\r\n"
+                + "Call-ID: tcp1\r\n"
+                + "CSeq: 1 MESSAGE\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + "\r\n" + body);
+        Utils.getTopVia(sipRequest).addParam(
+                new SipHeaderParamName(RFC3261.PARAM_BRANCH), "z9hG4bKtcp1");
+        MessageSender messageSender = client.createClientTransport(
+                sipRequest, localHost, serverPort, RFC3261.TRANSPORT_UDP);
+        assert messageSender instanceof TcpMessageSender;
+        messageSender.sendMessage(sipRequest);
+        messageSender.sendMessage(sipRequest);
+
+        SipMessage received = serverMessages.poll(5, TimeUnit.SECONDS);
+        assert received instanceof SipRequest;
+        assert body.toString().equals(new String(received.getBody()));
+        assert serverMessages.poll(5, TimeUnit.SECONDS) != null;
+        assert client.getTcpConnectionCount() == 1;
+        assert server.getTcpConnectionCount() == 1;
+
+        SipResponse sipResponse = new SipResponse(RFC3261.CODE_200_OK,
+                RFC3261.REASON_200_OK);
+        SipHeaders headers = sipResponse.getSipHeaders();
+        SipHeaders requestHeaders = received.getSipHeaders();
+        SipHeaderFieldName via = new SipHeaderFieldName(RFC3261.HDR_VIA);
+        headers.add(via, requestHeaders.get(via));
+        SipHeaderFieldName cseq = new SipHeaderFieldName(RFC3261.HDR_CSEQ);
+        headers.add(cseq, requestHeaders.get(cseq));
+        sipResponse.setBody(new byte[0]);
+        server.sendResponse(sipResponse);
+
+        SipMessage response = clientMessages.poll(5, TimeUnit.SECONDS);
+        assert response instanceof SipResponse;
+        assert ((SipResponse)response).getStatusCode() == RFC3261.CODE_200_OK;
+        assert server.getTcpConnectionCount() == 1;
+    }
+
+    private SipMessage parse(String message)
+            throws IOException, SipParserException {
+        return new SipParser().parse(
+                new ByteArrayInputStream(message.getBytes()));
+    }
+
+}
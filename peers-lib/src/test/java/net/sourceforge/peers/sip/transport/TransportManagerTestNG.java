@@ -30,6 +30,7 @@ import net.sourceforge.peers.Config;
 import net.sourceforge.peers.FileLogger;
 import net.sourceforge.peers.JavaConfig;
 import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.RFC3261;
 import net.sourceforge.peers.sip.syntaxencoding.SipParser;
 import net.sourceforge.peers.sip.syntaxencoding.SipParserException;
 import net.sourceforge.peers.sip.transaction.TransactionManager;
@@ -84,6 +85,32 @@ public class TransportManagerTestNG {
     
     //TODO test sendResponse
     
+    @Test
+    public void testPingIsNotPong() throws IOException {
+        InetAddress localHost = InetAddress.getLocalHost();
+        SipTransportConnection conn = new SipTransportConnection(localHost,
+                port, localHost, 5070, RFC3261.TRANSPORT_UDP);
+        KeepAliveManager keepAliveManager =
+            transportManager.getKeepAliveManager();
+        MessageSender messageSender = new MessageSender(port, localHost, 5070,
+                new JavaConfig(), RFC3261.TRANSPORT_UDP, keepAliveManager,
+                new FileLogger(null)) {
+            @Override
+            public void sendMessage(SipMessage sipMessage) {
+            }
+            @Override
+            public void sendBytes(byte[] bytes) {
+            }
+        };
+        keepAliveManager.add(conn, messageSender);
+        long pongs = keepAliveManager.getPongCount();
+        transportManager.keepAliveReceived(conn, true);
+        assert keepAliveManager.getPongCount() == pongs;
+        transportManager.keepAliveReceived(conn, false);
+        assert keepAliveManager.getPongCount() == pongs + 1;
+        keepAliveManager.remove(messageSender);
+    }
+
     @Test (expectedExceptions = SocketException.class)
     public void checkServerConnection()
         throws SocketException, UnknownHostException {
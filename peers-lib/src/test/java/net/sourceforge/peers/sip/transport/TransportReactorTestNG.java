@@ -0,0 +1,124 @@
+/*
+    This file is part of Peers, a java SIP softphone.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+    
+    Copyright 2007-2013 Yohann Martineau 
+*/
+
+package net.sourceforge.peers.sip.transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.peers.Config;
+import net.sourceforge.peers.FileLogger;
+import net.sourceforge.peers.JavaConfig;
+import net.sourceforge.peers.Logger;
+import net.sourceforge.peers.sip.transaction.TransactionManager;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TransportReactorTestNG {
+
+    private static final int PORTS = 20;
+
+    private TransportReactor transportReactor;
+    private TransportManager transportManager;
+    private InetAddress localHost;
+    private CountDownLatch received;
+
+    @BeforeClass
+    public void init() throws IOException {
+        Logger logger = new FileLogger(null);
+        localHost = InetAddress.getLocalHost();
+        Config config = new JavaConfig();
+        config.setLocalInetAddress(localHost);
+        transportReactor = new TransportReactor(1, logger);
+        TransactionManager transactionManager = new TransactionManager(logger);
+        transportManager = new TransportManager(transactionManager, config,
+                logger, transportReactor);
+        transactionManager.setTransportManager(transportManager);
+        // requests must reach the transport user
+        transportManager.setOptionsResponder(null);
+        received = new CountDownLatch(PORTS);
+        transportManager.setSipServerTransportUser(
+                new SipServerTransportUser() {
+                    @Override
+                    public void messageReceived(SipMessage sipMessage) {
+                        received.countDown();
+                    }
+                });
+    }
+
+    @AfterClass
+    public void close() {
+        transportManager.closeTransports();
+        transportReactor.close();
+    }
+
+    @Test
+    public void testReceiveOnManyPortsWithOneEventLoop()
+            throws IOException, InterruptedException {
+        int[] ports = new int[PORTS];
+        for (int i = 0; i < PORTS; ++i) {
+            DatagramSocket datagramSocket = new DatagramSocket(0, localHost);
+            ports[i] = datagramSocket.getLocalPort();
+            datagramSocket.close();
+            transportManager.createServerTransport("UDP", ports[i]);
+            assert countThreads(TransportManager.class.getSimpleName()
+                    + " " + ports[i]) == 0;
+        }
+        assert countThreads(TransportReactor.class.getSimpleName()) == 1;
+
+        DatagramSocket client = new DatagramSocket(0, localHost);
+        for (int i = 0; i < PORTS; ++i) {
+            byte[] bytes = request(i).getBytes();
+            client.send(new DatagramPacket(bytes, bytes.length, localHost,
+                    ports[i]));
+        }
+        client.close();
+        assert received.await(5, TimeUnit.SECONDS);
+    }
+
+    private String request(int i) {
+        return "OPTIONS sip:bob@" + localHost.getHostAddress()
+            + " SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP " + localHost.getHostAddress()
+            + ":5060;branch=z9hG4bKreactor" + i + "\r\n"
+            + "From: <sip:alice@example.com>;tag=" + i + "\r\n"
+            + "To: <sip:bob@example.com>\r\n"
+            + "Call-ID: reactor" + i + "\r\n"
+            + "CSeq: 1 OPTIONS\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+    }
+
+    private int countThreads(String prefix) {
+        int count = 0;
+        for (Thread thread: Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith(prefix)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+}